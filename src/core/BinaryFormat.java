@@ -0,0 +1,62 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+/**
+ * Constants of the binary format of query results.
+ * <p>
+ * The TSD writes this format and {@code DataPointsDecoder} reads it, see
+ * the latter for a description of the format.
+ * @since 1.2
+ */
+public final class BinaryFormat {
+
+  /** The MIME type of binary results. */
+  public static final String MIME_TYPE = "application/x-opentsdb-binary";
+
+  /**
+   * The first bytes of a binary result.
+   * This array is read-only, changing its contents leads to an undefined
+   * behavior.
+   */
+  public static final byte[] MAGIC = { 'T', 'S', 'D', 'B' };
+
+  /** The version of the format. */
+  public static final byte VERSION = 1;
+
+  /** Type of the record that marks the end of the result. */
+  public static final byte END = 0;
+
+  /** Type of the record that starts a new series. */
+  public static final byte SERIES = 1;
+
+  /** Type of the record that holds data points. */
+  public static final byte BLOCK = 2;
+
+  /** Number of LSBs in qualifiers reserved for flags. */
+  public static final short FLAG_BITS = 4;
+
+  /** Flag set for floating point values. */
+  public static final short FLAG_FLOAT = 0x8;
+
+  /** Mask to select the size of a value from the qualifier. */
+  public static final short LENGTH_MASK = 0x7;
+
+  /** Max number of seconds between a data point and its base timestamp. */
+  public static final short MAX_DELTA = 0xFFF;
+
+  private BinaryFormat() {
+    // Can't instantiate.
+  }
+
+}
@@ -49,6 +49,11 @@ import net.opentsdb.stats.StatsCollector;
  * This process is effective because in HBase the row key is repeated for
  * every single cell.  And because there is no way to efficiently append bytes
  * at the end of a cell, we have to do this instead.
+ * <p>
+ * Queries also compact the rows they read, but only in memory.  When they
+ * come across an old row that isn't compacted yet, its key is added to a
+ * separate, bounded "repair" queue that the compaction thread drains at a
+ * fixed rate, so that queries never wait on HBase writes.
  */
 final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
 
@@ -65,6 +70,17 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   private final AtomicLong written_cells = new AtomicLong();
   private final AtomicLong deleted_cells = new AtomicLong();
 
+  /**
+   * Old rows that queries found uncompacted and that need to be re-read and
+   * compacted in the background.  Only the keys matter.
+   */
+  private final ConcurrentSkipListMap<byte[], Boolean> repairq =
+    new ConcurrentSkipListMap<byte[], Boolean>(Bytes.MEMCMP);
+  /** How many items are currently in {@code repairq}.  */
+  private final AtomicInteger repair_size = new AtomicInteger();
+  private final AtomicLong repairs_scheduled = new AtomicLong();
+  private final AtomicLong repairs_dropped = new AtomicLong();
+
   /** The {@code TSDB} instance we belong to. */
   private final TSDB tsdb;
 
@@ -129,6 +145,44 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
                      "rpc=delete");
     collector.record("compaction.writes", written_cells);
     collector.record("compaction.deletes", deleted_cells);
+    collector.record("compaction.repair.queue.size", repair_size);
+    collector.record("compaction.repair.scheduled", repairs_scheduled);
+    collector.record("compaction.repair.dropped", repairs_dropped);
+  }
+
+  /**
+   * Schedules an old row found uncompacted by a query for re-compaction.
+   * If the same row is already scheduled, this is a no-op.
+   * @param row The key of the row to compact.
+   */
+  private void scheduleRepair(final byte[] row) {
+    if (repair_size.get() >= MAX_PENDING_REPAIRS) {
+      // We're way behind, don't let the queue grow unbounded.  The row will
+      // be scheduled again next time a query reads it.
+      repairs_dropped.incrementAndGet();
+      return;
+    }
+    if (repairq.put(row, Boolean.TRUE) == null) {
+      repair_size.incrementAndGet();
+      repairs_scheduled.incrementAndGet();
+    }
+  }
+
+  /**
+   * Kicks off the re-compaction of rows in the repair queue.
+   * @param maxrepairs How many rows to take off the repair queue.
+   */
+  private void flushRepairs(int maxrepairs) {
+    for (final byte[] row : repairq.keySet()) {
+      if (maxrepairs == 0) {
+        break;
+      } else if (repairq.remove(row) == null) {
+        continue;  // Someone else already took care of this entry.
+      }
+      maxrepairs--;
+      repair_size.decrementAndGet();
+      tsdb.get(row).addCallbacks(compactcb, handle_read_error);
+    }
   }
 
   /**
@@ -205,15 +259,30 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    */
   private final class CompactCB implements Callback<Object, ArrayList<KeyValue>> {
     public Object call(final ArrayList<KeyValue> row) {
-      return compact(row, null);
+      return repair(row);
     }
     public String toString() {
       return "compact";
     }
   }
 
+  /**
+   * Compacts a row and writes back the compacted form to HBase.
+   * <p>
+   * This is what the compaction thread does with each row it flushes.
+   * @param row The row containing all the KVs to compact.  Must be non-null.
+   * @return A {@link Deferred} if the compaction processed required a write
+   * to HBase, otherwise {@code null}.
+   */
+  Deferred<Object> repair(final ArrayList<KeyValue> row) {
+    return compact(row, null);
+  }
+
   /**
    * Compacts a row into a single {@link KeyValue}.
+   * <p>
+   * This doesn't write anything to HBase.  If the row is old enough to be
+   * compacted in HBase, it's scheduled for a background repair instead.
    * @param row The row containing all the KVs to compact.
    * Must contain at least one element.
    * @return A compacted version of this row.
@@ -235,8 +304,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
    * @param row The row containing all the KVs to compact.  Must be non-null.
    * @param compacted If non-null, the first item in the array will be set to
    * a {@link KeyValue} containing the compacted form of this row.
-   * If non-null, we will also not write the compacted form back to HBase
-   * unless the timestamp in the row key is old enough.
+   * If non-null, we will also not write the compacted form back to HBase,
+   * instead the row will be scheduled for a background repair if the
+   * timestamp in the row key is old enough.
    * @return A {@link Deferred} if the compaction processed required a write
    * to HBase, otherwise {@code null}.
    */
@@ -411,6 +481,12 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
       if (base_time > cut_off) {  // If row is too recent...
         return null;              // ... Don't write back compacted.
       }
+      // Don't write back from here, our caller is a query and we don't want
+      // it to wait on HBase writes.  Let the compaction thread handle it.
+      if (TSDB.enable_compactions) {
+        scheduleRepair(compact.key());
+      }
+      return null;
     }
     if (!TSDB.enable_compactions) {
       return null;
@@ -829,20 +905,28 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
   }
 
   /** How frequently the compaction thread wakes up flush stuff.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_INTERVAL = 10;  // seconds
+  private static final int FLUSH_INTERVAL =  // seconds
+    Integer.getInteger("tsd.compaction.flush_interval", 10);
 
   /** Minimum number of rows we'll attempt to compact at once.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MIN_FLUSH_THRESHOLD = 100;  // rows
+  private static final int MIN_FLUSH_THRESHOLD =  // rows
+    Integer.getInteger("tsd.compaction.min_flush_threshold", 100);
 
   /** Maximum number of rows we'll compact concurrently.  */
-  // TODO(tsuna): Make configurable?
-  private static final int MAX_CONCURRENT_FLUSHES = 10000;  // rows
+  private static final int MAX_CONCURRENT_FLUSHES =  // rows
+    Integer.getInteger("tsd.compaction.max_concurrent_flushes", 10000);
 
   /** If this is X then we'll flush X times faster than we really need.  */
-  // TODO(tsuna): Make configurable?
-  private static final int FLUSH_SPEED = 2;  // multiplicative factor
+  private static final int FLUSH_SPEED =  // multiplicative factor
+    Integer.getInteger("tsd.compaction.flush_speed", 2);
+
+  /** Maximum number of rows to repair every {@link #FLUSH_INTERVAL}.  */
+  private static final int MAX_REPAIRS_PER_FLUSH =  // rows
+    Integer.getInteger("tsd.compaction.max_repairs_per_flush", 1000);
+
+  /** Maximum number of rows waiting to be repaired.  */
+  private static final int MAX_PENDING_REPAIRS =  // rows
+    Integer.getInteger("tsd.compaction.max_pending_repairs", 100000);
 
   /**
    * Background thread to trigger periodic compactions.
@@ -889,6 +973,9 @@ final class CompactionQueue extends ConcurrentSkipListMap<byte[], Boolean> {
                         + " (" + (newsize - size) + ')');
             }
           }
+          // Rows found uncompacted by queries are repaired at a fixed rate
+          // that doesn't depend on how busy queries are.
+          flushRepairs(MAX_REPAIRS_PER_FLUSH);
         } catch (Exception e) {
           LOG.error("Uncaught exception in compaction thread", e);
         } catch (OutOfMemoryError e) {
@@ -12,12 +12,14 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 
 import org.hbase.async.Bytes;
@@ -109,6 +111,23 @@ final class IncomingDataPoints implements WritableDataPoints {
   static byte[] rowKeyTemplate(final TSDB tsdb,
                                final String metric,
                                final Map<String, String> tags) {
+    return Tags.join(rowKeyTemplateAsync(tsdb, metric, tags));
+  }
+
+  /**
+   * Asynchronously returns a partially initialized row key for this metric
+   * and these tags.  The only thing left to fill in is the base timestamp.
+   * <p>
+   * The metric is resolved first, so that we don't assign IDs to the tags of
+   * a data point we're going to reject because of an unknown metric.  Then
+   * all the tags are resolved (or assigned an ID) in parallel.  In the
+   * common case where all the IDs are cached, the row key is filled in
+   * directly from the caches.
+   * @since 1.2
+   */
+  static Deferred<byte[]> rowKeyTemplateAsync(final TSDB tsdb,
+                                              final String metric,
+                                              final Map<String, String> tags) {
     final short metric_width = tsdb.metrics.width();
     final short tag_name_width = tsdb.tag_names.width();
     final short tag_value_width = tsdb.tag_values.width();
@@ -118,25 +137,102 @@ final class IncomingDataPoints implements WritableDataPoints {
                     + tag_name_width * num_tags
                     + tag_value_width * num_tags);
     final byte[] row = new byte[row_size];
+    if (copyCachedIds(tsdb, metric, tags, row)) {
+      return Deferred.fromResult(row);
+    }
 
-    short pos = 0;
-
-    copyInRowKey(row, pos, (AUTO_METRIC ? tsdb.metrics.getOrCreateId(metric)
-                       : tsdb.metrics.getId(metric)));
-    pos += metric_width;
+    final class CopyTagsCB implements Callback<byte[], ArrayList<byte[]>> {
+      public byte[] call(final ArrayList<byte[]> tag_ids) {
+        short pos = (short) (metric_width + Const.TIMESTAMP_BYTES);
+        for (final byte[] tag : tag_ids) {
+          copyInRowKey(row, pos, tag);
+          pos += tag.length;
+        }
+        return row;
+      }
+      public String toString() {
+        return "copy tags " + tags + " in row key";
+      }
+    }
+    final class CopyMetricCB implements Callback<Deferred<byte[]>, byte[]> {
+      public Deferred<byte[]> call(final byte[] metric_id) {
+        copyInRowKey(row, (short) 0, metric_id);
+        return Tags.resolveOrCreateAllAsync(tsdb, tags)
+          .addCallback(new CopyTagsCB());
+      }
+      public String toString() {
+        return "copy metric " + metric + " in row key";
+      }
+    }
+    return (AUTO_METRIC ? tsdb.metrics.getOrCreateIdAsync(metric)
+            : tsdb.metrics.getIdAsync(metric))
+      .addCallbackDeferring(new CopyMetricCB());
+  }
 
-    pos += Const.TIMESTAMP_BYTES;
+  /**
+   * Fills in a row key with the IDs cached by the UniqueIds, without going
+   * through HBase, Deferreds or temporary byte arrays.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param metric The metric of the row key.
+   * @param tags The tags of the row key.
+   * @param row The row key to fill in.
+   * @return {@code false} if some of the IDs aren't cached, in which case
+   * the row key is left partially filled in.
+   */
+  private static boolean copyCachedIds(final TSDB tsdb,
+                                       final String metric,
+                                       final Map<String, String> tags,
+                                       final byte[] row) {
+    if (!tsdb.metrics.copyCachedId(metric, row, 0)) {
+      return false;
+    }
+    final short name_width = tsdb.tag_names.width();
+    final int tag_width = name_width + tsdb.tag_values.width();
+    final int start = tsdb.metrics.width() + Const.TIMESTAMP_BYTES;
+    int pos = start;
+    for (final Map.Entry<String, String> tag : tags.entrySet()) {
+      if (!tsdb.tag_names.copyCachedId(tag.getKey(), row, pos)
+          || !tsdb.tag_values.copyCachedId(tag.getValue(), row,
+                                           pos + name_width)) {
+        return false;
+      }
+      pos += tag_width;
+    }
+    // Sort the tags by tag name ID, in place.  There are at most
+    // Const.MAX_NUM_TAGS of them, so an insertion sort is fine.
+    for (int i = start + tag_width; i < pos; i += tag_width) {
+      for (int j = i; j > start
+           && compareIds(row, j - tag_width, j, name_width) > 0;
+           j -= tag_width) {
+        for (int k = 0; k < tag_width; k++) {
+          final byte tmp = row[j - tag_width + k];
+          row[j - tag_width + k] = row[j + k];
+          row[j + k] = tmp;
+        }
+      }
+    }
+    return true;
+  }
 
-    for(final byte[] tag : Tags.resolveOrCreateAll(tsdb, tags)) {
-      copyInRowKey(row, pos, tag);
-      pos += tag.length;
+  /**
+   * Compares two IDs of the given width stored in the same array, the same
+   * way as {@link Bytes#memcmp}.
+   */
+  private static int compareIds(final byte[] buf, final int a, final int b,
+                                final int width) {
+    for (int i = 0; i < width; i++) {
+      final int diff = (buf[a + i] & 0xFF) - (buf[b + i] & 0xFF);
+      if (diff != 0) {
+        return diff;
+      }
     }
-    return row;
+    return 0;
   }
 
   public void setSeries(final String metric, final Map<String, String> tags) {
     checkMetricAndTags(metric, tags);
     row = rowKeyTemplate(tsdb, metric, tags);
+    tsdb.indexSeries(row);
     size = 0;
   }
 
@@ -251,7 +347,7 @@ final class IncomingDataPoints implements WritableDataPoints {
 
     // TODO(tsuna): Add an errback to handle some error cases here.
     point.setDurable(!batch_import);
-    return tsdb.client.put(point)/*.addBoth(cb)*/;
+    return tsdb.put(point)/*.addBoth(cb)*/;
   }
 
   private void grow() {
@@ -15,6 +15,8 @@ package net.opentsdb.core;
 import java.util.ArrayList;
 import java.util.Map;
 
+import com.stumbleupon.async.Deferred;
+
 import org.hbase.async.Bytes;
 import org.hbase.async.KeyValue;
 import org.hbase.async.Scanner;
@@ -110,6 +112,13 @@ public final class Internal {
     return tsdb.metrics.width();
   }
 
+  /** @see TSDB#indexSeries  */
+  public static Deferred<Object> indexSeries(final TSDB tsdb,
+                                             final byte[] row) {
+    final Deferred<Object> d = tsdb.indexSeries(row);
+    return d == null ? Deferred.fromResult(null) : d;
+  }
+
   /** @see CompactionQueue#complexCompact  */
   public static KeyValue complexCompact(final KeyValue kv) {
     final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
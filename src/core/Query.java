@@ -16,6 +16,8 @@ import java.util.Map;
 
 import org.hbase.async.HBaseException;
 
+import net.opentsdb.stats.QueryProfile;
+
 import net.opentsdb.uid.NoSuchUniqueName;
 
 /**
@@ -104,4 +106,16 @@ public interface Query {
    */
   DataPoints[] run() throws HBaseException;
 
+  /**
+   * Records a breakdown of the work done by this query in the given profile.
+   * <p>
+   * Must be called before {@link #run}.  The same profile can be shared by
+   * multiple queries that are part of the same request, in which case the
+   * timings and counts are added up.
+   * @param profile The profile to record into, or {@code null} to stop
+   * profiling this query.
+   * @since 1.2
+   */
+  void setProfile(QueryProfile profile);
+
 }
@@ -30,11 +30,21 @@ import org.hbase.async.KeyValue;
  * <p>
  * This class stores in memory the data of one or more continuous
  * HBase rows for a given time series.
+ * <p>
+ * When the {@code tsd.query.columnar} system property is set, the data
+ * points are decoded once into primitive arrays the first time they're
+ * iterated on, instead of being decoded again from the HBase byte arrays
+ * every time an iterator walks over them.  This costs 12 more bytes of RAM
+ * per data point but makes iterations cheaper and random accesses O(1).
  */
 final class RowSeq implements DataPoints {
 
   private static final Logger LOG = LoggerFactory.getLogger(RowSeq.class);
 
+  /** Whether or not to decode the data points into arrays before use.  */
+  static final boolean DECODE_COLUMNS =
+    System.getProperty("tsd.query.columnar") != null;
+
   /** The {@link TSDB} instance we belong to. */
   private final TSDB tsdb;
 
@@ -54,6 +64,35 @@ final class RowSeq implements DataPoints {
   /** Values in the row.  */
   private byte[] values;
 
+  /**
+   * Decoded time deltas, or {@code null} if we haven't decoded the data
+   * points (see {@link #decode}).
+   * <p>
+   * Each entry is the delta in seconds from the base timestamp, shifted
+   * left by one bit.  The LSB is set for floating point values.  Deltas are
+   * guaranteed to be strictly increasing.
+   */
+  private int[] deltas;
+
+  /**
+   * Decoded values, or {@code null} if we haven't decoded the data points.
+   * Floating point values are stored as per
+   * {@link Double#doubleToRawLongBits}.
+   */
+  private long[] decoded_values;
+
+  /** Number of data points between two entries of {@link #seek_index}.  */
+  private static final int SEEK_INDEX_INTERVAL = 64;
+
+  /**
+   * Sparse index used to seek without decoding all the preceding values, or
+   * {@code null} if it hasn't been built yet (see {@link #seekIndex}).
+   * <p>
+   * Entry {@code i} is the offset in {@link #values} of the data point at
+   * index {@code i * SEEK_INDEX_INTERVAL}.
+   */
+  private int[] seek_index;
+
   /**
    * Constructor.
    * @param tsdb The TSDB we belong to.
@@ -75,6 +114,9 @@ final class RowSeq implements DataPoints {
     this.key = row.key();
     this.qualifiers = row.qualifier();
     this.values = row.value();
+    this.deltas = null;
+    this.decoded_values = null;
+    this.seek_index = null;
   }
 
   /**
@@ -169,6 +211,119 @@ final class RowSeq implements DataPoints {
       + ", values=" + Arrays.toString(newvals)
       + ", old values=" + Arrays.toString(values);
     this.values = newvals;
+    this.deltas = null;  // Will need to be decoded again.
+    this.decoded_values = null;
+    this.seek_index = null;
+  }
+
+  /**
+   * Decodes all the data points of this sequence into primitive arrays.
+   * Subsequent iterators will use those arrays instead of the HBase byte
+   * arrays.  Calling this method again is a no-op until more data points
+   * are added to this instance.
+   * @throws IllegalDataException if the data points aren't strictly in
+   * increasing time order, or if a value isn't properly encoded.
+   */
+  void decode() {
+    if (deltas != null) {
+      return;
+    }
+    final int size = size();
+    final int[] deltas = new int[size];
+    final long[] decoded_values = new long[size];
+    int value_idx = 0;
+    int last_delta = -1;
+    for (int i = 0; i < size; i++) {
+      final short qualifier = Bytes.getShort(qualifiers, i * 2);
+      final int delta = (qualifier & 0xFFFF) >>> Const.FLAG_BITS;
+      if (delta <= last_delta) {
+        throw new IllegalDataException("Data point #" + i + " with delta="
+          + delta + " isn't after the previous one with delta=" + last_delta
+          + " in row " + Arrays.toString(key));
+      }
+      last_delta = delta;
+      final byte flags = (byte) qualifier;
+      if ((flags & Const.FLAG_FLOAT) == 0x0) {
+        deltas[i] = delta << 1;
+        decoded_values[i] = extractIntegerValue(values, value_idx, flags);
+      } else {
+        deltas[i] = (delta << 1) | 1;
+        decoded_values[i] = Double.doubleToRawLongBits(
+          extractFloatingPointValue(values, value_idx, flags));
+      }
+      value_idx += (flags & Const.LENGTH_MASK) + 1;
+    }
+    this.decoded_values = decoded_values;
+    this.deltas = deltas;
+  }
+
+  /**
+   * Returns the sparse index used to seek, building it if needed.
+   * Every {@link #SEEK_INDEX_INTERVAL}th data point has an entry with its
+   * offset in {@link #values}, so we never need to walk more than that many
+   * qualifiers to find the offset of a value.
+   */
+  private int[] seekIndex() {
+    if (seek_index != null) {
+      return seek_index;
+    }
+    final int size = size();
+    // One extra entry if needed so that we can find the offset of the end.
+    final int[] index = new int[size / SEEK_INDEX_INTERVAL + 1];
+    int value_idx = 0;
+    for (int i = 0; i <= size; i++) {
+      if (i % SEEK_INDEX_INTERVAL == 0) {
+        index[i / SEEK_INDEX_INTERVAL] = value_idx;
+      }
+      if (i < size) {
+        value_idx += (qualifiers[i * 2 + 1] & Const.LENGTH_MASK) + 1;
+      }
+    }
+    seek_index = index;
+    return index;
+  }
+
+  /**
+   * Returns the offset in {@link #values} of the {@code i}th data point.
+   * If {@code i} is {@link #size}, returns the offset right after the last
+   * value.  This is O({@link #SEEK_INDEX_INTERVAL}) once the seek index is built.
+   */
+  private int valueOffset(final int i) {
+    final int block = i / SEEK_INDEX_INTERVAL;
+    int value_idx = seekIndex()[block];
+    for (int j = block * SEEK_INDEX_INTERVAL; j < i; j++) {
+      value_idx += (qualifiers[j * 2 + 1] & Const.LENGTH_MASK) + 1;
+    }
+    return value_idx;
+  }
+
+  /**
+   * Finds the first data point at or after the given time.
+   * The data points are sorted, so this is a binary search on qualifiers.
+   * @param timestamp A 32-bit timestamp.
+   * @return The index of that data point, or {@link #size} if all the
+   * data points are before {@code timestamp}.
+   */
+  private int findIndex(final long timestamp) {
+    final long target = timestamp - baseTime();
+    int lo = 0;
+    int hi = size();
+    while (lo < hi) {
+      final int mid = (lo + hi) >>> 1;
+      final int delta =
+        Bytes.getUnsignedShort(qualifiers, mid * 2) >>> Const.FLAG_BITS;
+      if (delta < target) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /** Returns {@code true} if the data points have been decoded.  */
+  boolean isDecoded() {
+    return deltas != null;
   }
 
   /**
@@ -254,7 +409,9 @@ final class RowSeq implements DataPoints {
 
   /** Package private iterator method to access it as a {@link Iterator}. */
   Iterator internalIterator() {
-    // XXX this is now grossly inefficient, need to walk the arrays once.
+    if (DECODE_COLUMNS) {
+      decode();
+    }
     return new Iterator();
   }
 
@@ -291,22 +448,21 @@ final class RowSeq implements DataPoints {
     if (!isInteger(i)) {
       throw new ClassCastException("value #" + i + " is not a long in " + this);
     }
-    final Iterator it = new Iterator();
-    while (i-- >= 0) {
-      it.next();
+    if (deltas != null) {
+      return decoded_values[i];
     }
-    return it.longValue();
+    return extractIntegerValue(values, valueOffset(i), qualifiers[i * 2 + 1]);
   }
 
   public double doubleValue(int i) {
     if (isInteger(i)) {
       throw new ClassCastException("value #" + i + " is not a float in " + this);
     }
-    final Iterator it = new Iterator();
-    while (i-- >= 0) {
-      it.next();
+    if (deltas != null) {
+      return Double.longBitsToDouble(decoded_values[i]);
     }
-    return it.doubleValue();
+    return extractFloatingPointValue(values, valueOffset(i),
+                                     qualifiers[i * 2 + 1]);
   }
 
   /**
@@ -356,7 +512,13 @@ final class RowSeq implements DataPoints {
     return buf.toString();
   }
 
-  /** Iterator for {@link RowSeq}s.  */
+  /**
+   * Iterator for {@link RowSeq}s.
+   * <p>
+   * If the data points were decoded when the iterator was created, it
+   * reads them from the decoded arrays, otherwise it decodes them from the
+   * HBase byte arrays as it goes.
+   */
   final class Iterator implements SeekableView, DataPoint {
 
     /** Current qualifier.  */
@@ -371,6 +533,18 @@ final class RowSeq implements DataPoints {
     /** Pre-extracted base time of this row sequence.  */
     private final long base_time = baseTime();
 
+    /** Decoded time deltas, or {@code null} if we're not using them.  */
+    private final int[] deltas = RowSeq.this.deltas;
+
+    /** Decoded values, if {@link #deltas} isn't {@code null}.  */
+    private final long[] decoded_values = RowSeq.this.decoded_values;
+
+    /**
+     * Current decoded time delta (see {@link RowSeq#deltas}), or -1 if not
+     * initialized.  Only used if {@link #deltas} isn't {@code null}.
+     */
+    private int delta = -1;
+
     Iterator() {
     }
 
@@ -386,6 +560,11 @@ final class RowSeq implements DataPoints {
       if (!hasNext()) {
         throw new NoSuchElementException("no more elements");
       }
+      if (deltas != null) {
+        delta = deltas[qual_index >>> 1];
+        qual_index += 2;
+        return this;
+      }
       qualifier = Bytes.getShort(qualifiers, qual_index);
       qual_index += 2;
       final byte flags = (byte) qualifier;
@@ -406,30 +585,56 @@ final class RowSeq implements DataPoints {
       if ((timestamp & 0xFFFFFFFF00000000L) != 0) {  // negative or not 32 bits
         throw new IllegalArgumentException("invalid timestamp: " + timestamp);
       }
-      qual_index = 0;
-      value_index = 0;
-      final int len = qualifiers.length;
-      while (qual_index < len && peekNextTimestamp() < timestamp) {
-        qual_index += 2;
-        final byte flags = (byte) qualifier;
-        value_index += (flags & Const.LENGTH_MASK) + 1;
-      }
-      if (qual_index > 0) {
-        qualifier = Bytes.getShort(qualifiers, qual_index - 2);
+      if (deltas != null) {
+        seekDecoded(timestamp - base_time);
+        return;
       }
+      final int i = findIndex(timestamp);
+      qual_index = (short) (i * 2);
+      value_index = (short) valueOffset(i);
+      qualifier = i > 0 ? Bytes.getShort(qualifiers, qual_index - 2) : 0;
       //LOG.debug("seek to " + timestamp + " -> now=" + toStringSummary());
     }
 
+    /**
+     * Binary search in the decoded deltas, which are sorted.
+     * Positions this iterator right before the first data point with a
+     * delta greater than or equal to the one given.
+     * @param target The time delta to seek to (may be negative).
+     */
+    private void seekDecoded(final long target) {
+      int lo = 0;
+      int hi = deltas.length;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if ((deltas[mid] >>> 1) < target) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      qual_index = (short) (lo * 2);
+      delta = lo > 0 ? deltas[lo - 1] : -1;
+    }
+
     // ------------------- //
     // DataPoint interface //
     // ------------------- //
 
     public long timestamp() {
+      if (deltas != null) {
+        assert delta != -1: "not initialized: " + this;
+        return base_time + (delta >>> 1);
+      }
       assert qualifier != 0: "not initialized: " + this;
       return base_time + ((qualifier & 0xFFFF) >>> Const.FLAG_BITS);
     }
 
     public boolean isInteger() {
+      if (deltas != null) {
+        assert delta != -1: "not initialized: " + this;
+        return (delta & 1) == 0;
+      }
       assert qualifier != 0: "not initialized: " + this;
       return (qualifier & Const.FLAG_FLOAT) == 0x0;
     }
@@ -439,6 +644,9 @@ final class RowSeq implements DataPoints {
         throw new ClassCastException("value #"
           + ((qual_index - 2) / 2) + " is not a long in " + this);
       }
+      if (deltas != null) {
+        return decoded_values[(qual_index >>> 1) - 1];
+      }
       final byte flags = (byte) qualifier;
       final byte vlen = (byte) ((flags & Const.LENGTH_MASK) + 1);
       return extractIntegerValue(values, value_index - vlen, flags);
@@ -449,6 +657,9 @@ final class RowSeq implements DataPoints {
         throw new ClassCastException("value #"
           + ((qual_index - 2) / 2) + " is not a float in " + this);
       }
+      if (deltas != null) {
+        return Double.longBitsToDouble(decoded_values[(qual_index >>> 1) - 1]);
+      }
       final byte flags = (byte) qualifier;
       final byte vlen = (byte) ((flags & Const.LENGTH_MASK) + 1);
       return extractFloatingPointValue(values, value_index - vlen, flags);
@@ -473,6 +684,7 @@ final class RowSeq implements DataPoints {
       state >>>= 16;
       qual_index = (short) state;
       qualifier = 0;
+      delta = -1;
     }
 
     /**
@@ -480,6 +692,9 @@ final class RowSeq implements DataPoints {
      * @throws IndexOutOfBoundsException if we reached the end already.
      */
     long peekNextTimestamp() {
+      if (deltas != null) {
+        return base_time + (deltas[qual_index >>> 1] >>> 1);
+      }
       return base_time
         + (Bytes.getUnsignedShort(qualifiers, qual_index) >>> Const.FLAG_BITS);
     }
@@ -487,7 +702,8 @@ final class RowSeq implements DataPoints {
     /** Only returns internal state for the iterator itself.  */
     String toStringSummary() {
       return "RowSeq.Iterator(qual_index=" + qual_index
-        + ", value_index=" + value_index;
+        + ", value_index=" + value_index
+        + (deltas != null ? ", decoded" : "");
     }
 
     public String toString() {
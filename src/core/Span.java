@@ -60,6 +60,12 @@ final class Span implements DataPoints {
     return rows.get(0).getTags();
   }
 
+  /** Returns the row key of the first row of this span.  */
+  byte[] key() {
+    checkNotEmpty();
+    return rows.get(0).key;
+  }
+
   public List<String> getAggregatedTags() {
     return Collections.emptyList();
   }
@@ -221,22 +227,20 @@ final class Span implements DataPoints {
    * @return A strictly positive index in the {@code rows} array.
    */
   private short seekRow(final long timestamp) {
-    short row_index = 0;
-    RowSeq row = null;
-    final int nrows = rows.size();
-    for (int i = 0; i < nrows; i++) {
-      row = rows.get(i);
-      final int sz = row.size();
-      if (row.timestamp(sz - 1) < timestamp) {
-        row_index++;  // The last DP in this row is before 'timestamp'.
+    // Rows are sorted and don't overlap, so binary search for the first row
+    // whose last data point isn't before 'timestamp'.
+    int lo = 0;
+    int hi = rows.size() - 1;  // If the timestamp is too large for the last
+    while (lo < hi) {          // row, we return the last row.
+      final int mid = (lo + hi) >>> 1;
+      final RowSeq row = rows.get(mid);
+      if (row.timestamp(row.size() - 1) < timestamp) {
+        lo = mid + 1;  // The last DP in this row is before 'timestamp'.
       } else {
-        break;
+        hi = mid;
       }
     }
-    if (row_index == nrows) {  // If this timestamp was too large for the
-      --row_index;             // last row, return the last row.
-    }
-    return row_index;
+    return (short) lo;
   }
 
   /** Package private iterator method to access it as a Span.Iterator. */
@@ -45,6 +45,9 @@ import java.util.NoSuchElementException;
  */
 final class SpanGroup implements DataPoints {
 
+  /** The TSDB we belong to. */
+  private final TSDB tsdb;
+
   /** Start time (UNIX timestamp in seconds) on 32 bits ("unsigned" int). */
   private final long start_time;
 
@@ -107,6 +110,7 @@ final class SpanGroup implements DataPoints {
             final boolean rate,
             final Aggregator aggregator,
             final int interval, final Aggregator downsampler) {
+    this.tsdb = tsdb;
     this.start_time = start_time;
     this.end_time = end_time;
     if (spans != null) {
@@ -143,20 +147,57 @@ final class SpanGroup implements DataPoints {
 
   /**
    * Computes the intersection set + symmetric difference of tags in all spans.
-   * @param spans A collection of spans for which to find the common tags.
-   * @return A (possibly empty) map of the tags common to all the spans given.
    */
   private void computeTags() {
-    if (spans.isEmpty()) {
+    computeTags(tsdb, new SpanGroup[] { this });
+  }
+
+  /**
+   * Computes the tags of many groups at once.
+   * <p>
+   * The tag IDs of all the spans of all the groups are resolved in a single
+   * pass, which is much faster than resolving them one group at a time when
+   * there are many groups and the names aren't all in memory.  Groups whose
+   * tags have already been computed are skipped.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param groups The groups whose tags to compute.
+   */
+  static void computeTags(final TSDB tsdb, final SpanGroup[] groups) {
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>();
+    for (final SpanGroup group : groups) {
+      if (group.tags == null) {
+        for (final Span span : group.spans) {
+          keys.add(span.key());
+        }
+      }
+    }
+    final ArrayList<HashMap<String, String>> all_tags =
+      Tags.join(Tags.getTagsAsync(tsdb, keys));
+    int i = 0;
+    for (final SpanGroup group : groups) {
+      if (group.tags == null) {
+        final int nspans = group.spans.size();
+        group.setTags(all_tags.subList(i, i + nspans));
+        i += nspans;
+      }
+    }
+  }
+
+  /**
+   * Sets the intersection set + symmetric difference of tags in all spans.
+   * @param all_tags The tags of each span.
+   */
+  private void setTags(final List<HashMap<String, String>> all_tags) {
+    if (all_tags.isEmpty()) {
       tags = new HashMap<String, String>(0);
       aggregated_tags = new ArrayList<String>(0);
       return;
     }
-    final Iterator<Span> it = spans.iterator();
-    tags = new HashMap<String, String>(it.next().getTags());
+    final Iterator<HashMap<String, String>> it = all_tags.iterator();
+    tags = new HashMap<String, String>(it.next());
     final HashSet<String> discarded_tags = new HashSet<String>(tags.size());
     while (it.hasNext()) {
-      final Map<String, String> nexttags = it.next().getTags();
+      final Map<String, String> nexttags = it.next();
       // OMG JAVA
       final Iterator<Map.Entry<String, String>> i = tags.entrySet().iterator();
       while (i.hasNext()) {
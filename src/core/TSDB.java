@@ -12,10 +12,13 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
@@ -31,8 +34,10 @@ import org.hbase.async.GetRequest;
 import org.hbase.async.HBaseClient;
 import org.hbase.async.HBaseException;
 import org.hbase.async.KeyValue;
+import org.hbase.async.PleaseThrottleException;
 import org.hbase.async.PutRequest;
 
+import net.opentsdb.uid.NoSuchUniqueName;
 import net.opentsdb.uid.UniqueId;
 import net.opentsdb.stats.Histogram;
 import net.opentsdb.stats.StatsCollector;
@@ -61,6 +66,13 @@ public final class TSDB {
     enable_compactions = !"false".equals(compactions);
   }
 
+  /** Max number of times we retry a put HBase asked us to throttle. */
+  private static final int MAX_THROTTLE_RETRIES =
+    Integer.getInteger("tsd.core.ingest.max_throttle_retries", 10);
+
+  /** Number of times HBase asked us to throttle a put. */
+  private static final AtomicLong throttled = new AtomicLong();
+
   /** Client for the HBase cluster to use.  */
   final HBaseClient client;
 
@@ -82,6 +94,22 @@ public final class TSDB {
    */
   private final CompactionQueue compactionq;
 
+  /**
+   * Inverted index from tags to time series, or {@code null} if disabled.
+   * Enabled by setting the {@code tsd.core.tagindex_table} system property
+   * to the name of the table in which the index is stored.  The number of
+   * series remembered as already indexed is capped by
+   * {@code tsd.core.tagindex.max_series}.
+   */
+  final TagIndex tagindex;
+
+  /**
+   * Local spool for the data points HBase can't take, or {@code null} if
+   * disabled.  Enabled by setting the {@code tsd.core.spool.dir} system
+   * property to the directory in which to store the spool.
+   */
+  private final WriteSpool spool;
+
   /**
    * Constructor.
    * @param client The HBase client to use.
@@ -101,7 +129,45 @@ public final class TSDB {
     tag_names = new UniqueId(client, uidtable, TAG_NAME_QUAL, TAG_NAME_WIDTH);
     tag_values = new UniqueId(client, uidtable, TAG_VALUE_QUAL,
                               TAG_VALUE_WIDTH);
+    // Lease blocks of IDs so bursts of new series don't all have to
+    // increment the same cell in HBase.
+    final int id_lease_size = Integer.getInteger("tsd.core.uid.lease_size",
+                                                 1000);
+    metrics.setIdLeaseSize(id_lease_size);
+    tag_names.setIdLeaseSize(id_lease_size);
+    tag_values.setIdLeaseSize(id_lease_size);
+    final int cache_max_entries =
+      Integer.getInteger("tsd.core.uid.cache_max_entries", 1000000);
+    metrics.setMaxCacheSize(cache_max_entries);
+    tag_names.setMaxCacheSize(cache_max_entries);
+    tag_values.setMaxCacheSize(cache_max_entries);
+    // Don't hit HBase every time a client uses a name that doesn't exist.
+    final int negative_cache_ttl =
+      Integer.getInteger("tsd.core.uid.negative_cache_ttl", 5000);
+    metrics.setNegativeCacheTtl(negative_cache_ttl);
+    tag_names.setNegativeCacheTtl(negative_cache_ttl);
+    tag_values.setNegativeCacheTtl(negative_cache_ttl);
     compactionq = new CompactionQueue(this);
+    final String tagindex_table = System.getProperty("tsd.core.tagindex_table");
+    tagindex = (tagindex_table == null ? null
+                : new TagIndex(this, tagindex_table.getBytes(),
+                    Integer.getInteger("tsd.core.tagindex.max_series",
+                                       1000000)));
+    final String spool_dir = System.getProperty("tsd.core.spool.dir");
+    if (spool_dir == null) {
+      spool = null;
+    } else {
+      try {
+        spool = new WriteSpool(this, new File(spool_dir),
+          Long.getLong("tsd.core.spool.max_bytes", 1L << 30),  // 1GB
+          Long.getLong("tsd.core.spool.segment_bytes", 64L << 20),  // 64MB
+          Integer.getInteger("tsd.core.spool.replay_rate", 1000));
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot use the spool in "
+                                        + spool_dir, e);
+      }
+      spool.start();
+    }
   }
 
   /** Number of cache hits during lookups involving UIDs. */
@@ -147,6 +213,9 @@ public final class TSDB {
     collector.addExtraTag("class", "TsdbQuery");
     try {
       collector.record("hbase.latency", TsdbQuery.scanlatency, "method=scan");
+      if (tagindex != null) {
+        collector.record("hbase.latency", TsdbQuery.getlatency, "method=get");
+      }
     } finally {
       collector.clearExtraTag("class");
     }
@@ -170,8 +239,15 @@ public final class TSDB {
     collector.record("hbase.nsre", stats.noSuchRegionExceptions());
     collector.record("hbase.nsre.rpcs_delayed",
                      stats.numRpcDelayedDueToNSRE());
+    collector.record("hbase.put.throttled", throttled);
 
     compactionq.collectStats(collector);
+    if (tagindex != null) {
+      tagindex.collectStats(collector);
+    }
+    if (spool != null) {
+      spool.collectStats(collector);
+    }
   }
 
   /** Returns a latency histogram for Put RPCs used to store data points. */
@@ -193,7 +269,18 @@ public final class TSDB {
                                       final StatsCollector collector) {
     collector.record("uid.cache-hit", uid.cacheHits(), "kind=" + uid.kind());
     collector.record("uid.cache-miss", uid.cacheMisses(), "kind=" + uid.kind());
+    collector.record("uid.negative-cache-hit", uid.negativeCacheHits(),
+                     "kind=" + uid.kind());
     collector.record("uid.cache-size", uid.cacheSize(), "kind=" + uid.kind());
+    collector.record("uid.cache-bytes", uid.cacheMemory(),
+                     "kind=" + uid.kind());
+    collector.record("uid.cache-evictions", uid.cacheEvictions(),
+                     "kind=" + uid.kind());
+    collector.record("uid.suggest-index-size", uid.suggestIndexSize(),
+                     "kind=" + uid.kind());
+    collector.record("uid.leases", uid.idLeases(), "kind=" + uid.kind());
+    collector.record("uid.leased-unused", uid.leasedIds(),
+                     "kind=" + uid.kind());
   }
 
   /**
@@ -230,6 +317,8 @@ public final class TSDB {
    * illegal characters.
    * @throws IllegalArgumentException if the tags list is empty or one of the
    * elements contains illegal characters.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered and
+   * metrics aren't automatically created.
    * @throws HBaseException (deferred) if there was a problem while persisting
    * data.
    */
@@ -260,6 +349,8 @@ public final class TSDB {
    * @throws IllegalArgumentException if the value is NaN or infinite.
    * @throws IllegalArgumentException if the tags list is empty or one of the
    * elements contains illegal characters.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered and
+   * metrics aren't automatically created.
    * @throws HBaseException (deferred) if there was a problem while persisting
    * data.
    */
@@ -292,17 +383,43 @@ public final class TSDB {
     }
 
     IncomingDataPoints.checkMetricAndTags(metric, tags);
-    final byte[] row = IncomingDataPoints.rowKeyTemplate(this, metric, tags);
-    final long base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
-    Bytes.setInt(row, (int) base_time, metrics.width());
-    scheduleForCompaction(row, (int) base_time);
-    final short qualifier = (short) ((timestamp - base_time) << Const.FLAG_BITS
-                                     | flags);
-    final PutRequest point = new PutRequest(table, row, FAMILY,
-                                            Bytes.fromShort(qualifier), value);
-    // TODO(tsuna): Add a callback to time the latency of HBase and store the
-    // timing in a moving Histogram (once we have a class for this).
-    return client.put(point);
+    final class AddPointCB implements Callback<Deferred<Object>, byte[]> {
+      public Deferred<Object> call(final byte[] row) {
+        final Deferred<Object> indexed = indexSeries(row);
+        final long base_time = (timestamp - (timestamp % Const.MAX_TIMESPAN));
+        Bytes.setInt(row, (int) base_time, metrics.width());
+        scheduleForCompaction(row, (int) base_time);
+        final short qualifier = (short) ((timestamp - base_time)
+                                         << Const.FLAG_BITS | flags);
+        final PutRequest point = new PutRequest(table, row, FAMILY,
+                                                Bytes.fromShort(qualifier),
+                                                value);
+        // TODO(tsuna): Add a callback to time the latency of HBase and store
+        // the timing in a moving Histogram (once we have a class for this).
+        if (indexed == null) {
+          return put(point);
+        }
+        // Don't acknowledge the first point of a new series until queries
+        // can find the series through the index.
+        final class WaitForIndexCB implements Callback<Deferred<Object>,
+                                                       Object> {
+          public Deferred<Object> call(final Object arg) {
+            return indexed;
+          }
+          public String toString() {
+            return "wait for the tag index";
+          }
+        }
+        return put(point).addCallbackDeferring(new WaitForIndexCB());
+      }
+      public String toString() {
+        return "add point to " + metric + ' ' + tags;
+      }
+    }
+    // The UID lookups don't block: if the IDs aren't in the cache yet, the
+    // point is written once HBase has given them to us.
+    return IncomingDataPoints.rowKeyTemplateAsync(this, metric, tags)
+      .addCallbackDeferring(new AddPointCB());
   }
 
   /**
@@ -336,6 +453,9 @@ public final class TSDB {
    * recoverable by retrying, some are not.
    */
   public Deferred<Object> shutdown() {
+    if (spool != null) {
+      spool.shutdown();
+    }
     final class HClientShutdown implements Callback<Object, ArrayList<Object>> {
       public Object call(final ArrayList<Object> args) {
         return client.shutdown();
@@ -394,6 +514,84 @@ public final class TSDB {
     return tag_values.suggest(search);
   }
 
+  /**
+   * Loads all the metric names, tag names and tag values in memory, so that
+   * the {@code suggest} methods no longer need to scan HBase.
+   * @return A deferred called back once all the names have been loaded.
+   * @since 1.2
+   */
+  public Deferred<ArrayList<Object>> loadSuggestIndexes() {
+    final ArrayList<Deferred<Object>> loads = new ArrayList<Deferred<Object>>(3);
+    loads.add(metrics.loadSuggestIndex());
+    loads.add(tag_names.loadSuggestIndex());
+    loads.add(tag_values.loadSuggestIndex());
+    return Deferred.group(loads);
+  }
+
+  /**
+   * Preloads the caches of metric names, tag names and tag values with a
+   * parallel scan of the UID table.
+   * @param splits The number of sub-ranges of each kind to scan in parallel.
+   * @return A deferred called back once all the caches have been loaded.
+   * @since 1.2
+   */
+  public Deferred<ArrayList<Object>> warmUidCaches(final int splits) {
+    final ArrayList<Deferred<Object>> loads = new ArrayList<Deferred<Object>>(3);
+    loads.add(metrics.warmCache(splits));
+    loads.add(tag_names.warmCache(splits));
+    loads.add(tag_values.warmCache(splits));
+    return Deferred.group(loads);
+  }
+
+  /**
+   * Saves the UID caches to local files, one per kind.
+   * @param dir The directory in which to write the snapshots.
+   * @return The number of name/ID pairs saved.
+   * @throws IOException if a snapshot couldn't be written.
+   * @since 1.2
+   */
+  public int saveUidCacheSnapshots(final String dir) throws IOException {
+    return metrics.saveCacheSnapshot(uidCacheSnapshot(dir, metrics))
+      + tag_names.saveCacheSnapshot(uidCacheSnapshot(dir, tag_names))
+      + tag_values.saveCacheSnapshot(uidCacheSnapshot(dir, tag_values));
+  }
+
+  /**
+   * Loads the UID caches from the snapshots saved by
+   * {@link #saveUidCacheSnapshots}.  Missing snapshots are skipped, and so
+   * are snapshots that are too old: a snapshot can hold mappings of names
+   * renamed since it was saved, which are only fixed up once the caches
+   * are {@link #warmUidCaches warmed up}.
+   * @param dir The directory from which to read the snapshots.
+   * @param max_age The max age of the snapshots to load, in seconds.
+   * @return The number of name/ID pairs loaded.
+   * @throws IOException if a snapshot couldn't be read.
+   * @since 1.2
+   */
+  public int loadUidCacheSnapshots(final String dir,
+                                   final long max_age) throws IOException {
+    final long oldest = System.currentTimeMillis() - max_age * 1000;
+    int loaded = 0;
+    for (final UniqueId uid : new UniqueId[] { metrics, tag_names,
+                                               tag_values }) {
+      final File file = uidCacheSnapshot(dir, uid);
+      if (!file.exists()) {
+        continue;
+      } else if (file.lastModified() < oldest) {
+        LoggerFactory.getLogger(TSDB.class).warn("Not loading " + file
+          + ", it's older than " + max_age + "s");
+        continue;
+      }
+      loaded += uid.loadCacheSnapshot(file);
+    }
+    return loaded;
+  }
+
+  /** Returns the snapshot file of the given UID cache.  */
+  private static File uidCacheSnapshot(final String dir, final UniqueId uid) {
+    return new File(dir, uid.kind() + ".uidcache");
+  }
+
   /**
    * Discards all in-memory caches.
    * @since 1.1
@@ -426,6 +624,25 @@ public final class TSDB {
     }
   }
 
+  // ----------------- //
+  // Tag index helpers //
+  // ----------------- //
+
+  /**
+   * Makes sure the series of the given row key is in the tag index.
+   * This is a no-op if the tag index isn't enabled.
+   * @param row The row key of the series.  Will not be modified.
+   * @return A deferred to wait on for the series to be indexed, or
+   * {@code null} if there's nothing to wait for.
+   * @see TagIndex#indexSeries
+   */
+  final Deferred<Object> indexSeries(final byte[] row) {
+    if (tagindex == null) {
+      return null;
+    }
+    return tagindex.indexSeries(row);
+  }
+
   // ------------------------ //
   // HBase operations helpers //
   // ------------------------ //
@@ -442,6 +659,64 @@ public final class TSDB {
     return client.put(new PutRequest(table, key, FAMILY, qualifier, value));
   }
 
+  /**
+   * Puts a data point into the data table.
+   * If HBase asks us to throttle, we first wait for it to catch up and retry
+   * the put, up to {@code tsd.core.ingest.max_throttle_retries} times.  Only
+   * if the put still fails is the data point added to the spool (if enabled)
+   * to be written later on.
+   */
+  final Deferred<Object> put(final PutRequest point) {
+    final Deferred<Object> d = client.put(point)
+      .addErrback(new RetryThrottledCB(point, 1));
+    return spool == null ? d : d.addErrback(spool.spoolOnError(point));
+  }
+
+  /**
+   * Retries a put once HBase is done throttling us.
+   * HBase asks us to throttle when it has too many puts to buffer, in
+   * which case our put wasn't even attempted, so rather than losing the
+   * data point we wait until the put that triggered the throttling has
+   * completed and try again.
+   */
+  private final class RetryThrottledCB implements Callback<Object, Exception> {
+
+    private final PutRequest point;
+    /** Number of times we've tried to do this put so far. */
+    private final int attempts;
+
+    RetryThrottledCB(final PutRequest point, final int attempts) {
+      this.point = point;
+      this.attempts = attempts;
+    }
+
+    public Object call(final Exception arg) {
+      if (!(arg instanceof PleaseThrottleException)
+          || attempts > MAX_THROTTLE_RETRIES) {
+        return arg;
+      }
+      throttled.incrementAndGet();
+      final class RetryCB implements Callback<Deferred<Object>, Object> {
+        public Deferred<Object> call(final Object unused) {
+          return client.put(point)
+            .addErrback(new RetryThrottledCB(point, attempts + 1));
+        }
+        public String toString() {
+          return "retry throttled put";
+        }
+      }
+      @SuppressWarnings("unchecked")  // The type doesn't matter here.
+      final Deferred<Object> wait =
+        ((PleaseThrottleException) arg).getDeferred();
+      return wait.addBoth(new RetryCB());
+    }
+
+    public String toString() {
+      return "retry put if throttled";
+    }
+
+  }
+
   /** Deletes the given cells from the data table. */
   final Deferred<Object> delete(final byte[] key, final byte[][] qualifiers) {
     return client.delete(new DeleteRequest(table, key, FAMILY, qualifiers));
@@ -0,0 +1,348 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import static org.hbase.async.Bytes.ByteMap;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Inverted index from tags to the time series that carry them.
+ * <p>
+ * The index lives in its own table.  Each row key is made of a metric ID
+ * followed by a tag (name ID + value ID), and each column qualifier in that
+ * row is the "series suffix" of a time series that has this tag, that is
+ * all the tags of the series, as they appear in the data table's row keys
+ * after the base timestamp.  For instance the series
+ * {@code sys.cpu.user host=web42 type=idle} gets one column in the row for
+ * {@code sys.cpu.user host=web42} and one in the row for
+ * {@code sys.cpu.user type=idle}.
+ * <p>
+ * Entries are written asynchronously the first time this TSD sees a given
+ * series.  Writing the same entry twice is harmless, so TSDs don't need to
+ * coordinate, and we only remember a bounded number of recently seen series
+ * (the others are simply indexed again when they come back).  The data
+ * point that makes us index a new series isn't acknowledged until the index
+ * entries are written, so queries can find the series of every data point
+ * that was successfully added.  Series written before the index was turned
+ * on must be backfilled with the {@code tagidx} tool.
+ * <p>
+ * This class is thread-safe.
+ */
+final class TagIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TagIndex.class);
+
+  /** Column family used in the index table.  */
+  static final byte[] FAMILY = { 'i' };
+
+  /** We don't need to store anything in the cells, the qualifier is enough. */
+  private static final byte[] EMPTY_VALUE = new byte[0];
+
+  /** The TSDB we belong to.  */
+  private final TSDB tsdb;
+
+  /** Name of the table in which the index is stored.  */
+  private final byte[] table;
+
+  /** Number of slots in which a given series can be remembered.  */
+  private static final int WAYS = 4;
+
+  /**
+   * Row keys of the series we've recently indexed (or are in the process of
+   * indexing).  This is a set-associative cache: the hash of a series picks
+   * a set of {@link #WAYS} consecutive slots, and when they're all taken a
+   * new series overwrites one of them in round-robin.  So lookups neither
+   * lock nor allocate anything, and eviction is only approximately FIFO,
+   * which is fine as evicted series are simply indexed again.
+   */
+  private final AtomicReferenceArray<byte[]> indexed;
+
+  /** Used to pick which slot of a full set to overwrite.  */
+  private final AtomicInteger next_victim = new AtomicInteger();
+
+  /** Number of slots in use in {@link #indexed}.  */
+  private final AtomicInteger known = new AtomicInteger();
+
+  /** Number of new series indexed.  */
+  private final AtomicLong series_indexed = new AtomicLong();
+
+  /** Number of failed attempts to write to the index.  */
+  private final AtomicLong write_errors = new AtomicLong();
+
+  /** Number of queries that resolved their series through the index.  */
+  private final AtomicLong lookups = new AtomicLong();
+
+  /**
+   * Constructor.
+   * @param tsdb The TSDB we belong to.
+   * @param table The name of the table in which the index is stored.
+   * @param max_series The max number of series to remember as indexed.
+   */
+  TagIndex(final TSDB tsdb, final byte[] table, final int max_series) {
+    if (max_series <= 0) {
+      throw new IllegalArgumentException("Invalid max_series: " + max_series);
+    }
+    this.tsdb = tsdb;
+    this.table = table;
+    int slots = WAYS;
+    while (slots < max_series) {
+      slots <<= 1;
+    }
+    indexed = new AtomicReferenceArray<byte[]>(slots);
+  }
+
+  /** Returns the name of the table in which the index is stored.  */
+  byte[] table() {
+    return table;
+  }
+
+  /**
+   * Makes sure the series of the given row key is indexed.
+   * <p>
+   * This is cheap for series we've seen before, as it doesn't lock or copy
+   * anything.  For new series, the index entries are written asynchronously,
+   * this method doesn't wait.
+   * @param row A row key from the data table (the base timestamp doesn't
+   * need to be set).  Will not be modified.
+   * @return A deferred that will be called back once the index entries have
+   * been written, or {@code null} if the series is already indexed (or
+   * someone else is already indexing it).
+   */
+  Deferred<Object> indexSeries(final byte[] row) {
+    final short metric_width = tsdb.metrics.width();
+    final int tags_offset = metric_width + Const.TIMESTAMP_BYTES;
+    final int set = setOf(row, metric_width);
+    for (int i = set; i < set + WAYS; i++) {
+      final byte[] slot = indexed.get(i);
+      if (slot != null && sameSeries(slot, row, metric_width)) {
+        return null;  // Already indexed or in flight.
+      }
+    }
+    // The caller may change the base timestamp of the row key later on.
+    final byte[] key = row.clone();
+    remember(set, key);
+
+    final byte[] suffix = new byte[row.length - tags_offset];
+    System.arraycopy(row, tags_offset, suffix, 0, suffix.length);
+    final short tag_bytes = tagBytes();
+    final ArrayList<Deferred<Object>> puts =
+      new ArrayList<Deferred<Object>>(suffix.length / tag_bytes);
+    for (int i = 0; i < suffix.length; i += tag_bytes) {
+      final byte[] idxkey = new byte[metric_width + tag_bytes];
+      System.arraycopy(row, 0, idxkey, 0, metric_width);
+      System.arraycopy(suffix, i, idxkey, metric_width, tag_bytes);
+      puts.add(tsdb.client.put(new PutRequest(table, idxkey, FAMILY,
+                                              suffix, EMPTY_VALUE)));
+    }
+
+    final class IndexedCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> arg) {
+        series_indexed.incrementAndGet();
+        return arg;
+      }
+      public String toString() {
+        return "count indexed series";
+      }
+    }
+    final class IndexErrback implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        write_errors.incrementAndGet();
+        // Forget about this series so we try again on the next data point.
+        forget(set, key);
+        LOG.error("Failed to index series " + Arrays.toString(key), e);
+        return e;
+      }
+      public String toString() {
+        return "handle tag index write error";
+      }
+    }
+    return Deferred.group(puts).addCallbacks(new IndexedCB(),
+                                             new IndexErrback());
+  }
+
+  /**
+   * Finds all the series of a metric that have all the given tags.
+   * @param metric The ID of the metric.
+   * @param tags A non-empty list of tags (tag name ID + tag value ID).
+   * @return A deferred list with the suffix of each matching series (all
+   * its tags, as they appear in the row key after the base timestamp), in
+   * no particular order.
+   */
+  Deferred<ArrayList<byte[]>> findSeries(final byte[] metric,
+                                         final ArrayList<byte[]> tags) {
+    if (tags.isEmpty()) {
+      throw new IllegalArgumentException("Need at least one tag for "
+                                         + Arrays.toString(metric));
+    }
+    lookups.incrementAndGet();
+    final ArrayList<Deferred<ArrayList<KeyValue>>> gets =
+      new ArrayList<Deferred<ArrayList<KeyValue>>>(tags.size());
+    for (final byte[] tag : tags) {
+      final byte[] idxkey = new byte[metric.length + tag.length];
+      System.arraycopy(metric, 0, idxkey, 0, metric.length);
+      System.arraycopy(tag, 0, idxkey, metric.length, tag.length);
+      gets.add(tsdb.client.get(new GetRequest(table, idxkey).family(FAMILY)));
+    }
+    final class IntersectCB implements Callback<ArrayList<byte[]>,
+                                                ArrayList<Object>> {
+      public ArrayList<byte[]> call(final ArrayList<Object> rows) {
+        return intersect(rows);
+      }
+      public String toString() {
+        return "intersect tag index rows";
+      }
+    }
+    return Deferred.group(gets).addCallback(new IntersectCB());
+  }
+
+  /**
+   * Intersects the qualifiers of the given rows.
+   * @param rows The rows read from the index, one per tag.  Each element
+   * must be an {@code ArrayList<KeyValue>}.
+   * @return The qualifiers that appear in all the rows.
+   */
+  @SuppressWarnings("unchecked")
+  private static ArrayList<byte[]> intersect(final ArrayList<Object> rows) {
+    // Start with the smallest row to keep the map small.
+    ArrayList<KeyValue> smallest = null;
+    for (final Object o : rows) {
+      final ArrayList<KeyValue> row = (ArrayList<KeyValue>) o;
+      if (smallest == null || row.size() < smallest.size()) {
+        smallest = row;
+      }
+    }
+    ByteMap<Boolean> candidates = new ByteMap<Boolean>();
+    for (final KeyValue kv : smallest) {
+      candidates.put(kv.qualifier(), Boolean.TRUE);
+    }
+    for (final Object o : rows) {
+      final ArrayList<KeyValue> row = (ArrayList<KeyValue>) o;
+      if (row == smallest || candidates.isEmpty()) {
+        continue;
+      }
+      final ByteMap<Boolean> matches = new ByteMap<Boolean>();
+      for (final KeyValue kv : row) {
+        if (candidates.containsKey(kv.qualifier())) {
+          matches.put(kv.qualifier(), Boolean.TRUE);
+        }
+      }
+      candidates = matches;
+    }
+    return new ArrayList<byte[]>(candidates.keySet());
+  }
+
+  /** Returns the number of bytes used by a tag in a row key.  */
+  private short tagBytes() {
+    return (short) (tsdb.tag_names.width() + tsdb.tag_values.width());
+  }
+
+  /**
+   * Returns the index of the first slot of the set in which the series of
+   * the given row key can be remembered.
+   */
+  private int setOf(final byte[] row, final short metric_width) {
+    int h = 1;
+    for (int i = 0; i < metric_width; i++) {
+      h = 31 * h + row[i];
+    }
+    // Skip the base timestamp.
+    for (int i = metric_width + Const.TIMESTAMP_BYTES; i < row.length; i++) {
+      h = 31 * h + row[i];
+    }
+    h ^= (h >>> 20) ^ (h >>> 12);  // Same spreading as java.util.HashMap.
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return h & (indexed.length() - 1) & ~(WAYS - 1);
+  }
+
+  /**
+   * Returns whether two row keys are from the same series, that is whether
+   * they're the same except for their base timestamp.
+   */
+  private static boolean sameSeries(final byte[] a, final byte[] b,
+                                    final short metric_width) {
+    if (a.length != b.length) {
+      return false;
+    }
+    for (int i = 0; i < metric_width; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    for (int i = metric_width + Const.TIMESTAMP_BYTES; i < a.length; i++) {
+      if (a[i] != b[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Remembers that the series of the given row key is indexed.
+   * @param set The first slot of the set of the series.
+   * @param key A row key of the series, must not be modified afterwards.
+   */
+  private void remember(final int set, final byte[] key) {
+    for (int i = set; i < set + WAYS; i++) {
+      if (indexed.get(i) == null && indexed.compareAndSet(i, null, key)) {
+        known.incrementAndGet();
+        return;
+      }
+    }
+    // The set is full, evict someone.  Another thread racing with us could
+    // end up overwriting our key, in which case the series will simply be
+    // indexed again.
+    indexed.set(set + (next_victim.getAndIncrement() & (WAYS - 1)), key);
+  }
+
+  /**
+   * Forgets about a series, if it's still remembered.
+   * @param set The first slot of the set of the series.
+   * @param key The row key given to {@link #remember}.
+   */
+  private void forget(final int set, final byte[] key) {
+    for (int i = set; i < set + WAYS; i++) {
+      if (indexed.compareAndSet(i, key, null)) {
+        known.decrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("tagindex.series", known.get(), "type=known");
+    collector.record("tagindex.series", series_indexed, "type=indexed");
+    collector.record("tagindex.errors", write_errors, "rpc=put");
+    collector.record("tagindex.lookups", lookups);
+  }
+
+}
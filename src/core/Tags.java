@@ -16,8 +16,13 @@ import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -254,23 +259,30 @@ public final class Tags {
    */
   static Map<String, String> getTags(final TSDB tsdb,
                                      final byte[] row) throws NoSuchUniqueId {
-    final short name_width = tsdb.tag_names.width();
-    final short value_width = tsdb.tag_values.width();
-    final short tag_bytes = (short) (name_width + value_width);
-    final byte[] tmp_name = new byte[name_width];
-    final byte[] tmp_value = new byte[value_width];
+    return join(getTagsAsync(tsdb, row));
+  }
+
+  /**
+   * Asynchronously returns the tags stored in the given row key.
+   * @param tsdb The TSDB instance to use for Unique ID lookups.
+   * @param row The row key from which to extract the tags.
+   * @return A deferred map of tag names (keys), tag values (values).
+   * @throws NoSuchUniqueId (deferred) if the row key contained an invalid ID
+   * (unlikely).
+   * @since 1.2
+   */
+  static Deferred<HashMap<String, String>> getTagsAsync(final TSDB tsdb,
+                                                        final byte[] row) {
+    final short tag_bytes = (short) (tsdb.tag_names.width()
+                                     + tsdb.tag_values.width());
     final short metric_ts_bytes = (short) (tsdb.metrics.width()
                                            + Const.TIMESTAMP_BYTES);
-    final HashMap<String, String> result
-      = new HashMap<String, String>((row.length - metric_ts_bytes) / tag_bytes);
+    final ArrayList<byte[]> tags =
+      new ArrayList<byte[]>((row.length - metric_ts_bytes) / tag_bytes);
     for (short pos = metric_ts_bytes; pos < row.length; pos += tag_bytes) {
-      System.arraycopy(row, pos, tmp_name, 0, name_width);
-      final String name = tsdb.tag_names.getName(tmp_name);
-      System.arraycopy(row, pos + name_width, tmp_value, 0, value_width);
-      final String value = tsdb.tag_values.getName(tmp_value);
-      result.put(name, value);
+      tags.add(Arrays.copyOfRange(row, pos, pos + tag_bytes));
     }
-    return result;
+    return resolveIdsAsync(tsdb, tags);
   }
 
   /**
@@ -308,43 +320,61 @@ public final class Tags {
   static ArrayList<byte[]> resolveAll(final TSDB tsdb,
                                       final Map<String, String> tags)
     throws NoSuchUniqueName {
-    return resolveAllInternal(tsdb, tags, false);
+    final ArrayList<byte[]> tag_ids = new ArrayList<byte[]>(tags.size());
+    for (final Map.Entry<String, String> entry : tags.entrySet()) {
+      tag_ids.add(concat(tsdb.tag_names.getId(entry.getKey()),
+                         tsdb.tag_values.getId(entry.getValue())));
+    }
+    // Now sort the tags.
+    Collections.sort(tag_ids, Bytes.MEMCMP);
+    return tag_ids;
   }
 
   /**
-   * Resolves (and creates, if necessary) all the tags (name=value) into the a
-   * sorted byte arrays.
+   * Asynchronously resolves (and creates, if necessary) all the tags
+   * (name=value) into the a sorted byte arrays.
+   * <p>
+   * All the tag names and tag values are looked up (or assigned an ID) in
+   * parallel.
    * @param tsdb The TSDB to use for UniqueId lookups.
    * @param tags The tags to resolve.  If a new tag name or tag value is
    * seen, it will be assigned an ID.
-   * @return an array of sorted tags (tag id, tag name).
+   * @return A deferred array of sorted tags (tag id, tag name).
+   * @since 1.2
    */
-  static ArrayList<byte[]> resolveOrCreateAll(final TSDB tsdb,
-                                              final Map<String, String> tags) {
-    return resolveAllInternal(tsdb, tags, true);
-  }
-
-  private
-    static ArrayList<byte[]> resolveAllInternal(final TSDB tsdb,
-                                                final Map<String, String> tags,
-                                                final boolean create)
-    throws NoSuchUniqueName {
-    final ArrayList<byte[]> tag_ids = new ArrayList<byte[]>(tags.size());
+  static Deferred<ArrayList<byte[]>>
+    resolveOrCreateAllAsync(final TSDB tsdb, final Map<String, String> tags) {
+    // Tag name IDs and tag value IDs, interleaved.
+    final ArrayList<Deferred<byte[]>> ids =
+      new ArrayList<Deferred<byte[]>>(2 * tags.size());
     for (final Map.Entry<String, String> entry : tags.entrySet()) {
-      final byte[] tag_id = (create
-                             ? tsdb.tag_names.getOrCreateId(entry.getKey())
-                             : tsdb.tag_names.getId(entry.getKey()));
-      final byte[] value_id = (create
-                               ? tsdb.tag_values.getOrCreateId(entry.getValue())
-                               : tsdb.tag_values.getId(entry.getValue()));
-      final byte[] thistag = new byte[tag_id.length + value_id.length];
-      System.arraycopy(tag_id, 0, thistag, 0, tag_id.length);
-      System.arraycopy(value_id, 0, thistag, tag_id.length, value_id.length);
-      tag_ids.add(thistag);
+      ids.add(tsdb.tag_names.getOrCreateIdAsync(entry.getKey()));
+      ids.add(tsdb.tag_values.getOrCreateIdAsync(entry.getValue()));
     }
-    // Now sort the tags.
-    Collections.sort(tag_ids, Bytes.MEMCMP);
-    return tag_ids;
+    final class TagIdsCB implements Callback<ArrayList<byte[]>,
+                                             ArrayList<Object>> {
+      public ArrayList<byte[]> call(final ArrayList<Object> ids) {
+        final ArrayList<byte[]> tag_ids = new ArrayList<byte[]>(ids.size() / 2);
+        for (int i = 0; i < ids.size(); i += 2) {
+          tag_ids.add(concat((byte[]) ids.get(i), (byte[]) ids.get(i + 1)));
+        }
+        // Now sort the tags.
+        Collections.sort(tag_ids, Bytes.MEMCMP);
+        return tag_ids;
+      }
+      public String toString() {
+        return "resolve tags " + tags;
+      }
+    }
+    return group(ids).addCallback(new TagIdsCB());
+  }
+
+  /** Returns a tag ID followed by a tag value ID.  */
+  private static byte[] concat(final byte[] tag_id, final byte[] value_id) {
+    final byte[] thistag = new byte[tag_id.length + value_id.length];
+    System.arraycopy(tag_id, 0, thistag, 0, tag_id.length);
+    System.arraycopy(value_id, 0, thistag, tag_id.length, value_id.length);
+    return thistag;
   }
 
   /**
@@ -361,27 +391,205 @@ public final class Tags {
   static HashMap<String, String> resolveIds(final TSDB tsdb,
                                             final ArrayList<byte[]> tags)
     throws NoSuchUniqueId {
+    return join(resolveIdsAsync(tsdb, tags));
+  }
+
+  /**
+   * Asynchronously resolves all the tags IDs (name followed by value) into
+   * the a map.
+   * <p>
+   * All the tag names and tag values are looked up in parallel.
+   * @param tsdb The TSDB to use for UniqueId lookups.
+   * @param tags The tag IDs to resolve.
+   * @return A deferred map mapping tag names to tag values.
+   * @throws NoSuchUniqueId (deferred) if one of the elements in the array
+   * contained an invalid ID.
+   * @throws IllegalArgumentException if one of the elements in the array had
+   * the wrong number of bytes.
+   * @since 1.2
+   */
+  static Deferred<HashMap<String, String>>
+    resolveIdsAsync(final TSDB tsdb, final List<byte[]> tags) {
+    final class TagNamesCB implements Callback<HashMap<String, String>,
+                                               ArrayList<Object>> {
+      public HashMap<String, String> call(final ArrayList<Object> names) {
+        return toMap(names, 0, tags.size());
+      }
+      public String toString() {
+        return "resolve tag IDs";
+      }
+    }
+    return resolveTagIdsAsync(tsdb, tags).addCallback(new TagNamesCB());
+  }
+
+  /**
+   * Asynchronously returns the tags stored in many row keys at once.
+   * <p>
+   * All the tag IDs of all the rows are collected first and resolved in a
+   * single pass, so each distinct ID is looked up only once, and all the
+   * IDs are looked up in parallel.
+   * @param tsdb The TSDB instance to use for Unique ID lookups.
+   * @param rows The row keys from which to extract the tags.
+   * @return A deferred list with the map of tag names to tag values of each
+   * row, in the same order.
+   * @throws NoSuchUniqueId (deferred) if a row key contained an invalid ID
+   * (unlikely).
+   * @since 1.2
+   */
+  static Deferred<ArrayList<HashMap<String, String>>>
+    getTagsAsync(final TSDB tsdb, final List<byte[]> rows) {
+    final short tag_bytes = (short) (tsdb.tag_names.width()
+                                     + tsdb.tag_values.width());
+    final short metric_ts_bytes = (short) (tsdb.metrics.width()
+                                           + Const.TIMESTAMP_BYTES);
+    final ArrayList<byte[]> tags = new ArrayList<byte[]>();
+    // Index in `tags' of the first tag of each row, plus the end.
+    final int[] first_tag = new int[rows.size() + 1];
+    for (int i = 0; i < rows.size(); i++) {
+      final byte[] row = rows.get(i);
+      first_tag[i] = tags.size();
+      for (int pos = metric_ts_bytes; pos < row.length; pos += tag_bytes) {
+        tags.add(Arrays.copyOfRange(row, pos, pos + tag_bytes));
+      }
+    }
+    first_tag[rows.size()] = tags.size();
+    final class RowTagsCB
+      implements Callback<ArrayList<HashMap<String, String>>,
+                          ArrayList<Object>> {
+      public ArrayList<HashMap<String, String>>
+        call(final ArrayList<Object> names) {
+        final ArrayList<HashMap<String, String>> result =
+          new ArrayList<HashMap<String, String>>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+          result.add(toMap(names, first_tag[i], first_tag[i + 1]));
+        }
+        return result;
+      }
+      public String toString() {
+        return "resolve the tags of " + rows.size() + " rows";
+      }
+    }
+    return resolveTagIdsAsync(tsdb, tags).addCallback(new RowTagsCB());
+  }
+
+  /**
+   * Resolves tag IDs (name followed by value) with one batch of lookups for
+   * the tag names and another one for the tag values, in parallel.
+   * @return A deferred list with two elements: the list of tag names and
+   * the list of tag values, in the same order as the tags.
+   * @throws IllegalArgumentException if one of the elements in the list had
+   * the wrong number of bytes.
+   */
+  private static Deferred<ArrayList<Object>>
+    resolveTagIdsAsync(final TSDB tsdb, final List<byte[]> tags) {
     final short name_width = tsdb.tag_names.width();
     final short value_width = tsdb.tag_values.width();
     final short tag_bytes = (short) (name_width + value_width);
-    final byte[] tmp_name = new byte[name_width];
-    final byte[] tmp_value = new byte[value_width];
-    final HashMap<String, String> result
-      = new HashMap<String, String>(tags.size());
+    final ArrayList<byte[]> name_ids = new ArrayList<byte[]>(tags.size());
+    final ArrayList<byte[]> value_ids = new ArrayList<byte[]>(tags.size());
     for (final byte[] tag : tags) {
       if (tag.length != tag_bytes) {
         throw new IllegalArgumentException("invalid length: " + tag.length
             + " (expected " + tag_bytes + "): " + Arrays.toString(tag));
       }
-      System.arraycopy(tag, 0, tmp_name, 0, name_width);
-      final String name = tsdb.tag_names.getName(tmp_name);
-      System.arraycopy(tag, name_width, tmp_value, 0, value_width);
-      final String value = tsdb.tag_values.getName(tmp_value);
-      result.put(name, value);
+      name_ids.add(Arrays.copyOf(tag, name_width));
+      value_ids.add(Arrays.copyOfRange(tag, name_width, tag_bytes));
+    }
+    final ArrayList<Deferred<ArrayList<String>>> lookups =
+      new ArrayList<Deferred<ArrayList<String>>>(2);
+    lookups.add(tsdb.tag_names.getNamesAsync(name_ids));
+    lookups.add(tsdb.tag_values.getNamesAsync(value_ids));
+    return group(lookups);
+  }
+
+  /**
+   * Builds a map of tags from the result of {@link #resolveTagIdsAsync}.
+   * @param names The tag names and tag values.
+   * @param start Index of the first tag to put in the map.
+   * @param end Index of the last tag to put in the map (exclusive).
+   */
+  private static HashMap<String, String> toMap(final ArrayList<Object> names,
+                                               final int start,
+                                               final int end) {
+    @SuppressWarnings("unchecked")
+    final ArrayList<String> tag_names = (ArrayList<String>) names.get(0);
+    @SuppressWarnings("unchecked")
+    final ArrayList<String> tag_values = (ArrayList<String>) names.get(1);
+    final HashMap<String, String> result =
+      new HashMap<String, String>(end - start);
+    for (int i = start; i < end; i++) {
+      result.put(tag_names.get(i), tag_values.get(i));
     }
     return result;
   }
 
+  /**
+   * Groups lookups together.
+   * Unlike {@link Deferred#group}, the results are in the order of the
+   * lookups rather than in the order in which they completed, and if a
+   * lookup fails, the error is the exception of the first lookup that failed
+   * (e.g. a {@link NoSuchUniqueName}) rather than a
+   * {@link DeferredGroupException}.
+   * @param lookups The lookups to group.
+   * @return A deferred list of the results of the lookups, in order.
+   */
+  static <T> Deferred<ArrayList<Object>>
+    group(final ArrayList<Deferred<T>> lookups) {
+    final ArrayList<Object> results =
+      new ArrayList<Object>(Collections.nCopies(lookups.size(), null));
+    for (int i = 0; i < lookups.size(); i++) {
+      final int index = i;
+      final class StoreCB implements Callback<T, T> {
+        public T call(final T result) {
+          results.set(index, result);
+          return result;
+        }
+        public String toString() {
+          return "store result #" + index;
+        }
+      }
+      lookups.get(i).addCallback(new StoreCB());
+    }
+    final class ResultsCB implements Callback<ArrayList<Object>,
+                                              ArrayList<Object>> {
+      public ArrayList<Object> call(final ArrayList<Object> unordered) {
+        return results;
+      }
+      public String toString() {
+        return "results of the group, in order";
+      }
+    }
+    final class FirstErrorCB implements Callback<Exception, Exception> {
+      public Exception call(final Exception e) {
+        if (e instanceof DeferredGroupException && e.getCause() != null) {
+          return (Exception) e.getCause();
+        }
+        return e;
+      }
+      public String toString() {
+        return "first error of the group";
+      }
+    }
+    return Deferred.group(lookups).addCallbacks(new ResultsCB(),
+                                                new FirstErrorCB());
+  }
+
+  /**
+   * Waits for the result of asynchronous lookups.
+   * @param d The deferred result of the lookups.
+   * @return The result of the lookups.
+   * @throws RuntimeException The exception the lookups failed with, if any.
+   */
+  static <T> T join(final Deferred<T> d) {
+    try {
+      return d.joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
   /**
    * Returns true if the given string looks like an integer.
    * <p>
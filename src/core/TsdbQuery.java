@@ -21,6 +21,8 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
 
+import com.stumbleupon.async.Deferred;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,6 +33,7 @@ import org.hbase.async.Scanner;
 import static org.hbase.async.Bytes.ByteMap;
 
 import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.QueryProfile;
 import net.opentsdb.uid.NoSuchUniqueId;
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -51,6 +54,28 @@ final class TsdbQuery implements Query {
    */
   static final Histogram scanlatency = new Histogram(16000, (short) 2, 100);
 
+  /**
+   * Keep track of the latency we perceive when doing Gets on HBase, which
+   * we do instead of a Scan when the tag index narrows down the query
+   * enough.  Same buckets as {@link #scanlatency}.
+   */
+  static final Histogram getlatency = new Histogram(16000, (short) 2, 100);
+
+  /**
+   * Maximum number of Gets we're willing to do to fetch the rows found
+   * through the tag index.  Past that we fall back to a regular Scan.
+   */
+  private static final int MAX_INDEXED_GETS = 4096;
+
+  /** How many bytes we'd like to get back per scanner RPC.  */
+  private static final long SCAN_BATCH_BYTES = 4 * 1024 * 1024;
+
+  /** Minimum number of rows to ask per scanner RPC.  */
+  private static final int MIN_SCAN_BATCH_ROWS = 16;
+
+  /** Maximum number of rows to ask per scanner RPC.  */
+  private static final int MAX_SCAN_BATCH_ROWS = 4096;
+
   /**
    * Charset to use with our server-side row-filter.
    * We use this one because it preserves every possible byte unchanged.
@@ -111,6 +136,9 @@ final class TsdbQuery implements Query {
   /** Minimum time interval (in seconds) wanted between each data point. */
   private int sample_interval;
 
+  /** Where to record a breakdown of the work done, can be {@code null}. */
+  private QueryProfile profile;
+
   /** Constructor. */
   public TsdbQuery(final TSDB tsdb) {
     this.tsdb = tsdb;
@@ -222,6 +250,10 @@ final class TsdbQuery implements Query {
     }
   }
 
+  public void setProfile(final QueryProfile profile) {
+    this.profile = profile;
+  }
+
   public DataPoints[] run() throws HBaseException {
     return groupByAndAggregate(findSpans());
   }
@@ -238,52 +270,278 @@ final class TsdbQuery implements Query {
    * @throws IllegalArgumentException if bad data was retreived from HBase.
    */
   private TreeMap<byte[], Span> findSpans() throws HBaseException {
+    if (tsdb.tagindex != null && !tags.isEmpty()) {
+      final ArrayList<byte[]> keys = findRowKeysWithIndex();
+      if (keys != null) {
+        return getSpans(keys);
+      }
+    }
     final short metric_width = tsdb.metrics.width();
     final TreeMap<byte[], Span> spans =  // The key is a row key from HBase.
       new TreeMap<byte[], Span>(new SpanCmp(metric_width));
     int nrows = 0;
-    int hbase_time = 0;  // milliseconds.
+    long hbase_time = 0;  // nanoseconds.
     long starttime = System.nanoTime();
     final Scanner scanner = getScanner();
+    int batch_size = Scanner.DEFAULT_MAX_NUM_ROWS;
+    long bytes_per_row = 0;  // Moving average.
     try {
       ArrayList<ArrayList<KeyValue>> rows;
-      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
-        hbase_time += (System.nanoTime() - starttime) / 1000000;
+      Deferred<ArrayList<ArrayList<KeyValue>>> next_rows = scanner.nextRows();
+      while ((rows = next_rows.joinUninterruptibly()) != null) {
+        hbase_time += System.nanoTime() - starttime;
+        // Size the next batch based on the size of the rows we're getting.
+        long batch_bytes = 0;
         for (final ArrayList<KeyValue> row : rows) {
-          final byte[] key = row.get(0).key();
-          if (Bytes.memcmp(metric, key, 0, metric_width) != 0) {
-            throw new IllegalDataException("HBase returned a row that doesn't match"
-                + " our scanner (" + scanner + ")! " + row + " does not start"
-                + " with " + Arrays.toString(metric));
-          }
-          Span datapoints = spans.get(key);
-          if (datapoints == null) {
-            datapoints = new Span(tsdb);
-            spans.put(key, datapoints);
-          }
-          final KeyValue compacted = tsdb.compact(row);
-          if (compacted != null) {  // Can be null if we ignored all KVs.
-            datapoints.addRow(compacted);
+          batch_bytes += rowBytes(row);
+        }
+        if (!rows.isEmpty()) {
+          final long avg = batch_bytes / rows.size();
+          bytes_per_row = bytes_per_row == 0 ? avg : (bytes_per_row + avg) / 2;
+          batch_size = scanBatchSize(bytes_per_row);
+          scanner.setMaxNumRows(batch_size);
+        }
+        // Double buffering: fetch the next batch while we process this one.
+        // There's still only one RPC outstanding on the scanner at a time.
+        next_rows = scanner.nextRows();
+        for (final ArrayList<KeyValue> row : rows) {
+          if (addRow(spans, row)) {
             nrows++;
           }
-          starttime = System.nanoTime();
         }
+        starttime = System.nanoTime();
       }
     } catch (RuntimeException e) {
       throw e;
     } catch (Exception e) {
       throw new RuntimeException("Should never be here", e);
     } finally {
-      hbase_time += (System.nanoTime() - starttime) / 1000000;
-      scanlatency.add(hbase_time);
+      hbase_time += System.nanoTime() - starttime;
+      scanlatency.add((int) (hbase_time / 1000000));
+      if (profile != null) {
+        profile.addTime("scan", hbase_time);
+      }
+    }
+    LOG.info(this + " matched " + nrows + " rows in " + spans.size()
+             + " spans (last scan batch size: " + batch_size + " rows)");
+    if (profile != null) {
+      profile.incrementCount("spans", spans.size());
     }
-    LOG.info(this + " matched " + nrows + " rows in " + spans.size() + " spans");
     if (nrows == 0) {
       return null;
     }
     return spans;
   }
 
+  /**
+   * Fetches the given rows with individual Gets and loads them into
+   * {@link Span}s.
+   * @param keys The row keys to fetch, sorted by series and then by time.
+   * @return A map from HBase row key to the {@link Span} for that row key,
+   * like {@link #findSpans}.
+   */
+  private TreeMap<byte[], Span> getSpans(final ArrayList<byte[]> keys)
+    throws HBaseException {
+    final TreeMap<byte[], Span> spans =  // The key is a row key from HBase.
+      new TreeMap<byte[], Span>(new SpanCmp(tsdb.metrics.width()));
+    final ArrayList<Deferred<ArrayList<KeyValue>>> gets =
+      new ArrayList<Deferred<ArrayList<KeyValue>>>(keys.size());
+    for (final byte[] key : keys) {
+      gets.add(tsdb.get(key));
+    }
+    int nrows = 0;
+    final long starttime = System.nanoTime();
+    try {
+      // Tags.group preserves the order, so the rows of each series come
+      // back in chronological order, as Span.addRow expects.
+      for (final Object o : Tags.group(gets).joinUninterruptibly()) {
+        @SuppressWarnings("unchecked")
+        final ArrayList<KeyValue> row = (ArrayList<KeyValue>) o;
+        if (!row.isEmpty() && addRow(spans, row)) {
+          nrows++;
+        }
+      }
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    } finally {
+      final long hbase_time = System.nanoTime() - starttime;
+      getlatency.add((int) (hbase_time / 1000000));
+      if (profile != null) {
+        profile.addTime("get", hbase_time);
+      }
+    }
+    LOG.info(this + " matched " + nrows + " rows in " + spans.size()
+             + " spans out of " + keys.size() + " rows looked up in the"
+             + " tag index");
+    if (profile != null) {
+      profile.incrementCount("spans", spans.size());
+    }
+    if (nrows == 0) {
+      return null;
+    }
+    return spans;
+  }
+
+  /**
+   * Adds a row read from HBase to the {@link Span} it belongs to.
+   * @param spans The spans found so far, keyed by row key.
+   * @param row The row to add.
+   * @return {@code true} if the row had data points, {@code false} if all
+   * its KVs were ignored.
+   * @throws IllegalDataException if the row isn't for our metric.
+   */
+  private boolean addRow(final TreeMap<byte[], Span> spans,
+                         final ArrayList<KeyValue> row) {
+    final byte[] key = row.get(0).key();
+    if (Bytes.memcmp(metric, key, 0, tsdb.metrics.width()) != 0) {
+      throw new IllegalDataException("HBase returned a row that doesn't match"
+          + " our query (" + this + ")! " + row + " does not start"
+          + " with " + Arrays.toString(metric));
+    }
+    Span datapoints = spans.get(key);
+    if (datapoints == null) {
+      datapoints = new Span(tsdb);
+      spans.put(key, datapoints);
+    }
+    final KeyValue compacted;
+    if (profile == null) {
+      compacted = tsdb.compact(row);
+    } else {
+      profile.incrementCount("rows", 1);
+      profile.incrementCount("kvs", row.size());
+      profile.incrementCount("bytes", rowBytes(row));
+      final long start = System.nanoTime();
+      compacted = tsdb.compact(row);
+      profile.addTimeSince("compact", start);
+    }
+    if (compacted != null) {  // Can be null if we ignored all KVs.
+      datapoints.addRow(compacted);
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns the approximate number of bytes HBase sent us for a row.  */
+  private static long rowBytes(final ArrayList<KeyValue> row) {
+    long bytes = 0;
+    for (final KeyValue kv : row) {
+      bytes += kv.key().length + kv.qualifier().length + kv.value().length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Computes how many rows to ask per scanner RPC.
+   * Large batches amortize the round-trip to the RegionServer, but rows
+   * vary wildly in size (a compacted row with 3600 points vs. a row with
+   * a single point), so we aim for a target number of bytes per RPC.
+   * @param bytes_per_row The average size of the rows seen so far.
+   * @return A number of rows between {@link #MIN_SCAN_BATCH_ROWS} and
+   * {@link #MAX_SCAN_BATCH_ROWS}.
+   */
+  static int scanBatchSize(final long bytes_per_row) {
+    if (bytes_per_row <= 0) {
+      return MAX_SCAN_BATCH_ROWS;
+    }
+    final long rows = SCAN_BATCH_BYTES / bytes_per_row;
+    if (rows < MIN_SCAN_BATCH_ROWS) {
+      return MIN_SCAN_BATCH_ROWS;
+    } else if (rows > MAX_SCAN_BATCH_ROWS) {
+      return MAX_SCAN_BATCH_ROWS;
+    }
+    return (int) rows;
+  }
+
+  /**
+   * Uses the tag index to find the exact rows this query needs.
+   * <p>
+   * Rows are laid out by time first and by tags second, so for a metric with
+   * many series the server-side regexp filter has to look at every single
+   * row in the time range.  When the index tells us the query only matches a
+   * handful of series, it's much cheaper to fetch their rows directly.
+   * @return The row keys to fetch, sorted by series then by time, or
+   * {@code null} if it would take too many Gets and a scan is preferable.
+   */
+  private ArrayList<byte[]> findRowKeysWithIndex() {
+    final ArrayList<byte[]> series;
+    try {
+      series = tsdb.tagindex.findSeries(metric, tags).joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+    Collections.sort(series, Bytes.MEMCMP);
+    final short metric_width = tsdb.metrics.width();
+    final long first_row = getScanStartTime()
+      - (getScanStartTime() % Const.MAX_TIMESPAN);
+    final long last_row = getScanEndTime();
+    final long rows_per_series = (last_row - first_row) / Const.MAX_TIMESPAN + 1;
+    if (series.size() * rows_per_series > MAX_INDEXED_GETS) {
+      LOG.debug("Not using the tag index for " + this + ": "
+                + series.size() + " series * " + rows_per_series
+                + " rows is too many Gets");
+      return null;
+    }
+    final ArrayList<byte[]> keys =
+      new ArrayList<byte[]>((int) (series.size() * rows_per_series));
+    for (final byte[] suffix : series) {
+      final byte[] template = new byte[metric_width + Const.TIMESTAMP_BYTES
+                                       + suffix.length];
+      System.arraycopy(metric, 0, template, 0, metric_width);
+      System.arraycopy(suffix, 0, template,
+                       metric_width + Const.TIMESTAMP_BYTES, suffix.length);
+      if (!matchesGroupBys(template)) {
+        continue;
+      }
+      for (long base_time = first_row; base_time <= last_row;
+           base_time += Const.MAX_TIMESPAN) {
+        final byte[] key = template.clone();
+        Bytes.setInt(key, (int) base_time, metric_width);
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Checks whether the given row key has all the tags we group by, with one
+   * of the values we want when we're grouping on specific values.
+   * This is the equivalent of what the regexp built by
+   * {@link #createAndSetFilter} does for the 'GROUP BY's.
+   * @param row A row key (the timestamp is ignored).
+   */
+  private boolean matchesGroupBys(final byte[] row) {
+    if (group_bys == null) {
+      return true;
+    }
+    for (final byte[] group_by : group_bys) {
+      final byte[] value_id = Tags.getValueId(tsdb, row, group_by);
+      if (value_id == null) {
+        return false;
+      }
+      final byte[][] value_ids = (group_by_values == null
+                                  ? null
+                                  : group_by_values.get(group_by));
+      if (value_ids == null) {
+        continue;  // Any value will do.
+      }
+      boolean found = false;
+      for (final byte[] wanted : value_ids) {
+        if (Bytes.equals(wanted, value_id)) {
+          found = true;
+          break;
+        }
+      }
+      if (!found) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Creates the {@link SpanGroup}s to form the final results of this query.
    * @param spans The {@link Span}s found for this query ({@link #findSpans}).
@@ -292,6 +550,18 @@ final class TsdbQuery implements Query {
    * any 'GROUP BY' formulated in this query.
    */
   private DataPoints[] groupByAndAggregate(final TreeMap<byte[], Span> spans) {
+    if (profile == null) {
+      return groupBy(spans);
+    }
+    final long start = System.nanoTime();
+    final DataPoints[] groups = groupBy(spans);
+    profile.addTimeSince("group", start);
+    profile.incrementCount("groups", groups.length);
+    return groups;
+  }
+
+  /** Implements {@link #groupByAndAggregate}.  */
+  private DataPoints[] groupBy(final TreeMap<byte[], Span> spans) {
     if (spans == null || spans.size() <= 0) {
       return NO_RESULT;
     }
@@ -359,7 +629,12 @@ final class TsdbQuery implements Query {
     //for (final Map.Entry<byte[], SpanGroup> entry : groups) {
     //  LOG.info("group for " + Arrays.toString(entry.getKey()) + ": " + entry.getValue());
     //}
-    return groups.values().toArray(new SpanGroup[groups.size()]);
+    final SpanGroup[] result =
+      groups.values().toArray(new SpanGroup[groups.size()]);
+    // The tags of every group are needed to serialize the results, so
+    // resolve them all at once rather than one group at a time.
+    SpanGroup.computeTags(tsdb, result);
+    return result;
   }
 
   /**
@@ -0,0 +1,772 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.NonRecoverableException;
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.PutRequest;
+import org.hbase.async.RecoverableException;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A bounded write-ahead spool of data points on the local disk.
+ * <p>
+ * When HBase can't take our puts (region moves, short outages, or when it
+ * keeps asking us to throttle), instead of failing them we append them to
+ * files in a local directory, and a background thread replays them at a
+ * controlled rate once HBase is back.  Like the rows written directly, the
+ * rows replayed are scheduled for compaction.
+ * <p>
+ * The spool is made of segments, which are files named after a sequence
+ * number.  A segment starts with a magic number, followed by one record per
+ * data point: the row key, the qualifier and the value, each preceded by
+ * its length on 2 bytes.  Data points are handed over to a dedicated
+ * writer thread, so the HBase client's I/O threads never wait on the disk.
+ * It appends them in batches and syncs each batch to disk before reporting
+ * success, so a data point that made it to the spool survives a crash of
+ * the machine.  Segments are replayed oldest first and deleted
+ * once HBase has acknowledged all their puts.  Part of a segment may be
+ * replayed more than once (if HBase fails again or if we restart in the
+ * middle of it), which is harmless since writing the same cell again with
+ * the same value doesn't change anything.
+ * <p>
+ * This class is thread-safe.
+ */
+final class WriteSpool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WriteSpool.class);
+
+  /** Magic number at the beginning of every segment ("TSSP"). */
+  private static final int MAGIC = 0x54535350;
+
+  /** Suffix of the names of the segments. */
+  private static final String SUFFIX = ".spool";
+
+  /** How long to wait before trying to replay again after a failure (ms). */
+  private static final int RETRY_INTERVAL = 5000;
+
+  /** How long to wait for HBase to acknowledge a batch of puts (ms). */
+  private static final int REPLAY_TIMEOUT = 60000;
+
+  /** Max number of data points waiting for the writer thread. */
+  private static final int MAX_PENDING = 65536;
+
+  /** Max number of data points the writer thread syncs at once. */
+  private static final int MAX_WRITE_BATCH = 4096;
+
+  /** The TSDB we belong to.  */
+  private final TSDB tsdb;
+
+  private final HBaseClient client;
+
+  /** Table in which the data points are stored. */
+  private final byte[] table;
+
+  /** Directory in which the segments are stored. */
+  private final File dir;
+
+  /** Max number of bytes in the spool. */
+  private final long max_bytes;
+
+  /** Size at which we start a new segment, in bytes. */
+  private final long segment_bytes;
+
+  /** Max number of data points to replay per second. */
+  private final int replay_rate;
+
+  // The following fields must be accessed while synchronized on `this'.
+
+  /** Segments that are complete, oldest first. */
+  private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+  /** Segment we're appending to, or {@code null}. */
+  private Segment current;
+
+  /** Stream to the current segment, or {@code null}. */
+  private DataOutputStream out;
+
+  /** The file underlying {@link #out}, used to sync it to disk. */
+  private FileOutputStream out_file;
+
+  /** Sequence number of the next segment. */
+  private long next_segment;
+
+  /** Total size of the segments, in bytes. */
+  private long bytes;
+
+  /** Number of data points in the spool that haven't been replayed. */
+  private long depth;
+
+  /**
+   * Set once {@link #shutdown} has been called.
+   * Must be set while synchronized on {@link #pending}.
+   */
+  private volatile boolean stopped;
+
+  /** Thread replaying the spool, if it's been started. */
+  private Thread replayer;
+
+  /**
+   * Data points waiting to be appended by the writer thread.  Only added
+   * to while synchronized on itself, after checking {@link #stopped}.
+   */
+  private final LinkedBlockingQueue<Pending> pending =
+    new LinkedBlockingQueue<Pending>(MAX_PENDING);
+
+  /** Thread appending the data points to the spool. */
+  private final Thread writer;
+
+  private final AtomicLong spooled = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong replayed = new AtomicLong();
+
+  /** Data points per second replayed by the last batch, 0 when idle. */
+  private volatile long last_replay_rate;
+
+  /**
+   * Constructor.
+   * Segments left over by a previous run are picked up for replay.
+   * @param tsdb The TSDB whose data points are spooled.
+   * @param dir The directory in which the segments are stored.
+   * @param max_bytes The max number of bytes in the spool.
+   * @param segment_bytes The size at which we start a new segment.
+   * @param replay_rate The max number of data points to replay per second.
+   * @throws IOException if the directory can't be used.
+   */
+  WriteSpool(final TSDB tsdb, final File dir,
+             final long max_bytes, final long segment_bytes,
+             final int replay_rate) throws IOException {
+    if (replay_rate <= 0) {
+      throw new IllegalArgumentException("Invalid replay_rate: "
+                                         + replay_rate);
+    }
+    this.tsdb = tsdb;
+    this.client = tsdb.client;
+    this.table = tsdb.table;
+    this.dir = dir;
+    this.max_bytes = max_bytes;
+    this.segment_bytes = segment_bytes;
+    this.replay_rate = replay_rate;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create the spool directory " + dir);
+    }
+    final File[] files = dir.listFiles(new FilenameFilter() {
+      public boolean accept(final File dir, final String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      throw new IOException("Cannot list the spool directory " + dir);
+    }
+    Arrays.sort(files);  // The sequence numbers are zero-padded.
+    for (final File file : files) {
+      final String name = file.getName();
+      final long seqno;
+      try {
+        seqno = Long.parseLong(name.substring(0, name.length()
+                                              - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        LOG.warn("Ignoring unexpected file in the spool: " + file);
+        continue;
+      }
+      final Segment segment = new Segment(file);
+      segment.bytes = file.length();
+      try {
+        segment.points = countPoints(file);
+      } catch (IOException e) {
+        LOG.error("Ignoring unreadable segment " + file, e);
+        continue;
+      }
+      segments.add(segment);
+      bytes += segment.bytes;
+      depth += segment.points;
+      next_segment = seqno + 1;
+    }
+    if (depth > 0) {
+      LOG.info("Found " + depth + " data points to replay in " + dir);
+    }
+    writer = new Writer();
+    writer.start();
+  }
+
+  /**
+   * Returns a callback that appends a data point to the spool if its put
+   * failed because of a problem HBase is expected to recover from.
+   * Other errors are returned unchanged, as well as the error of the put
+   * if the spool is full or the data point couldn't be synced to disk.
+   * This doesn't retry throttled puts, callers are expected to have done so
+   * already and to spool only the puts that still failed afterwards.
+   * @param point The put of the data point.
+   */
+  Callback<Object, Exception> spoolOnError(final PutRequest point) {
+    return new SpoolCB(point);
+  }
+
+  /** Appends a data point to the spool if its put failed.  */
+  private final class SpoolCB implements Callback<Object, Exception> {
+
+    private final PutRequest point;
+
+    SpoolCB(final PutRequest point) {
+      this.point = point;
+    }
+
+    public Object call(final Exception e) {
+      if (!isRecoverable(e)) {
+        return e;
+      }
+      // Don't touch the disk from here, we're probably on one of the HBase
+      // client's I/O threads.
+      final Pending p = new Pending(point, e);
+      synchronized (pending) {
+        if (!stopped && pending.offer(p)) {
+          return p.result;  // Called back once the data point is on disk.
+        }
+      }
+      dropped.incrementAndGet();
+      return e;
+    }
+
+    public String toString() {
+      return "spool put on error";
+    }
+
+  }
+
+  /**
+   * Returns whether or not a failed put is worth spooling.
+   * Besides the errors that are recoverable by definition, the HBase client
+   * fails with a plain {@link NonRecoverableException} when it gives up on
+   * an RPC after too many attempts, e.g. during a long region move.  Its
+   * subclasses indicate real problems (missing table or family...).
+   */
+  private static boolean isRecoverable(final Exception e) {
+    return e instanceof RecoverableException
+      || e instanceof PleaseThrottleException
+      || e.getClass() == NonRecoverableException.class;
+  }
+
+  /**
+   * Appends a data point to the spool and syncs it to disk.
+   * @param point The put of the data point.
+   * @return {@code false} if the spool is full or the data point couldn't
+   * be written to disk.
+   */
+  boolean append(final PutRequest point) {
+    return append(Collections.singletonList(point))[0];
+  }
+
+  /**
+   * Appends data points to the spool and syncs them to disk, all at once.
+   * @param points The puts of the data points.
+   * @return Whether or not each data point is safely on disk.
+   */
+  synchronized boolean[] append(final List<PutRequest> points) {
+    final boolean[] ok = new boolean[points.size()];
+    int unsynced = 0;  // First data point written since the last sync.
+    for (int i = 0; i < ok.length; i++) {
+      final PutRequest point = points.get(i);
+      try {
+        ok[i] = write(point);
+      } catch (IOException e) {
+        LOG.error("Failed to spool " + point, e);
+        dropped.incrementAndGet();
+        // The last record may be truncated, it'll be ignored when replaying.
+        if (out != null && !closeCurrent()) {
+          Arrays.fill(ok, unsynced, i, false);
+        }
+        unsynced = i + 1;
+        continue;
+      }
+      if (current != null && current.bytes >= segment_bytes) {
+        if (!closeCurrent()) {
+          Arrays.fill(ok, unsynced, i + 1, false);
+        }
+        unsynced = i + 1;
+      }
+    }
+    if (out != null && !sync()) {
+      Arrays.fill(ok, unsynced, ok.length, false);
+    }
+    return ok;
+  }
+
+  /**
+   * Writes a data point to the current segment, without syncing it.
+   * Must be called while synchronized on {@code this}.
+   * @param point The put of the data point.
+   * @return {@code false} if the spool is full.
+   * @throws IOException if the data point couldn't be written.
+   */
+  private boolean write(final PutRequest point) throws IOException {
+    final byte[] key = point.key();
+    final byte[] qualifier = point.qualifier();
+    final byte[] value = point.value();
+    final int size = 2 + key.length + 2 + qualifier.length + 2 + value.length;
+    if (stopped || bytes + size > max_bytes) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    if (out == null) {
+      newSegment();
+    }
+    out.writeShort(key.length);
+    out.write(key);
+    out.writeShort(qualifier.length);
+    out.write(qualifier);
+    out.writeShort(value.length);
+    out.write(value);
+    current.bytes += size;
+    current.points++;
+    bytes += size;
+    depth++;
+    spooled.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Replays the spool, oldest segment first, until it's empty or a put
+   * fails.  Puts are sent in batches of up to a second's worth of data
+   * points, and we wait for a batch to succeed before sending the next.
+   * @return {@code true} if the spool is empty.
+   * @throws InterruptedException if interrupted while waiting for HBase.
+   */
+  boolean replay() throws InterruptedException {
+    while (!stopped) {
+      final Segment segment;
+      synchronized (this) {
+        if (segments.isEmpty()) {
+          if (current == null || current.points == 0) {
+            last_replay_rate = 0;
+            return true;
+          }
+          closeCurrent();  // So we can start replaying it.
+        }
+        segment = segments.peek();
+      }
+      try {
+        if (!replaySegment(segment)) {
+          last_replay_rate = 0;
+          return false;
+        }
+      } catch (IOException e) {
+        LOG.error("Failed to read " + segment.file + ", giving up on the "
+                  + (segment.points - segment.replayed)
+                  + " data points left in it", e);
+        if (!segment.file.renameTo(new File(segment.file + ".bad"))) {
+          LOG.error("Failed to rename " + segment.file);
+        }
+        remove(segment);
+        continue;
+      }
+      remove(segment);
+      if (!segment.file.delete()) {
+        LOG.warn("Failed to delete " + segment.file);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Replays what's left of a segment.
+   * @return {@code true} if the whole segment was replayed.
+   */
+  private boolean replaySegment(final Segment segment)
+    throws IOException, InterruptedException {
+    final DataInputStream in = openSegment(segment.file);
+    try {
+      long offset = 4;  // Skip the magic number.
+      while (offset < segment.offset) {
+        final long skipped = in.skip(segment.offset - offset);
+        if (skipped <= 0) {
+          throw new EOFException("Segment shorter than replayed offset "
+                                 + segment.offset);
+        }
+        offset += skipped;
+      }
+      final ArrayList<Deferred<Object>> puts =
+        new ArrayList<Deferred<Object>>(replay_rate);
+      final short metric_width = tsdb.metrics.width();
+      while (!stopped) {
+        final long start = System.nanoTime();
+        long batch_bytes = 0;
+        puts.clear();
+        byte[][] record;
+        while (puts.size() < replay_rate
+               && (record = readRecord(in, segment.file)) != null) {
+          // Like TSDB.addPoint, except a failed put mustn't be spooled again.
+          tsdb.scheduleForCompaction(record[0],
+                                     Bytes.getInt(record[0], metric_width));
+          puts.add(client.put(new PutRequest(table, record[0], TSDB.FAMILY,
+                                             record[1], record[2])));
+          batch_bytes += 6 + record[0].length + record[1].length
+            + record[2].length;
+        }
+        if (puts.isEmpty()) {
+          return true;
+        }
+        try {
+          Deferred.group(puts).join(REPLAY_TIMEOUT);
+        } catch (InterruptedException e) {
+          throw e;
+        } catch (Exception e) {
+          LOG.warn("Failed to replay data points from " + segment.file
+                   + ", will try again later", e);
+          return false;
+        }
+        synchronized (this) {
+          segment.offset = offset += batch_bytes;
+          segment.replayed += puts.size();
+          depth -= puts.size();
+        }
+        replayed.addAndGet(puts.size());
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        if (elapsed < 1000) {
+          Thread.sleep(1000 - elapsed);  // Don't replay faster than the rate.
+        }
+        last_replay_rate = puts.size() * 1000L
+          / Math.max(1000, elapsed);
+      }
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Starts a background thread replaying the spool.  */
+  synchronized void start() {
+    replayer = new Thread("SpoolReplayer") {
+      public void run() {
+        while (!stopped) {
+          long interval = 1000;
+          try {
+            if (!replay()) {
+              interval = RETRY_INTERVAL;
+            }
+          } catch (InterruptedException e) {
+            continue;  // We're probably shutting down.
+          } catch (Exception e) {
+            LOG.error("Uncaught exception in spool replayer", e);
+            interval = RETRY_INTERVAL;
+          }
+          try {
+            Thread.sleep(interval);
+          } catch (InterruptedException e) {
+            // Check whether we're shutting down.
+          }
+        }
+      }
+    };
+    replayer.setDaemon(true);
+    replayer.start();
+  }
+
+  /**
+   * Stops replaying the spool and closes the current segment.
+   * The data points left in the spool will be replayed on the next start.
+   * The data points still waiting to be appended fail with their error.
+   */
+  void shutdown() {
+    synchronized (pending) {
+      stopped = true;
+    }
+    final Thread replayer;
+    synchronized (this) {
+      replayer = this.replayer;
+    }
+    // Wait for both threads, as they can still use the current segment.
+    if (replayer != null) {
+      replayer.interrupt();
+      join(replayer);
+    }
+    writer.interrupt();
+    join(writer);
+    synchronized (this) {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          LOG.error("Failed to close " + current.file, e);
+        }
+        out = null;
+        out_file = null;
+      }
+    }
+  }
+
+  /** Waits for a thread to die, as long as we're not interrupted.  */
+  private static void join(final Thread thread) {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();  // Restore the interrupted status.
+    }
+  }
+
+  /** Returns the number of data points waiting to be replayed.  */
+  synchronized long depth() {
+    return depth;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    synchronized (this) {
+      collector.record("spool.depth", depth);
+      collector.record("spool.bytes", bytes);
+      collector.record("spool.segments",
+                       segments.size() + (current == null ? 0 : 1));
+    }
+    collector.record("spool.pending", pending.size());
+    collector.record("spool.spooled", spooled);
+    collector.record("spool.dropped", dropped);
+    collector.record("spool.replayed", replayed);
+    collector.record("spool.replay_rate", last_replay_rate);
+  }
+
+  /**
+   * Starts a new segment.
+   * Must be called while synchronized on {@code this}.
+   */
+  private void newSegment() throws IOException {
+    final File file = new File(dir, String.format("%016d", next_segment++)
+                               + SUFFIX);
+    out_file = new FileOutputStream(file);
+    out = new DataOutputStream(new BufferedOutputStream(out_file));
+    current = new Segment(file);
+    out.writeInt(MAGIC);
+    current.bytes = 4;
+    bytes += 4;
+  }
+
+  /**
+   * Flushes the current segment and syncs it to disk.
+   * Must be called while synchronized on {@code this}.
+   * @return {@code false} if the segment couldn't be synced.
+   */
+  private boolean sync() {
+    try {
+      out.flush();
+      out_file.getFD().sync();
+      return true;
+    } catch (IOException e) {
+      LOG.error("Failed to sync " + current.file, e);
+      return false;
+    }
+  }
+
+  /**
+   * Syncs and closes the current segment, which can then be replayed.
+   * Must be called while synchronized on {@code this}.
+   * @return {@code false} if the segment couldn't be synced.
+   */
+  private boolean closeCurrent() {
+    boolean synced = sync();
+    try {
+      out.close();
+    } catch (IOException e) {
+      LOG.error("Failed to close " + current.file, e);
+      synced = false;
+    }
+    segments.add(current);
+    current = null;
+    out = null;
+    out_file = null;
+    return synced;
+  }
+
+  /** Forgets about a segment we're done with.  */
+  private synchronized void remove(final Segment segment) {
+    segments.remove(segment);
+    bytes -= segment.bytes;
+    depth -= segment.points - segment.replayed;
+  }
+
+  /** Opens a segment for reading and checks its magic number.  */
+  private static DataInputStream openSegment(final File file)
+    throws IOException {
+    final DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(file)));
+    try {
+      final int magic = in.readInt();
+      if (magic != MAGIC) {
+        throw new IOException("Not a spool segment: " + file + " (magic="
+                              + Integer.toHexString(magic) + ')');
+      }
+      return in;
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads the next data point of a segment.
+   * @return The row key, qualifier and value, or {@code null} at the end
+   * of the segment.
+   */
+  private static byte[][] readRecord(final DataInputStream in,
+                                     final File file) throws IOException {
+    final int key_length;
+    try {
+      key_length = in.readUnsignedShort();
+    } catch (EOFException e) {
+      return null;
+    }
+    try {
+      final byte[] key = new byte[key_length];
+      in.readFully(key);
+      final byte[] qualifier = new byte[in.readUnsignedShort()];
+      in.readFully(qualifier);
+      final byte[] value = new byte[in.readUnsignedShort()];
+      in.readFully(value);
+      return new byte[][] { key, qualifier, value };
+    } catch (EOFException e) {
+      // We must have died or failed in the middle of appending it.
+      LOG.warn("Ignoring truncated data point at the end of " + file);
+      return null;
+    }
+  }
+
+  /** Returns the number of data points in a segment.  */
+  private static long countPoints(final File file) throws IOException {
+    final DataInputStream in = openSegment(file);
+    try {
+      long points = 0;
+      while (readRecord(in, file) != null) {
+        points++;
+      }
+      return points;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Appends the pending data points to the spool, batch after batch.  */
+  private final class Writer extends Thread {
+
+    Writer() {
+      super("SpoolWriter");
+      setDaemon(true);
+    }
+
+    public void run() {
+      final ArrayList<Pending> batch = new ArrayList<Pending>();
+      while (true) {
+        try {
+          batch.add(pending.take());
+        } catch (InterruptedException e) {
+          if (stopped) {
+            break;
+          }
+          continue;
+        }
+        pending.drainTo(batch, MAX_WRITE_BATCH - 1);
+        write(batch);
+        batch.clear();
+      }
+      // Nothing can be added anymore: fail what's left.
+      pending.drainTo(batch);
+      write(batch);
+    }
+
+    /** Appends a batch and tells everyone whether it worked.  */
+    private void write(final ArrayList<Pending> batch) {
+      if (batch.isEmpty()) {
+        return;
+      }
+      final ArrayList<PutRequest> points =
+        new ArrayList<PutRequest>(batch.size());
+      for (final Pending p : batch) {
+        points.add(p.point);
+      }
+      final boolean[] ok = append(points);
+      for (int i = 0; i < ok.length; i++) {
+        final Pending p = batch.get(i);
+        p.result.callback(ok[i] ? null : p.error);
+      }
+    }
+
+  }
+
+  /** A data point waiting to be appended to the spool.  */
+  private static final class Pending {
+
+    final PutRequest point;
+
+    /** Why the put of the data point failed. */
+    final Exception error;
+
+    /** Called back with {@code null} or {@link #error} once appended. */
+    final Deferred<Object> result = new Deferred<Object>();
+
+    Pending(final PutRequest point, final Exception error) {
+      this.point = point;
+      this.error = error;
+    }
+
+  }
+
+  /** A segment of the spool.  */
+  private static final class Segment {
+
+    final File file;
+
+    /** Size of the segment, in bytes. */
+    long bytes;
+
+    /** Number of data points in the segment. */
+    long points;
+
+    /** Number of data points replayed so far. */
+    long replayed;
+
+    /** Offset in the file up to which the data points were replayed. */
+    long offset;
+
+    Segment(final File file) {
+      this.file = file;
+    }
+
+  }
+
+}
@@ -0,0 +1,240 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+/**
+ * A copy of some data points, stored in arrays.
+ * <p>
+ * The metric name and tags are those of the original {@link DataPoints}.
+ * Data points must be added in time order.
+ */
+final class ArrayDataPoints implements DataPoints {
+
+  /** Extra bit we set on the timestamp of floating point values. */
+  private static final long FLAG_FLOAT = 0x8000000000000000L;
+
+  /** Mask to use in order to get rid of the flag above. */
+  private static final long TIME_MASK  = 0x7FFFFFFFFFFFFFFFL;
+
+  /** Where the data points come from. */
+  private final DataPoints source;
+
+  /** Timestamps, with {@link #FLAG_FLOAT} set for floating point values. */
+  private long[] timestamps;
+
+  /** Values (either actual longs or doubles encoded in longs). */
+  private long[] values;
+
+  /** Number of data points in the arrays above. */
+  private int size;
+
+  /**
+   * Constructor.
+   * @param source Where the data points come from.
+   * @param capacity Expected number of data points.
+   */
+  ArrayDataPoints(final DataPoints source, final int capacity) {
+    this.source = source;
+    timestamps = new long[Math.max(capacity, 1)];
+    values = new long[timestamps.length];
+  }
+
+  /** Adds a copy of the given data point.  */
+  void add(final DataPoint dp) {
+    if (dp.isInteger()) {
+      add(dp.timestamp(), dp.longValue(), true);
+    } else {
+      add(dp.timestamp(), Double.doubleToRawLongBits(dp.doubleValue()), false);
+    }
+  }
+
+  /** Replaces the {@code i}th data point with a copy of the given one.  */
+  void set(final int i, final DataPoint dp) {
+    checkIndex(i);
+    if (dp.isInteger()) {
+      timestamps[i] = dp.timestamp();
+      values[i] = dp.longValue();
+    } else {
+      timestamps[i] = dp.timestamp() | FLAG_FLOAT;
+      values[i] = Double.doubleToRawLongBits(dp.doubleValue());
+    }
+  }
+
+  /** Removes all the data points.  */
+  void clear() {
+    size = 0;
+  }
+
+  /** Adds a copy of the {@code i}th data point of another instance.  */
+  void add(final ArrayDataPoints other, final int i) {
+    add(other.timestamp(i), other.values[i], other.isInteger(i));
+  }
+
+  /**
+   * Adds a data point.
+   * @param timestamp The timestamp of the data point.
+   * @param value The value, or the raw bits of a double.
+   * @param integer Whether the value is an integer.
+   */
+  private void add(final long timestamp, final long value,
+                   final boolean integer) {
+    if (size == timestamps.length) {
+      timestamps = Arrays.copyOf(timestamps, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    timestamps[size] = integer ? timestamp : timestamp | FLAG_FLOAT;
+    values[size] = value;
+    size++;
+  }
+
+  public String metricName() {
+    return source.metricName();
+  }
+
+  public Map<String, String> getTags() {
+    return source.getTags();
+  }
+
+  public List<String> getAggregatedTags() {
+    return source.getAggregatedTags();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int aggregatedSize() {
+    return source.aggregatedSize();
+  }
+
+  public SeekableView iterator() {
+    return new Iterator();
+  }
+
+  /** @throws IndexOutOfBoundsException if {@code i} is out of bounds. */
+  private void checkIndex(final int i) {
+    if (i < 0 || i >= size) {
+      throw new IndexOutOfBoundsException("index " + i + " not in [0, "
+                                          + size + ") for this=" + this);
+    }
+  }
+
+  public long timestamp(final int i) {
+    checkIndex(i);
+    return timestamps[i] & TIME_MASK;
+  }
+
+  public boolean isInteger(final int i) {
+    checkIndex(i);
+    return (timestamps[i] & FLAG_FLOAT) == 0;
+  }
+
+  public long longValue(final int i) {
+    if (!isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a long in " + this);
+    }
+    return values[i];
+  }
+
+  public double doubleValue(final int i) {
+    if (isInteger(i)) {
+      throw new ClassCastException("value #" + i + " is not a float in " + this);
+    }
+    return Double.longBitsToDouble(values[i]);
+  }
+
+  /** Returns the {@code i}th data point as a double value.  */
+  double toDouble(final int i) {
+    return isInteger(i) ? longValue(i) : doubleValue(i);
+  }
+
+  public String toString() {
+    return "ArrayDataPoints(size=" + size + ", source=" + source + ')';
+  }
+
+  /** Iterator for {@link ArrayDataPoints}.  */
+  final class Iterator implements SeekableView, DataPoint {
+
+    /** Index of the next data point.  */
+    private int index;
+
+    public boolean hasNext() {
+      return index < size;
+    }
+
+    public DataPoint next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException("no more elements in " + this);
+      }
+      index++;
+      return this;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void seek(final long timestamp) {
+      if ((timestamp & 0xFFFFFFFF00000000L) != 0) {  // negative or not 32 bits
+        throw new IllegalArgumentException("invalid timestamp: " + timestamp);
+      }
+      int lo = 0;
+      int hi = size;
+      while (lo < hi) {
+        final int mid = (lo + hi) >>> 1;
+        if ((timestamps[mid] & TIME_MASK) < timestamp) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      index = lo;
+    }
+
+    public long timestamp() {
+      return ArrayDataPoints.this.timestamp(index - 1);
+    }
+
+    public boolean isInteger() {
+      return ArrayDataPoints.this.isInteger(index - 1);
+    }
+
+    public long longValue() {
+      return ArrayDataPoints.this.longValue(index - 1);
+    }
+
+    public double doubleValue() {
+      return ArrayDataPoints.this.doubleValue(index - 1);
+    }
+
+    public double toDouble() {
+      return ArrayDataPoints.this.toDouble(index - 1);
+    }
+
+    public String toString() {
+      return "ArrayDataPoints.Iterator(index=" + index
+        + ", dps=" + ArrayDataPoints.this + ')';
+    }
+
+  }
+
+}
@@ -0,0 +1,42 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import net.opentsdb.core.DataPoints;
+
+/**
+ * A function that reduces the number of data points of a series to what
+ * can actually be seen on a graph of a given width.
+ * <p>
+ * A graph 1000 pixels wide can't show more than a few data points per
+ * pixel column, so there's no point in sending millions of data points
+ * to the plotting code.  Decimators must be stateless.
+ * @since 1.2
+ */
+public interface Decimator {
+
+  /**
+   * Decimates some data points.
+   * @param datapoints The data points to decimate.  They're iterated on
+   * exactly once.
+   * @param start_time Timestamp of the start time of the graph.
+   * @param end_time Timestamp of the end time of the graph.
+   * @param width The width of the graph, in pixels.
+   * @return A copy of at most a few data points per pixel, in time order.
+   * The data points returned are data points from the input, they're not
+   * interpolated.
+   */
+  DataPoints decimate(DataPoints datapoints, long start_time, long end_time,
+                      int width);
+
+}
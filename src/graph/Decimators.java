@@ -0,0 +1,222 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+
+/**
+ * Utility class that provides the available {@link Decimator}s.
+ * @since 1.2
+ */
+public final class Decimators {
+
+  /**
+   * Decimator that keeps the min and the max of each pixel column.
+   * This preserves the envelope of the graph exactly: spikes never
+   * disappear.
+   */
+  public static final Decimator MINMAX = new MinMax();
+
+  /**
+   * Decimator that uses the Largest-Triangle-Three-Buckets algorithm.
+   * This keeps the data points that contribute the most to the visual
+   * shape of the line, and works best on series that aren't too noisy.
+   */
+  public static final Decimator LTTB = new LargestTriangleThreeBuckets();
+
+  /** Maps a decimator name to its instance. */
+  private static final HashMap<String, Decimator> decimators;
+
+  static {
+    decimators = new HashMap<String, Decimator>(2);
+    decimators.put("minmax", MINMAX);
+    decimators.put("lttb", LTTB);
+  }
+
+  /** Number of data points we keep per pixel column. */
+  private static final int POINTS_PER_PIXEL = 2;
+
+  private Decimators() {
+    // Can't create instances of this utility class.
+  }
+
+  /**
+   * Returns the set of the names that can be used with {@link #get get}.
+   */
+  public static Set<String> set() {
+    return decimators.keySet();
+  }
+
+  /**
+   * Returns the decimator corresponding to the given name.
+   * @param name The name of the decimator to get.
+   * @throws NoSuchElementException if the given name doesn't exist.
+   * @see #set
+   */
+  public static Decimator get(final String name) {
+    final Decimator decimator = decimators.get(name);
+    if (decimator != null) {
+      return decimator;
+    }
+    throw new NoSuchElementException("No such decimator: " + name);
+  }
+
+  private static final class MinMax implements Decimator {
+
+    public DataPoints decimate(final DataPoints datapoints,
+                               final long start_time, final long end_time,
+                               final int width) {
+      final ArrayDataPoints result =
+        new ArrayDataPoints(datapoints, width * POINTS_PER_PIXEL);
+      final long timespan = Math.max(end_time - start_time, 1);
+      // Points can't be stored, so we copy the min and max of the current
+      // pixel column here until we move on to the next column.
+      final ArrayDataPoints column = new ArrayDataPoints(datapoints, 2);
+      int current = -1;  // Current pixel column.
+      double min = 0;
+      double max = 0;
+      for (final DataPoint dp : datapoints) {
+        final long x = (dp.timestamp() - start_time) * width / timespan;
+        // Points slightly outside of the graph go in the first/last column.
+        final int pixel = (int) Math.max(0, Math.min(x, width - 1));
+        final double value = dp.toDouble();
+        if (pixel != current) {
+          flush(column, result);
+          column.clear();
+          column.add(dp);
+          column.add(dp);
+          min = max = value;
+          current = pixel;
+        } else if (value < min) {
+          column.set(0, dp);
+          min = value;
+        } else if (value > max) {
+          column.set(1, dp);
+          max = value;
+        }
+      }
+      flush(column, result);
+      return result;
+    }
+
+    /**
+     * Adds the min and the max of a pixel column to the result, in time
+     * order, or only one of them if they're the same data point.
+     */
+    private static void flush(final ArrayDataPoints column,
+                              final ArrayDataPoints result) {
+      if (column.size() == 0) {
+        return;
+      }
+      final long min_time = column.timestamp(0);
+      final long max_time = column.timestamp(1);
+      if (min_time == max_time) {
+        result.add(column, 0);
+      } else if (min_time < max_time) {
+        result.add(column, 0);
+        result.add(column, 1);
+      } else {
+        result.add(column, 1);
+        result.add(column, 0);
+      }
+    }
+
+    public String toString() {
+      return "minmax";
+    }
+
+  }
+
+  /**
+   * Largest-Triangle-Three-Buckets, as described by Sveinn Steinarsson in
+   * "Downsampling Time Series for Visual Representation" (2013).
+   * <p>
+   * The first and last data points are always kept.  The others are split
+   * in buckets of equal size, and in each bucket we keep the data point
+   * that forms the largest triangle with the point kept in the previous
+   * bucket and the average of the next bucket.
+   */
+  private static final class LargestTriangleThreeBuckets implements Decimator {
+
+    public DataPoints decimate(final DataPoints datapoints,
+                               final long start_time, final long end_time,
+                               final int width) {
+      // We need to look ahead, so make a copy first.
+      final ArrayDataPoints all = new ArrayDataPoints(datapoints, 1024);
+      for (final DataPoint dp : datapoints) {
+        all.add(dp);
+      }
+      final int threshold = width * POINTS_PER_PIXEL;
+      final int size = all.size();
+      if (size <= threshold || threshold < 3) {
+        return all;
+      }
+      final ArrayDataPoints result = new ArrayDataPoints(datapoints,
+                                                         threshold);
+      // Bucket size, leaving room for the first and last data points.
+      final double every = (double) (size - 2) / (threshold - 2);
+      int a = 0;  // Index of the last data point kept.
+      result.add(all, a);
+      for (int i = 0; i < threshold - 2; i++) {
+        // Average of the next bucket, or of the last point for the last one.
+        int avg_start = (int) ((i + 1) * every) + 1;
+        int avg_end = Math.min((int) ((i + 2) * every) + 1, size);
+        if (avg_start >= avg_end) {
+          avg_start = size - 1;
+          avg_end = size;
+        }
+        double avg_x = 0;
+        double avg_y = 0;
+        for (int j = avg_start; j < avg_end; j++) {
+          avg_x += all.timestamp(j);
+          avg_y += all.toDouble(j);
+        }
+        avg_x /= avg_end - avg_start;
+        avg_y /= avg_end - avg_start;
+
+        // Find the point of the current bucket with the largest triangle.
+        final int range_start = (int) (i * every) + 1;
+        final int range_end = (int) ((i + 1) * every) + 1;
+        final double a_x = all.timestamp(a);
+        final double a_y = all.toDouble(a);
+        double max_area = -1;
+        int next_a = range_start;
+        for (int j = range_start; j < range_end; j++) {
+          final double area = Math.abs((a_x - avg_x)
+                                       * (all.toDouble(j) - a_y)
+                                       - (a_x - all.timestamp(j))
+                                       * (avg_y - a_y));
+          if (area > max_area) {
+            max_area = area;
+            next_a = j;
+          }
+        }
+        result.add(all, next_a);
+        a = next_a;
+      }
+      result.add(all, size - 1);
+      return result;
+    }
+
+    public String toString() {
+      return "lttb";
+    }
+
+  }
+
+}
@@ -13,6 +13,7 @@
 package net.opentsdb.graph;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Map;
@@ -29,6 +30,8 @@ import net.opentsdb.core.DataPoints;
  * <p>
  * This class takes a bunch of {@link DataPoints} instances and generates a
  * Gnuplot script as well as the corresponding data files to feed to Gnuplot.
+ * Simple graphs can also be rendered directly to a PNG image, without
+ * Gnuplot (see {@link #canWritePng}).
  */
 public final class Plot {
 
@@ -145,6 +148,14 @@ public final class Plot {
     this.height = height;
   }
 
+  /**
+   * Returns the width of the graph to generate, in pixels.
+   * @since 1.2
+   */
+  public short getWidth() {
+    return width;
+  }
+
   /**
    * Adds some data points to this plot.
    * @param datapoints The data points to plot.
@@ -222,6 +233,36 @@ public final class Plot {
     return npoints;
   }
 
+  /**
+   * Returns {@code true} if {@link #writePng} can render this plot.
+   * Plots using Gnuplot features that aren't supported natively (such as
+   * smoothing, custom formats or custom series options) need Gnuplot.
+   * @since 1.2
+   */
+  public boolean canWritePng() {
+    return PngRenderer.supports(params, options);
+  }
+
+  /**
+   * Renders this plot to a PNG image, without Gnuplot.
+   * @param out Where to write the PNG image.
+   * @return The number of data points plotted.  This can be less than the
+   * number of data points involved in the query due to things like
+   * aggregation or downsampling.
+   * @throws IOException if there was an error while writing the image.
+   * @throws IllegalStateException if {@link #canWritePng} is {@code false}.
+   * @since 1.2
+   */
+  public int writePng(final OutputStream out) throws IOException {
+    if (!canWritePng()) {
+      throw new IllegalStateException("This plot needs Gnuplot: " + params
+                                      + ", options=" + options);
+    }
+    return new PngRenderer(start_time & UNSIGNED, end_time & UNSIGNED,
+                           utc_offset, width, height, params,
+                           datapoints, options).render(out);
+  }
+
   /**
    * Generates the Gnuplot script.
    * @param basepath The base path to use.
@@ -0,0 +1,733 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.Stroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TimeZone;
+
+import javax.imageio.ImageIO;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+
+/**
+ * Renders a {@link Plot} to a PNG image without Gnuplot.
+ * <p>
+ * Only a subset of what can be done with Gnuplot is supported: lines on
+ * one or two Y axes, linear or logarithmic, with labels, a title, a key and
+ * custom colors.  Use {@link #supports} to check whether a plot can be
+ * rendered by this class, otherwise Gnuplot must be used.
+ */
+final class PngRenderer {
+
+  /** Plot parameters we know how to handle. */
+  private static final HashSet<String> SUPPORTED_PARAMS =
+    new HashSet<String>(Arrays.asList("yrange", "y2range", "ylabel",
+                                      "y2label", "logscale y", "logscale y2",
+                                      "key", "title", "bgcolor", "fgcolor"));
+
+  /** Words we know how to handle in the {@code key} parameter. */
+  private static final HashSet<String> SUPPORTED_KEY_WORDS =
+    new HashSet<String>(Arrays.asList("top", "bottom", "center", "left",
+                                      "right", "box"));
+
+  /** Colors of the series, same as Gnuplot's defaults. */
+  private static final Color[] PALETTE = {
+    new Color(0xFF0000), new Color(0x00C000), new Color(0x0080FF),
+    new Color(0xC000FF), new Color(0x00EEEE), new Color(0xC04000),
+    new Color(0xC8C800), new Color(0x4169E1), new Color(0xFFC020),
+    new Color(0x008040), new Color(0xC080FF), new Color(0x306080),
+  };
+
+  /** Possible intervals between two tics on the X axis, in seconds. */
+  private static final int[] TIME_INTERVALS = {
+    1, 2, 5, 10, 15, 30, 60, 120, 300, 600, 900, 1800, 3600, 7200, 10800,
+    21600, 43200, 86400, 2 * 86400, 7 * 86400, 14 * 86400, 30 * 86400,
+    91 * 86400, 182 * 86400, 365 * 86400,
+  };
+
+  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+  /** Minimum number of pixels between two tics on the Y axes. */
+  private static final int Y_TIC_SPACING = 40;
+
+  /** Length of the tic marks, in pixels. */
+  private static final int TIC_LENGTH = 5;
+
+  /** Space around the various elements of the graph, in pixels. */
+  private static final int PADDING = 8;
+
+  private static final Stroke GRID_STROKE =
+    new BasicStroke(1, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10,
+                    new float[] { 1, 3 }, 0);
+
+  private final long start_time;
+  private final long end_time;
+  private final short utc_offset;
+  private final short width;
+  private final short height;
+  private final Map<String, String> params;
+  private final ArrayList<DataPoints> datapoints;
+  private final ArrayList<String> options;
+
+  /**
+   * Constructor.
+   * @param start_time Timestamp of the start time of the graph.
+   * @param end_time Timestamp of the end time of the graph.
+   * @param utc_offset Seconds to add to timestamps to get local time.
+   * @param width Width of the graph, in pixels.
+   * @param height Height of the graph, in pixels.
+   * @param params The plot parameters, can be {@code null}.
+   * @param datapoints The series to plot.
+   * @param options The options of each series.
+   */
+  PngRenderer(final long start_time, final long end_time,
+              final short utc_offset,
+              final short width, final short height,
+              final Map<String, String> params,
+              final ArrayList<DataPoints> datapoints,
+              final ArrayList<String> options) {
+    this.start_time = start_time;
+    this.end_time = end_time;
+    this.utc_offset = utc_offset;
+    this.width = width;
+    this.height = height;
+    this.params = params;
+    this.datapoints = datapoints;
+    this.options = options;
+  }
+
+  /**
+   * Returns {@code true} if this class knows how to render a plot with the
+   * given parameters and series options.
+   */
+  static boolean supports(final Map<String, String> params,
+                          final ArrayList<String> options) {
+    if (params != null) {
+      for (final Map.Entry<String, String> entry : params.entrySet()) {
+        final String key = entry.getKey();
+        final String value = entry.getValue();
+        if (!SUPPORTED_PARAMS.contains(key)) {
+          return false;
+        } else if (value == null) {
+          if (!"key".equals(key)) {  // Only the key can be unset.
+            return false;
+          }
+        } else if ("key".equals(key)) {
+          for (final String word : value.trim().split("\\s+")) {
+            if (!word.isEmpty() && !SUPPORTED_KEY_WORDS.contains(word)) {
+              return false;
+            }
+          }
+        } else if ("yrange".equals(key) || "y2range".equals(key)) {
+          if (parseRange(value) == null) {
+            return false;
+          }
+        } else if ("bgcolor".equals(key)) {
+          if (!"transparent".equals(value) && parseColor(value) == null) {
+            return false;
+          }
+        } else if ("fgcolor".equals(key)) {
+          if (parseColor(value) == null) {
+            return false;
+          }
+        }
+      }
+    }
+    for (final String opts : options) {
+      if (!opts.replace("axis x1y2", "").replace("axes x1y2", "")
+          .trim().isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Renders the graph.
+   * @param out Where to write the PNG image.
+   * @return The number of data points in the time range of the graph.
+   * @throws IOException if the image couldn't be written.
+   * @throws IllegalStateException if a value is NaN or infinite.
+   */
+  int render(final OutputStream out) throws IOException {
+    final int nseries = datapoints.size();
+    final Series[] series = new Series[nseries];
+    boolean has_y2 = false;
+    int npoints = 0;
+    for (int i = 0; i < nseries; i++) {
+      series[i] = new Series(datapoints.get(i), i, options.get(i));
+      npoints += series[i].npoints;
+      has_y2 |= series[i].y2;
+    }
+
+    final Axis y = new Axis(series, false, "yrange", "logscale y");
+    final Axis y2 = has_y2 ? new Axis(series, true, "y2range", "logscale y2")
+      : null;
+    final String title = unquote(param("title"));
+    final String ylabel = unquote(param("ylabel"));
+    final String y2label = unquote(param("y2label"));
+    final String bgcolor = param("bgcolor");
+    final String fgcolor = param("fgcolor");
+    final boolean transparent = "transparent".equals(bgcolor);
+    final Color fg = fgcolor == null ? Color.BLACK : parseColor(fgcolor);
+
+    final BufferedImage image = new BufferedImage(width, height,
+      transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+    final Graphics2D g = image.createGraphics();
+    try {
+      if (!transparent) {
+        g.setColor(bgcolor == null ? Color.WHITE : parseColor(bgcolor));
+        g.fillRect(0, 0, width, height);
+      }
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                         RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                         RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+      final FontMetrics fm = g.getFontMetrics();
+      final int line_height = fm.getHeight();
+
+      // Figure out where the plot area goes.
+      int left = PADDING + y.maxLabelWidth(fm) + TIC_LENGTH;
+      if (ylabel != null) {
+        left += line_height + PADDING;
+      }
+      int right = PADDING * 2;
+      if (y2 != null) {
+        right = PADDING + y2.maxLabelWidth(fm) + TIC_LENGTH;
+        if (y2label != null) {
+          right += line_height + PADDING;
+        }
+      }
+      final int top = PADDING + (title != null ? line_height + PADDING : 0);
+      final int bottom = PADDING + line_height + TIC_LENGTH;
+      final int x0 = left;
+      final int y0 = top;
+      final int w = Math.max(width - left - right, 1);
+      final int h = Math.max(height - top - bottom, 1);
+
+      g.setColor(fg);
+      if (title != null) {
+        g.drawString(title, (width - fm.stringWidth(title)) / 2,
+                     PADDING + fm.getAscent());
+      }
+      if (ylabel != null) {
+        drawVertical(g, ylabel, PADDING + fm.getAscent(), y0 + h / 2);
+      }
+      if (y2 != null && y2label != null) {
+        drawVertical(g, y2label, width - PADDING - fm.getDescent(),
+                     y0 + h / 2);
+      }
+      drawTimeAxis(g, fm, x0, y0, w, h, fg);
+      y.draw(g, fm, x0, y0, w, h, fg, false);
+      if (y2 != null) {
+        y2.draw(g, fm, x0, y0, w, h, fg, true);
+      }
+      g.setColor(fg);
+      g.drawRect(x0, y0, w, h);
+
+      // Now draw the lines.
+      final Shape clip = g.getClip();
+      g.clipRect(x0, y0, w + 1, h + 1);
+      for (final Series s : series) {
+        s.draw(g, s.y2 ? y2 : y, x0, y0, w, h);
+      }
+      g.setClip(clip);
+
+      if (nseries == 0) {
+        final String msg = "No data";
+        g.setColor(fg);
+        g.drawString(msg, x0 + (w - fm.stringWidth(msg)) / 2,
+                     y0 + h / 10 + fm.getAscent());
+      } else if (params == null || !params.containsKey("key")
+                 || params.get("key") != null) {
+        drawKey(g, fm, series, x0, y0, w, h, fg);
+      }
+    } finally {
+      g.dispose();
+    }
+    if (!ImageIO.write(image, "png", out)) {
+      throw new IOException("No PNG writer available");
+    }
+    return npoints;
+  }
+
+  /** Returns the value of a plot parameter, or {@code null}.  */
+  private String param(final String name) {
+    return params == null ? null : params.get(name);
+  }
+
+  /** Draws a string rotated by -90 degrees, centered on the given point. */
+  private static void drawVertical(final Graphics2D g, final String s,
+                                   final int x, final int y) {
+    final AffineTransform saved = g.getTransform();
+    g.rotate(-Math.PI / 2, x, y);
+    g.drawString(s, x - g.getFontMetrics().stringWidth(s) / 2, y);
+    g.setTransform(saved);
+  }
+
+  /** Draws the tics, labels and grid of the X axis.  */
+  private void drawTimeAxis(final Graphics2D g, final FontMetrics fm,
+                            final int x0, final int y0,
+                            final int w, final int h, final Color fg) {
+    final long timespan = Math.max(end_time - start_time, 1);
+    final SimpleDateFormat format = new SimpleDateFormat(timeFormat(timespan));
+    format.setTimeZone(UTC);
+    final int label_width =
+      fm.stringWidth(format.format(new Date((end_time + utc_offset) * 1000)));
+    final long max_tics = Math.max(w / (label_width + PADDING * 2), 1);
+    int interval = TIME_INTERVALS[TIME_INTERVALS.length - 1];
+    for (final int candidate : TIME_INTERVALS) {
+      if (timespan / candidate <= max_tics) {
+        interval = candidate;
+        break;
+      }
+    }
+    // Align the tics on the interval in local time.
+    final long local_start = start_time + utc_offset;
+    long tic = (local_start + interval - 1) / interval * interval;
+    for (; tic <= end_time + utc_offset; tic += interval) {
+      final int x = x0 + (int) ((tic - local_start) * w / timespan);
+      g.setColor(Color.LIGHT_GRAY);
+      final Stroke stroke = g.getStroke();
+      g.setStroke(GRID_STROKE);
+      g.drawLine(x, y0, x, y0 + h);
+      g.setStroke(stroke);
+      g.setColor(fg);
+      g.drawLine(x, y0 + h, x, y0 + h - TIC_LENGTH);
+      final String label = format.format(new Date(tic * 1000));
+      g.drawString(label, x - fm.stringWidth(label) / 2,
+                   y0 + h + TIC_LENGTH + fm.getAscent());
+    }
+  }
+
+  /**
+   * Finds a sensible format for the X axis (time), like Gnuplot does.
+   * @param timespan The number of seconds covered by the graph.
+   * @return A {@link SimpleDateFormat} pattern.
+   */
+  private static String timeFormat(final long timespan) {
+    if (timespan < 2100) {  // 35m
+      return "HH:mm:ss";
+    } else if (timespan < 86400) {  // 1d
+      return "HH:mm";
+    } else if (timespan < 604800) {  // 1w
+      return "EEE HH:mm";
+    } else if (timespan < 1209600) {  // 2w
+      return "EEE dd HH:mm";
+    } else if (timespan < 7776000) {  // 90d
+      return "MMM dd";
+    } else {
+      return "yyyy/MM/dd";
+    }
+  }
+
+  /** Draws the key (legend) of the graph.  */
+  private void drawKey(final Graphics2D g, final FontMetrics fm,
+                       final Series[] series,
+                       final int x0, final int y0,
+                       final int w, final int h, final Color fg) {
+    final String key = param("key");
+    final HashSet<String> words = new HashSet<String>();
+    if (key == null) {
+      words.add("box");  // Default: "set key right box".
+    } else {
+      words.addAll(Arrays.asList(key.trim().split("\\s+")));
+    }
+    final int sample_width = 20;
+    int text_width = 0;
+    for (final Series s : series) {
+      text_width = Math.max(text_width, fm.stringWidth(s.title));
+    }
+    final int line_height = fm.getHeight();
+    final int key_width = PADDING + sample_width + PADDING + text_width
+      + PADDING;
+    final int key_height = PADDING + series.length * line_height;
+    final int x;
+    if (words.contains("left")) {
+      x = x0 + PADDING;
+    } else if (words.contains("right") || !words.contains("center")) {
+      x = x0 + w - key_width - PADDING;
+    } else {
+      x = x0 + (w - key_width) / 2;
+    }
+    final int y;
+    if (words.contains("bottom")) {
+      y = y0 + h - key_height - PADDING;
+    } else if (words.contains("top") || !words.contains("center")) {
+      y = y0 + PADDING;
+    } else {
+      y = y0 + (h - key_height) / 2;
+    }
+    if (words.contains("box")) {
+      g.setColor(fg);
+      g.drawRect(x, y, key_width, key_height);
+    }
+    int line_y = y + PADDING / 2;
+    for (final Series s : series) {
+      g.setColor(fg);
+      // Gnuplot right-aligns the titles in the key.
+      g.drawString(s.title, x + PADDING + text_width - fm.stringWidth(s.title),
+                   line_y + fm.getAscent());
+      g.setColor(s.color);
+      final int sample_x = x + PADDING + text_width + PADDING;
+      final int sample_y = line_y + line_height / 2;
+      g.drawLine(sample_x, sample_y, sample_x + sample_width, sample_y);
+      line_y += line_height;
+    }
+  }
+
+  /**
+   * Parses a Gnuplot range such as {@code [0:100]} or {@code [:10]}.
+   * @return The min and max (either can be NaN if it's not specified), or
+   * {@code null} if the range couldn't be parsed.
+   */
+  static double[] parseRange(final String range) {
+    final String s = range.trim();
+    final int colon = s.indexOf(':');
+    if (s.length() < 3 || s.charAt(0) != '[' || s.charAt(s.length() - 1) != ']'
+        || colon < 0) {
+      return null;
+    }
+    try {
+      return new double[] {
+        parseBound(s.substring(1, colon)),
+        parseBound(s.substring(colon + 1, s.length() - 1)),
+      };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Parses one side of a Gnuplot range, returns NaN if unspecified. */
+  private static double parseBound(String bound) {
+    bound = bound.trim();
+    if (bound.isEmpty() || "*".equals(bound)) {
+      return Double.NaN;
+    }
+    final double value = Double.parseDouble(bound);
+    if (value != value || Double.isInfinite(value)) {
+      throw new NumberFormatException("Invalid bound: " + bound);
+    }
+    return value;
+  }
+
+  /**
+   * Parses a Gnuplot color such as {@code xFF0000}.
+   * @return The color, or {@code null} if it couldn't be parsed.
+   */
+  static Color parseColor(final String color) {
+    if (color.length() != 7 || color.charAt(0) != 'x') {
+      return null;
+    }
+    try {
+      return new Color(Integer.parseInt(color.substring(1), 16));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Removes the double quotes and JSON-style escaping that
+   * {@code GraphHandler} puts around labels.
+   */
+  static String unquote(final String s) {
+    if (s == null) {
+      return null;
+    } else if (s.length() < 2 || s.charAt(0) != '"'
+               || s.charAt(s.length() - 1) != '"') {
+      return s;
+    }
+    final StringBuilder buf = new StringBuilder(s.length());
+    for (int i = 1; i < s.length() - 1; i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length() - 1) {
+        c = s.charAt(++i);
+        switch (c) {
+          case 'n': c = '\n'; break;
+          case 't': c = '\t'; break;
+          case 'r': c = '\r'; break;
+          case 'b': c = '\b'; break;
+          case 'f': c = '\f'; break;
+          case 'u':
+            if (i + 4 < s.length() - 1) {
+              c = (char) Integer.parseInt(s.substring(i + 1, i + 5), 16);
+              i += 4;
+            }
+            break;
+        }
+      }
+      buf.append(c);
+    }
+    return buf.toString();
+  }
+
+  /** Formats the value of a tic given the interval between tics. */
+  static String formatTic(final double value, final double step) {
+    if (Math.abs(value) < step / 1e6) {
+      return "0";  // Avoid things like "-0" or "1.2e-17".
+    }
+    final double abs = Math.abs(value);
+    if (abs >= 1e9 || abs < 1e-4) {
+      return String.format("%.3g", value);
+    }
+    final int decimals = (int) Math.max(0, -Math.floor(Math.log10(step)));
+    return String.format("%." + decimals + "f", value);
+  }
+
+  /** The data points of one series, copied in arrays.  */
+  private final class Series {
+
+    final String title;
+    final Color color;
+    final boolean y2;
+    final long[] timestamps;
+    final double[] values;
+    /** Number of data points within the time range of the graph.  */
+    int npoints;
+
+    Series(final DataPoints dps, final int index, final String opts) {
+      title = dps.metricName() + dps.getTags();
+      color = PALETTE[index % PALETTE.length];
+      y2 = opts.contains("x1y2");
+      long[] timestamps = new long[Math.max(dps.size(), 16)];
+      double[] values = new double[timestamps.length];
+      int n = 0;
+      for (final DataPoint d : dps) {
+        final long ts = d.timestamp();
+        if (ts >= start_time && ts <= end_time) {
+          npoints++;
+        }
+        final double value = d.toDouble();
+        if (value != value || Double.isInfinite(value)) {
+          throw new IllegalStateException("NaN or Infinity found in"
+              + " datapoints #" + index + ": " + value + " d=" + d);
+        }
+        if (n == timestamps.length) {
+          timestamps = Arrays.copyOf(timestamps, n * 2);
+          values = Arrays.copyOf(values, n * 2);
+        }
+        timestamps[n] = ts;
+        values[n] = value;
+        n++;
+      }
+      this.timestamps = Arrays.copyOf(timestamps, n);
+      this.values = Arrays.copyOf(values, n);
+    }
+
+    /** Draws this series in the given plot area.  */
+    void draw(final Graphics2D g, final Axis axis,
+              final int x0, final int y0, final int w, final int h) {
+      final long timespan = Math.max(end_time - start_time, 1);
+      final GeneralPath path = new GeneralPath();
+      boolean pen_down = false;
+      for (int i = 0; i < timestamps.length; i++) {
+        final float x = x0 + (float) (timestamps[i] - start_time) * w / timespan;
+        final double y = axis.toPixel(values[i], y0, h);
+        if (y != y) {  // Can't be plotted (e.g. <= 0 on a log scale).
+          pen_down = false;
+          continue;
+        }
+        if (pen_down) {
+          path.lineTo(x, (float) y);
+        } else {
+          path.moveTo(x, (float) y);
+          pen_down = true;
+        }
+      }
+      g.setColor(color);
+      g.draw(path);
+      // Like Gnuplot's "linespoints" style, but only when there are few
+      // enough points for the markers to be distinguishable.
+      if (timestamps.length > 0 && timestamps.length < w / 8) {
+        for (int i = 0; i < timestamps.length; i++) {
+          final int x = x0 + (int) ((timestamps[i] - start_time) * w / timespan);
+          final double y = axis.toPixel(values[i], y0, h);
+          if (y == y) {
+            g.drawRect(x - 2, (int) y - 2, 4, 4);
+          }
+        }
+      }
+    }
+
+  }
+
+  /** A Y axis.  */
+  private final class Axis {
+
+    final boolean log;
+    /** Bounds of the axis (log10 of the bounds on a log scale).  */
+    final double min;
+    final double max;
+    /** Interval between two tics (in decades on a log scale).  */
+    final double step;
+
+    Axis(final Series[] series, final boolean y2,
+         final String range_param, final String log_param) {
+      log = params != null && params.containsKey(log_param);
+      double lo = Double.POSITIVE_INFINITY;
+      double hi = Double.NEGATIVE_INFINITY;
+      for (final Series s : series) {
+        if (s.y2 != y2) {
+          continue;
+        }
+        for (final double value : s.values) {
+          if (log && value <= 0) {
+            continue;
+          }
+          lo = Math.min(lo, value);
+          hi = Math.max(hi, value);
+        }
+      }
+      if (lo > hi) {  // No data, use the same range as Gnuplot.
+        lo = log ? 1 : 0;
+        hi = 10;
+      }
+      final String range = param(range_param);
+      final double[] fixed = range == null ? null : parseRange(range);
+      final boolean fixed_min = fixed != null && fixed[0] == fixed[0]
+        && (!log || fixed[0] > 0);
+      final boolean fixed_max = fixed != null && fixed[1] == fixed[1]
+        && (!log || fixed[1] > 0);
+      if (fixed_min) {
+        lo = fixed[0];
+      }
+      if (fixed_max) {
+        hi = fixed[1];
+      }
+      if (log) {
+        lo = Math.log10(lo);
+        hi = Math.log10(hi);
+      }
+      if (lo >= hi) {
+        if (fixed_min && !fixed_max) {
+          hi = lo + 1;
+        } else {
+          lo = hi - 1;
+        }
+      }
+      if (log) {
+        step = Math.max(1, Math.ceil((hi - lo) / maxTics()));
+      } else {
+        step = niceStep((hi - lo) / maxTics());
+      }
+      // Like Gnuplot, extend autoscaled bounds to the next tic.
+      min = fixed_min ? lo : Math.floor(lo / step) * step;
+      max = fixed_max ? hi : Math.ceil(hi / step) * step;
+    }
+
+    /** Returns the maximum number of tics we can fit on this axis.  */
+    private int maxTics() {
+      return Math.max(2, height / Y_TIC_SPACING);
+    }
+
+    /** Rounds up an interval to 1, 2 or 5 times a power of 10. */
+    private double niceStep(final double raw) {
+      final double magnitude = Math.pow(10, Math.floor(Math.log10(raw)));
+      final double fraction = raw / magnitude;
+      if (fraction <= 1) {
+        return magnitude;
+      } else if (fraction <= 2) {
+        return 2 * magnitude;
+      } else if (fraction <= 5) {
+        return 5 * magnitude;
+      }
+      return 10 * magnitude;
+    }
+
+    /**
+     * Converts a value to a vertical pixel coordinate.
+     * @return NaN if the value can't be plotted on this axis.
+     */
+    double toPixel(double value, final int y0, final int h) {
+      if (log) {
+        if (value <= 0) {
+          return Double.NaN;
+        }
+        value = Math.log10(value);
+      }
+      return y0 + h - (value - min) * h / (max - min);
+    }
+
+    /** Returns the labels of the tics of this axis, from bottom to top. */
+    private ArrayList<String> labels() {
+      final ArrayList<String> labels = new ArrayList<String>();
+      final double first = Math.ceil(min / step - 1e-9) * step;
+      for (double tic = first; tic <= max + step * 1e-9; tic += step) {
+        labels.add(log ? formatTic(Math.pow(10, tic), Math.pow(10, tic))
+                   : formatTic(tic, step));
+      }
+      return labels;
+    }
+
+    /** Returns the width of the widest tic label.  */
+    int maxLabelWidth(final FontMetrics fm) {
+      int max_width = 0;
+      for (final String label : labels()) {
+        max_width = Math.max(max_width, fm.stringWidth(label));
+      }
+      return max_width;
+    }
+
+    /** Draws the tics, labels and grid of this axis.  */
+    void draw(final Graphics2D g, final FontMetrics fm,
+              final int x0, final int y0, final int w, final int h,
+              final Color fg, final boolean right) {
+      final ArrayList<String> labels = labels();
+      final double first = Math.ceil(min / step - 1e-9) * step;
+      for (int i = 0; i < labels.size(); i++) {
+        final double tic = first + i * step;
+        final int y = y0 + h - (int) Math.round((tic - min) * h / (max - min));
+        final String label = labels.get(i);
+        if (!right) {  // The grid follows the first Y axis only.
+          g.setColor(Color.LIGHT_GRAY);
+          final Stroke stroke = g.getStroke();
+          g.setStroke(GRID_STROKE);
+          g.drawLine(x0, y, x0 + w, y);
+          g.setStroke(stroke);
+        }
+        g.setColor(fg);
+        final int label_y = y + fm.getAscent() / 2 - 1;
+        if (right) {
+          g.drawLine(x0 + w, y, x0 + w - TIC_LENGTH, y);
+          g.drawString(label, x0 + w + TIC_LENGTH, label_y);
+        } else {
+          g.drawLine(x0, y, x0 + TIC_LENGTH, y);
+          g.drawString(label, x0 - TIC_LENGTH - fm.stringWidth(label),
+                       label_y);
+        }
+      }
+    }
+
+  }
+
+}
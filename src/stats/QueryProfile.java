@@ -0,0 +1,162 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Breakdown of where the time went while serving a single query.
+ * <p>
+ * A profile accumulates the wall time spent in named stages (e.g. "scan",
+ * "compact", "gnuplot") as well as named counters (e.g. "rows", "kvs").
+ * Stages and counters are reported in the order in which they were first
+ * recorded.  Recording the same stage or counter multiple times adds up
+ * the values, which is what we want when a request runs multiple queries.
+ * <p>
+ * This class is thread-safe, but it's meant to be used by one request at a
+ * time, so there's no contention.
+ * @since 1.2
+ */
+public final class QueryProfile {
+
+  /** When this profile was created, in nanoseconds.  */
+  private final long start_time = System.nanoTime();
+
+  /** Maps a stage name to the time spent in it, in nanoseconds.  */
+  private final LinkedHashMap<String, Long> stages =
+    new LinkedHashMap<String, Long>();
+
+  /** Maps a counter name to its value.  */
+  private final LinkedHashMap<String, Long> counts =
+    new LinkedHashMap<String, Long>();
+
+  /**
+   * Adds some time to a stage.
+   * @param stage The name of the stage.
+   * @param nanos Number of nanoseconds to add to it.
+   */
+  public synchronized void addTime(final String stage, final long nanos) {
+    final Long prev = stages.get(stage);
+    stages.put(stage, prev == null ? nanos : prev + nanos);
+  }
+
+  /**
+   * Adds the time elapsed since the given time to a stage.
+   * @param stage The name of the stage.
+   * @param start_time A value previously returned by
+   * {@link System#nanoTime}.
+   */
+  public void addTimeSince(final String stage, final long start_time) {
+    addTime(stage, System.nanoTime() - start_time);
+  }
+
+  /**
+   * Increments a counter.
+   * @param counter The name of the counter.
+   * @param n The amount by which to increment it.
+   */
+  public synchronized void incrementCount(final String counter,
+                                          final long n) {
+    final Long prev = counts.get(counter);
+    counts.put(counter, prev == null ? n : prev + n);
+  }
+
+  /**
+   * Returns the time spent in a stage, in nanoseconds.
+   * @param stage The name of the stage.
+   * @return 0 if nothing was recorded for this stage.
+   */
+  public synchronized long getTime(final String stage) {
+    final Long nanos = stages.get(stage);
+    return nanos == null ? 0 : nanos;
+  }
+
+  /**
+   * Returns the value of a counter.
+   * @param counter The name of the counter.
+   * @return 0 if nothing was recorded for this counter.
+   */
+  public synchronized long getCount(final String counter) {
+    final Long n = counts.get(counter);
+    return n == null ? 0 : n;
+  }
+
+  /** Returns the number of milliseconds elapsed since this profile was created. */
+  public long elapsedMillis() {
+    return (System.nanoTime() - start_time) / 1000000;
+  }
+
+  /**
+   * Appends this profile as a JSON object to the given buffer.
+   * Times are in milliseconds, with a microsecond precision.
+   * Stage and counter names are expected to not need any escaping.
+   * @param buf The buffer to which to append the JSON.
+   */
+  public synchronized void toJson(final StringBuilder buf) {
+    buf.append("{\"stages\":{");
+    for (final Map.Entry<String, Long> entry : stages.entrySet()) {
+      buf.append('"').append(entry.getKey()).append("\":");
+      appendMillis(buf, entry.getValue());
+      buf.append(',');
+    }
+    endObject(buf, stages.isEmpty());
+    buf.append(",\"counts\":{");
+    for (final Map.Entry<String, Long> entry : counts.entrySet()) {
+      buf.append('"').append(entry.getKey()).append("\":")
+        .append(entry.getValue().longValue()).append(',');
+    }
+    endObject(buf, counts.isEmpty());
+    buf.append(",\"total\":").append(elapsedMillis()).append('}');
+  }
+
+  /** Closes a JSON object whose last entry may be followed by a comma.  */
+  private static void endObject(final StringBuilder buf, final boolean empty) {
+    if (empty) {
+      buf.append('}');
+    } else {
+      buf.setCharAt(buf.length() - 1, '}');
+    }
+  }
+
+  /** Appends a number of nanoseconds as milliseconds with 3 decimals.  */
+  private static void appendMillis(final StringBuilder buf, final long nanos) {
+    final long micros = nanos / 1000;
+    buf.append(micros / 1000).append('.');
+    final long frac = micros % 1000;
+    if (frac < 100) {
+      buf.append('0');
+    }
+    if (frac < 10) {
+      buf.append('0');
+    }
+    buf.append(frac);
+  }
+
+  public synchronized String toString() {
+    final StringBuilder buf = new StringBuilder(64 + 24 * (stages.size()
+                                                           + counts.size()));
+    buf.append("QueryProfile(total=").append(elapsedMillis()).append("ms");
+    for (final Map.Entry<String, Long> entry : stages.entrySet()) {
+      buf.append(", ").append(entry.getKey()).append('=');
+      appendMillis(buf, entry.getValue());
+      buf.append("ms");
+    }
+    for (final Map.Entry<String, Long> entry : counts.entrySet()) {
+      buf.append(", ").append(entry.getKey()).append('=')
+        .append(entry.getValue().longValue());
+    }
+    return buf.append(')').toString();
+  }
+
+}
@@ -37,6 +37,9 @@ final class CliOptions {
     argp.addOption("--uidtable", "TABLE",
                    "Name of the HBase table to use for Unique IDs"
                    + " (default: tsdb-uid).");
+    argp.addOption("--tagindex-table", "TABLE",
+                   "Name of the HBase table where to maintain the tag index"
+                   + " (default: no tag index).");
     argp.addOption("--zkquorum", "SPEC",
                    "Specification of the ZooKeeper quorum to use"
                    + " (default: localhost).");
@@ -96,6 +99,10 @@ final class CliOptions {
     if (argp.optionExists("--auto-metric") && argp.has("--auto-metric")) {
       System.setProperty("tsd.core.auto_create_metrics", "true");
     }
+    if (argp.has("--tagindex-table")) {
+      System.setProperty("tsd.core.tagindex_table",
+                         argp.get("--tagindex-table"));
+    }
     final String zkq = argp.get("--zkquorum", "localhost");
     if (argp.has("--zkbasedir")) {
       return new HBaseClient(zkq, argp.get("--zkbasedir"));
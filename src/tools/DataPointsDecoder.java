@@ -0,0 +1,294 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.BinaryFormat;
+
+/**
+ * Decodes the binary results of {@code /q} queries.
+ * <p>
+ * The binary format is requested with the {@code binary} query string
+ * parameter or with an {@code Accept} header of
+ * {@link BinaryFormat#MIME_TYPE}.  It starts with the 4 bytes of
+ * {@link BinaryFormat#MAGIC}, followed by a version byte, followed by a
+ * sequence of records that each start with a type byte:
+ * <ul>
+ * <li>{@link BinaryFormat#SERIES}: the metric name, the number of tags
+ * (2 bytes), the name and value of each tag, the number of aggregated tags
+ * (2 bytes) and the name of each aggregated tag.  Strings are encoded as
+ * their length in bytes (2 bytes) followed by their UTF-8 encoding.</li>
+ * <li>{@link BinaryFormat#BLOCK}: data points of the last series.  A base
+ * timestamp (4 bytes), the number of data points (2 bytes), then each data
+ * point as a 2-byte qualifier and its value.  Like in HBase, the qualifier
+ * is the number of seconds since the base timestamp shifted left by 4
+ * bits, and the 4 low bits are flags: 0x8 is set for floating point
+ * values, and 0x7 is the length of the value in bytes minus one.  Integers
+ * are stored on 1, 2, 4 or 8 bytes, floating point values on 4 or 8 bytes
+ * (IEEE 754).</li>
+ * <li>{@link BinaryFormat#END}: marks the end of the result.  If it's
+ * missing, the result was truncated.</li>
+ * </ul>
+ * All the numbers are big endian.
+ * <p>
+ * Usage:
+ * <pre>
+ * final DataPointsDecoder decoder = new DataPointsDecoder(in);
+ * while (decoder.nextSeries()) {
+ *   // use decoder.metricName(), decoder.getTags()...
+ *   while (decoder.nextDataPoint()) {
+ *     // use decoder.timestamp(), decoder.longValue()...
+ *   }
+ * }
+ * </pre>
+ * This class is not thread-safe.
+ * @since 1.2
+ */
+public final class DataPointsDecoder {
+
+  private final DataInputStream in;
+
+  /** Type of the next record, if we already read it, -1 otherwise. */
+  private int next_record = -1;
+
+  private String metric;
+  private Map<String, String> tags;
+  private List<String> aggregated_tags;
+
+  /** Number of data points left to read in the current block. */
+  private int remaining;
+  /** Base timestamp of the current block. */
+  private long base_time;
+
+  private long timestamp;
+  private boolean integer;
+  /** Either a long or the raw bits of a double. */
+  private long value;
+
+  /**
+   * Constructor.
+   * @param in Where to read the binary result from.
+   * @throws IOException if the stream couldn't be read or doesn't start with
+   * the header of a binary result.
+   */
+  public DataPointsDecoder(final InputStream in) throws IOException {
+    this.in = new DataInputStream(in);
+    final byte[] magic = new byte[BinaryFormat.MAGIC.length];
+    this.in.readFully(magic);
+    if (!Arrays.equals(magic, BinaryFormat.MAGIC)) {
+      throw new IOException("Not a binary result, bad magic: "
+                            + Arrays.toString(magic));
+    }
+    final byte version = this.in.readByte();
+    if (version != BinaryFormat.VERSION) {
+      throw new IOException("Unsupported version: " + version);
+    }
+  }
+
+  /**
+   * Moves on to the next series, skipping whatever data points are left in
+   * the current series.
+   * @return {@code false} if there are no more series.
+   * @throws IOException if the stream couldn't be read or is corrupted.
+   */
+  public boolean nextSeries() throws IOException {
+    while (nextDataPoint()) {
+      // Skip the data points of the current series.
+    }
+    final int type = peekRecordType();
+    if (type == BinaryFormat.END) {
+      return false;
+    } else if (type != BinaryFormat.SERIES) {
+      throw new IOException("Unexpected record type: " + type);
+    }
+    next_record = -1;
+    metric = readString();
+    int n = in.readUnsignedShort();
+    tags = new HashMap<String, String>(n);
+    for (int i = 0; i < n; i++) {
+      final String name = readString();
+      tags.put(name, readString());
+    }
+    n = in.readUnsignedShort();
+    aggregated_tags = new ArrayList<String>(n);
+    for (int i = 0; i < n; i++) {
+      aggregated_tags.add(readString());
+    }
+    return true;
+  }
+
+  /**
+   * Moves on to the next data point of the current series.
+   * @return {@code false} if there are no more data points in this series.
+   * @throws IOException if the stream couldn't be read or is corrupted.
+   */
+  public boolean nextDataPoint() throws IOException {
+    while (remaining == 0) {
+      if (peekRecordType() != BinaryFormat.BLOCK) {
+        return false;  // Leave the record for nextSeries().
+      }
+      next_record = -1;
+      base_time = in.readInt() & 0xFFFFFFFFL;
+      remaining = in.readUnsignedShort();
+    }
+    final int qualifier = in.readUnsignedShort();
+    timestamp = base_time + (qualifier >>> BinaryFormat.FLAG_BITS);
+    integer = (qualifier & BinaryFormat.FLAG_FLOAT) == 0;
+    final int length = (qualifier & BinaryFormat.LENGTH_MASK) + 1;
+    if (integer) {
+      switch (length) {
+        case 1: value = in.readByte(); break;
+        case 2: value = in.readShort(); break;
+        case 4: value = in.readInt(); break;
+        case 8: value = in.readLong(); break;
+        default: throw new IOException("Invalid integer length: " + length
+                                       + ", qualifier=" + qualifier);
+      }
+    } else {
+      switch (length) {
+        case 4:
+          value = Double.doubleToRawLongBits(Float.intBitsToFloat(in.readInt()));
+          break;
+        case 8: value = in.readLong(); break;
+        default: throw new IOException("Invalid float length: " + length
+                                       + ", qualifier=" + qualifier);
+      }
+    }
+    remaining--;
+    return true;
+  }
+
+  /** Returns the metric name of the current series.  */
+  public String metricName() {
+    return metric;
+  }
+
+  /** Returns the tags of the current series.  */
+  public Map<String, String> getTags() {
+    return Collections.unmodifiableMap(tags);
+  }
+
+  /** Returns the tags that were aggregated in the current series.  */
+  public List<String> getAggregatedTags() {
+    return Collections.unmodifiableList(aggregated_tags);
+  }
+
+  /** Returns the timestamp (in seconds) of the current data point.  */
+  public long timestamp() {
+    return timestamp;
+  }
+
+  /** Returns {@code true} if the current data point is an integer.  */
+  public boolean isInteger() {
+    return integer;
+  }
+
+  /**
+   * Returns the value of the current data point.
+   * @throws ClassCastException if the value isn't an integer.
+   */
+  public long longValue() {
+    if (!integer) {
+      throw new ClassCastException("value @" + timestamp + " is not a long");
+    }
+    return value;
+  }
+
+  /**
+   * Returns the value of the current data point.
+   * @throws ClassCastException if the value is an integer.
+   */
+  public double doubleValue() {
+    if (integer) {
+      throw new ClassCastException("value @" + timestamp + " is not a float");
+    }
+    return Double.longBitsToDouble(value);
+  }
+
+  /** Returns the type of the next record, without consuming it.  */
+  private int peekRecordType() throws IOException {
+    if (next_record < 0) {
+      next_record = in.read();
+      if (next_record < 0) {
+        throw new EOFException("Truncated result, no end marker");
+      }
+    }
+    return next_record;
+  }
+
+  private String readString() throws IOException {
+    final byte[] b = new byte[in.readUnsignedShort()];
+    in.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  /**
+   * Prints a binary result in the same format as {@code /q?ascii}.
+   * The binary result is read from the URL given in argument, or from the
+   * standard input.
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length > 1) {
+      System.err.println("Usage: DataPointsDecoder [URL]");
+      System.exit(1);
+    }
+    final InputStream in;
+    if (args.length == 1) {
+      final URLConnection conn = new URL(args[0]).openConnection();
+      conn.setRequestProperty("Accept", BinaryFormat.MIME_TYPE);
+      in = conn.getInputStream();
+    } else {
+      in = System.in;
+    }
+    try {
+      final DataPointsDecoder decoder =
+        new DataPointsDecoder(new BufferedInputStream(in));
+      final StringBuilder buf = new StringBuilder();
+      while (decoder.nextSeries()) {
+        final StringBuilder tagbuf = new StringBuilder();
+        for (final Map.Entry<String, String> tag
+             : decoder.getTags().entrySet()) {
+          tagbuf.append(' ').append(tag.getKey())
+            .append('=').append(tag.getValue());
+        }
+        while (decoder.nextDataPoint()) {
+          buf.setLength(0);
+          buf.append(decoder.metricName()).append(' ')
+            .append(decoder.timestamp()).append(' ');
+          if (decoder.isInteger()) {
+            buf.append(decoder.longValue());
+          } else {
+            buf.append(decoder.doubleValue());
+          }
+          System.out.println(buf.append(tagbuf));
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -13,10 +13,14 @@
 package net.opentsdb.tools;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.concurrent.Executors;
 
+import com.stumbleupon.async.Deferred;
+
 import org.jboss.netty.channel.socket.ServerSocketChannelFactory;
 import org.jboss.netty.channel.socket.oio.OioServerSocketChannelFactory;
 import org.slf4j.Logger;
@@ -88,6 +92,11 @@ final class TSDMain {
     } catch (Exception e) {
       log.warn("Failed to close stdin", e);
     }
+    // Some graphs are rendered in the JVM, we never want to talk to an X
+    // server for that.
+    if (System.getProperty("java.awt.headless") == null) {
+      System.setProperty("java.awt.headless", "true");
+    }
 
     final ArgP argp = new ArgP();
     CliOptions.addCommon(argp);
@@ -145,10 +154,19 @@ final class TSDMain {
       final String uidtable = argp.get("--uidtable", "tsdb-uid");
       client.ensureTableExists(table).joinUninterruptibly();
       client.ensureTableExists(uidtable).joinUninterruptibly();
+      if (argp.has("--tagindex-table")) {
+        client.ensureTableExists(argp.get("--tagindex-table"))
+          .joinUninterruptibly();
+      }
 
       client.setFlushInterval(flush_interval);
       final TSDB tsdb = new TSDB(client, table, uidtable);
       registerShutdownHook(tsdb);
+      loadUidCaches(tsdb);
+      if (!"false".equals(System.getProperty("tsd.core.suggest_index"))) {
+        // Done in the background, /suggest scans HBase until it's done.
+        tsdb.loadSuggestIndexes();
+      }
       final ServerBootstrap server = new ServerBootstrap(factory);
 
       server.setPipelineFactory(new PipelineFactory(tsdb));
@@ -196,12 +214,75 @@ final class TSDMain {
     return flush_interval;
   }
 
+  /**
+   * Fills the UID caches before we start serving, if configured to do so.
+   * <p>
+   * If {@code tsd.core.uid.cache_snapshot} names a directory, the caches
+   * are loaded from the snapshots saved there by the previous run, unless
+   * they're older than {@code tsd.core.uid.cache_snapshot_max_age} seconds
+   * (a day by default).  If {@code tsd.core.uid.warm_cache_splits} is
+   * positive, the caches are also warmed up with a parallel scan of the UID
+   * table: we wait for it when there was no snapshot, otherwise it runs in
+   * the background to pick up the names assigned since the snapshot was
+   * saved and to replace the mappings renamed since then.
+   */
+  private static void loadUidCaches(final TSDB tsdb) {
+    final Logger log = LoggerFactory.getLogger(TSDMain.class);
+    final String snapshot_dir =
+      System.getProperty("tsd.core.uid.cache_snapshot");
+    int loaded = 0;
+    if (snapshot_dir != null) {
+      final long start_time = System.currentTimeMillis();
+      try {
+        loaded = tsdb.loadUidCacheSnapshots(snapshot_dir,
+          Long.getLong("tsd.core.uid.cache_snapshot_max_age", 86400));
+        log.info("Loaded " + loaded + " UIDs from the snapshots in "
+                 + snapshot_dir + " in "
+                 + (System.currentTimeMillis() - start_time) + "ms");
+      } catch (IOException e) {
+        log.warn("Failed to load the UID cache snapshots", e);
+      }
+    }
+    final int splits =
+      Integer.getInteger("tsd.core.uid.warm_cache_splits", 0);
+    if (splits <= 0) {
+      return;
+    }
+    final Deferred<ArrayList<Object>> warmup = tsdb.warmUidCaches(splits);
+    if (loaded > 0) {
+      return;  // Errors are logged.
+    }
+    log.info("Warming up the UID caches before serving");
+    try {
+      warmup.joinUninterruptibly();
+    } catch (Exception e) {
+      return;  // Already logged, the caches will fill up as we go.
+    }
+    if (snapshot_dir != null) {
+      try {
+        tsdb.saveUidCacheSnapshots(snapshot_dir);
+      } catch (IOException e) {
+        log.warn("Failed to save the UID cache snapshots", e);
+      }
+    }
+  }
+
   private static void registerShutdownHook(final TSDB tsdb) {
     final class TSDBShutdown extends Thread {
       public TSDBShutdown() {
         super("TSDBShutdown");
       }
       public void run() {
+        final String snapshot_dir =
+          System.getProperty("tsd.core.uid.cache_snapshot");
+        if (snapshot_dir != null) {
+          try {
+            tsdb.saveUidCacheSnapshots(snapshot_dir);
+          } catch (Exception e) {
+            LoggerFactory.getLogger(TSDBShutdown.class)
+              .error("Failed to save the UID cache snapshots", e);
+          }
+        }
         try {
           tsdb.shutdown().join();
         } catch (Exception e) {
@@ -0,0 +1,146 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Deferred;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.Query;
+import net.opentsdb.core.TSDB;
+
+/**
+ * Tool to add the series that already exist in a TSDB to the tag index.
+ * <p>
+ * TSDs only index the series they write to, so this needs to be run once
+ * over the existing data after enabling the tag index.
+ */
+final class TagIndexBackfill {
+
+  private static final Logger LOG =
+    LoggerFactory.getLogger(TagIndexBackfill.class);
+
+  /** Name of the index table to use if none is specified.  */
+  private static final String DEFAULT_TAGINDEX_TABLE = "tsdb-tagidx";
+
+  /**
+   * Maximum number of series we index before waiting for the writes to
+   * complete, in order to avoid overwhelming HBase.
+   */
+  private static final int MAX_PENDING_WRITES = 1000;
+
+  /** Prints usage and exits with the given retval. */
+  private static void usage(final ArgP argp, final String errmsg,
+                            final int retval) {
+    System.err.println(errmsg);
+    System.err.println("Usage: tagidx"
+        + " [--tagindex-table=TABLE] START-DATE [END-DATE] query [queries...]\n"
+        + "Adds all the series matched by the queries to the tag index.\n"
+        + "To see the format in which queries should be written, see the help"
+        + " of the 'query' command.");
+    System.err.print(argp.usage());
+    System.exit(retval);
+  }
+
+  public static void main(String[] args) throws Exception {
+    ArgP argp = new ArgP();
+    CliOptions.addCommon(argp);
+    CliOptions.addVerbose(argp);
+    args = CliOptions.parse(argp, args);
+    if (args == null) {
+      usage(argp, "Invalid usage.", 1);
+    } else if (args.length < 3) {
+      usage(argp, "Not enough arguments.", 2);
+    }
+    if (!argp.has("--tagindex-table")) {
+      System.setProperty("tsd.core.tagindex_table", DEFAULT_TAGINDEX_TABLE);
+    }
+
+    final HBaseClient client = CliOptions.clientFromOptions(argp);
+    client.ensureTableExists(System.getProperty("tsd.core.tagindex_table"))
+      .joinUninterruptibly();
+    final TSDB tsdb = new TSDB(client, argp.get("--table", "tsdb"),
+                               argp.get("--uidtable", "tsdb-uid"));
+    argp = null;
+    int errors = 42;
+    try {
+      errors = backfill(tsdb, args);
+    } finally {
+      tsdb.shutdown().joinUninterruptibly();
+    }
+    System.exit(errors == 0 ? 0 : 1);
+  }
+
+  /**
+   * Indexes all the series matched by the given queries.
+   * @return The number of series we failed to index.
+   */
+  private static int backfill(final TSDB tsdb,
+                              final String[] args) throws Exception {
+    final ArrayList<Query> queries = new ArrayList<Query>();
+    CliQuery.parseCommandLineQuery(args, tsdb, queries, null, null);
+    int errors = 0;
+    final ArrayList<Deferred<Object>> pending =
+      new ArrayList<Deferred<Object>>(MAX_PENDING_WRITES);
+    for (final Query query : queries) {
+      final long start_time = System.nanoTime();
+      long rowcount = 0;
+      LOG.info("Starting to index series covered by " + query);
+      final Scanner scanner = Internal.getScanner(query);
+      ArrayList<ArrayList<KeyValue>> rows;
+      while ((rows = scanner.nextRows().joinUninterruptibly()) != null) {
+        for (final ArrayList<KeyValue> row : rows) {
+          rowcount++;
+          pending.add(Internal.indexSeries(tsdb, row.get(0).key()));
+          if (pending.size() >= MAX_PENDING_WRITES) {
+            errors += waitFor(pending);
+          }
+        }
+      }
+      errors += waitFor(pending);
+      final long timing = (System.nanoTime() - start_time) / 1000000;
+      LOG.info(rowcount + " rows indexed in " + timing + "ms ("
+               + (rowcount * 1000 / (timing == 0 ? 1 : timing)) + " rows/s)");
+    }
+    if (errors != 0) {
+      LOG.error(errors + " series couldn't be indexed, see errors above");
+    }
+    return errors;
+  }
+
+  /**
+   * Waits for the given writes to complete and clears the list.
+   * @return The number of writes that failed.
+   */
+  private static int waitFor(final ArrayList<Deferred<Object>> pending) {
+    int errors = 0;
+    for (final Deferred<Object> d : pending) {
+      try {
+        d.joinUninterruptibly();
+      } catch (Exception e) {
+        errors++;  // TagIndex already logged it.
+      }
+    }
+    pending.clear();
+    return errors;
+  }
+
+}
@@ -0,0 +1,761 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.HBaseException;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+
+/**
+ * Implements the {@code fsck} subcommand of {@link UidManager}.
+ * <p>
+ * The key space of the UID table is split in ranges which are scanned
+ * concurrently: ranges of IDs for the reverse mappings (up to the highest
+ * max ID), ranges of first characters for the forward mappings, and
+ * whatever is left in between.  The mappings of each kind are kept in
+ * arrays of primitive IDs, with the names stored back to back in a single
+ * byte array, rather than in maps of Strings, so that millions of them fit
+ * in memory.  Once everything has been scanned, the forward and reverse
+ * mappings are matched up.
+ * <p>
+ * Optionally, the inconsistencies that can be fixed safely are fixed, at a
+ * bounded rate to avoid hammering HBase: missing reverse mappings are
+ * created, and max IDs lower than IDs already assigned are raised.
+ */
+final class UidFsck {
+
+  private static final Logger LOG = LoggerFactory.getLogger(UidFsck.class);
+
+  /** How often to log the progress of the scans (in ms). */
+  private static final int PROGRESS_INTERVAL = 10000;
+
+  /** First character of valid names.  */
+  private static final int FIRST_NAME_CHAR = '!';
+  /** Last character of valid names.  */
+  private static final int LAST_NAME_CHAR = '~';
+
+  private final HBaseClient client;
+  private final byte[] table;
+  /** Number of bytes on which the UIDs should be. */
+  private final short idwidth;
+  /** Number of ranges of IDs, and of ranges of names, to scan. */
+  private final int splits;
+  /** Max number of fixes per second, 0 to only report problems. */
+  private final int fix_rate;
+
+  /** Number of KVs scanned so far, by all the ranges. */
+  private final AtomicLong kvcount = new AtomicLong();
+  /** Number of ranges entirely scanned. */
+  private final AtomicInteger ranges_done = new AtomicInteger();
+
+  /** When the next fix may be done (in nanoseconds). */
+  private long next_fix;
+
+  /**
+   * Constructor.
+   * @param client The HBase client to use.
+   * @param table The name of the HBase table to use.
+   * @param idwidth Number of bytes on which the UIDs should be.
+   * @param splits Number of ranges of IDs, and of ranges of names, to scan
+   * concurrently.
+   * @param fix_rate Max number of fixes per second, 0 to only report the
+   * inconsistencies found.
+   */
+  UidFsck(final HBaseClient client, final byte[] table, final short idwidth,
+          final int splits, final int fix_rate) {
+    if (splits < 1) {
+      throw new IllegalArgumentException("Invalid number of splits: "
+                                         + splits);
+    } else if (fix_rate < 0) {
+      throw new IllegalArgumentException("Negative fix rate: " + fix_rate);
+    }
+    this.client = client;
+    this.table = table;
+    this.idwidth = idwidth;
+    this.splits = splits;
+    this.fix_rate = fix_rate;
+  }
+
+  /**
+   * Runs the fsck.
+   * @return The exit status of the command (0 means success, or that all
+   * the errors found have been fixed).
+   */
+  int run() {
+    final long start_time = System.nanoTime();
+    final HashMap<String, Uids> kinds = readMaxIds();
+    long highest = 0;
+    for (final Uids uids : kinds.values()) {
+      highest = Math.max(highest, uids.maxid);
+    }
+
+    // Scan all the ranges concurrently.
+    final ArrayList<byte[]> boundaries = splitKeySpace(highest);
+    final ArrayList<RangeScan> scans = new ArrayList<RangeScan>();
+    final ArrayList<Deferred<Object>> done = new ArrayList<Deferred<Object>>();
+    for (int i = 0; i <= boundaries.size(); i++) {
+      final RangeScan scan = new RangeScan(
+        i == 0 ? null : boundaries.get(i - 1),
+        i == boundaries.size() ? null : boundaries.get(i));
+      scans.add(scan);
+      done.add(scan.start());
+    }
+    LOG.info("Scanning " + scans.size() + " ranges of the UID table");
+    final Deferred<ArrayList<Object>> all_done = Deferred.group(done);
+    while (true) {
+      try {
+        all_done.joinUninterruptibly(PROGRESS_INTERVAL);
+        break;
+      } catch (TimeoutException e) {
+        final long elapsed = (System.nanoTime() - start_time) / 1000000;
+        LOG.info("Progress: " + kvcount.get() + " KVs scanned in "
+                 + elapsed + "ms (~" + (kvcount.get() * 1000 / elapsed)
+                 + " KV/s), " + ranges_done.get() + '/' + scans.size()
+                 + " ranges done");
+      } catch (HBaseException e) {
+        LOG.error("Error while scanning HBase", e);
+        throw e;
+      } catch (Exception e) {
+        LOG.error("WTF?  Unexpected exception type", e);
+        throw new AssertionError("Should never happen");
+      }
+    }
+
+    // Merge what each range found.
+    for (final RangeScan scan : scans) {
+      for (final Uids found : scan.kinds.values()) {
+        Uids uids = kinds.get(found.kind);
+        if (uids == null) {
+          uids = new Uids(found.kind);
+          kinds.put(found.kind, uids);
+        }
+        uids.merge(found);
+      }
+      scan.kinds.clear();  // Free the memory as we go.
+    }
+    final long scan_time =
+      Math.max((System.nanoTime() - start_time) / 1000000, 1);
+    System.out.println(kvcount.get() + " KVs analyzed in " + scan_time
+                       + "ms (~" + (kvcount.get() * 1000 / scan_time)
+                       + " KV/s)");
+
+    int errors = 0;
+    int fixed = 0;
+    for (final Uids uids : kinds.values()) {
+      check(uids);
+      if (uids.errors > 0) {
+        LOG.error(uids.kind + ": Found " + uids.errors + " errors.");
+        errors += uids.errors;
+      }
+      fixed += fix(uids);
+    }
+    if (errors == 0) {
+      System.out.println("No errors found.");
+      return 0;
+    }
+    System.err.println(errors + " errors found, " + fixed + " fixed.");
+    return errors == fixed ? 0 : 1;
+  }
+
+  /**
+   * Reads the max ID of each kind.
+   * @return The UIDs of each kind, with only their max ID.
+   */
+  private HashMap<String, Uids> readMaxIds() {
+    final ArrayList<KeyValue> row;
+    try {
+      row = client.get(new GetRequest(table, UidManager.MAXID_ROW)
+                       .family(UidManager.ID_FAMILY)).joinUninterruptibly();
+    } catch (HBaseException e) {
+      LOG.error("Error while reading the max IDs", e);
+      throw e;
+    } catch (Exception e) {
+      LOG.error("WTF?  Unexpected exception type", e);
+      throw new AssertionError("Should never happen");
+    }
+    final HashMap<String, Uids> kinds = new HashMap<String, Uids>();
+    for (final KeyValue kv : row) {
+      final String kind = UidManager.fromBytes(kv.qualifier());
+      final Uids uids = new Uids(kind);
+      kinds.put(kind, uids);
+      if (kv.value().length != 8) {
+        uids.error(kv, "Invalid maximum ID for " + kind
+                   + ": should be on 8 bytes: ");
+      } else {
+        uids.maxid = Bytes.getLong(kv.value());
+        LOG.info("Maximum ID for " + kind + ": " + uids.maxid);
+      }
+    }
+    return kinds;
+  }
+
+  /**
+   * Splits the key space of the UID table.
+   * <p>
+   * Reverse mappings are keyed by ID, so [1, highest] is split in ranges of
+   * IDs.  Forward mappings are keyed by name, so the range of valid first
+   * characters is split too.  Together with what's before, between and
+   * after, the ranges cover the whole table.
+   * @param highest The highest max ID.
+   * @return The sorted boundaries between the ranges.
+   */
+  private ArrayList<byte[]> splitKeySpace(final long highest) {
+    final TreeSet<byte[]> boundaries = new TreeSet<byte[]>(Bytes.MEMCMP);
+    if (idwidth >= 8 || highest < (1L << (8 * idwidth))) {
+      for (int i = 0; i < splits; i++) {
+        boundaries.add(UidManager.idInBytes(idwidth,
+                                            1 + highest / splits * i));
+      }
+    }
+    final int nchars = LAST_NAME_CHAR - FIRST_NAME_CHAR + 1;
+    for (int i = 0; i <= splits; i++) {
+      boundaries.add(new byte[] {
+        (byte) (FIRST_NAME_CHAR + nchars * i / splits) });
+    }
+    return new ArrayList<byte[]>(boundaries);
+  }
+
+  /**
+   * Matches up the forward mappings with their reverse mappings and vice
+   * versa, and makes sure they agree.
+   */
+  private static void check(final Uids uids) {
+    final String kind = uids.kind;
+    final Mappings name2id = uids.name2id;
+    final Mappings id2name = uids.id2name;
+
+    // Look for forward mappings without the corresponding reverse mappings.
+    // These are harmful and shouldn't exist.
+    for (int e = 0; e < name2id.size(); e++) {
+      final long id = name2id.id(e);
+      final int r = id2name.find(id);
+      if (r < 0) {
+        uids.error("Forward " + kind + " mapping is missing reverse"
+                   + " mapping: " + name2id.name(e) + " -> " + id);
+        uids.missing_reverse.add(e);
+        continue;
+      }
+      if (!name2id.sameName(e, id2name, r)) {
+        final String name = name2id.name(e);
+        final String found = id2name.name(r);
+        uids.error("Forward " + kind + " mapping " + name + " -> " + id
+                   + " is different than reverse mapping: "
+                   + id + " -> " + found);
+        final int f = name2id.find(id2name, r);
+        if (f >= 0) {
+          uids.error("Inconsistent forward " + kind + " mapping "
+                     + name + " -> " + id
+                     + " vs " + name + " -> " + found
+                     + " / " + found + " -> " + name2id.id(f));
+        } else {
+          uids.error("Duplicate forward " + kind + " mapping "
+                     + name + " -> " + id
+                     + " and " + found + " -> " + id);
+        }
+      }
+    }
+
+    // Look for reverse mappings without the corresponding forward mappings.
+    // These are harmless but shouldn't frequently occur.
+    for (int e = 0; e < id2name.size(); e++) {
+      final long id = id2name.id(e);
+      final int f = name2id.find(id2name, e);
+      if (f < 0) {
+        LOG.warn("Reverse " + kind + " mapping is missing forward"
+                 + " mapping: " + id2name.name(e) + " -> " + id);
+        continue;
+      }
+      final long found = name2id.id(f);
+      if (found != id) {
+        final String name = id2name.name(e);
+        final int r = id2name.find(found);
+        if (r >= 0) {
+          uids.error("Inconsistent reverse " + kind + " mapping "
+                     + id + " -> " + name
+                     + " vs " + found + " -> " + name
+                     + " / " + id2name.name(r) + " -> " + found);
+        } else {
+          uids.error("Duplicate reverse " + kind + " mapping "
+                     + id + " -> " + name
+                     + " and " + found + " -> " + name);
+        }
+      }
+    }
+
+    final int maxsize = Math.max(id2name.size(), name2id.size());
+    if (uids.highest_id > uids.maxid) {
+      uids.error("We found " + kind + " IDs up to " + uids.highest_id
+                 + " but the max ID is only " + uids.maxid + "!  Future IDs"
+                 + " may be double-assigned!");
+      uids.maxid_too_low = true;
+    } else if (uids.maxid > maxsize) {
+      LOG.warn("Max ID for " + kind + " is " + uids.maxid + " but only "
+               + maxsize + " entries were found.  Maybe "
+               + (uids.maxid - maxsize) + " IDs were deleted?");
+    }
+  }
+
+  /**
+   * Fixes what can be fixed safely, if we were asked to.
+   * @return The number of errors fixed.
+   */
+  private int fix(final Uids uids) {
+    if (fix_rate == 0) {
+      return 0;
+    }
+    final byte[] kind = UidManager.toBytes(uids.kind);
+    int fixed = 0;
+    try {
+      // A forward mapping without reverse mapping is a UID that was
+      // assigned but that we can't resolve, so create the reverse mapping.
+      for (int i = 0; i < uids.missing_reverse.size(); i++) {
+        final int e = uids.missing_reverse.get(i);
+        final String name = uids.name2id.name(e);
+        final byte[] id = UidManager.idInBytes(uids.width,
+                                               uids.name2id.id(e));
+        throttle();
+        final PutRequest reverse_mapping = new PutRequest(
+          table, id, UidManager.NAME_FAMILY, kind, uids.name2id.nameBytes(e));
+        if (client.compareAndSet(reverse_mapping, HBaseClient.EMPTY_ARRAY)
+            .joinUninterruptibly()) {
+          LOG.info("Fixed: created reverse " + uids.kind + " mapping "
+                   + uids.name2id.id(e) + " -> " + name);
+          fixed++;
+        } else {
+          LOG.warn("Not fixed: reverse " + uids.kind + " mapping for "
+                   + uids.name2id.id(e) + " was created concurrently");
+        }
+      }
+      if (uids.maxid_too_low) {
+        throttle();
+        final long maxid = client.atomicIncrement(new AtomicIncrementRequest(
+          table, UidManager.MAXID_ROW, UidManager.ID_FAMILY, kind,
+          uids.highest_id - uids.maxid)).joinUninterruptibly();
+        LOG.info("Fixed: max ID for " + uids.kind + " is now " + maxid);
+        fixed++;
+      }
+    } catch (HBaseException e) {
+      LOG.error("Error while fixing the " + uids.kind + " UIDs", e);
+    } catch (Exception e) {
+      LOG.error("WTF?  Unexpected exception type", e);
+      throw new AssertionError("Should never happen");
+    }
+    return fixed;
+  }
+
+  /** Sleeps as needed to do no more than {@code fix_rate} fixes/s.  */
+  private void throttle() {
+    final long now = System.nanoTime();
+    if (next_fix > now) {
+      try {
+        Thread.sleep((next_fix - now) / 1000000,
+                     (int) ((next_fix - now) % 1000000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted while fixing UIDs", e);
+      }
+    }
+    next_fix = Math.max(now, next_fix) + 1000000000L / fix_rate;
+  }
+
+  /** Scans a range of the table and records what it finds.  */
+  private final class RangeScan
+    implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+
+    /** The UIDs found, by kind.  Only accessed by the scan's callbacks. */
+    final HashMap<String, Uids> kinds = new HashMap<String, Uids>();
+
+    private final Scanner scanner;
+
+    /**
+     * Constructor.
+     * @param start_key First key of the range, or {@code null}.
+     * @param stop_key End of the range (exclusive), or {@code null}.
+     */
+    RangeScan(final byte[] start_key, final byte[] stop_key) {
+      scanner = client.newScanner(table);
+      scanner.setMaxNumRows(1024);
+      if (start_key != null) {
+        scanner.setStartKey(start_key);
+      }
+      if (stop_key != null) {
+        scanner.setStopKey(stop_key);
+      }
+    }
+
+    /** Starts the scan, returns a deferred called back once done.  */
+    Deferred<Object> start() {
+      return scanner.nextRows().addCallback(this);
+    }
+
+    public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+      if (rows == null) {
+        ranges_done.incrementAndGet();
+        return null;
+      }
+      for (final ArrayList<KeyValue> row : rows) {
+        for (final KeyValue kv : row) {
+          kvcount.incrementAndGet();
+          if (!Bytes.equals(kv.key(), UidManager.MAXID_ROW)) {
+            add(kv);  // The max IDs have already been read.
+          }
+        }
+      }
+      return scanner.nextRows().addCallback(this);
+    }
+
+    private void add(final KeyValue kv) {
+      final String kind = UidManager.fromBytes(kv.qualifier());
+      Uids uids = kinds.get(kind);
+      if (uids == null) {
+        uids = new Uids(kind);
+        kinds.put(kind, uids);
+      }
+      final byte[] key = kv.key();
+      final byte[] family = kv.family();
+      final byte[] value = kv.value();
+      short idwidth = 0;
+      if (Bytes.equals(family, UidManager.ID_FAMILY)) {
+        idwidth = (short) value.length;
+        if (idwidth > 8) {
+          uids.error(kv, "Invalid " + kind + " ID of length " + idwidth);
+          return;
+        }
+        final long id = idToLong(value);
+        final int prev = uids.name2id.put(key, id);
+        if (prev >= 0) {
+          final String name = UidManager.fromBytes(key);
+          uids.error(kv, "Duplicate forward " + kind + " mapping: "
+                     + name + " -> " + uids.name2id.id(prev)
+                     + " and " + name + " -> " + id);
+        }
+        uids.highest_id = Math.max(uids.highest_id, id);
+      } else if (Bytes.equals(family, UidManager.NAME_FAMILY)) {
+        idwidth = (short) key.length;
+        if (idwidth > 8) {
+          uids.error(kv, "Invalid " + kind + " ID of length " + idwidth);
+          return;
+        }
+        final long id = idToLong(key);
+        final int prev = uids.id2name.put(value, id);
+        if (prev >= 0) {
+          uids.error(kv, "Duplicate reverse " + kind + " mapping: "
+                     + id + " -> " + uids.id2name.name(prev)
+                     + " and " + id + " -> " + UidManager.fromBytes(value));
+        }
+        uids.highest_id = Math.max(uids.highest_id, id);
+      }
+      if (uids.width == 0) {
+        uids.width = idwidth;
+      } else if (uids.width != idwidth) {
+        uids.error(kv, "Invalid " + kind + " ID of length " + idwidth
+                   + " (expected: " + uids.width + ')');
+      }
+    }
+
+    public String toString() {
+      return "fsck scan of " + scanner;
+    }
+
+  }
+
+  /** Everything we know about the UIDs of a given kind.  */
+  private static final class Uids {
+
+    final String kind;
+    int errors;
+    long maxid;
+    short width;
+    /** Highest ID found in a mapping. */
+    long highest_id;
+    final Mappings name2id = new Mappings(false);
+    final Mappings id2name = new Mappings(true);
+
+    /** Forward mappings (entries of name2id) missing a reverse mapping. */
+    final IntList missing_reverse = new IntList();
+    /** Whether the max ID is lower than IDs already assigned. */
+    boolean maxid_too_low;
+
+    Uids(final String kind) {
+      this.kind = kind;
+    }
+
+    void error(final KeyValue kv, final String msg) {
+      error(msg + ".  kv=" + kv);
+    }
+
+    void error(final String msg) {
+      LOG.error(msg);
+      errors++;
+    }
+
+    /** Adds the mappings found in another range.  */
+    void merge(final Uids other) {
+      errors += other.errors;
+      highest_id = Math.max(highest_id, other.highest_id);
+      if (width == 0) {
+        width = other.width;
+      } else if (other.width != 0 && other.width != width) {
+        error("Invalid " + kind + " ID of length " + other.width
+              + " (expected: " + width + ')');
+      }
+      for (int e = 0; e < other.name2id.size(); e++) {
+        final int prev = name2id.put(other.name2id, e);
+        if (prev >= 0) {
+          final String name = other.name2id.name(e);
+          error("Duplicate forward " + kind + " mapping: "
+                + name + " -> " + name2id.id(prev)
+                + " and " + name + " -> " + other.name2id.id(e));
+        }
+      }
+      for (int e = 0; e < other.id2name.size(); e++) {
+        final int prev = id2name.put(other.id2name, e);
+        if (prev >= 0) {
+          final long id = other.id2name.id(e);
+          error("Duplicate reverse " + kind + " mapping: "
+                + id + " -> " + id2name.name(prev)
+                + " and " + id + " -> " + other.id2name.name(e));
+        }
+      }
+    }
+
+  }
+
+  /**
+   * Name/ID pairs indexed either by name or by ID.
+   * <p>
+   * The IDs are stored in an array of primitive longs, and the names are
+   * stored back to back in a single byte array, with the offset at which
+   * each name starts in an array of ints.  The pairs are indexed by an
+   * open-addressing hash table (linear probing) which stores the index of
+   * each pair plus one, so that 0 means an empty slot.  This class is not
+   * thread-safe.
+   */
+  private static final class Mappings {
+
+    /** Whether the pairs are indexed by ID or by name. */
+    private final boolean by_id;
+
+    private long[] ids = new long[1024];
+    /** The names, back to back. */
+    private byte[] names = new byte[16384];
+    /**
+     * Where the name of each pair starts in {@link #names}.  The name of
+     * the last pair ends at {@code starts[size]}.
+     */
+    private int[] starts = new int[1025];
+    /** Number of pairs. */
+    private int size;
+    /** Index of the pairs, kept at a load factor under 0.5. */
+    private int[] index = new int[4096];
+
+    Mappings(final boolean by_id) {
+      this.by_id = by_id;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long id(final int entry) {
+      return ids[entry];
+    }
+
+    String name(final int entry) {
+      return UidManager.fromBytes(nameBytes(entry));
+    }
+
+    /** Returns a copy of the name of the given pair.  */
+    byte[] nameBytes(final int entry) {
+      return Arrays.copyOfRange(names, starts[entry], starts[entry + 1]);
+    }
+
+    /**
+     * Returns whether or not a pair has the same name as a pair of another
+     * instance.
+     */
+    boolean sameName(final int entry, final Mappings other, final int theirs) {
+      return equals(names, starts[entry], starts[entry + 1], other.names,
+                    other.starts[theirs], other.starts[theirs + 1]);
+    }
+
+    /** Returns the pair with the given ID, or -1.  */
+    int find(final long id) {
+      final int mask = index.length - 1;
+      for (int i = hash(id) & mask; index[i] != 0; i = (i + 1) & mask) {
+        if (ids[index[i] - 1] == id) {
+          return index[i] - 1;
+        }
+      }
+      return -1;
+    }
+
+    /** Returns the pair with the same name as a pair of another instance.  */
+    int find(final Mappings other, final int theirs) {
+      return find(other.names, other.starts[theirs], other.starts[theirs + 1]);
+    }
+
+    /** Returns the pair with the name in {@code buf[start, end)}, or -1.  */
+    private int find(final byte[] buf, final int start, final int end) {
+      final int mask = index.length - 1;
+      for (int i = hash(buf, start, end) & mask; index[i] != 0;
+           i = (i + 1) & mask) {
+        final int entry = index[i] - 1;
+        if (equals(names, starts[entry], starts[entry + 1],
+                   buf, start, end)) {
+          return entry;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Adds a pair, unless there's already one with the same key.
+     * @return The pair that has the same key, or -1 if the pair was added.
+     */
+    int put(final byte[] name, final long id) {
+      return put(name, 0, name.length, id);
+    }
+
+    /** Adds a pair of another instance, like {@link #put(byte[], long)}.  */
+    int put(final Mappings other, final int theirs) {
+      return put(other.names, other.starts[theirs], other.starts[theirs + 1],
+                 other.ids[theirs]);
+    }
+
+    private int put(final byte[] buf, final int start, final int end,
+                    final long id) {
+      final int prev = by_id ? find(id) : find(buf, start, end);
+      if (prev >= 0) {
+        return prev;
+      }
+      if (size == ids.length) {
+        grow();
+      }
+      final int used = starts[size];
+      if (used + end - start > names.length) {
+        names = Arrays.copyOf(names, Math.max(2 * names.length,
+                                              used + end - start));
+      }
+      System.arraycopy(buf, start, names, used, end - start);
+      ids[size] = id;
+      starts[size + 1] = used + end - start;
+      insert(size);
+      size++;
+      return -1;
+    }
+
+    private void grow() {
+      ids = Arrays.copyOf(ids, 2 * size);
+      starts = Arrays.copyOf(starts, 2 * size + 1);
+      index = new int[4 * ids.length];
+      for (int entry = 0; entry < size; entry++) {
+        insert(entry);
+      }
+    }
+
+    private void insert(final int entry) {
+      final int mask = index.length - 1;
+      int i = (by_id ? hash(ids[entry])
+               : hash(names, starts[entry], starts[entry + 1])) & mask;
+      while (index[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      index[i] = entry + 1;
+    }
+
+    private static boolean equals(final byte[] a, final int astart,
+                                  final int aend, final byte[] b,
+                                  final int bstart, final int bend) {
+      if (aend - astart != bend - bstart) {
+        return false;
+      }
+      for (int i = astart, j = bstart; i < aend; i++, j++) {
+        if (a[i] != b[j]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static int hash(final long id) {
+      return mix((int) (id ^ (id >>> 32)));
+    }
+
+    private static int hash(final byte[] buf, final int start, final int end) {
+      int h = 1;
+      for (int i = start; i < end; i++) {
+        h = 31 * h + buf[i];
+      }
+      return mix(h);
+    }
+
+    /** Spreads the bits of a hash code, sequential IDs are common.  */
+    private static int mix(int h) {
+      h *= 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+
+  }
+
+  /** A growable list of primitive ints.  This class is not thread-safe.  */
+  private static final class IntList {
+
+    private int[] values = new int[16];
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    int get(final int i) {
+      return values[i];
+    }
+
+    void add(final int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      values[size++] = value;
+    }
+
+  }
+
+  private static long idToLong(final byte[] id) {
+    long value = 0;
+    for (final byte b : id) {
+      value = (value << 8) | (b & 0xFF);
+    }
+    return value;
+  }
+
+}
@@ -0,0 +1,567 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.stream.ChunkedInput;
+import org.jboss.netty.util.CharsetUtil;
+
+import net.opentsdb.core.BinaryFormat;
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.stats.QueryProfile;
+
+/**
+ * Serializes data points on the fly, one chunk at a time.
+ * <p>
+ * Chunks are only pulled from this stream when the channel is writable
+ * (see {@link org.jboss.netty.handler.stream.ChunkedWriteHandler}), so a
+ * slow client doesn't make us buffer the entire result in memory, and the
+ * client starts receiving data as soon as the first chunk is ready.
+ * <p>
+ * Each chunk is a {@link org.jboss.netty.buffer.ChannelBuffer}.  Subclasses
+ * implement the actual serialization format.
+ * <p>
+ * The stream can also write a copy of the chunks to the disk cache as they
+ * are produced (see {@link #teeTo}), so the same query can later be served
+ * from disk without serializing the data points again.
+ */
+abstract class DataPointsStream implements ChunkedInput {
+
+  /** Approximate size of the chunks we produce, in bytes. */
+  private static final int CHUNK_SIZE = 16384;
+
+  /** The query being served. */
+  protected final HttpQuery query;
+
+  /** The series left to serialize. */
+  private final Iterator<DataPoints> series;
+
+  /** Where to record the time spent serializing data points. */
+  private final QueryProfile profile;
+
+  /** The series being serialized, or {@code null} if none. */
+  private DataPoints current;
+
+  /** Iterator on the series being serialized. */
+  private Iterator<DataPoint> points;
+
+  /** Number of series started so far. */
+  private int nseries;
+
+  /** Number of data points serialized so far. */
+  private long npoints;
+
+  /** Time spent serializing data points so far (in nanoseconds). */
+  private long serialize_time;
+
+  /** Whether or not we already produced the first chunk. */
+  private boolean started;
+
+  /** Whether or not we already produced the last chunk. */
+  private boolean done;
+
+  /** Whether or not {@link #close} was called. */
+  private boolean closed;
+
+  /** Where to write a copy of the chunks, or {@code null}. */
+  private FileOutputStream tee;
+
+  /** The disk cache the copy is for. */
+  private DiskCache tee_cache;
+
+  /** The base path of the entry of the query in the disk cache. */
+  private String tee_basepath;
+
+  /**
+   * Constructor.
+   * @param query The query being served.
+   * @param series The series to serialize.  They're iterated on only once.
+   * @param profile Where to record the time spent.
+   */
+  DataPointsStream(final HttpQuery query,
+                   final Iterable<DataPoints> series,
+                   final QueryProfile profile) {
+    this.query = query;
+    this.series = series.iterator();
+    this.profile = profile;
+  }
+
+  /** Returns the MIME type of the data produced by this stream.  */
+  abstract String mimeType();
+
+  /**
+   * Returns the extension of the file in which the disk cache keeps the data
+   * produced by this stream.
+   */
+  abstract String extension();
+
+  /**
+   * Writes a copy of the data produced to the disk cache.
+   * The copy is written to a temporary file that's renamed once the whole
+   * stream has been produced, so a truncated result is never served from
+   * the cache.  Must be called before the first chunk is produced.
+   * @param cache The disk cache to add the copy to.
+   * @param basepath The base path of the entry of the query in the cache.
+   */
+  void teeTo(final DiskCache cache, final String basepath) {
+    final String path = basepath + extension() + ".tmp";
+    try {
+      tee = new FileOutputStream(path);
+    } catch (IOException e) {
+      GraphHandler.logError(query, "Failed to open " + path, e);
+      return;
+    }
+    tee_cache = cache;
+    tee_basepath = basepath;
+  }
+
+  /** Called before the first data point, even if there's no data point.  */
+  protected void start() {
+  }
+
+  /**
+   * Called before serializing the data points of a series.
+   * @param dps The series that's about to be serialized.
+   * @param index The index of this series (starting from 0).
+   */
+  protected void startSeries(final DataPoints dps, final int index) {
+  }
+
+  /**
+   * Serializes one data point.
+   * @param dps The series this data point belongs to.
+   * @param dp The data point to serialize.
+   */
+  protected abstract void append(DataPoints dps, DataPoint dp);
+
+  /**
+   * Called after serializing the data points of a series.
+   * @param dps The series that was just serialized.
+   */
+  protected void endSeries(final DataPoints dps) {
+  }
+
+  /** Called after the last data point, even if there was no data point.  */
+  protected void end() {
+  }
+
+  /** Returns the number of bytes serialized but not flushed yet.  */
+  protected abstract int buffered();
+
+  /** Returns everything serialized since the last flush.  */
+  protected abstract ChannelBuffer flush();
+
+  public boolean hasNextChunk() {
+    return !done;
+  }
+
+  public Object nextChunk() {
+    if (done) {
+      return null;
+    }
+    final long start_time = System.nanoTime();
+    if (!started) {
+      start();
+      started = true;
+    }
+    while (buffered() < CHUNK_SIZE) {
+      if (current == null) {
+        if (!series.hasNext()) {
+          end();
+          done = true;
+          break;
+        }
+        current = series.next();
+        points = current.iterator();
+        startSeries(current, nseries++);
+      }
+      if (points.hasNext()) {
+        append(current, points.next());
+        npoints++;
+      } else {
+        endSeries(current);
+        current = null;
+        points = null;
+      }
+    }
+    final ChannelBuffer chunk = flush();
+    if (tee != null) {
+      writeTee(chunk);
+    }
+    // Includes the time spent aggregating, which is done lazily.
+    serialize_time += System.nanoTime() - start_time;
+    return chunk;
+  }
+
+  public boolean isEndOfInput() {
+    return done;
+  }
+
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (tee != null) {
+      abortTee();  // We didn't produce the whole stream.
+    }
+    profile.addTime("dump", serialize_time);
+    profile.incrementCount("points", npoints);
+    GraphHandler.logProfile(query, profile);
+  }
+
+  /**
+   * Writes a chunk to the copy for the disk cache, and adds the copy to the
+   * cache after the last chunk.  The copy is abandoned if we fail to write
+   * it, but the stream goes on.
+   */
+  private void writeTee(final ChannelBuffer chunk) {
+    final String path = tee_basepath + extension();
+    try {
+      chunk.getBytes(chunk.readerIndex(), tee, chunk.readableBytes());
+      if (!done) {
+        return;
+      }
+      tee.close();
+      tee = null;
+      if (!new File(path + ".tmp").renameTo(new File(path))) {
+        throw new IOException("Failed to rename " + path + ".tmp");
+      }
+      tee_cache.added(tee_basepath);
+    } catch (IOException e) {
+      GraphHandler.logError(query, "Failed to write " + path, e);
+      abortTee();
+    }
+  }
+
+  /** Closes and deletes the copy for the disk cache.  */
+  private void abortTee() {
+    if (tee != null) {
+      try {
+        tee.close();
+      } catch (IOException e) {
+        // Nothing we can do, and we're deleting the file anyway.
+      }
+      tee = null;
+    }
+    new File(tee_basepath + extension() + ".tmp").delete();
+  }
+
+  /** Base class for text formats.  */
+  abstract static class Text extends DataPointsStream {
+
+    /** Where the text is serialized until the next flush. */
+    protected final StringBuilder buf = new StringBuilder(CHUNK_SIZE + 1024);
+
+    Text(final HttpQuery query, final Iterable<DataPoints> series,
+         final QueryProfile profile) {
+      super(query, series, profile);
+    }
+
+    protected int buffered() {
+      return buf.length();  // Close enough, most of the text is ASCII.
+    }
+
+    protected ChannelBuffer flush() {
+      final ChannelBuffer chunk =
+        ChannelBuffers.copiedBuffer(buf, CharsetUtil.UTF_8);
+      buf.setLength(0);
+      return chunk;
+    }
+
+  }
+
+  /**
+   * Streams data points in plain text, one per line, in the same format as
+   * the one used by the {@code put} command (minus the {@code put}).
+   * Values that aren't finite are written as {@code NaN}, {@code Infinity}
+   * or {@code -Infinity}.
+   */
+  static final class Ascii extends Text {
+
+    /** The metric name of the series being serialized. */
+    private String metric;
+
+    /** The tags of the series being serialized, " k1=v1 k2=v2". */
+    private final StringBuilder tagbuf = new StringBuilder();
+
+    Ascii(final HttpQuery query, final Iterable<DataPoints> series,
+          final QueryProfile profile) {
+      super(query, series, profile);
+    }
+
+    String mimeType() {
+      return "text/plain";
+    }
+
+    String extension() {
+      return ".txt";
+    }
+
+    protected void startSeries(final DataPoints dps, final int index) {
+      metric = dps.metricName();
+      tagbuf.setLength(0);
+      for (final Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        tagbuf.append(' ').append(tag.getKey())
+          .append('=').append(tag.getValue());
+      }
+    }
+
+    protected void append(final DataPoints dps, final DataPoint dp) {
+      buf.append(metric).append(' ').append(dp.timestamp()).append(' ');
+      if (dp.isInteger()) {
+        buf.append(dp.longValue());
+      } else {
+        buf.append(dp.doubleValue());
+      }
+      buf.append(tagbuf).append('\n');
+    }
+
+  }
+
+  /**
+   * Streams data points as a JSON array with one object per series:
+   * <pre>
+   * [{"metric":"sys.cpu.user","tags":{"host":"foo"},"aggregated_tags":[],
+   *   "dps":[[1356998400,42],[1356998410,43.5],...]},...]
+   * </pre>
+   * JSON can't represent NaN or infinity, so values that aren't finite are
+   * written as {@code null}.
+   */
+  static final class Json extends Text {
+
+    /** Whether or not the next data point is the first of its series. */
+    private boolean first_point;
+
+    Json(final HttpQuery query, final Iterable<DataPoints> series,
+         final QueryProfile profile) {
+      super(query, series, profile);
+    }
+
+    String mimeType() {
+      return "application/json";
+    }
+
+    String extension() {
+      return ".jsondata";
+    }
+
+    protected void start() {
+      buf.append('[');
+    }
+
+    protected void startSeries(final DataPoints dps, final int index) {
+      if (index > 0) {
+        buf.append(',');
+      }
+      buf.append("{\"metric\":\"");
+      HttpQuery.escapeJson(dps.metricName(), buf);
+      buf.append("\",\"tags\":{");
+      boolean first = true;
+      for (final Map.Entry<String, String> tag : dps.getTags().entrySet()) {
+        if (!first) {
+          buf.append(',');
+        }
+        first = false;
+        buf.append('"');
+        HttpQuery.escapeJson(tag.getKey(), buf);
+        buf.append("\":\"");
+        HttpQuery.escapeJson(tag.getValue(), buf);
+        buf.append('"');
+      }
+      buf.append("},\"aggregated_tags\":");
+      if (dps.getAggregatedTags().isEmpty()) {
+        buf.append("[]");
+      } else {
+        HttpQuery.toJsonArray(dps.getAggregatedTags(), buf);
+      }
+      buf.append(",\"dps\":[");
+      first_point = true;
+    }
+
+    protected void append(final DataPoints dps, final DataPoint dp) {
+      if (!first_point) {
+        buf.append(',');
+      }
+      first_point = false;
+      buf.append('[').append(dp.timestamp()).append(',');
+      if (dp.isInteger()) {
+        buf.append(dp.longValue());
+      } else {
+        final double value = dp.doubleValue();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+          buf.append("null");
+        } else {
+          buf.append(value);
+        }
+      }
+      buf.append(']');
+    }
+
+    protected void endSeries(final DataPoints dps) {
+      buf.append("]}");
+    }
+
+    protected void end() {
+      buf.append(']');
+    }
+
+  }
+
+  /**
+   * Streams data points in a compact binary format.
+   * Each series header is sent only once, and its data points are sent in
+   * blocks, using the same encoding as HBase cells.  Values that aren't
+   * finite are sent as-is, as IEEE 754 handles them.
+   * @see net.opentsdb.tools.DataPointsDecoder
+   */
+  static final class Binary extends DataPointsStream {
+
+    /** Where the data points are serialized until the next flush. */
+    private ChannelBuffer buf = newBuffer();
+
+    /** Index of the size of the current block in the buffer, or -1. */
+    private int block_start = -1;
+
+    /** Base timestamp of the current block. */
+    private long base_time;
+
+    /** Number of data points in the current block. */
+    private int block_size;
+
+    Binary(final HttpQuery query, final Iterable<DataPoints> series,
+           final QueryProfile profile) {
+      super(query, series, profile);
+    }
+
+    String mimeType() {
+      return BinaryFormat.MIME_TYPE;
+    }
+
+    String extension() {
+      return ".bin";
+    }
+
+    protected void start() {
+      buf.writeBytes(BinaryFormat.MAGIC);
+      buf.writeByte(BinaryFormat.VERSION);
+    }
+
+    protected void startSeries(final DataPoints dps, final int index) {
+      buf.writeByte(BinaryFormat.SERIES);
+      writeString(dps.metricName());
+      final Map<String, String> tags = dps.getTags();
+      buf.writeShort(tags.size());
+      for (final Map.Entry<String, String> tag : tags.entrySet()) {
+        writeString(tag.getKey());
+        writeString(tag.getValue());
+      }
+      final List<String> aggregated_tags = dps.getAggregatedTags();
+      buf.writeShort(aggregated_tags.size());
+      for (final String tag : aggregated_tags) {
+        writeString(tag);
+      }
+    }
+
+    protected void append(final DataPoints dps, final DataPoint dp) {
+      final long timestamp = dp.timestamp();
+      if (block_start < 0 || timestamp < base_time
+          || timestamp - base_time > BinaryFormat.MAX_DELTA
+          || block_size == 0xFFFF) {
+        endBlock();
+        buf.writeByte(BinaryFormat.BLOCK);
+        buf.writeInt((int) timestamp);
+        block_start = buf.writerIndex();
+        buf.writeShort(0);  // Filled in by endBlock().
+        base_time = timestamp;
+        block_size = 0;
+      }
+      final int delta = (int) (timestamp - base_time)
+        << BinaryFormat.FLAG_BITS;
+      if (dp.isInteger()) {
+        final long value = dp.longValue();
+        if (value == (byte) value) {
+          buf.writeShort(delta);
+          buf.writeByte((byte) value);
+        } else if (value == (short) value) {
+          buf.writeShort(delta | 0x1);
+          buf.writeShort((short) value);
+        } else if (value == (int) value) {
+          buf.writeShort(delta | 0x3);
+          buf.writeInt((int) value);
+        } else {
+          buf.writeShort(delta | 0x7);
+          buf.writeLong(value);
+        }
+      } else {
+        final double value = dp.doubleValue();  // NaN is kept as-is.
+        if ((float) value == value) {
+          buf.writeShort(delta | BinaryFormat.FLAG_FLOAT | 0x3);
+          buf.writeFloat((float) value);
+        } else {
+          buf.writeShort(delta | BinaryFormat.FLAG_FLOAT | 0x7);
+          buf.writeDouble(value);
+        }
+      }
+      block_size++;
+    }
+
+    protected void endSeries(final DataPoints dps) {
+      endBlock();
+    }
+
+    protected void end() {
+      buf.writeByte(BinaryFormat.END);
+    }
+
+    protected int buffered() {
+      return buf.readableBytes();
+    }
+
+    protected ChannelBuffer flush() {
+      endBlock();  // Blocks don't span chunks.
+      final ChannelBuffer chunk = buf;
+      buf = newBuffer();
+      return chunk;
+    }
+
+    /** Writes the size of the current block, if any.  */
+    private void endBlock() {
+      if (block_start >= 0) {
+        buf.setShort(block_start, block_size);
+        block_start = -1;
+      }
+    }
+
+    private void writeString(final String s) {
+      final byte[] b = s.getBytes(CharsetUtil.UTF_8);
+      buf.writeShort(b.length);
+      buf.writeBytes(b);
+    }
+
+    private static ChannelBuffer newBuffer() {
+      return ChannelBuffers.dynamicBuffer(CHUNK_SIZE + 1024);
+    }
+
+  }
+
+}
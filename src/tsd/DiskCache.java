@@ -0,0 +1,375 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Keeps the on-disk cache of query results within a size budget.
+ * <p>
+ * Each query has an entry in the cache, made of the files that share the
+ * same base path (see {@code GraphHandler.getGnuplotBasePath}): the graph
+ * ({@code .png}), the JSON result ({@code .json}), the output of Gnuplot
+ * ({@code .out}, {@code .err}) and the data points of streamed results
+ * ({@code .txt}, {@code .jsondata}, {@code .bin}).  We keep
+ * track of the size of every entry and of when it was last used, and a
+ * background thread periodically evicts the least recently used entries
+ * until both the number of files and the number of bytes in the cache are
+ * under budget.
+ * <p>
+ * The inputs given to Gnuplot ({@code .gnuplot} and {@code .dat} files) are
+ * temporary: they're deleted as soon as the graph has been rendered, and the
+ * background thread removes those left behind (e.g. when Gnuplot failed).
+ * Same thing for the streamed results being written ({@code .tmp} files).
+ * <p>
+ * The whole directory is re-scanned on startup and then every once in a
+ * while, to pick up the files we don't know about (e.g. written by another
+ * process or before a restart).
+ * <p>
+ * This class is thread-safe.
+ */
+final class DiskCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DiskCache.class);
+
+  /** Extensions of the files that make up an entry in the cache. */
+  private static final String[] ENTRY_EXTENSIONS = {
+    ".png", ".json", ".txt", ".jsondata", ".bin", ".out", ".err",
+  };
+
+  /** Temporary inputs older than this (in ms) are deleted. */
+  private static final long TEMPORARY_FILE_TTL = 600000;  // 10m
+
+  /** How many sweeps between two scans of the whole directory. */
+  private static final int SWEEPS_PER_SCAN = 60;
+
+  // Totals for all the caches in this JVM (in practice there's only one).
+  private static final AtomicLong cached_bytes = new AtomicLong();
+  private static final AtomicLong cached_files = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+  private static final AtomicLong temporary_files_deleted = new AtomicLong();
+
+  /** The directory of the cache, ends with a {@code /}. */
+  private final String cachedir;
+
+  /** Max number of bytes in the cache, or 0 for no limit. */
+  private final long max_bytes;
+
+  /** Max number of files in the cache, or 0 for no limit. */
+  private final int max_files;
+
+  /**
+   * Maps a base path to its entry, in access order (LRU first).
+   * Must be accessed while synchronized on itself.
+   */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+  /** Total size of the entries, must be accessed with the same lock. */
+  private long bytes;
+
+  /** Total number of files, must be accessed with the same lock. */
+  private long files;
+
+  /** Runs the sweeps in the background. */
+  private final Timer sweeper = new Timer("Disk cache sweeper", true);
+
+  /** Number of sweeps done so far, only accessed by the sweeper thread. */
+  private int nsweeps;
+
+  /**
+   * Constructor.
+   * @param cachedir The directory of the cache, must end with a {@code /}.
+   * @param max_bytes The max number of bytes in the cache (0 = no limit).
+   * @param max_files The max number of files in the cache (0 = no limit).
+   */
+  DiskCache(final String cachedir, final long max_bytes, final int max_files) {
+    if (max_bytes < 0) {
+      throw new IllegalArgumentException("Negative max_bytes: " + max_bytes);
+    } else if (max_files < 0) {
+      throw new IllegalArgumentException("Negative max_files: " + max_files);
+    }
+    this.cachedir = cachedir;
+    this.max_bytes = max_bytes;
+    this.max_files = max_files;
+  }
+
+  /**
+   * Starts sweeping the cache periodically in the background.
+   * The first sweep scans the whole directory.
+   * @param interval How long to wait between two sweeps (in ms).
+   */
+  void start(final long interval) {
+    sweeper.schedule(new TimerTask() {
+      public void run() {
+        try {
+          sweep();
+        } catch (RuntimeException e) {
+          LOG.error("Unexpected exception while sweeping " + cachedir, e);
+        }
+      }
+    }, 0, interval);
+  }
+
+  /** Stops sweeping the cache.  */
+  void shutdown() {
+    sweeper.cancel();
+  }
+
+  /**
+   * Must be called after new files were written for an entry.
+   * @param basepath The base path of the entry.
+   */
+  void added(final String basepath) {
+    final Entry entry = stat(basepath);
+    entry.last_access = System.currentTimeMillis();
+    synchronized (entries) {
+      final Entry prev = entries.put(basepath, entry);
+      if (prev != null) {
+        account(prev, -1);
+      }
+      account(entry, 1);
+    }
+  }
+
+  /**
+   * Must be called when an entry is used to serve a request.
+   * @param basepath The base path of the entry.
+   */
+  void accessed(final String basepath) {
+    synchronized (entries) {
+      final Entry entry = entries.get(basepath);  // Moves it to the MRU end.
+      if (entry != null) {
+        entry.last_access = System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Deletes the temporary inputs given to Gnuplot for an entry.
+   * @param basepath The base path of the entry.
+   */
+  static void deleteGnuplotInputs(final String basepath) {
+    int deleted = 0;
+    if (new File(basepath + ".gnuplot").delete()) {
+      deleted++;
+    }
+    for (int i = 0; new File(basepath + "_" + i + ".dat").delete(); i++) {
+      deleted++;
+    }
+    temporary_files_deleted.addAndGet(deleted);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.graph.diskcache.bytes", cached_bytes);
+    collector.record("http.graph.diskcache.files", cached_files);
+    collector.record("http.graph.diskcache.evictions", evictions);
+    collector.record("http.graph.diskcache.tempfiles_deleted",
+                     temporary_files_deleted);
+  }
+
+  /**
+   * Evicts entries until the cache is under budget.
+   * Every once in a while, re-scans the whole directory first.
+   */
+  void sweep() {
+    if (nsweeps++ % SWEEPS_PER_SCAN == 0) {
+      scan();
+    }
+    final ArrayList<String> evicted = new ArrayList<String>();
+    synchronized (entries) {
+      final Iterator<Map.Entry<String, Entry>> it =
+        entries.entrySet().iterator();
+      while (overBudget() && it.hasNext()) {
+        final Map.Entry<String, Entry> e = it.next();
+        account(e.getValue(), -1);
+        evicted.add(e.getKey());
+        it.remove();
+      }
+    }
+    // Delete the files outside of the lock, this can take a while.  The
+    // entry may be re-rendered right now, so leave its Gnuplot inputs alone:
+    // those left behind are deleted by scan() once they're old enough.
+    for (final String basepath : evicted) {
+      for (final String ext : ENTRY_EXTENSIONS) {
+        new File(basepath + ext).delete();
+      }
+    }
+    if (!evicted.isEmpty()) {
+      evictions.addAndGet(evicted.size());
+      LOG.info("Evicted " + evicted.size() + " entries from " + cachedir
+               + ", now " + size());
+    }
+  }
+
+  /**
+   * Returns {@code true} if the cache is over budget.
+   * Must be called while synchronized on {@code entries}.
+   */
+  private boolean overBudget() {
+    return (max_bytes > 0 && bytes > max_bytes)
+      || (max_files > 0 && files > max_files);
+  }
+
+  /** Returns a human readable size of the cache.  */
+  String size() {
+    synchronized (entries) {
+      return entries.size() + " entries, " + files + " files, "
+        + bytes + " bytes";
+    }
+  }
+
+  /**
+   * Scans the whole directory to rebuild the list of entries, and deletes
+   * the temporary files that are too old.
+   */
+  private void scan() {
+    final long start = System.currentTimeMillis();
+    final File[] listing = new File(cachedir).listFiles();
+    if (listing == null) {
+      LOG.error("Failed to list the files in " + cachedir);
+      return;
+    }
+    final HashMap<String, Entry> scanned = new HashMap<String, Entry>();
+    for (final File file : listing) {
+      final String name = file.getName();
+      final int dot = name.lastIndexOf('.');
+      if (dot <= 0) {
+        continue;  // Not one of ours.
+      }
+      final String ext = name.substring(dot);
+      if (".gnuplot".equals(ext) || ".dat".equals(ext)
+          || ".tmp".equals(ext)) {
+        if (start - file.lastModified() > TEMPORARY_FILE_TTL
+            && file.delete()) {
+          temporary_files_deleted.incrementAndGet();
+        }
+        continue;
+      } else if (!isEntryExtension(ext)) {
+        continue;  // Not one of ours.
+      }
+      final String basepath = cachedir + name.substring(0, dot);
+      Entry entry = scanned.get(basepath);
+      if (entry == null) {
+        entry = new Entry();
+        scanned.put(basepath, entry);
+      }
+      entry.bytes += file.length();
+      entry.files++;
+      entry.last_access = Math.max(entry.last_access, file.lastModified());
+    }
+    synchronized (entries) {
+      // Keep what we know about the entries recently used, and about those
+      // added after we listed the files.
+      for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+        final Entry known = e.getValue();
+        final Entry entry = scanned.get(e.getKey());
+        if (entry != null) {
+          entry.last_access = Math.max(entry.last_access, known.last_access);
+        } else if (known.last_access >= start) {
+          scanned.put(e.getKey(), known);
+        }
+      }
+      final ArrayList<Map.Entry<String, Entry>> sorted =
+        new ArrayList<Map.Entry<String, Entry>>(scanned.entrySet());
+      Collections.sort(sorted, LRU_FIRST);
+      entries.clear();
+      cached_bytes.addAndGet(-bytes);
+      cached_files.addAndGet(-files);
+      bytes = 0;
+      files = 0;
+      for (final Map.Entry<String, Entry> e : sorted) {
+        entries.put(e.getKey(), e.getValue());
+        account(e.getValue(), 1);
+      }
+    }
+    LOG.info("Scanned " + cachedir + " in "
+             + (System.currentTimeMillis() - start) + "ms, found " + size());
+  }
+
+  private static boolean isEntryExtension(final String ext) {
+    for (final String entry_ext : ENTRY_EXTENSIONS) {
+      if (entry_ext.equals(ext)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns a new entry with the size of the files of the given entry.  */
+  private static Entry stat(final String basepath) {
+    final Entry entry = new Entry();
+    for (final String ext : ENTRY_EXTENSIONS) {
+      final long length = new File(basepath + ext).length();
+      if (length > 0) {  // 0 if the file doesn't exist.
+        entry.bytes += length;
+        entry.files++;
+      }
+    }
+    return entry;
+  }
+
+  /**
+   * Adds or removes an entry from the totals.
+   * Must be called while synchronized on {@code entries}.
+   * @param entry The entry to account for.
+   * @param sign 1 to add the entry, -1 to remove it.
+   */
+  private void account(final Entry entry, final int sign) {
+    bytes += sign * entry.bytes;
+    files += sign * entry.files;
+    cached_bytes.addAndGet(sign * entry.bytes);
+    cached_files.addAndGet(sign * entry.files);
+  }
+
+  /** Sorts entries from the least recently used to the most recently used. */
+  private static final Comparator<Map.Entry<String, Entry>> LRU_FIRST =
+    new Comparator<Map.Entry<String, Entry>>() {
+      public int compare(final Map.Entry<String, Entry> a,
+                         final Map.Entry<String, Entry> b) {
+        final long x = a.getValue().last_access;
+        final long y = b.getValue().last_access;
+        return x < y ? -1 : x == y ? 0 : 1;
+      }
+    };
+
+  /** The files of a query in the cache.  */
+  private static final class Entry {
+    /** Total size of the files, in bytes. */
+    long bytes;
+    /** Number of files. */
+    int files;
+    /** When the entry was last written or read (in ms). */
+    long last_access;
+  }
+
+}
@@ -17,12 +17,36 @@ package net.opentsdb.tsd;
  */
 final class GnuplotException extends RuntimeException {
 
+  /** Whether or not Gnuplot was killed for taking too long. */
+  private final boolean timed_out;
+
   public GnuplotException(final int gnuplot_return_value) {
     super("Gnuplot returned " + gnuplot_return_value);
+    timed_out = false;
   }
 
   public GnuplotException(final String gnuplot_stderr) {
+    this(gnuplot_stderr, false);
+  }
+
+  /**
+   * Constructor.
+   * @param gnuplot_stderr What Gnuplot printed before failing.
+   * @param timed_out Whether or not Gnuplot was killed for taking too long.
+   */
+  public GnuplotException(final String gnuplot_stderr,
+                          final boolean timed_out) {
     super("Gnuplot stderr:\n" + gnuplot_stderr);
+    this.timed_out = timed_out;
+  }
+
+  /**
+   * Returns {@code true} if Gnuplot was killed for taking too long.
+   * This is a problem on our side (an overloaded server or a graph too big
+   * to render in time), not something wrong with the request.
+   */
+  public boolean timedOut() {
+    return timed_out;
   }
 
   static final long serialVersionUID = 1287770642;
@@ -0,0 +1,352 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * A pool of long-lived Gnuplot processes.
+ * <p>
+ * Forking a new Gnuplot for every graph is expensive, so instead we keep a
+ * few Gnuplot processes around and send them commands over their stdin.
+ * The scripts and data files generated by {@link net.opentsdb.graph.Plot}
+ * are unchanged: each worker is simply asked to {@code load} the script,
+ * which means the graphs produced are exactly the same as before.
+ * <p>
+ * Gnuplot exits as soon as a command fails when it doesn't read from a
+ * terminal, so a worker that fails to render a graph is discarded, and so
+ * is a worker that takes too long to render a graph (it gets killed).
+ * Discarded workers are replaced on demand.  Workers that have been idle
+ * for a while are pinged before being used again.
+ * <p>
+ * This class is thread-safe.
+ */
+final class GnuplotPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GnuplotPool.class);
+
+  /** What we ask Gnuplot to print once it's done with a command. */
+  private static final String DONE = "OPENTSDB-GNUPLOT-DONE";
+
+  /** Workers idle for longer than this (in ms) are pinged before use. */
+  private static final long HEALTH_CHECK_INTERVAL = 60000;
+
+  /** How long (in ms) a worker has to answer a ping. */
+  private static final long HEALTH_CHECK_TIMEOUT = 5000;
+
+  /** Command used to start a Gnuplot process. */
+  private final String[] command;
+
+  /** Maximum number of Gnuplot processes. */
+  private final int size;
+
+  /** How long (in ms) a worker has to render a graph before being killed. */
+  private final long timeout;
+
+  /** Workers waiting to be used. */
+  private final ArrayBlockingQueue<Worker> idle;
+
+  /**
+   * One permit per worker that can be in use.  A thread holding a permit
+   * gets an idle worker or, if there's none, starts a new one.  Permits are
+   * returned whether the worker is put back in the pool or discarded, so a
+   * thread waiting for a worker is woken up in both cases.
+   */
+  private final Semaphore slots;
+
+  /** Number of live workers (idle or not). */
+  private final AtomicInteger nworkers = new AtomicInteger();
+
+  /** Number of threads waiting for a worker to become available. */
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  /** Kills the workers that take too long. */
+  private final Timer watchdog = new Timer("Gnuplot watchdog", true);
+
+  private final AtomicInteger spawned = new AtomicInteger();
+  private final AtomicInteger renders = new AtomicInteger();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicInteger timeouts = new AtomicInteger();
+  private final AtomicInteger health_checks_failed = new AtomicInteger();
+
+  /**
+   * Constructor.
+   * No Gnuplot process is started until one is needed.
+   * @param command The command to use to start a Gnuplot process.
+   * @param size The maximum number of Gnuplot processes to run.
+   * @param timeout How long (in ms) Gnuplot has to render a graph.
+   */
+  GnuplotPool(final String[] command, final int size, final long timeout) {
+    if (size <= 0) {
+      throw new IllegalArgumentException("Invalid pool size: " + size);
+    } else if (timeout <= 0) {
+      throw new IllegalArgumentException("Invalid timeout: " + timeout);
+    }
+    this.command = command;
+    this.size = size;
+    this.timeout = timeout;
+    idle = new ArrayBlockingQueue<Worker>(size);
+    slots = new Semaphore(size, true);
+  }
+
+  /**
+   * Runs a Gnuplot script.
+   * <strong>This function will block</strong> while Gnuplot is running, or
+   * until a Gnuplot process becomes available.
+   * @param script_path The path to the script to run.
+   * @throws GnuplotException if Gnuplot failed to run the script.
+   * @throws IOException if a Gnuplot process couldn't be started, or if we
+   * failed to talk to it, or if we have been interrupted.
+   */
+  void run(final String script_path) throws IOException {
+    final Worker worker = acquire();
+    boolean ok = false;
+    try {
+      worker.execute("reset\nload \"" + script_path + "\"\nset output\n",
+                     timeout);
+      renders.incrementAndGet();
+      ok = true;
+    } catch (GnuplotException e) {
+      if (e.timedOut()) {
+        timeouts.incrementAndGet();
+      } else {
+        failures.incrementAndGet();
+      }
+      throw e;
+    } catch (IOException e) {
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      release(worker, ok);
+    }
+  }
+
+  /** Kills all the idle Gnuplot processes.  */
+  void shutdown() {
+    watchdog.cancel();
+    Worker worker;
+    while ((worker = idle.poll()) != null) {
+      discard(worker);
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this instance.
+   * @param collector The collector to use.
+   */
+  void collectStats(final StatsCollector collector) {
+    collector.record("http.graph.gnuplot.workers", nworkers.get(), "type=live");
+    collector.record("http.graph.gnuplot.workers", idle.size(), "type=idle");
+    collector.record("http.graph.gnuplot.waiting", waiting.get());
+    collector.record("http.graph.gnuplot.spawned", spawned);
+    collector.record("http.graph.gnuplot.renders", renders);
+    collector.record("http.graph.gnuplot.errors", failures, "type=failed");
+    collector.record("http.graph.gnuplot.errors", timeouts, "type=timeout");
+    collector.record("http.graph.gnuplot.errors", health_checks_failed,
+                     "type=healthcheck");
+  }
+
+  /**
+   * Returns a healthy worker, starting a new one if needed.
+   * The caller must {@link #release} it.
+   */
+  private Worker acquire() throws IOException {
+    if (!slots.tryAcquire()) {
+      waiting.incrementAndGet();
+      try {
+        slots.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();  // Restore the interrupted status.
+        throw new IOException("interrupted", e);
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+    boolean ok = false;
+    try {
+      Worker worker;
+      while ((worker = idle.poll()) != null) {
+        if (worker.isHealthy()) {
+          ok = true;
+          return worker;
+        }
+        health_checks_failed.incrementAndGet();
+        discard(worker);
+      }
+      worker = new Worker();
+      nworkers.incrementAndGet();
+      ok = true;
+      return worker;
+    } finally {
+      if (!ok) {
+        slots.release();
+      }
+    }
+  }
+
+  /**
+   * Puts a worker back in the pool.
+   * @param worker The worker to release.
+   * @param ok Whether or not the worker successfully completed its task.
+   */
+  private void release(final Worker worker, final boolean ok) {
+    if (!ok) {
+      discard(worker);
+    } else if (!idle.offer(worker)) {  // Shouldn't happen.
+      LOG.error("No room in the pool for " + worker + ", killing it");
+      discard(worker);
+    }
+    slots.release();
+  }
+
+  /**
+   * Kills a worker.
+   * The caller keeps the permit of the worker's slot, either to start a new
+   * worker or to return the permit with {@link #release}.
+   */
+  private void discard(final Worker worker) {
+    worker.kill();
+    nworkers.decrementAndGet();
+  }
+
+  /** A Gnuplot process.  */
+  private final class Worker {
+
+    private final Process process;
+    private final OutputStream stdin;
+    /** Both stdout and stderr of the process. */
+    private final BufferedReader output;
+    /** When this worker last completed a command (in ms). */
+    private long last_used;
+    /** Set when the watchdog killed this worker. */
+    private volatile boolean timed_out;
+
+    Worker() throws IOException {
+      final ProcessBuilder pb = new ProcessBuilder(command);
+      pb.redirectErrorStream(true);
+      process = pb.start();
+      stdin = process.getOutputStream();
+      output = new BufferedReader(new InputStreamReader(process
+                                                        .getInputStream()));
+      last_used = System.currentTimeMillis();
+      spawned.incrementAndGet();
+      LOG.info("Started " + this);
+    }
+
+    /**
+     * Sends some commands to Gnuplot and waits for them to complete.
+     * @param commands The commands to send, each terminated by a new line.
+     * @param timeout How long (in ms) Gnuplot has to run the commands.
+     * @throws GnuplotException if Gnuplot failed to run the commands.
+     * @throws IOException if we failed to talk to Gnuplot.
+     */
+    void execute(final String commands, final long timeout) throws IOException {
+      final TimerTask killer = new TimerTask() {
+        public void run() {
+          timed_out = true;
+          LOG.warn("Killing " + Worker.this + " after " + timeout + "ms");
+          kill();
+        }
+      };
+      watchdog.schedule(killer, timeout);
+      final StringBuilder messages = new StringBuilder();
+      try {
+        try {
+          stdin.write((commands + "print \"" + DONE + "\"\n").getBytes());
+          stdin.flush();
+          String line;
+          while ((line = output.readLine()) != null) {
+            if (DONE.equals(line)) {
+              last_used = System.currentTimeMillis();
+              if (messages.length() > 0) {  // Warnings.
+                LOG.info(this + " said: " + messages);
+              }
+              return;
+            }
+            messages.append(line).append('\n');
+          }
+        } catch (IOException e) {
+          if (!timed_out) {
+            throw e;
+          }
+        }
+      } finally {
+        killer.cancel();
+      }
+      // If we get here, Gnuplot died.
+      if (timed_out) {
+        throw new GnuplotException("Timed out after " + timeout + "ms.\n"
+                                   + messages, true);
+      }
+      if (messages.length() == 0) {
+        try {
+          throw new GnuplotException(process.waitFor());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();  // Restore the interrupted status.
+          throw new IOException("interrupted", e);
+        }
+      }
+      throw new GnuplotException(messages.toString());
+    }
+
+    /**
+     * Returns {@code true} if this worker looks ready to be used.
+     * Workers that have been idle for a while are pinged.
+     */
+    boolean isHealthy() {
+      try {
+        process.exitValue();
+        return false;  // The process has exited.
+      } catch (IllegalThreadStateException e) {
+        // Still running, good.
+      }
+      if (System.currentTimeMillis() - last_used < HEALTH_CHECK_INTERVAL) {
+        return true;
+      }
+      try {
+        execute("", HEALTH_CHECK_TIMEOUT);
+        return true;
+      } catch (GnuplotException e) {
+        LOG.warn("Health check failed for " + this, e);
+      } catch (IOException e) {
+        LOG.warn("Health check failed for " + this, e);
+      }
+      return false;
+    }
+
+    /** Kills the Gnuplot process.  */
+    void kill() {
+      // Always destroy() the Process, otherwise we leak the pipes.
+      process.destroy();
+    }
+
+    public String toString() {
+      return "Gnuplot worker@" + Integer.toHexString(hashCode());
+    }
+
+  }
+
+}
@@ -12,16 +12,17 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -38,16 +39,22 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.stream.ChunkedFile;
+
 import net.opentsdb.core.Aggregator;
 import net.opentsdb.core.Aggregators;
+import net.opentsdb.core.BinaryFormat;
 import net.opentsdb.core.Const;
-import net.opentsdb.core.DataPoint;
 import net.opentsdb.core.DataPoints;
 import net.opentsdb.core.Query;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.core.Tags;
+import net.opentsdb.graph.Decimator;
+import net.opentsdb.graph.Decimators;
 import net.opentsdb.graph.Plot;
 import net.opentsdb.stats.Histogram;
+import net.opentsdb.stats.QueryProfile;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.uid.NoSuchUniqueName;
 
@@ -62,9 +69,27 @@ final class GraphHandler implements HttpRpc {
   /** Number of times we had to do all the work up to running Gnuplot. */
   private static final AtomicInteger graphs_generated
     = new AtomicInteger();
+  /** Number of times a graph request was served from memory. */
+  private static final AtomicInteger graphs_memcache_hit
+    = new AtomicInteger();
   /** Number of times a graph request was served from disk, no work needed. */
   private static final AtomicInteger graphs_diskcache_hit
     = new AtomicInteger();
+  /** Number of graphs rendered in the JVM, without Gnuplot. */
+  private static final AtomicInteger graphs_rendered_natively
+    = new AtomicInteger();
+  /** Number of graphs rendered by Gnuplot. */
+  private static final AtomicInteger graphs_rendered_gnuplot
+    = new AtomicInteger();
+
+  /**
+   * Whether or not to render graphs in the JVM when possible, instead of
+   * running Gnuplot.  Graphs are rendered natively by default, setting the
+   * {@code tsd.http.graph.renderer} system property to {@code gnuplot}
+   * forces the use of Gnuplot for all graphs.
+   */
+  private static final boolean NATIVE_RENDERER =
+    !"gnuplot".equals(System.getProperty("tsd.http.graph.renderer"));
 
   /** Keep track of the latency of graphing requests. */
   private static final Histogram graphlatency =
@@ -74,12 +99,26 @@ final class GraphHandler implements HttpRpc {
   private static final Histogram gnuplotlatency =
     new Histogram(16000, (short) 2, 100);
 
+  /**
+   * Queries taking longer than this many milliseconds get their profile
+   * logged.  Configured with the {@code tsd.http.query.slow_ms} system
+   * property, defaults to 10s.
+   */
+  private static final long SLOW_QUERY_MS =
+    Long.getLong("tsd.http.query.slow_ms", 10000);
+
   /** Executor to run Gnuplot in separate bounded thread pool. */
   private final ThreadPoolExecutor gnuplot;
 
   /** Directory where to cache query results. */
   private final String cachedir;
 
+  /** Keeps the directory where we cache query results under budget. */
+  private final DiskCache disk_cache;
+
+  /** Recent query results, {@code null} if disabled. */
+  private final MemoryCache memory_cache;
+
   /**
    * Constructor.
    */
@@ -101,12 +140,20 @@ final class GraphHandler implements HttpRpc {
     // of throughput but we don't need high throughput here.  We use ABQ instead
     // of LBQ because it creates far fewer references.
     cachedir = RpcHandler.getDirectoryFromSystemProp("tsd.http.cachedir");
+    disk_cache = new DiskCache(cachedir,
+      Long.getLong("tsd.http.cache.max_bytes", 1L << 30),  // 1GB
+      Integer.getInteger("tsd.http.cache.max_files", 100000));
+    disk_cache.start(Long.getLong("tsd.http.cache.sweep_interval_ms", 60000));
+    final long memory_cache_size =
+      Long.getLong("tsd.http.cache.memory.max_bytes", 64L << 20);  // 64MB
+    memory_cache = memory_cache_size > 0
+      ? new MemoryCache(memory_cache_size) : null;
   }
 
   public void execute(final TSDB tsdb, final HttpQuery query) {
     if (!query.hasQueryStringParam("json")
         && !query.hasQueryStringParam("png")
-        && !query.hasQueryStringParam("ascii")) {
+        && !isStreamed(query)) {
       String uri = query.request().getUri();
       if (uri.length() < 4) {  // Shouldn't happen...
         uri = "/";             // But just in case, redirect.
@@ -127,9 +174,12 @@ final class GraphHandler implements HttpRpc {
 
   private void doGraph(final TSDB tsdb, final HttpQuery query)
     throws IOException {
+    final QueryProfile profile = new QueryProfile();
     final String basepath = getGnuplotBasePath(query);
     final long start_time = getQueryStringDate(query, "start");
-    final boolean nocache = query.hasQueryStringParam("nocache");
+    // Profiling a query served from cache wouldn't tell us anything.
+    final boolean nocache = query.hasQueryStringParam("nocache")
+      || query.hasQueryStringParam("profile");
     if (start_time == -1) {
       throw BadRequestException.missingParameter("start");
     }
@@ -139,12 +189,21 @@ final class GraphHandler implements HttpRpc {
       end_time = now;
     }
     final int max_age = computeMaxAge(query, start_time, end_time, now);
-    if (!nocache && isDiskCacheHit(query, end_time, max_age, basepath)) {
+    if (!nocache && (isStreamed(query)
+                     ? isStreamedCacheHit(query, end_time, max_age,
+                                          basepath, profile)
+                     : (isMemoryCacheHit(query, end_time, max_age, basepath)
+                        || isDiskCacheHit(query, end_time, max_age,
+                                          basepath)))) {
       return;
     }
     Query[] tsdbqueries;
     List<String> options;
+    final int uid_cache_hits = tsdb.uidCacheHits();
+    final int uid_cache_misses = tsdb.uidCacheMisses();
+    long stage_start = System.nanoTime();
     tsdbqueries = parseQuery(tsdb, query);
+    profile.addTimeSince("parse", stage_start);
     options = query.getQueryStringParams("o");
     if (options == null) {
       options = new ArrayList<String>(tsdbqueries.length);
@@ -156,6 +215,7 @@ final class GraphHandler implements HttpRpc {
         + tsdbqueries.length + " `m' parameters.");
     }
     for (final Query tsdbquery : tsdbqueries) {
+      tsdbquery.setProfile(profile);
       try {
         tsdbquery.setStartTime(start_time);
       } catch (IllegalArgumentException e) {
@@ -171,6 +231,7 @@ final class GraphHandler implements HttpRpc {
                                timezones.get(query.getQueryStringParam("tz")));
     setPlotDimensions(query, plot);
     setPlotParams(query, plot);
+    final Decimator decimator = getDecimator(query);
     final int nqueries = tsdbqueries.length;
     @SuppressWarnings("unchecked")
     final HashSet<String>[] aggregated_tags = new HashSet[nqueries];
@@ -181,7 +242,16 @@ final class GraphHandler implements HttpRpc {
         // TODO(tsuna): Optimization: run each query in parallel.
         final DataPoints[] series = tsdbqueries[i].run();
         for (final DataPoints datapoints : series) {
-          plot.add(datapoints, options.get(i));
+          if (decimator == null) {
+            plot.add(datapoints, options.get(i));
+          } else {
+            // Includes the time spent aggregating, which is done lazily.
+            stage_start = System.nanoTime();
+            final DataPoints decimated = decimator.decimate(datapoints,
+              start_time, end_time, plot.getWidth());
+            profile.addTimeSince("decimate", stage_start);
+            plot.add(decimated, options.get(i));
+          }
           aggregated_tags[i] = new HashSet<String>();
           aggregated_tags[i].addAll(datapoints.getAggregatedTags());
           npoints += datapoints.aggregatedSize();
@@ -194,15 +264,21 @@ final class GraphHandler implements HttpRpc {
       tsdbqueries[i] = null;  // free()
     }
     tsdbqueries = null;  // free()
+    // The UID cache is shared with other requests, so this is approximate.
+    profile.incrementCount("uid_cache_hits",
+                           tsdb.uidCacheHits() - uid_cache_hits);
+    profile.incrementCount("uid_cache_misses",
+                           tsdb.uidCacheMisses() - uid_cache_misses);
 
-    if (query.hasQueryStringParam("ascii")) {
-      respondAsciiQuery(query, max_age, basepath, plot);
+    if (isStreamed(query)) {
+      respondStreamedQuery(query, max_age, basepath, plot, profile);
       return;
     }
 
     try {
       gnuplot.execute(new RunGnuplot(query, max_age, plot, basepath,
-                                     aggregated_tags, npoints));
+                                     aggregated_tags, npoints, profile,
+                                     disk_cache, memory_cache));
     } catch (RejectedExecutionException e) {
       query.internalError(new Exception("Too many requests pending,"
                                         + " please try again later", e));
@@ -252,19 +328,30 @@ final class GraphHandler implements HttpRpc {
     private final String basepath;
     private final HashSet<String>[] aggregated_tags;
     private final int npoints;
+    private final QueryProfile profile;
+    private final DiskCache disk_cache;
+    private final MemoryCache memory_cache;
+    /** When this was submitted to the thread pool (in nanoseconds).  */
+    private final long enqueued = System.nanoTime();
 
     public RunGnuplot(final HttpQuery query,
                       final int max_age,
                       final Plot plot,
                       final String basepath,
                       final HashSet<String>[] aggregated_tags,
-                      final int npoints) {
+                      final int npoints,
+                      final QueryProfile profile,
+                      final DiskCache disk_cache,
+                      final MemoryCache memory_cache) {
       this.query = query;
       this.max_age = max_age;
       this.plot = plot;
       this.basepath = basepath;
       this.aggregated_tags = aggregated_tags;
       this.npoints = npoints;
+      this.profile = profile;
+      this.disk_cache = disk_cache;
+      this.memory_cache = memory_cache;
     }
 
     public void run() {
@@ -273,7 +360,11 @@ final class GraphHandler implements HttpRpc {
       } catch (BadRequestException e) {
         query.badRequest(e.getMessage());
       } catch (GnuplotException e) {
-        query.badRequest("<pre>" + e.getMessage() + "</pre>");
+        if (e.timedOut()) {
+          query.serviceUnavailable("<pre>" + e.getMessage() + "</pre>");
+        } else {
+          query.badRequest("<pre>" + e.getMessage() + "</pre>");
+        }
       } catch (RuntimeException e) {
         query.internalError(e);
       } catch (IOException e) {
@@ -282,7 +373,23 @@ final class GraphHandler implements HttpRpc {
     }
 
     private void execute() throws IOException {
-      final int nplotted = runGnuplot(query, basepath, plot);
+      // The time spent waiting for a Gnuplot thread is time lost for the user.
+      profile.addTimeSince("gnuplot_queue", enqueued);
+      final ByteArrayOutputStream png = new ByteArrayOutputStream();
+      int nplotted = renderPng(query, basepath, plot, profile, png);
+      if (nplotted < 0) {
+        nplotted = runGnuplot(query, basepath, plot, profile);
+        graphs_rendered_gnuplot.incrementAndGet();
+      } else {
+        graphs_rendered_natively.incrementAndGet();
+      }
+      // If we rendered the graph ourselves, no need to read it back from disk.
+      byte[] image = png.size() > 0 ? png.toByteArray() : null;
+      if (image == null && memory_cache != null) {
+        final File file = new File(basepath + ".png");
+        image = readFile(query, file, (int) file.length());
+      }
+      String cached_json = null;
       if (query.hasQueryStringParam("json")) {
         final StringBuilder buf = new StringBuilder(64);
         buf.append("{\"plotted\":").append(nplotted)
@@ -297,20 +404,42 @@ final class GraphHandler implements HttpRpc {
           buf.append(',');
         }
         buf.setCharAt(buf.length() - 1, ']');
+        // The profile isn't written to the cache, it only makes sense for
+        // the request that actually ran the query.
+        final int cached_length = buf.length();
+        if (query.hasQueryStringParam("profile")) {
+          buf.append(",\"profile\":");
+          profile.toJson(buf);
+        }
         // The "timing" field must remain last, loadCachedJson relies this.
-        buf.append(",\"timing\":").append(query.processingTimeMillis())
-          .append('}');
+        final String timing = ",\"timing\":" + query.processingTimeMillis()
+          + '}';
+        buf.append(timing);
+        cached_json = buf.substring(0, cached_length) + ",\"timing\":";
+        final byte[] cached =
+          (buf.substring(0, cached_length) + timing).getBytes();
         query.sendReply(buf);
-        writeFile(query, basepath + ".json", buf.toString().getBytes());
+        writeFile(query, basepath + ".json", cached);
       } else if (query.hasQueryStringParam("png")) {
-        query.sendFile(basepath + ".png", max_age);
+        if (image != null) {
+          query.sendReply(image, max_age);
+        } else {
+          query.sendFile(basepath + ".png", max_age);
+        }
       } else {
         query.internalError(new Exception("Should never be here!"));
       }
 
-      // TODO(tsuna): Expire old files from the on-disk cache.
+      disk_cache.added(basepath);
+      // Results that can't be cached by clients wouldn't be reused anyway.
+      if (memory_cache != null && max_age > 0
+          && (image != null || cached_json != null)) {
+        memory_cache.put(basepath, new MemoryCache.Entry(image, cached_json,
+          System.currentTimeMillis() / 1000));
+      }
       graphlatency.add(query.processingTimeMillis());
       graphs_generated.incrementAndGet();
+      logProfile(query, profile);
     }
 
   }
@@ -318,6 +447,10 @@ final class GraphHandler implements HttpRpc {
   /** Shuts down the thread pool used to run Gnuplot.  */
   public void shutdown() {
     gnuplot.shutdown();
+    disk_cache.shutdown();
+    if (gnuplot_pool != null) {
+      gnuplot_pool.shutdown();
+    }
   }
 
   /**
@@ -327,8 +460,19 @@ final class GraphHandler implements HttpRpc {
   public static void collectStats(final StatsCollector collector) {
     collector.record("http.latency", graphlatency, "type=graph");
     collector.record("http.latency", gnuplotlatency, "type=gnuplot");
+    collector.record("http.graph.requests", graphs_memcache_hit,
+                     "cache=memory");
     collector.record("http.graph.requests", graphs_diskcache_hit, "cache=disk");
     collector.record("http.graph.requests", graphs_generated, "cache=miss");
+    collector.record("http.graph.renderer", graphs_rendered_natively,
+                     "renderer=native");
+    collector.record("http.graph.renderer", graphs_rendered_gnuplot,
+                     "renderer=gnuplot");
+    if (gnuplot_pool != null) {
+      gnuplot_pool.collectStats(collector);
+    }
+    DiskCache.collectStats(collector);
+    MemoryCache.collectStats(collector);
   }
 
   /** Returns the base path to use for the Gnuplot files. */
@@ -342,6 +486,9 @@ final class GraphHandler implements HttpRpc {
     qs.remove("png");
     qs.remove("json");
     qs.remove("ascii");
+    qs.remove("jsondata");
+    qs.remove("binary");
+    qs.remove("profile");
     return cachedir + Integer.toHexString(qs.hashCode());
   }
 
@@ -360,13 +507,11 @@ final class GraphHandler implements HttpRpc {
                                  final long end_time,
                                  final int max_age,
                                  final String basepath) throws IOException {
-    final String cachepath = basepath + (query.hasQueryStringParam("ascii")
-                                         ? ".txt" : ".png");
+    final String cachepath = basepath + ".png";
     final File cachedfile = new File(cachepath);
     if (cachedfile.exists()) {
       final long bytes = cachedfile.length();
       if (bytes < 21) {  // Minimum possible size for a PNG: 21 bytes.
-                         // For .txt files, <21 bytes is almost impossible.
         logWarn(query, "Cached " + cachepath + " is too small ("
                 + bytes + " bytes) to be valid.  Ignoring it.");
         return false;
@@ -374,8 +519,22 @@ final class GraphHandler implements HttpRpc {
       if (staleCacheFile(query, end_time, max_age, cachedfile)) {
         return false;
       }
+      StringBuilder json = null;
+      byte[] png = null;
+      if (memory_cache != null) {
+        // Load the whole result in memory, so the next hits won't touch
+        // the disk.
+        json = loadCachedJson(query, end_time, max_age, basepath);
+        png = readFile(query, cachedfile, (int) bytes);
+        if (png != null) {
+          memory_cache.put(basepath, new MemoryCache.Entry(png,
+            json == null ? null : json.toString(),
+            cachedfile.lastModified() / 1000));
+        }
+      } else if (query.hasQueryStringParam("json")) {
+        json = loadCachedJson(query, end_time, max_age, basepath);
+      }
       if (query.hasQueryStringParam("json")) {
-        StringBuilder json = loadCachedJson(query, end_time, max_age, basepath);
         if (json == null) {
           json = new StringBuilder(32);
           json.append("{\"timing\":");
@@ -383,15 +542,19 @@ final class GraphHandler implements HttpRpc {
         json.append(query.processingTimeMillis())
           .append(",\"cachehit\":\"disk\"}");
         query.sendReply(json);
-      } else if (query.hasQueryStringParam("png")
-                 || query.hasQueryStringParam("ascii")) {
-        query.sendFile(cachepath, max_age);
+      } else if (query.hasQueryStringParam("png")) {
+        if (png != null) {
+          query.sendReply(png, max_age);
+        } else {
+          query.sendFile(cachepath, max_age);
+        }
       } else {
         query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
             "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
             + "<small>(served from disk cache)</small>"));
       }
       graphs_diskcache_hit.incrementAndGet();
+      disk_cache.accessed(basepath);
       return true;
     }
     // We didn't find an image.  Do a negative cache check.  If we've seen
@@ -414,6 +577,95 @@ final class GraphHandler implements HttpRpc {
             + "<small>(served from disk cache)</small>"));
     }
     graphs_diskcache_hit.incrementAndGet();
+    disk_cache.accessed(basepath);
+    return true;
+  }
+
+  /**
+   * Checks whether or not it's possible to re-serve a streamed query from
+   * disk (see {@link DataPointsStream#teeTo}), and does so if it is.
+   * @param query The query to serve.
+   * @param end_time The end time on the query (32-bit unsigned int, seconds).
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result in case of a cache hit.
+   * @param basepath The base path used for the Gnuplot files.
+   * @param profile The profile of the query.
+   * @return {@code true} if this request was served from disk (in which
+   * case processing can stop here), {@code false} otherwise (in which case
+   * the query needs to be processed).
+   */
+  private boolean isStreamedCacheHit(final HttpQuery query,
+                                     final long end_time,
+                                     final int max_age,
+                                     final String basepath,
+                                     final QueryProfile profile)
+    throws IOException {
+    // Only used to know the format the query wants.
+    final DataPointsStream format =
+      newStream(query, Collections.<DataPoints>emptyList(), profile);
+    final File cachedfile = new File(basepath + format.extension());
+    if (!cachedfile.exists()
+        || staleCacheFile(query, end_time, max_age, cachedfile)) {
+      return false;
+    }
+    final ChunkedFile input;
+    try {
+      input = new ChunkedFile(cachedfile);
+    } catch (FileNotFoundException e) {
+      return false;  // Evicted in the mean time.
+    }
+    query.sendChunked(format.mimeType(), input, max_age);
+    graphs_diskcache_hit.incrementAndGet();
+    disk_cache.accessed(basepath);
+    return true;
+  }
+
+  /**
+   * Checks whether or not it's possible to re-serve this query from memory.
+   * @param query The query to serve.
+   * @param end_time The end time on the query (32-bit unsigned int, seconds).
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result in case of a cache hit.
+   * @param basepath The base path used for the Gnuplot files.
+   * @return {@code true} if this request was served from memory (in which
+   * case processing can stop here), {@code false} otherwise.
+   */
+  private boolean isMemoryCacheHit(final HttpQuery query,
+                                   final long end_time,
+                                   final int max_age,
+                                   final String basepath) {
+    if (memory_cache == null) {
+      return false;
+    }
+    final MemoryCache.Entry entry = memory_cache.get(basepath);
+    if (entry == null
+        || staleCacheEntry(query, end_time, max_age, entry.mtime,
+                           "memory:" + basepath)) {
+      return false;
+    }
+    if (query.hasQueryStringParam("json")) {
+      if (entry.json == null) {
+        return false;  // Let's see if the disk cache has it.
+      }
+      final StringBuilder json =
+        new StringBuilder(entry.json.length() + 32).append(entry.json);
+      json.append(query.processingTimeMillis())
+        .append(",\"cachehit\":\"memory\"}");
+      query.sendReply(json);
+    } else if (query.hasQueryStringParam("png")) {
+      if (entry.png != null) {
+        query.sendReply(entry.png, max_age);
+      } else if (entry.json != null && entry.json.contains("\"plotted\":0")) {
+        query.sendReply(" ");  // Send back an empty response...
+      } else {
+        return false;
+      }
+    } else {
+      query.sendReply(HttpQuery.makePage("TSDB Query", "Your graph is ready",
+          "<img src=\"" + query.request().getUri() + "&amp;png\"/><br/>"
+          + "<small>(served from memory cache)</small>"));
+    }
+    graphs_memcache_hit.incrementAndGet();
     return true;
   }
 
@@ -434,12 +686,29 @@ final class GraphHandler implements HttpRpc {
     if (mtime <= 0) {
       return true;  // File doesn't exist, or can't be read.
     }
+    return staleCacheEntry(query, end_time, max_age, mtime, cachedfile);
+  }
 
+  /**
+   * Returns whether or not a cached result can be used or is stale.
+   * @param query The query to serve.
+   * @param end_time The end time on the query (32-bit unsigned int, seconds).
+   * @param max_age The maximum time (in seconds) we wanna allow clients to
+   * cache the result in case of a cache hit.  If the result is exactly that
+   * old, it is not considered stale.
+   * @param mtime When the result was generated (in seconds).
+   * @param what What the cached result is (for logging purposes).
+   */
+  private static boolean staleCacheEntry(final HttpQuery query,
+                                         final long end_time,
+                                         final long max_age,
+                                         final long mtime,
+                                         final Object what) {
     final long now = System.currentTimeMillis() / 1000;
     // How old is the cached file, in seconds?
     final long staleness = now - mtime;
     if (staleness < 0) {  // Can happen if the mtime is "in the future".
-      logWarn(query, "Not using file @ " + cachedfile + " with weird"
+      logWarn(query, "Not using " + what + " with weird"
               + " mtime in the future: " + mtime);
       return true;  // Play it safe, pretend we can't use this file.
     }
@@ -459,7 +728,7 @@ final class GraphHandler implements HttpRpc {
     // The cached file contains partial data and can only be re-used if it's
     // not too old.
     if (staleness > max_age) {
-      logInfo(query, "Cached file @ " + cachedfile.getPath() + " is "
+      logInfo(query, "Cached " + what + " is "
               + staleness + "s stale, which is more than its limit of "
               + max_age + "s, and needs to be regenerated.");
       return true;
@@ -699,10 +968,13 @@ final class GraphHandler implements HttpRpc {
 
   /**
    * Runs Gnuplot in a subprocess to generate the graph.
+   * The subprocess comes from the pool of Gnuplot processes, unless the
+   * pool is disabled, in which case a new one is forked.
    * <strong>This function will block</strong> while Gnuplot is running.
    * @param query The query being handled (for logging purposes).
    * @param basepath The base path used for the Gnuplot files.
    * @param plot The plot object to generate Gnuplot's input files.
+   * @param profile Where to record the time spent, can be {@code null}.
    * @return The number of points plotted by Gnuplot (0 or more).
    * @throws IOException if the Gnuplot files can't be written, or
    * the Gnuplot subprocess fails to start, or we can't read the
@@ -711,28 +983,39 @@ final class GraphHandler implements HttpRpc {
    */
   static int runGnuplot(final HttpQuery query,
                         final String basepath,
-                        final Plot plot) throws IOException {
-    final int nplotted = plot.dumpToFiles(basepath);
-    final long start_time = System.nanoTime();
-    final Process gnuplot = new ProcessBuilder(GNUPLOT,
-      basepath + ".out", basepath + ".err", basepath + ".gnuplot").start();
-    final int rv;
+                        final Plot plot,
+                        final QueryProfile profile) throws IOException {
+    final long dump_start = System.nanoTime();
+    final int nplotted;
+    final long start_time;
+    int rv = 0;
     try {
-      rv = gnuplot.waitFor();  // Couldn't find how to do this asynchronously.
-    } catch (InterruptedException e) {
-      Thread.currentThread().interrupt();  // Restore the interrupted status.
-      throw new IOException("interrupted", e);  // I hate checked exceptions.
+      nplotted = plot.dumpToFiles(basepath);
+      start_time = System.nanoTime();
+      try {
+        if (gnuplot_pool != null) {
+          gnuplot_pool.run(basepath + ".gnuplot");
+        } else {
+          rv = forkGnuplot(basepath);
+        }
+      } catch (GnuplotException e) {
+        // Sometimes Gnuplot will error out but still create the file.
+        new File(basepath + ".png").delete();
+        throw e;
+      } finally {
+        gnuplotlatency.add((int) ((System.nanoTime() - start_time) / 1000000));
+      }
     } finally {
-      // We need to always destroy() the Process, otherwise we "leak" file
-      // descriptors and pipes.  Unless I'm blind, this isn't actually
-      // documented in the Javadoc of the !@#$%^ JDK, and in Java 6 there's no
-      // way to ask the stupid-ass ProcessBuilder to not create fucking pipes.
-      // I think when the GC kicks in the JVM may run some kind of a finalizer
-      // that closes the pipes, because I've never seen this issue on long
-      // running TSDs, except where ulimit -n was low (the default, 1024).
-      gnuplot.destroy();
+      // Whether or not Gnuplot succeeded, its inputs are of no use anymore.
+      DiskCache.deleteGnuplotInputs(basepath);
+    }
+    if (profile != null) {
+      // Aggregation is done lazily as we iterate on the data points, so the
+      // time spent aggregating is accounted for in "dump".
+      profile.addTime("dump", start_time - dump_start);
+      profile.addTimeSince("gnuplot", start_time);
+      profile.incrementCount("points", nplotted);
     }
-    gnuplotlatency.add((int) ((System.nanoTime() - start_time) / 1000000));
     if (rv != 0) {
       final byte[] stderr = readFile(query, new File(basepath + ".err"),
                                      4096);
@@ -749,6 +1032,73 @@ final class GraphHandler implements HttpRpc {
     return nplotted;
   }
 
+  /**
+   * Renders the graph in the JVM, if the plot doesn't need Gnuplot.
+   * The PNG is also written to disk, so it can be served from the cache.
+   * @param query The query being handled (for logging purposes).
+   * @param basepath The base path used for the Gnuplot files.
+   * @param plot The plot to render.
+   * @param profile Where to record the time spent.
+   * @param png Where to write the PNG image.
+   * @return The number of points plotted (0 or more), or -1 if the graph
+   * needs to be rendered by Gnuplot instead.
+   */
+  private static int renderPng(final HttpQuery query,
+                               final String basepath,
+                               final Plot plot,
+                               final QueryProfile profile,
+                               final ByteArrayOutputStream png)
+    throws IOException {
+    if (!NATIVE_RENDERER || !plot.canWritePng()) {
+      return -1;
+    }
+    final long start_time = System.nanoTime();
+    final int nplotted;
+    try {
+      nplotted = plot.writePng(png);
+    } catch (IllegalStateException e) {
+      throw e;  // Bad data (e.g. NaN), Gnuplot wouldn't do any better.
+    } catch (RuntimeException e) {
+      logError(query, "Failed to render the graph, falling back to Gnuplot",
+               e);
+      png.reset();
+      return -1;
+    }
+    // Aggregation is done lazily as we iterate on the data points, so the
+    // time spent aggregating is accounted for in "render".
+    profile.addTimeSince("render", start_time);
+    profile.incrementCount("points", nplotted);
+    writeFile(query, basepath + ".png", png.toByteArray());
+    return nplotted;
+  }
+
+  /**
+   * Forks a new Gnuplot process to run the script of a graph.
+   * @param basepath The base path used for the Gnuplot files.
+   * @return The return value of Gnuplot.
+   * @throws IOException if the Gnuplot subprocess fails to start, or if we
+   * have been interrupted.
+   */
+  private static int forkGnuplot(final String basepath) throws IOException {
+    final Process gnuplot = new ProcessBuilder(GNUPLOT,
+      basepath + ".out", basepath + ".err", basepath + ".gnuplot").start();
+    try {
+      return gnuplot.waitFor();  // Couldn't find how to do this asynchronously.
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();  // Restore the interrupted status.
+      throw new IOException("interrupted", e);  // I hate checked exceptions.
+    } finally {
+      // We need to always destroy() the Process, otherwise we "leak" file
+      // descriptors and pipes.  Unless I'm blind, this isn't actually
+      // documented in the Javadoc of the !@#$%^ JDK, and in Java 6 there's no
+      // way to ask the stupid-ass ProcessBuilder to not create fucking pipes.
+      // I think when the GC kicks in the JVM may run some kind of a finalizer
+      // that closes the pipes, because I've never seen this issue on long
+      // running TSDs, except where ulimit -n was low (the default, 1024).
+      gnuplot.destroy();
+    }
+  }
+
   private static void deleteFileIfEmpty(final String path) {
     final File file = new File(path);
     if (file.length() <= 0) {
@@ -757,63 +1107,93 @@ final class GraphHandler implements HttpRpc {
   }
 
   /**
-   * Respond to a query that wants the output in ASCII.
+   * Returns whether or not the query wants the data points themselves
+   * ({@code ascii}, {@code jsondata} or {@code binary}) instead of a graph.
+   */
+  private static boolean isStreamed(final HttpQuery query) {
+    return query.hasQueryStringParam("ascii")
+      || query.hasQueryStringParam("jsondata")
+      || wantsBinary(query);
+  }
+
+  /**
+   * Returns whether or not the query wants the data points in binary, either
+   * with the {@code binary} parameter or with an {@code Accept} header.
+   * The header is ignored when the query explicitly asks for another output
+   * ({@code png}, {@code json}, {@code ascii} or {@code jsondata}).
+   */
+  private static boolean wantsBinary(final HttpQuery query) {
+    if (query.hasQueryStringParam("binary")) {
+      return true;
+    }
+    if (query.hasQueryStringParam("png")
+        || query.hasQueryStringParam("json")
+        || query.hasQueryStringParam("ascii")
+        || query.hasQueryStringParam("jsondata")) {
+      return false;
+    }
+    final String accept = query.request().getHeader(HttpHeaders.Names.ACCEPT);
+    return accept != null && accept.contains(BinaryFormat.MIME_TYPE);
+  }
+
+  /**
+   * Respond to a query that wants the data points instead of a graph.
    * <p>
    * When a query specifies the "ascii" query string parameter, we send the
    * data points back to the client in plain text instead of sending a PNG.
+   * With the "jsondata" parameter, we send them in JSON, and with "binary"
+   * in the format described in {@link net.opentsdb.tools.DataPointsDecoder}.
+   * Either way, the data points are serialized as they're sent to the
+   * client, so this doesn't require buffering the whole result.  A copy is
+   * written to the disk cache along the way.
    * @param query The query we're currently serving.
    * @param max_age The maximum time (in seconds) we wanna allow clients to
-   * cache the result in case of a cache hit.
+   * cache the result.
    * @param basepath The base path used for the Gnuplot files.
-   * @param plot The plot object to generate Gnuplot's input files.
+   * @param plot The plot object that holds the data points.
+   * @param profile Where to record the time spent.
    */
-  private static void respondAsciiQuery(final HttpQuery query,
-                                        final int max_age,
-                                        final String basepath,
-                                        final Plot plot) {
-    final String path = basepath + ".txt";
-    PrintWriter asciifile;
-    try {
-      asciifile = new PrintWriter(path);
-    } catch (IOException e) {
-      query.internalError(e);
-      return;
-    }
-    try {
-      final StringBuilder tagbuf = new StringBuilder();
-      for (final DataPoints dp : plot.getDataPoints()) {
-        final String metric = dp.metricName();
-        tagbuf.setLength(0);
-        for (final Map.Entry<String, String> tag : dp.getTags().entrySet()) {
-          tagbuf.append(' ').append(tag.getKey())
-            .append('=').append(tag.getValue());
-        }
-        for (final DataPoint d : dp) {
-          asciifile.print(metric);
-          asciifile.print(' ');
-          asciifile.print(d.timestamp());
-          asciifile.print(' ');
-          if (d.isInteger()) {
-            asciifile.print(d.longValue());
-          } else {
-            final double value = d.doubleValue();
-            if (value != value || Double.isInfinite(value)) {
-              throw new IllegalStateException("NaN or Infinity:" + value
-                + " d=" + d + ", query=" + query);
-            }
-            asciifile.print(value);
-          }
-          asciifile.print(tagbuf);
-          asciifile.print('\n');
-        }
-      }
-    } finally {
-      asciifile.close();
-    }
-    try {
-      query.sendFile(path, max_age);
-    } catch (IOException e) {
-      query.internalError(e);
+  private void respondStreamedQuery(final HttpQuery query,
+                                    final int max_age,
+                                    final String basepath,
+                                    final Plot plot,
+                                    final QueryProfile profile) {
+    final DataPointsStream stream =
+      newStream(query, plot.getDataPoints(), profile);
+    stream.teeTo(disk_cache, basepath);
+    query.sendChunked(stream.mimeType(), stream, max_age);
+  }
+
+  /**
+   * Returns a stream of data points in the format the query wants.
+   * @param query The query we're currently serving.
+   * @param series The series to serialize.
+   * @param profile Where to record the time spent.
+   */
+  private static DataPointsStream newStream(final HttpQuery query,
+                                            final Iterable<DataPoints> series,
+                                            final QueryProfile profile) {
+    if (wantsBinary(query)) {
+      return new DataPointsStream.Binary(query, series, profile);
+    } else if (query.hasQueryStringParam("jsondata")) {
+      return new DataPointsStream.Json(query, series, profile);
+    }
+    return new DataPointsStream.Ascii(query, series, profile);
+  }
+
+  /**
+   * Logs the profile of a query if it was asked for or if the query was slow.
+   * @param query The query we're currently serving.
+   * @param profile The profile of that query.
+   */
+  static void logProfile(final HttpQuery query, final QueryProfile profile) {
+    final int latency = query.processingTimeMillis();
+    if (latency >= SLOW_QUERY_MS) {
+      logWarn(query, "Slow query (" + latency + "ms): "
+              + query.request().getUri() + ' ' + profile);
+    } else if (query.hasQueryStringParam("profile")) {
+      logInfo(query, "Query took " + latency + "ms: "
+              + query.request().getUri() + ' ' + profile);
     }
   }
 
@@ -878,6 +1258,29 @@ final class GraphHandler implements HttpRpc {
     return tsdbqueries;
   }
 
+  /**
+   * Returns the decimator to use to reduce the number of data points to what
+   * the graph can show, or {@code null} to not decimate.
+   * Graphs are decimated with {@link Decimators#MINMAX} unless the
+   * {@code decimate} parameter says otherwise ({@code none} turns it off).
+   * ASCII and JSON data aren't decimated unless explicitly asked for.
+   * @param query The HTTP query.
+   * @throws BadRequestException if the decimator doesn't exist.
+   */
+  private static Decimator getDecimator(final HttpQuery query) {
+    final String name = query.getQueryStringParam("decimate");
+    if (name == null) {
+      return isStreamed(query) ? null : Decimators.MINMAX;
+    } else if ("none".equals(name)) {
+      return null;
+    }
+    try {
+      return Decimators.get(name);
+    } catch (NoSuchElementException e) {
+      throw new BadRequestException("No such decimation function: " + name);
+    }
+  }
+
   /**
    * Returns the aggregator with the given name.
    * @param name Name of the aggregator to get.
@@ -1034,6 +1437,23 @@ final class GraphHandler implements HttpRpc {
     }
   }
 
+  /**
+   * Number of long-lived Gnuplot processes to keep around.  By default we
+   * keep one per core, like the number of threads running Gnuplot.  If set
+   * to 0, a new Gnuplot process is forked for every graph.
+   */
+  private static final int GNUPLOT_WORKERS =
+    Integer.getInteger("tsd.http.graph.gnuplot.workers",
+                       Runtime.getRuntime().availableProcessors());
+  /** How long (in ms) Gnuplot has to render a graph before being killed. */
+  private static final long GNUPLOT_TIMEOUT_MS =
+    Long.getLong("tsd.http.graph.gnuplot.timeout_ms", 60000);
+  /** Pool of Gnuplot processes, or {@code null} if disabled. */
+  private static final GnuplotPool gnuplot_pool = GNUPLOT_WORKERS > 0
+    ? new GnuplotPool(new String[] { "nice", "gnuplot" },
+                      GNUPLOT_WORKERS, GNUPLOT_TIMEOUT_MS)
+    : null;
+
   /** Name of the wrapper script we use to execute Gnuplot.  */
   private static final String WRAPPER = "mygnuplot.sh";
   /** Path to the wrapper script.  */
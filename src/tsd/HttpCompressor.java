@@ -0,0 +1,106 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.jboss.netty.handler.codec.http.HttpContentCompressor;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMessage;
+
+import net.opentsdb.core.BinaryFormat;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Compresses HTTP responses with gzip or deflate, as negotiated with the
+ * {@code Accept-Encoding} header of the request.
+ * <p>
+ * Small responses aren't worth the CPU time, so they're sent as-is, and so
+ * are responses that are already compressed (PNG, GIF...) or that already
+ * have a {@code Content-Encoding} (such as the pre-compressed static files).
+ * Streamed (chunked) responses are always compressed, since we don't know
+ * how large they will be.
+ * <p>
+ * This handler isn't sharable, a new instance is needed for each channel.
+ */
+final class HttpCompressor extends HttpContentCompressor {
+
+  /**
+   * Responses smaller than this (in bytes) aren't compressed.
+   * A negative value disables compression entirely.
+   */
+  static final int MIN_SIZE =
+    Integer.getInteger("tsd.http.compression.min_bytes", 1024);
+
+  /** zlib compression level, from 1 (fastest) to 9 (smallest). */
+  private static final int LEVEL =
+    Integer.getInteger("tsd.http.compression.level", 6);
+
+  private static final AtomicLong compressed = new AtomicLong();
+  private static final AtomicLong uncompressed = new AtomicLong();
+
+  /** Constructor.  */
+  public HttpCompressor() {
+    super(LEVEL);
+  }
+
+  /** Returns {@code true} if HTTP responses should be compressed at all.  */
+  static boolean enabled() {
+    return MIN_SIZE >= 0;
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.responses", compressed, "encoding=compressed");
+    collector.record("http.responses", uncompressed, "encoding=identity");
+  }
+
+  @Override
+  protected EncoderEmbedder<ChannelBuffer>
+    newContentEncoder(final HttpMessage msg,
+                      final String accept_encoding) throws Exception {
+    if (!isCompressible(msg)) {
+      uncompressed.incrementAndGet();
+      return null;
+    }
+    // The response depends on the Accept-Encoding of the request, so tell
+    // caches about it, even if this particular client doesn't get gzip.
+    msg.addHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+    final EncoderEmbedder<ChannelBuffer> encoder =
+      super.newContentEncoder(msg, accept_encoding);
+    (encoder == null ? uncompressed : compressed).incrementAndGet();
+    return encoder;
+  }
+
+  /**
+   * Returns {@code true} if the given response is worth compressing.
+   * @param msg The HTTP response about to be sent.
+   */
+  static boolean isCompressible(final HttpMessage msg) {
+    if (!msg.isChunked() && msg.getContent().readableBytes() < MIN_SIZE) {
+      return false;
+    }
+    final String type = msg.getHeader(HttpHeaders.Names.CONTENT_TYPE);
+    return type == null
+      || type.startsWith("text/")
+      || type.startsWith("application/json")
+      || type.startsWith("application/javascript")
+      || type.startsWith(BinaryFormat.MIME_TYPE);
+  }
+
+}
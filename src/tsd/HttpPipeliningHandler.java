@@ -0,0 +1,160 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Makes HTTP pipelining work on persistent connections.
+ * <p>
+ * A client can send several requests on a connection without waiting for
+ * the responses, but the responses must be sent back in the same order as
+ * the requests.  Since some requests are answered asynchronously (graphs,
+ * streamed query results...), a response could otherwise overtake the one
+ * of a previous request.  So we only let one request at a time go through
+ * to the {@link RpcHandler}, and queue the others until the response to the
+ * current request has been sent (see {@link #requestDone}).
+ * <p>
+ * When too many requests are queued, we stop reading from the connection
+ * until we catch up.
+ * <p>
+ * This handler isn't sharable, a new instance is needed for each channel.
+ */
+final class HttpPipeliningHandler extends SimpleChannelUpstreamHandler {
+
+  /** Max number of requests queued before we stop reading. */
+  private static final int MAX_QUEUED =
+    Integer.getInteger("tsd.http.pipelining.max_queued", 16);
+
+  /** Number of requests that had to wait for a previous request. */
+  private static final AtomicLong requests_queued = new AtomicLong();
+
+  /**
+   * Events waiting for the current request to be done.
+   * Must be accessed while synchronized on {@code this}.
+   */
+  private final ArrayDeque<MessageEvent> queue = new ArrayDeque<MessageEvent>();
+
+  /**
+   * The request currently being processed, if any.
+   * Must be accessed while synchronized on {@code this}.
+   */
+  private HttpRequest current;
+
+  /** Our context in the pipeline, set on the first request.  */
+  private volatile ChannelHandlerContext ctx;
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.pipelined", requests_queued);
+  }
+
+  @Override
+  public void messageReceived(final ChannelHandlerContext ctx,
+                              final MessageEvent e) {
+    this.ctx = ctx;
+    synchronized (this) {
+      if (current != null || !queue.isEmpty()) {
+        if (e.getMessage() instanceof HttpRequest) {
+          requests_queued.incrementAndGet();
+        }
+        queue.add(e);
+        if (queue.size() == MAX_QUEUED) {
+          e.getChannel().setReadable(false);
+        }
+        return;
+      }
+      current = currentRequest(e);
+    }
+    ctx.sendUpstream(e);
+  }
+
+  /**
+   * Must be called once the response to the current request has been sent,
+   * or once we know it never will, to let the next request (if any) go
+   * through.
+   * This method can be called from any thread.  Calling it more than once
+   * for the same request is harmless.
+   * @param request The request that's done.
+   */
+  void requestDone(final HttpRequest request) {
+    synchronized (this) {
+      if (current != request) {
+        return;  // Already done.
+      }
+      current = null;
+      if (queue.isEmpty()) {
+        return;
+      }
+    }
+    // Process the next request from the I/O thread of the channel, like
+    // any other request.
+    ctx.getPipeline().execute(new Runnable() {
+      public void run() {
+        dispatchQueued();
+      }
+    });
+  }
+
+  /** Sends the queued events upstream, until the next request.  */
+  private void dispatchQueued() {
+    while (true) {
+      final MessageEvent e;
+      synchronized (this) {
+        if (current != null) {
+          return;
+        }
+        e = queue.poll();
+        if (e == null) {
+          return;
+        }
+        if (queue.size() == MAX_QUEUED - 1) {
+          e.getChannel().setReadable(true);
+        }
+        current = currentRequest(e);
+      }
+      ctx.sendUpstream(e);
+    }
+  }
+
+  /**
+   * Returns the request that stays current until it's done once the given
+   * event is sent upstream, or {@code null} if the event isn't a request.
+   */
+  private static HttpRequest currentRequest(final MessageEvent e) {
+    final Object message = e.getMessage();
+    return message instanceof HttpRequest ? (HttpRequest) message : null;
+  }
+
+  @Override
+  public void channelClosed(final ChannelHandlerContext ctx,
+                            final ChannelStateEvent e) {
+    synchronized (this) {
+      queue.clear();
+    }
+    ctx.sendUpstream(e);
+  }
+
+}
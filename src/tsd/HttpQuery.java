@@ -34,12 +34,15 @@ import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.DefaultFileRegion;
+import org.jboss.netty.handler.codec.http.DefaultHttpChunk;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpChunk;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
 import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.handler.stream.ChunkedInput;
 import org.jboss.netty.util.CharsetUtil;
 
 import net.opentsdb.core.Const;
@@ -252,6 +255,33 @@ final class HttpQuery {
     logWarn("Bad Request on " + request.getUri() + ": " + explain);
   }
 
+  /**
+   * Sends a 503 error page to the client.
+   * @param explain The string describing why the request couldn't be served.
+   */
+  public void serviceUnavailable(final String explain) {
+    if (hasQueryStringParam("json")) {
+      final StringBuilder buf = new StringBuilder(10 + explain.length());
+      buf.append("{\"err\":\"");
+      HttpQuery.escapeJson(explain, buf);
+      buf.append("\"}");
+      sendReply(HttpResponseStatus.SERVICE_UNAVAILABLE, buf);
+    } else if (hasQueryStringParam("png")) {
+      sendAsPNG(HttpResponseStatus.SERVICE_UNAVAILABLE, explain, 30);
+    } else {
+      sendReply(HttpResponseStatus.SERVICE_UNAVAILABLE,
+                makePage("Service Unavailable", "We can't keep up",
+                         "<blockquote>"
+                         + "<h1>Service Unavailable</h1>"
+                         + "Sorry but we couldn't serve your request in"
+                         + " time.<br/><br/>"
+                         + "Please try again in 30 seconds.<blockquote>"
+                         + explain
+                         + "</blockquote></blockquote>"));
+    }
+    logWarn("Service Unavailable on " + request.getUri() + ": " + explain);
+  }
+
   /** Sends a 404 error page to the client. */
   public void notFound() {
     logWarn("Not Found: " + request.getUri());
@@ -378,6 +408,23 @@ final class HttpQuery {
     sendBuffer(HttpResponseStatus.OK, ChannelBuffers.wrappedBuffer(data));
   }
 
+  /**
+   * Sends data in an HTTP "200 OK" reply to the client.
+   * @param data Raw byte array to send as-is after the HTTP headers.
+   * @param max_age The expiration time of this entity, in seconds.  This is
+   * not a timestamp, it's how old the resource is allowed to be in the client
+   * cache.  See RFC 2616 section 14.9 for more information.  Use 0 to disable
+   * caching.
+   * @since 1.2
+   */
+  public void sendReply(final byte[] data, final int max_age) {
+    if (max_age < 0) {
+      throw new IllegalArgumentException("Negative max_age=" + max_age);
+    }
+    sendBuffer(HttpResponseStatus.OK, ChannelBuffers.wrappedBuffer(data),
+               max_age);
+  }
+
   /**
    * Sends an HTTP reply to the client.
    * <p>
@@ -447,7 +494,7 @@ final class HttpQuery {
       final String basepath =
         RpcHandler.getDirectoryFromSystemProp("tsd.http.cachedir")
         + Integer.toHexString(msg.hashCode());
-      GraphHandler.runGnuplot(this, basepath, plot);
+      GraphHandler.runGnuplot(this, basepath, plot, null);
       plot = null;
       sendFile(status, basepath + ".png", max_age);
     } catch (Exception e) {
@@ -506,22 +553,12 @@ final class HttpQuery {
       return;
     }
     final long length = file.length();
+    final boolean keepalive;
     {
       final DefaultHttpResponse response =
-        new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
-      final String mimetype = guessMimeTypeFromUri(path);
-      response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
-                         mimetype == null ? "text/plain" : mimetype);
-      final long mtime = new File(path).lastModified();
-      if (mtime > 0) {
-        response.setHeader(HttpHeaders.Names.AGE,
-                           (System.currentTimeMillis() - mtime) / 1000);
-      } else {
-        logWarn("Found a file with mtime=" + mtime + ": " + path);
-      }
-      response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
-                         max_age == 0 ? "no-cache" : "max-age=" + max_age);
+        newFileResponse(status, path, new File(path).lastModified(), max_age);
       HttpHeaders.setContentLength(response, length);
+      keepalive = setConnectionHeader(response);
       chan.write(response);
     }
     final DefaultFileRegion region = new DefaultFileRegion(file.getChannel(),
@@ -533,7 +570,132 @@ final class HttpQuery {
         done();
       }
     });
-    if (!HttpHeaders.isKeepAlive(request)) {
+    if (!keepalive) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+
+  /**
+   * Sends the contents of a file, compressed with gzip, with a 200 OK status.
+   * The caller is responsible for checking that the client accepts gzip.
+   * @param path The path to the file, used to guess its MIME type.
+   * @param gzipped The contents of the file, compressed with gzip.
+   * @param mtime When the file was last modified (in milliseconds).
+   * @param max_age The expiration time of this entity, in seconds.  This is
+   * not a timestamp, it's how old the resource is allowed to be in the client
+   * cache.  See RFC 2616 section 14.9 for more information.  Use 0 to disable
+   * caching.
+   * @since 1.2
+   */
+  public void sendGzippedFile(final String path,
+                              final byte[] gzipped,
+                              final long mtime,
+                              final int max_age) {
+    if (max_age < 0) {
+      throw new IllegalArgumentException("Negative max_age=" + max_age
+                                         + " for path=" + path);
+    }
+    if (!chan.isConnected()) {
+      done();
+      return;
+    }
+    final DefaultHttpResponse response =
+      newFileResponse(HttpResponseStatus.OK, path, mtime, max_age);
+    response.setHeader(HttpHeaders.Names.CONTENT_ENCODING,
+                       HttpHeaders.Values.GZIP);
+    response.setHeader(HttpHeaders.Names.VARY,
+                       HttpHeaders.Names.ACCEPT_ENCODING);
+    response.setContent(ChannelBuffers.wrappedBuffer(gzipped));
+    sendResponse(response);
+  }
+
+  /**
+   * Returns a new response with the headers common to all static files.
+   * @param status The status of the request (e.g. 200 OK or 404 Not Found).
+   * @param path The path to the file, used to guess its MIME type.
+   * @param mtime When the file was last modified (in milliseconds).
+   * @param max_age How long the client can cache the file, in seconds.
+   */
+  private DefaultHttpResponse newFileResponse(final HttpResponseStatus status,
+                                              final String path,
+                                              final long mtime,
+                                              final int max_age) {
+    final DefaultHttpResponse response =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+    final String mimetype = guessMimeTypeFromUri(path);
+    response.setHeader(HttpHeaders.Names.CONTENT_TYPE,
+                       mimetype == null ? "text/plain" : mimetype);
+    if (mtime > 0) {
+      response.setHeader(HttpHeaders.Names.AGE,
+                         (System.currentTimeMillis() - mtime) / 1000);
+    } else {
+      logWarn("Found a file with mtime=" + mtime + ": " + path);
+    }
+    response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+                       max_age == 0 ? "no-cache" : "max-age=" + max_age);
+    return response;
+  }
+
+  /**
+   * Streams an HTTP "200 OK" reply to the client.
+   * <p>
+   * The content of the reply is pulled from the given input one chunk at a
+   * time, and only when the channel is writable, so the whole reply never
+   * needs to be buffered in memory.  HTTP/1.1 clients get the reply with
+   * chunked transfer encoding, HTTP/1.0 clients get the raw bytes and the
+   * connection is closed at the end of the reply.
+   * @param mimetype The MIME type of the reply.
+   * @param input Where to read the reply from.  Each chunk it returns must
+   * be a {@link ChannelBuffer}.  The input will be closed once the reply has
+   * been sent, or if we fail to send it.
+   * @param max_age The expiration time of this entity, in seconds.  This is
+   * not a timestamp, it's how old the resource is allowed to be in the client
+   * cache.  See RFC 2616 section 14.9 for more information.  Use 0 to disable
+   * caching.
+   * @since 1.2
+   */
+  public void sendChunked(final String mimetype,
+                          final ChunkedInput input,
+                          final int max_age) {
+    if (max_age < 0) {
+      throw new IllegalArgumentException("Negative max_age=" + max_age);
+    }
+    if (!chan.isConnected()) {
+      try {
+        input.close();
+      } catch (Exception e) {
+        logError("Failed to close " + input, e);
+      }
+      done();
+      return;
+    }
+    final boolean chunked =
+      !HttpVersion.HTTP_1_0.equals(request.getProtocolVersion());
+    final DefaultHttpResponse response =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setHeader(HttpHeaders.Names.CONTENT_TYPE, mimetype);
+    response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+                       max_age == 0 ? "no-cache" : "max-age=" + max_age);
+    response.setChunked(chunked);
+    final boolean keepalive = chunked && setConnectionHeader(response);
+    if (!chunked) {
+      response.setHeader(HttpHeaders.Names.CONNECTION,
+                         HttpHeaders.Values.CLOSE);
+    }
+    chan.write(response);
+    final ChannelFuture future =
+      chan.write(chunked ? new HttpChunkedInput(input) : input);
+    future.addListener(new ChannelFutureListener() {
+      public void operationComplete(final ChannelFuture future) {
+        if (!future.isSuccess()) {
+          // Too late to send an error, the client already got a 200.
+          logError("Failed to stream the reply", future.getCause());
+          chan.close();
+        }
+        done();
+      }
+    });
+    if (!keepalive) {
       future.addListener(ChannelFutureListener.CLOSE);
     }
   }
@@ -555,6 +717,19 @@ final class HttpQuery {
    */
   private void sendBuffer(final HttpResponseStatus status,
                           final ChannelBuffer buf) {
+    sendBuffer(status, buf, -1);
+  }
+
+  /**
+   * Sends an HTTP reply to the client.
+   * @param status The status of the request (e.g. 200 OK or 404 Not Found).
+   * @param buf The content of the reply to send.
+   * @param max_age How long the client can cache the reply, in seconds, or
+   * -1 to not send any {@code Cache-Control} header.
+   */
+  private void sendBuffer(final HttpResponseStatus status,
+                          final ChannelBuffer buf,
+                          final int max_age) {
     if (!chan.isConnected()) {
       done();
       return;
@@ -562,12 +737,26 @@ final class HttpQuery {
     final DefaultHttpResponse response =
       new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
     response.setHeader(HttpHeaders.Names.CONTENT_TYPE, guessMimeType(buf));
+    if (max_age >= 0) {
+      response.setHeader(HttpHeaders.Names.CACHE_CONTROL,
+                         max_age == 0 ? "no-cache" : "max-age=" + max_age);
+    }
     // TODO(tsuna): Server, X-Backend, etc. headers.
     response.setContent(buf);
-    final boolean keepalive = HttpHeaders.isKeepAlive(request);
-    if (keepalive) {
-      HttpHeaders.setContentLength(response, buf.readableBytes());
-    }
+    sendResponse(response);
+  }
+
+  /**
+   * Sends a complete HTTP response, and closes the connection afterwards
+   * unless the client wants to keep it alive.
+   * @param response The response to send, with its content.
+   */
+  private void sendResponse(final DefaultHttpResponse response) {
+    // Always send a Content-Length, even to clients that don't use keep-alive,
+    // so that the HttpCompressor can update it if it compresses the content.
+    HttpHeaders.setContentLength(response,
+                                 response.getContent().readableBytes());
+    final boolean keepalive = setConnectionHeader(response);
     final ChannelFuture future = chan.write(response);
     if (!keepalive) {
       future.addListener(ChannelFutureListener.CLOSE);
@@ -575,6 +764,26 @@ final class HttpQuery {
     done();
   }
 
+  /**
+   * Sets the {@code Connection} header of a response.
+   * HTTP/1.1 connections are persistent by default, but HTTP/1.0 clients
+   * need to be told explicitly that we're keeping the connection open.
+   * @param response The response about to be sent.
+   * @return {@code true} if the connection must be kept open after sending
+   * the response, {@code false} if it must be closed.
+   */
+  private boolean setConnectionHeader(final DefaultHttpResponse response) {
+    if (!HttpHeaders.isKeepAlive(request)) {
+      response.setHeader(HttpHeaders.Names.CONNECTION,
+                         HttpHeaders.Values.CLOSE);
+      return false;
+    } else if (HttpVersion.HTTP_1_0.equals(request.getProtocolVersion())) {
+      response.setHeader(HttpHeaders.Names.CONNECTION,
+                         HttpHeaders.Values.KEEP_ALIVE);
+    }
+    return true;
+  }
+
   /**
    * Returns the result of an attempt to guess the MIME type of the response.
    * @param buf The content of the reply to send.
@@ -696,6 +905,51 @@ final class HttpQuery {
       + ')';
   }
 
+  /**
+   * Wraps the {@link ChannelBuffer}s of another input in HTTP chunks, and
+   * adds the last (empty) chunk once that input is exhausted.
+   */
+  private static final class HttpChunkedInput implements ChunkedInput {
+
+    private final ChunkedInput input;
+    /** Whether or not we returned the last chunk. */
+    private boolean last_sent;
+
+    HttpChunkedInput(final ChunkedInput input) {
+      this.input = input;
+    }
+
+    public boolean hasNextChunk() throws Exception {
+      return !last_sent;
+    }
+
+    public Object nextChunk() throws Exception {
+      if (last_sent) {
+        return null;
+      }
+      while (!input.isEndOfInput()) {
+        final ChannelBuffer buf = (ChannelBuffer) input.nextChunk();
+        if (buf == null) {
+          return null;  // Not ready yet.
+        } else if (buf.readable()) {
+          return new DefaultHttpChunk(buf);
+        }
+        // Don't send empty chunks, they mark the end of the reply.
+      }
+      last_sent = true;
+      return HttpChunk.LAST_CHUNK;
+    }
+
+    public boolean isEndOfInput() throws Exception {
+      return last_sent;
+    }
+
+    public void close() throws Exception {
+      input.close();
+    }
+
+  }
+
   // ---------------- //
   // Logging helpers. //
   // ---------------- //
@@ -708,7 +962,7 @@ final class HttpQuery {
     LOG.warn(chan.toString() + ' ' + msg);
   }
 
-  private void logError(final String msg, final Exception e) {
+  private void logError(final String msg, final Throwable e) {
     LOG.error(chan.toString() + ' ' + msg, e);
   }
 
@@ -0,0 +1,187 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+
+import org.jboss.netty.channel.Channel;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Flow control for the data points written by clients.
+ * <p>
+ * Every put sent to HBase is outstanding until HBase has acknowledged it.
+ * When too many puts are outstanding (more than the high-water mark), we
+ * stop reading from the channels that send us more, so that the clients
+ * slow down instead of having us buffer their data points without bounds
+ * in the HBase client.  Once enough puts have completed (we're down to the
+ * low-water mark), we start reading from all those channels again.
+ * <p>
+ * This class is thread-safe.
+ */
+final class IngestThrottle {
+
+  // Totals for all the throttles in this JVM (in practice there's only one).
+  private static final AtomicLong outstanding_puts = new AtomicLong();
+  private static final AtomicLong paused_channels = new AtomicLong();
+  private static final AtomicLong pauses = new AtomicLong();
+  private static final AtomicLong throttle_time = new AtomicLong();
+
+  /** Max number of outstanding puts before we stop reading. */
+  private final int high_water_mark;
+
+  /** Number of outstanding puts under which we start reading again. */
+  private final int low_water_mark;
+
+  /** Number of puts that haven't completed yet. */
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  /**
+   * Channels we stopped reading from.
+   * Must be accessed while synchronized on itself.
+   */
+  private final HashSet<Channel> paused = new HashSet<Channel>();
+
+  /**
+   * When we started to pause channels (in nanoseconds).
+   * Must be accessed while synchronized on {@link #paused}.
+   */
+  private long paused_since;
+
+  /**
+   * Whether or not we paused some channels.  Only changes while
+   * synchronized on {@link #paused}, but can be read without the lock so
+   * that completing a put doesn't need it in the common case.
+   */
+  private volatile boolean throttling;
+
+  /** Decrements the number of outstanding puts once a put completes.  */
+  private final Callback<Object, Object> done_cb =
+    new Callback<Object, Object>() {
+      public Object call(final Object arg) {
+        done();
+        return arg;
+      }
+      public String toString() {
+        return "put done";
+      }
+    };
+
+  /**
+   * Constructor.
+   * @param high_water_mark Max number of outstanding puts before we stop
+   * reading.  If it's not strictly positive, we never stop reading.
+   * @param low_water_mark Number of outstanding puts under which we start
+   * reading again.  Must be less than the high-water mark.
+   * @throws IllegalArgumentException if the low-water mark is too high.
+   */
+  IngestThrottle(final int high_water_mark, final int low_water_mark) {
+    if (high_water_mark > 0 && low_water_mark >= high_water_mark) {
+      throw new IllegalArgumentException("low_water_mark=" + low_water_mark
+        + " must be less than high_water_mark=" + high_water_mark);
+    }
+    this.high_water_mark = high_water_mark;
+    this.low_water_mark = low_water_mark;
+  }
+
+  /**
+   * Must be called when a put is sent to HBase.
+   * If too many puts are outstanding, we stop reading from the channel.
+   * @param chan The channel the put came from.
+   * @return A callback to add to the {@code Deferred} of the put, so we
+   * know when it completes.  It returns its argument unchanged.
+   */
+  Callback<Object, Object> started(final Channel chan) {
+    outstanding_puts.incrementAndGet();
+    if (outstanding.incrementAndGet() > high_water_mark
+        && high_water_mark > 0) {
+      pause(chan);
+    }
+    return done_cb;
+  }
+
+  /** Returns the number of puts that haven't completed yet.  */
+  int outstanding() {
+    return outstanding.get();
+  }
+
+  /** Returns the number of channels we're currently not reading from.  */
+  int pausedChannels() {
+    synchronized (paused) {
+      return paused.size();
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.put.outstanding", outstanding_puts);
+    collector.record("rpc.put.paused_channels", paused_channels);
+    collector.record("rpc.put.pauses", pauses);
+    collector.record("rpc.put.throttle_time_ms", throttle_time);
+  }
+
+  /** Called when a put completes, successfully or not.  */
+  private void done() {
+    outstanding_puts.decrementAndGet();
+    if (outstanding.decrementAndGet() <= low_water_mark && throttling) {
+      resumeAll();
+    }
+  }
+
+  /** Stops reading from a channel.  */
+  private void pause(final Channel chan) {
+    synchronized (paused) {
+      if (paused.isEmpty()) {
+        paused_since = System.nanoTime();
+        throttling = true;
+      }
+      if (paused.add(chan)) {
+        chan.setReadable(false);
+        paused_channels.incrementAndGet();
+        pauses.incrementAndGet();
+      }
+      // The puts may have all completed before we got the lock, in which
+      // case nobody else would resume this channel.
+      if (outstanding.get() <= low_water_mark) {
+        resumeAll();  // Re-entrant lock.
+      }
+    }
+  }
+
+  /** Starts reading again from all the channels we paused.  */
+  private void resumeAll() {
+    synchronized (paused) {
+      if (paused.isEmpty()) {
+        return;
+      }
+      throttle_time.addAndGet((System.nanoTime() - paused_since) / 1000000);
+      for (final Channel chan : paused) {
+        if (chan.isOpen()) {
+          chan.setReadable(true);
+        }
+      }
+      paused_channels.addAndGet(-paused.size());
+      paused.clear();
+      throttling = false;
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * An in-memory LRU cache of recent query results, in front of the on-disk
+ * cache.
+ * <p>
+ * Entries are keyed by the same base path as the files of the on-disk cache
+ * (see {@code GraphHandler.getGnuplotBasePath}) and hold the PNG image and
+ * the JSON result of a query, so popular graphs can be served without
+ * touching the disk at all.  The total size of the entries is kept under a
+ * budget by evicting the least recently used entries.
+ * <p>
+ * This class is thread-safe.
+ */
+final class MemoryCache {
+
+  // Totals for all the caches in this JVM (in practice there's only one).
+  private static final AtomicLong cached_bytes = new AtomicLong();
+  private static final AtomicLong cached_entries = new AtomicLong();
+  private static final AtomicLong evictions = new AtomicLong();
+
+  /** Max number of bytes in the cache. */
+  private final long max_bytes;
+
+  /**
+   * Maps a base path to its entry, in access order (LRU first).
+   * Must be accessed while synchronized on itself.
+   */
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+
+  /** Total size of the entries, must be accessed with the same lock. */
+  private long bytes;
+
+  /**
+   * Constructor.
+   * @param max_bytes The max number of bytes in the cache.
+   */
+  MemoryCache(final long max_bytes) {
+    if (max_bytes <= 0) {
+      throw new IllegalArgumentException("Invalid max_bytes: " + max_bytes);
+    }
+    this.max_bytes = max_bytes;
+  }
+
+  /**
+   * Returns the entry for the given base path, or {@code null}.
+   * The caller is responsible for checking whether the entry is stale.
+   * @param basepath The base path of the entry.
+   */
+  Entry get(final String basepath) {
+    synchronized (entries) {
+      return entries.get(basepath);
+    }
+  }
+
+  /**
+   * Adds an entry to the cache, evicting old entries if needed.
+   * Entries that would take more than a quarter of the cache aren't added.
+   * @param basepath The base path of the entry.
+   * @param entry The entry to add.
+   */
+  void put(final String basepath, final Entry entry) {
+    if (entry.size() > max_bytes / 4) {
+      return;
+    }
+    synchronized (entries) {
+      final Entry prev = entries.put(basepath, entry);
+      if (prev != null) {
+        account(prev, -1);
+      }
+      account(entry, 1);
+      final Iterator<Entry> it = entries.values().iterator();
+      while (bytes > max_bytes && it.hasNext()) {
+        account(it.next(), -1);
+        it.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /** Returns the total size of the entries in the cache, in bytes.  */
+  long size() {
+    synchronized (entries) {
+      return bytes;
+    }
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("http.graph.memcache.bytes", cached_bytes);
+    collector.record("http.graph.memcache.entries", cached_entries);
+    collector.record("http.graph.memcache.evictions", evictions);
+  }
+
+  /**
+   * Adds or removes an entry from the totals.
+   * Must be called while synchronized on {@code entries}.
+   * @param entry The entry to account for.
+   * @param sign 1 to add the entry, -1 to remove it.
+   */
+  private void account(final Entry entry, final int sign) {
+    bytes += sign * entry.size();
+    cached_bytes.addAndGet(sign * entry.size());
+    cached_entries.addAndGet(sign);
+  }
+
+  /** The result of a query.  */
+  static final class Entry {
+
+    /** The graph, or {@code null} if nothing was plotted. */
+    final byte[] png;
+
+    /**
+     * The JSON result, or {@code null} if we don't have it.  Like the
+     * cached {@code .json} files, it's truncated after the last `:' so the
+     * timing of the request serving it can be appended.
+     */
+    final String json;
+
+    /** When this result was generated (in seconds). */
+    final long mtime;
+
+    /**
+     * Constructor.
+     * @param png The graph, or {@code null} if nothing was plotted.
+     * @param json The truncated JSON result, or {@code null}.
+     * @param mtime When this result was generated (in seconds).
+     */
+    Entry(final byte[] png, final String json, final long mtime) {
+      this.png = png;
+      this.json = json;
+      this.mtime = mtime;
+    }
+
+    /** Returns the approximate memory footprint of this entry, in bytes. */
+    long size() {
+      return 64 + (png == null ? 0 : png.length)
+        + (json == null ? 0 : 2 * json.length());
+    }
+
+  }
+
+}
@@ -22,6 +22,7 @@ import org.jboss.netty.handler.codec.frame.FrameDecoder;
 import org.jboss.netty.handler.codec.string.StringEncoder;
 import org.jboss.netty.handler.codec.http.HttpRequestDecoder;
 import org.jboss.netty.handler.codec.http.HttpResponseEncoder;
+import org.jboss.netty.handler.stream.ChunkedWriteHandler;
 
 import net.opentsdb.core.TSDB;
 
@@ -83,6 +84,14 @@ public final class PipelineFactory implements ChannelPipelineFactory {
       if ('A' <= firstbyte && firstbyte <= 'Z') {
         pipeline.addLast("decoder", new HttpRequestDecoder());
         pipeline.addLast("encoder", new HttpResponseEncoder());
+        if (HttpCompressor.enabled()) {
+          // Must be between the encoder and the streamer, so that streamed
+          // replies get compressed too.
+          pipeline.addLast("compressor", new HttpCompressor());
+        }
+        // Needed to stream large replies (see HttpQuery.sendChunked).
+        pipeline.addLast("streamer", new ChunkedWriteHandler());
+        pipeline.addLast("pipelining", new HttpPipeliningHandler());
       } else {
         pipeline.addLast("framer", new LineBasedFrameDecoder(1024));
         pipeline.addLast("encoder", ENCODER);
@@ -0,0 +1,241 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.stats.StatsCollector;
+
+/**
+ * Implements the "putbatch" telnet-style command.
+ * <p>
+ * {@code putbatch <n> [id]} is followed by {@code n} lines in the format
+ * of the "put" command.  Once all of them have been received, the data
+ * points are sent to HBase together, and once they've all completed we
+ * reply with a single line: {@code putbatch: ok <id>}, or
+ * {@code putbatch: error <id>: <reason>} if any of them is invalid or
+ * failed.  Writing the same data point twice is harmless, so a client can
+ * simply send a batch again until it gets an "ok", which gives it
+ * at-least-once delivery without a round-trip per data point.
+ * <p>
+ * The replies can come back in a different order than the batches, so
+ * the client can give each batch an ID.  By default the batches of a
+ * connection are numbered from 1.
+ */
+final class PutBatchRpc implements TelnetRpc {
+
+  /** Max number of data points in a batch. */
+  private static final int MAX_BATCH_SIZE = 100000;
+
+  private static final AtomicLong requests = new AtomicLong();
+  private static final AtomicLong acks = new AtomicLong();
+  private static final AtomicLong nacks = new AtomicLong();
+
+  /** Used to import each data point of a batch. */
+  private final PutDataPointRpc put;
+
+  /** The state of the batches of each channel. */
+  private final ChannelLocal<Batch> batches = new ChannelLocal<Batch>(true);
+
+  /**
+   * Constructor.
+   * @param put The "put" command, used to import each data point.
+   */
+  PutBatchRpc(final PutDataPointRpc put) {
+    this.put = put;
+  }
+
+  /**
+   * Returns whether or not we're receiving the data points of a batch on
+   * the given channel, in which case every line must go to this RPC.
+   * @param chan The channel to check.
+   */
+  boolean inBatch(final Channel chan) {
+    final Batch batch = batches.get(chan);
+    return batch != null && batch.points != null;
+  }
+
+  public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
+                                  final String[] cmd) {
+    Batch batch = batches.get(chan);
+    if (batch != null && batch.points != null) {
+      batch.points.add(cmd);
+      if (batch.points.size() < batch.size) {
+        return Deferred.fromResult(null);
+      }
+      final ArrayList<String[]> points = batch.points;
+      batch.points = null;
+      return submit(tsdb, chan, batch.id, points);
+    }
+
+    requests.incrementAndGet();
+    if (cmd.length < 2 || cmd.length > 3) {
+      chan.write("putbatch: usage: putbatch <n> [id]\n");
+      return Deferred.fromResult(null);
+    }
+    final int size;
+    try {
+      size = Integer.parseInt(cmd[1]);
+    } catch (NumberFormatException e) {
+      chan.write("putbatch: invalid batch size: " + cmd[1] + '\n');
+      return Deferred.fromResult(null);
+    }
+    if (size <= 0 || size > MAX_BATCH_SIZE) {
+      chan.write("putbatch: invalid batch size: " + size
+                 + " (must be between 1 and " + MAX_BATCH_SIZE + ")\n");
+      return Deferred.fromResult(null);
+    }
+    if (batch == null) {
+      batch = new Batch();
+      batches.set(chan, batch);
+    }
+    batch.seqno++;
+    batch.id = cmd.length == 3 ? cmd[2] : Integer.toString(batch.seqno);
+    batch.size = size;
+    batch.points = new ArrayList<String[]>(size);
+    return Deferred.fromResult(null);
+  }
+
+  /**
+   * Collects the stats and metrics tracked by this class.
+   * @param collector The collector to use.
+   */
+  static void collectStats(final StatsCollector collector) {
+    collector.record("rpc.received", requests, "type=putbatch");
+    collector.record("rpc.putbatch", acks, "result=ok");
+    collector.record("rpc.putbatch", nacks, "result=error");
+  }
+
+  /**
+   * Imports all the data points of a batch and replies once they're done.
+   * @param tsdb The TSDB to import the data points into.
+   * @param chan The channel the batch came from.
+   * @param id The ID of the batch.
+   * @param points The "put" commands of the batch.
+   * @return A deferred object that indicates the completion of the batch.
+   */
+  private Deferred<Object> submit(final TSDB tsdb, final Channel chan,
+                                  final String id,
+                                  final ArrayList<String[]> points) {
+    final ArrayList<Deferred<Object>> puts =
+      new ArrayList<Deferred<Object>>(points.size());
+    String invalid = null;  // Why the first invalid data point is invalid.
+    int ninvalid = 0;
+    for (final String[] words : points) {
+      String errmsg = null;
+      if (!"put".equals(words[0])) {
+        errmsg = "not a put: " + words[0];
+      } else {
+        try {
+          puts.add(put.put(tsdb, chan, words));
+        } catch (NumberFormatException x) {
+          errmsg = "invalid value: " + x.getMessage();
+        } catch (IllegalArgumentException x) {
+          errmsg = "illegal argument: " + x.getMessage();
+        }
+      }
+      if (errmsg != null && ninvalid++ == 0) {
+        invalid = errmsg;
+      }
+    }
+    final int failed = ninvalid;
+    final String reason = invalid;
+
+    final class AckCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> unused) {
+        reply(chan, id, points.size(), failed, reason);
+        return null;
+      }
+      public String toString() {
+        return "acknowledge batch " + id;
+      }
+    }
+    final class NackCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        int nfailed = failed;
+        String why = reason;
+        if (e instanceof DeferredGroupException) {
+          for (final Object result : ((DeferredGroupException) e).results()) {
+            if (result instanceof Exception && nfailed++ == 0) {
+              why = ((Exception) result).getMessage();
+            }
+          }
+        } else {  // Shouldn't happen.
+          nfailed = points.size();
+          why = e.getMessage();
+        }
+        reply(chan, id, points.size(), nfailed, why);
+        return null;
+      }
+      public String toString() {
+        return "reject batch " + id;
+      }
+    }
+    return Deferred.group(puts).addCallbacks(new AckCB(), new NackCB());
+  }
+
+  /**
+   * Sends the reply to a batch.
+   * @param chan The channel the batch came from.
+   * @param id The ID of the batch.
+   * @param size The number of data points in the batch.
+   * @param failed The number of data points that are invalid or failed.
+   * @param reason Why the first data point failed, if any.
+   */
+  private static void reply(final Channel chan, final String id,
+                            final int size, final int failed,
+                            final String reason) {
+    final String reply;
+    if (failed == 0) {
+      acks.incrementAndGet();
+      reply = "putbatch: ok " + id + '\n';
+    } else {
+      nacks.incrementAndGet();
+      reply = "putbatch: error " + id + ": " + failed + " of " + size
+        + " data points failed: " + reason + '\n';
+    }
+    if (chan.isConnected()) {
+      chan.write(reply);
+    }
+  }
+
+  /** The state of the batches received on a channel.  */
+  private static final class Batch {
+
+    /** Number of batches received so far. */
+    int seqno;
+
+    /** The ID of the current batch. */
+    String id;
+
+    /** Number of data points in the current batch. */
+    int size;
+
+    /**
+     * The data points of the current batch received so far, or
+     * {@code null} if we're not in a batch.
+     */
+    ArrayList<String[]> points;
+
+  }
+
+}
@@ -34,6 +34,18 @@ final class PutDataPointRpc implements TelnetRpc {
   private static final AtomicLong illegal_arguments = new AtomicLong();
   private static final AtomicLong unknown_metrics = new AtomicLong();
 
+  /** Stops reading from the clients when HBase isn't keeping up. */
+  private final IngestThrottle throttle;
+
+  /** Constructor.  */
+  public PutDataPointRpc() {
+    final int high_water_mark =
+      Integer.getInteger("tsd.core.ingest.high_water_mark", 10000);
+    throttle = new IngestThrottle(high_water_mark,
+      Integer.getInteger("tsd.core.ingest.low_water_mark",
+                         high_water_mark / 2));
+  }
+
   public Deferred<Object> execute(final TSDB tsdb, final Channel chan,
                                   final String[] cmd) {
     requests.incrementAndGet();
@@ -41,26 +53,30 @@ final class PutDataPointRpc implements TelnetRpc {
     try {
       final class PutErrback implements Callback<Exception, Exception> {
         public Exception call(final Exception arg) {
+          final String errmsg;
+          if (arg instanceof NoSuchUniqueName) {
+            errmsg = "put: unknown metric: " + arg.getMessage() + '\n';
+            unknown_metrics.incrementAndGet();
+          } else {
+            errmsg = "put: HBase error: " + arg.getMessage() + '\n';
+            hbase_errors.incrementAndGet();
+          }
           if (chan.isConnected()) {
-            chan.write("put: HBase error: " + arg.getMessage() + '\n');
+            chan.write(errmsg);
           }
-          hbase_errors.incrementAndGet();
           return arg;
         }
         public String toString() {
           return "report error to channel";
         }
       }
-      return importDataPoint(tsdb, cmd).addErrback(new PutErrback());
+      return put(tsdb, chan, cmd).addErrback(new PutErrback());
     } catch (NumberFormatException x) {
       errmsg = "put: invalid value: " + x.getMessage() + '\n';
       invalid_values.incrementAndGet();
     } catch (IllegalArgumentException x) {
       errmsg = "put: illegal argument: " + x.getMessage() + '\n';
       illegal_arguments.incrementAndGet();
-    } catch (NoSuchUniqueName x) {
-      errmsg = "put: unknown metric: " + x.getMessage() + '\n';
-      unknown_metrics.incrementAndGet();
     }
     if (errmsg != null && chan.isConnected()) {
       chan.write(errmsg);
@@ -68,6 +84,24 @@ final class PutDataPointRpc implements TelnetRpc {
     return Deferred.fromResult(null);
   }
 
+  /**
+   * Imports a single data point.
+   * The data point is accounted for in the {@link IngestThrottle} until
+   * it's been stored (or we gave up on it).  If HBase asks us to throttle,
+   * the {@link TSDB} retries the put before resorting to its spool, and the
+   * other puts are slowed down in the mean time by the throttle.
+   * @param tsdb The TSDB to import the data point into.
+   * @param chan The channel the data point came from.
+   * @param words The words of the "put" command.
+   * @return A deferred object that indicates the completion of the request.
+   * @throws NumberFormatException if the timestamp or value is invalid.
+   * @throws IllegalArgumentException if any other argument is invalid.
+   */
+  Deferred<Object> put(final TSDB tsdb, final Channel chan,
+                       final String[] words) {
+    return importDataPoint(tsdb, words).addBoth(throttle.started(chan));
+  }
+
   /**
    * Collects the stats and metrics tracked by this instance.
    * @param collector The collector to use.
@@ -78,6 +112,7 @@ final class PutDataPointRpc implements TelnetRpc {
     collector.record("rpc.errors", invalid_values, "type=invalid_values");
     collector.record("rpc.errors", illegal_arguments, "type=illegal_arguments");
     collector.record("rpc.errors", unknown_metrics, "type=unknown_metrics");
+    IngestThrottle.collectStats(collector);
   }
 
   /**
@@ -88,7 +123,7 @@ final class PutDataPointRpc implements TelnetRpc {
    * @return A deferred object that indicates the completion of the request.
    * @throws NumberFormatException if the timestamp or value is invalid.
    * @throws IllegalArgumentException if any other argument is invalid.
-   * @throws NoSuchUniqueName if the metric isn't registered.
+   * @throws NoSuchUniqueName (deferred) if the metric isn't registered.
    */
   private Deferred<Object> importDataPoint(final TSDB tsdb, final String[] words) {
     words[0] = null; // Ditch the "put".
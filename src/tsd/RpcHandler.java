@@ -50,6 +50,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
   private final HashMap<String, TelnetRpc> telnet_commands;
   /** RPC executed when there's an unknown telnet-style command. */
   private final TelnetRpc unknown_cmd = new Unknown();
+  /** The "putbatch" command, which gets all the lines of a batch. */
+  private final PutBatchRpc putbatch;
   /** Commands we serve on the HTTP interface. */
   private final HashMap<String, HttpRpc> http_commands;
 
@@ -93,7 +95,12 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
 
     telnet_commands.put("exit", new Exit());
     telnet_commands.put("help", new Help());
-    telnet_commands.put("put", new PutDataPointRpc());
+    {
+      final PutDataPointRpc put = new PutDataPointRpc();
+      telnet_commands.put("put", put);
+      putbatch = new PutBatchRpc(put);
+      telnet_commands.put("putbatch", putbatch);
+    }
 
     http_commands.put("", new HomePage());
     http_commands.put("aggregators", new ListAggregators());
@@ -133,7 +140,8 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
    * @param command The split telnet-style command.
    */
   private void handleTelnetRpc(final Channel chan, final String[] command) {
-    TelnetRpc rpc = telnet_commands.get(command[0]);
+    TelnetRpc rpc = (putbatch.inBatch(chan) ? putbatch
+                     : telnet_commands.get(command[0]));
     if (rpc == null) {
       rpc = unknown_cmd;
     }
@@ -148,7 +156,38 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
    */
   private void handleHttpQuery(final Channel chan, final HttpRequest req) {
     http_rpcs_received.incrementAndGet();
-    final HttpQuery query = new HttpQuery(req, chan);
+    final HttpPipeliningHandler pipelining =
+      chan.getPipeline().get(HttpPipeliningHandler.class);
+    if (pipelining == null) {
+      serveHttpQuery(new HttpQuery(req, chan));
+      return;
+    }
+    boolean served = false;
+    try {
+      final HttpQuery query = new HttpQuery(req, chan);
+      query.getDeferred().addBoth(new Callback<Object, Object>() {
+        public Object call(final Object arg) {
+          pipelining.requestDone(req);
+          return arg;
+        }
+      });
+      serveHttpQuery(query);
+      served = true;
+    } finally {
+      if (!served) {
+        // We couldn't even send an error back, so the response will never
+        // be sent.  Don't hold up the next requests on this connection.
+        pipelining.requestDone(req);
+      }
+    }
+  }
+
+  /**
+   * Executes the RPC of an HTTP query, and sends an error back if it fails.
+   * @param query The HTTP query.
+   */
+  private void serveHttpQuery(final HttpQuery query) {
+    final HttpRequest req = query.request();
     if (req.isChunked()) {
       logError(query, "Received an unsupported chunked request: "
                + query.request());
@@ -222,8 +261,11 @@ final class RpcHandler extends SimpleChannelUpstreamHandler {
     collector.record("rpc.received", http_rpcs_received, "type=http");
     collector.record("rpc.exceptions", exceptions_caught);
     HttpQuery.collectStats(collector);
+    HttpCompressor.collectStats(collector);
+    HttpPipeliningHandler.collectStats(collector);
     GraphHandler.collectStats(collector);
     PutDataPointRpc.collectStats(collector);
+    PutBatchRpc.collectStats(collector);
   }
 
   // ---------------------------- //
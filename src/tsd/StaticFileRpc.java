@@ -12,24 +12,70 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.tsd;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 
 import net.opentsdb.core.TSDB;
 
-/** Implements the "/s" endpoint to serve static files. */
+/**
+ * Implements the "/s" endpoint to serve static files.
+ * <p>
+ * Text files (HTML, JavaScript, CSS) are sent compressed with gzip to the
+ * clients that accept it.  The compressed variants are kept in memory, so
+ * each file is only compressed once (until it's modified or evicted).  The
+ * total size of the compressed variants is kept under a budget by evicting
+ * the least recently used ones.
+ */
 final class StaticFileRpc implements HttpRpc {
 
+  /** Files larger than this (in bytes) are never compressed in memory. */
+  private static final long MAX_GZIP_FILE_SIZE = 4 * 1024 * 1024;
+
   /**
    * The path to the directory where to find static files
    * (for the {@code /s} URLs).
    */
   private final String staticroot;
 
+  /** Max number of bytes of compressed variants kept in memory.  */
+  private final long max_gzipped_bytes;
+
+  /**
+   * Maps the path of a static file to its gzip-compressed variant, in
+   * access order (LRU first).  Must be accessed while synchronized on
+   * itself.
+   */
+  private final LinkedHashMap<String, GzippedFile> gzipped =
+    new LinkedHashMap<String, GzippedFile>(64, 0.75f, true);
+
+  /** Total size of the compressed variants, guarded by the same lock. */
+  private long gzipped_bytes;
+
   /**
    * Constructor.
    */
   public StaticFileRpc() {
-    staticroot = RpcHandler.getDirectoryFromSystemProp("tsd.http.staticroot");
+    this(RpcHandler.getDirectoryFromSystemProp("tsd.http.staticroot"),
+         Long.getLong("tsd.http.static.gzip_cache.max_bytes",
+                      16L << 20));  // 16MB
+  }
+
+  /**
+   * Constructor.
+   * @param staticroot The directory where to find static files.
+   * @param max_gzipped_bytes The max number of bytes of compressed files to
+   * keep in memory.
+   */
+  StaticFileRpc(final String staticroot, final long max_gzipped_bytes) {
+    this.staticroot = staticroot;
+    this.max_gzipped_bytes = max_gzipped_bytes;
   }
 
   public void execute(final TSDB tsdb, final HttpQuery query)
@@ -49,7 +95,116 @@ final class StaticFileRpc implements HttpRpc {
     }
     final int questionmark = uri.indexOf('?', 3);
     final int pathend = questionmark > 0 ? questionmark : uri.length();
-    query.sendFile(staticroot + uri.substring(3, pathend),
-                   uri.contains("nocache") ? 0 : 31536000 /*=1yr*/);
+    final String path = staticroot + uri.substring(3, pathend);
+    final int max_age = uri.contains("nocache") ? 0 : 31536000 /*=1yr*/;
+    if (isCompressible(path) && acceptsGzip(query)) {
+      final GzippedFile file = getGzipped(path);
+      if (file != null) {
+        query.sendGzippedFile(path, file.content, file.mtime, max_age);
+        return;
+      }
+    }
+    query.sendFile(path, max_age);
+  }
+
+  /** Returns {@code true} if the given file is worth compressing.  */
+  private static boolean isCompressible(final String path) {
+    return path.endsWith(".html") || path.endsWith(".js")
+      || path.endsWith(".css") || path.endsWith(".txt");
+  }
+
+  /**
+   * Returns {@code true} if the client accepts gzip content encoding.
+   * @param query The HTTP query.
+   */
+  static boolean acceptsGzip(final HttpQuery query) {
+    final String accept =
+      query.request().getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+    if (accept == null) {
+      return false;
+    }
+    for (final String coding : accept.split(",")) {
+      final int semicolon = coding.indexOf(';');
+      final String name = (semicolon < 0 ? coding
+                           : coding.substring(0, semicolon)).trim();
+      if (name.equalsIgnoreCase("gzip") || name.equals("*")) {
+        // "gzip;q=0" means that gzip is *not* acceptable.
+        return semicolon < 0
+          || !coding.substring(semicolon + 1).replace(" ", "")
+                .matches("q=0(\\.0*)?");
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the gzip-compressed variant of a file, compressing the file if
+   * it's not already in the cache or if it changed since it was compressed.
+   * @param path The path to the file.
+   * @return {@code null} if the file doesn't exist or is too large to be
+   * compressed in memory.
+   */
+  private GzippedFile getGzipped(final String path) throws IOException {
+    final File file = new File(path);
+    final long mtime = file.lastModified();
+    final long length = file.length();
+    if (mtime == 0 || length > MAX_GZIP_FILE_SIZE) {
+      return null;  // Let sendFile() deal with it.
+    }
+    GzippedFile gz;
+    synchronized (gzipped) {
+      gz = gzipped.get(path);
+    }
+    if (gz != null && gz.mtime == mtime && gz.length == length) {
+      return gz;
+    }
+    // Two threads may compress the same file concurrently, that's harmless.
+    final ByteArrayOutputStream buf =
+      new ByteArrayOutputStream((int) length / 3 + 32);
+    final GZIPOutputStream out = new GZIPOutputStream(buf);
+    final FileInputStream in = new FileInputStream(file);
+    try {
+      final byte[] b = new byte[8192];
+      int n;
+      while ((n = in.read(b)) > 0) {
+        out.write(b, 0, n);
+      }
+      out.close();
+    } finally {
+      in.close();
+    }
+    gz = new GzippedFile(buf.toByteArray(), mtime, length);
+    if (gz.content.length > max_gzipped_bytes / 4) {
+      return gz;  // Too large to keep it around.
+    }
+    synchronized (gzipped) {
+      final GzippedFile prev = gzipped.put(path, gz);
+      if (prev != null) {
+        gzipped_bytes -= prev.content.length;
+      }
+      gzipped_bytes += gz.content.length;
+      final Iterator<GzippedFile> it = gzipped.values().iterator();
+      while (gzipped_bytes > max_gzipped_bytes && it.hasNext()) {
+        gzipped_bytes -= it.next().content.length;
+        it.remove();
+      }
+    }
+    return gz;
   }
+
+  /** The gzip-compressed contents of a static file.  */
+  private static final class GzippedFile {
+    final byte[] content;
+    /** Last modification time of the original file, in milliseconds. */
+    final long mtime;
+    /** Length of the original file, in bytes. */
+    final long length;
+
+    GzippedFile(final byte[] content, final long mtime, final long length) {
+      this.content = content;
+      this.mtime = mtime;
+      this.length = length;
+    }
+  }
+
 }
@@ -0,0 +1,514 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A bounded, bidirectional cache of name/ID mappings.
+ * <p>
+ * IDs are at most 8 bytes wide, so they're stored as primitive
+ * {@code long}s: looking up a name doesn't allocate anything, and an entry
+ * costs little more than its name.  Entries are kept in parallel arrays and
+ * are indexed both by ID and by name with two open-addressing hash tables
+ * (linear probing), which store the index of the entry (plus one, so that 0
+ * means an empty slot).
+ * <p>
+ * Once the cache is full, adding an entry evicts another one using the
+ * CLOCK algorithm, an approximation of LRU: every lookup marks the entry as
+ * referenced, and the "hand" of the clock sweeps over the entries, clearing
+ * the mark of the entries that have it until it finds one that doesn't.
+ * <p>
+ * This class is thread-safe.  Lookups only take a read lock, so they can
+ * run concurrently.  The lock is striped by thread: a lookup only takes the
+ * read lock of its own stripe, so threads doing lookups don't all update
+ * the state of the same lock, and changes take the write locks of all the
+ * stripes.  Lookups are far more frequent than changes, which only happen
+ * on cache misses.
+ */
+final class UidCache {
+
+  /**
+   * Returned by {@link #getId} when the name isn't cached.
+   * IDs can take any value on 8 bytes, including negative {@code long}s
+   * when their high bit is set, but they're assigned starting from 1, so no
+   * name has this ID.  If a name ever does, it's simply not cached.
+   */
+  static final long MISSING = 0;
+
+  /** Initial number of entries we have room for.  */
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /** Max number of entries in the cache. */
+  private final int max_entries;
+
+  /** Number of lock stripes, a power of 2 with at least one per CPU. */
+  private static final int STRIPES =
+    Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+  /**
+   * Lookups must hold the read lock of their stripe (see
+   * {@link #readLock}), everything else all the write locks (see
+   * {@link #lockForWrite}).  Lookups set the {@link #referenced} bits while
+   * holding a read lock, which is a benign race: they only ever set them.
+   */
+  private final ReentrantReadWriteLock[] locks =
+    new ReentrantReadWriteLock[STRIPES];
+
+  // The entries, in parallel arrays.  The first `size' are in use.
+  private long[] ids;
+  private String[] names;
+  private boolean[] referenced;
+  /** Number of entries in use. */
+  private int size;
+
+  /** Index of the entries by ID. */
+  private int[] by_id;
+  /** Index of the entries by name. */
+  private int[] by_name;
+
+  /** Next entry the clock will look at for eviction. */
+  private int hand;
+
+  /** Approximate memory used by the names, in bytes. */
+  private long name_bytes;
+  /** Number of entries evicted so far. */
+  private long evictions;
+
+  /**
+   * Constructor.
+   * @param max_entries The max number of entries in the cache.
+   * @throws IllegalArgumentException if the max isn't strictly positive.
+   */
+  UidCache(final int max_entries) {
+    if (max_entries <= 0) {
+      throw new IllegalArgumentException("Invalid max_entries: "
+                                         + max_entries);
+    }
+    this.max_entries = max_entries;
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+    allocate(Math.min(INITIAL_CAPACITY, max_entries));
+  }
+
+  /**
+   * Returns the name of the given ID, or {@code null} if it's not cached.
+   * @param id The ID to look up.
+   */
+  String getName(final long id) {
+    final Lock lock = readLock();
+    lock.lock();
+    try {
+      final int entry = findById(id);
+      if (entry < 0) {
+        return null;
+      }
+      referenced[entry] = true;
+      return names[entry];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the ID of the given name, or {@link #MISSING} if it's not
+   * cached.
+   * @param name The name to look up.
+   */
+  long getId(final String name) {
+    final Lock lock = readLock();
+    lock.lock();
+    try {
+      final int entry = findByName(name);
+      if (entry < 0) {
+        return MISSING;
+      }
+      referenced[entry] = true;
+      return ids[entry];
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adds a mapping to the cache, evicting another one if the cache is full.
+   * Does nothing if the mapping is already in the cache, or if the ID is
+   * {@link #MISSING}.
+   * @param name The name.
+   * @param id The ID of the name.
+   * @throws IllegalStateException if the name or the ID is already mapped
+   * to something else.
+   */
+  void put(final String name, final long id) {
+    if (id == MISSING) {
+      return;
+    }
+    lockForWrite();
+    try {
+      int entry = findByName(name);
+      if (entry >= 0) {
+        if (ids[entry] != id) {
+          throw new IllegalStateException("name=" + name + " => id=" + id
+                                          + ", already mapped to "
+                                          + ids[entry]);
+        }
+        return;
+      }
+      entry = findById(id);
+      if (entry >= 0) {
+        throw new IllegalStateException("id=" + id + " => name=" + name
+                                        + ", already mapped to "
+                                        + names[entry]);
+      }
+      if (size < ids.length) {
+        entry = size++;
+      } else if (ids.length < max_entries) {
+        grow();
+        entry = size++;
+      } else {
+        entry = evict();
+      }
+      ids[entry] = id;
+      names[entry] = name;
+      referenced[entry] = true;  // It's about to be used.
+      name_bytes += sizeOf(name);
+      insert(by_id, hash(id), entry);
+      insert(by_name, hash(name), entry);
+    } finally {
+      unlockForWrite();
+    }
+  }
+
+  /**
+   * Gives a new name to an ID.
+   * The old name of the ID is no longer mapped to anything.
+   * @param id The ID to rename.
+   * @param newname The new name of the ID.
+   */
+  void rename(final long id, final String newname) {
+    lockForWrite();
+    try {
+      final int entry = findById(id);
+      if (entry < 0) {
+        put(newname, id);  // Re-entrant lock.
+        return;
+      }
+      delete(by_name, findSlot(by_name, hash(names[entry]), entry), false);
+      name_bytes += sizeOf(newname) - sizeOf(names[entry]);
+      names[entry] = newname;
+      insert(by_name, hash(newname), entry);
+    } finally {
+      unlockForWrite();
+    }
+  }
+
+  /**
+   * Adds a mapping to the cache, replacing the mappings of the name and of
+   * the ID, if any.  This is for mappings we know are current, for instance
+   * because we just read them from HBase.
+   * @param name The name.
+   * @param id The ID of the name.
+   */
+  void replace(final String name, final long id) {
+    lockForWrite();
+    try {
+      final int entry = findByName(name);
+      if (entry >= 0 && ids[entry] != id) {
+        remove(entry);  // The name now has a different ID.
+      }
+      rename(id, name);  // Re-entrant lock.
+    } finally {
+      unlockForWrite();
+    }
+  }
+
+  /** Removes all the entries from the cache.  */
+  void clear() {
+    lockForWrite();
+    try {
+      allocate(Math.min(INITIAL_CAPACITY, max_entries));
+      size = 0;
+      hand = 0;
+      name_bytes = 0;
+    } finally {
+      unlockForWrite();
+    }
+  }
+
+  /** Returns the number of entries in the cache.  */
+  int size() {
+    final Lock lock = readLock();
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the approximate memory used by the cache, in bytes.  */
+  long memory() {
+    final Lock lock = readLock();
+    lock.lock();
+    try {
+      return name_bytes
+        + ids.length * (8L + 8 + 1)  // ids, names, referenced.
+        + 4L * (by_id.length + by_name.length);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Returns the number of entries evicted so far.  */
+  long evictions() {
+    final Lock lock = readLock();
+    lock.lock();
+    try {
+      return evictions;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a consistent copy of the entries of the cache, sorted by name.
+   */
+  Entries sortedEntries() {
+    final Lock lock = readLock();
+    lock.lock();
+    try {
+      final String[] sorted_names = Arrays.copyOf(names, size);
+      Arrays.sort(sorted_names);
+      final long[] sorted_ids = new long[size];
+      for (int i = 0; i < size; i++) {
+        sorted_ids[i] = ids[findByName(sorted_names[i])];
+      }
+      return new Entries(sorted_names, sorted_ids);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** A copy of the entries of the cache.  */
+  static final class Entries {
+
+    /** The names. */
+    final String[] names;
+
+    /** The ID of each name, in the same order. */
+    final long[] ids;
+
+    Entries(final String[] names, final long[] ids) {
+      this.names = names;
+      this.ids = ids;
+    }
+
+  }
+
+  /** Returns the read lock of the stripe of the current thread.  */
+  private Lock readLock() {
+    final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    return locks[stripe].readLock();
+  }
+
+  /** Takes the write locks of all the stripes, always in the same order. */
+  private void lockForWrite() {
+    for (final ReentrantReadWriteLock lock : locks) {
+      lock.writeLock().lock();
+    }
+  }
+
+  /** Releases the locks taken by {@link #lockForWrite}.  */
+  private void unlockForWrite() {
+    for (int i = locks.length - 1; i >= 0; i--) {
+      locks[i].writeLock().unlock();
+    }
+  }
+
+  /** Returns the approximate memory used by a String, in bytes.  */
+  private static long sizeOf(final String s) {
+    return 40 + 2 * s.length();
+  }
+
+  /**
+   * Allocates empty arrays with room for the given number of entries.
+   * Must be called with the write lock (or from the constructor).
+   */
+  private void allocate(final int capacity) {
+    ids = new long[capacity];
+    names = new String[capacity];
+    referenced = new boolean[capacity];
+    // Keep the load factor of the indexes under 0.5.
+    final int index_size = Integer.highestOneBit(capacity) * 4;
+    by_id = new int[index_size];
+    by_name = new int[index_size];
+  }
+
+  /**
+   * Doubles the number of entries we have room for, up to the max.
+   * Must be called with the write lock.
+   */
+  private void grow() {
+    final long[] old_ids = ids;
+    final String[] old_names = names;
+    final boolean[] old_referenced = referenced;
+    allocate((int) Math.min(2L * ids.length, max_entries));
+    System.arraycopy(old_ids, 0, ids, 0, size);
+    System.arraycopy(old_names, 0, names, 0, size);
+    System.arraycopy(old_referenced, 0, referenced, 0, size);
+    for (int entry = 0; entry < size; entry++) {
+      insert(by_id, hash(ids[entry]), entry);
+      insert(by_name, hash(names[entry]), entry);
+    }
+  }
+
+  /**
+   * Evicts an entry using the CLOCK algorithm.
+   * Must be called with the write lock, when the cache is full.
+   * @return The index of the entry evicted, which can be reused.
+   */
+  private int evict() {
+    while (true) {
+      final int entry = hand;
+      hand = (hand + 1) % size;
+      if (referenced[entry]) {
+        referenced[entry] = false;  // Second chance.
+        continue;
+      }
+      delete(by_id, findSlot(by_id, hash(ids[entry]), entry), true);
+      delete(by_name, findSlot(by_name, hash(names[entry]), entry), false);
+      name_bytes -= sizeOf(names[entry]);
+      names[entry] = null;
+      evictions++;
+      return entry;
+    }
+  }
+
+  /**
+   * Removes an entry from the cache.
+   * Must be called with the write lock.  The last entry is moved to the
+   * slot freed up, to keep the entries in use contiguous.
+   * @param entry The index of the entry to remove.
+   */
+  private void remove(final int entry) {
+    delete(by_id, findSlot(by_id, hash(ids[entry]), entry), true);
+    delete(by_name, findSlot(by_name, hash(names[entry]), entry), false);
+    name_bytes -= sizeOf(names[entry]);
+    final int last = --size;
+    if (entry != last) {
+      delete(by_id, findSlot(by_id, hash(ids[last]), last), true);
+      delete(by_name, findSlot(by_name, hash(names[last]), last), false);
+      ids[entry] = ids[last];
+      names[entry] = names[last];
+      referenced[entry] = referenced[last];
+      insert(by_id, hash(ids[entry]), entry);
+      insert(by_name, hash(names[entry]), entry);
+    }
+    names[last] = null;
+    if (hand >= size) {
+      hand = 0;
+    }
+  }
+
+  /** Returns the entry with the given ID, or -1.  */
+  private int findById(final long id) {
+    final int mask = by_id.length - 1;
+    for (int i = hash(id) & mask; by_id[i] != 0; i = (i + 1) & mask) {
+      final int entry = by_id[i] - 1;
+      if (ids[entry] == id) {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the entry with the given name, or -1.  */
+  private int findByName(final String name) {
+    final int mask = by_name.length - 1;
+    for (int i = hash(name) & mask; by_name[i] != 0; i = (i + 1) & mask) {
+      final int entry = by_name[i] - 1;
+      if (name.equals(names[entry])) {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the slot of the given entry in the given index.  */
+  private static int findSlot(final int[] index, final int hash,
+                              final int entry) {
+    final int mask = index.length - 1;
+    int i = hash & mask;
+    while (index[i] != entry + 1) {
+      i = (i + 1) & mask;
+    }
+    return i;
+  }
+
+  /** Adds an entry to an index.  */
+  private static void insert(final int[] index, final int hash,
+                             final int entry) {
+    final int mask = index.length - 1;
+    int i = hash & mask;
+    while (index[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    index[i] = entry + 1;
+  }
+
+  /**
+   * Deletes a slot from an index.
+   * The slots that follow are shifted back as needed so that every entry
+   * can still be found by probing from its hash, without tombstones.
+   * @param index The index to delete the slot from.
+   * @param i The slot to delete.
+   * @param by_id Whether the index is {@link #by_id} or {@link #by_name}.
+   */
+  private void delete(final int[] index, int i, final boolean by_id) {
+    final int mask = index.length - 1;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (index[j] == 0) {
+        break;
+      }
+      final int entry = index[j] - 1;
+      final int home = (by_id ? hash(ids[entry]) : hash(names[entry])) & mask;
+      // Leave the slot at j where it is if its home is cyclically in (i, j].
+      if (i <= j ? (i < home && home <= j) : (i < home || home <= j)) {
+        continue;
+      }
+      index[i] = index[j];
+      i = j;
+    }
+    index[i] = 0;
+  }
+
+  private static int hash(final long id) {
+    return mix((int) (id ^ (id >>> 32)));
+  }
+
+  private static int hash(final String name) {
+    return mix(name.hashCode());
+  }
+
+  /** Spreads the bits of a hash code, sequential IDs are common.  */
+  private static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+}
@@ -12,16 +12,36 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
 import org.hbase.async.AtomicIncrementRequest;
 import org.hbase.async.Bytes;
 import org.hbase.async.DeleteRequest;
@@ -69,18 +89,71 @@ public final class UniqueId implements UniqueIdInterface {
   /** Number of bytes on which each ID is encoded. */
   private final short idWidth;
 
-  /** Cache for forward mappings (name to ID). */
-  private final ConcurrentHashMap<String, byte[]> nameCache =
-    new ConcurrentHashMap<String, byte[]>();
-  /** Cache for backward mappings (ID to name).
-   * The ID in the key is a byte[] converted to a String to be Comparable. */
-  private final ConcurrentHashMap<String, String> idCache =
-    new ConcurrentHashMap<String, String>();
+  /**
+   * Cache for forward mappings (name to ID) and backward mappings (ID to
+   * name).
+   * @see #setMaxCacheSize
+   */
+  private volatile UidCache cache = new UidCache(Integer.MAX_VALUE);
+
+  /**
+   * All the names that have an ID, sorted like in HBase, used to answer
+   * {@link #suggest} from memory.  {@code null} until we start loading it.
+   * @see #loadSuggestIndex
+   */
+  private volatile ConcurrentSkipListSet<String> suggest_index;
+  /** Whether or not {@link #suggest_index} has been entirely loaded. */
+  private volatile boolean suggest_index_loaded;
+
+  /**
+   * How many IDs to allocate at once with a single atomic increment.
+   * @see #setIdLeaseSize
+   */
+  private volatile int id_lease_size = 1;
+  /**
+   * Lock for the IDs leased but not handed out yet, which are in the range
+   * [{@link #next_leased_id}, {@link #leased_ids_end}).
+   */
+  private final Object lease_lock = new Object();
+  /** Next leased ID to hand out, must be accessed with the lease lock. */
+  private long next_leased_id;
+  /** End of the leased IDs (exclusive), must be accessed with the lock. */
+  private long leased_ids_end;
+  /**
+   * Assignments waiting on the lease in flight, or {@code null} if there's
+   * no lease in flight.  Must be accessed with the lease lock.
+   */
+  private ArrayList<Deferred<Long>> lease_waiters;
+  /** Number of blocks of IDs leased so far. */
+  private volatile int id_leases;
+
+  /**
+   * Assignments in flight, keyed by name.  Concurrent callers that want
+   * an ID for the same new name wait on the same assignment instead of
+   * each allocating an ID, all but one of which would be leaked.
+   */
+  private final ConcurrentHashMap<String, Deferred<byte[]>> assignments =
+    new ConcurrentHashMap<String, Deferred<byte[]>>();
+
+  /** Max number of names in the {@link #negative_cache}. */
+  private static final int MAX_NEGATIVE_CACHE_SIZE = 100000;
+
+  /**
+   * Names that didn't have an ID the last time we looked them up in HBase,
+   * mapped to the time (in milliseconds) until which we trust this.
+   * @see #setNegativeCacheTtl
+   */
+  private final ConcurrentHashMap<String, Long> negative_cache =
+    new ConcurrentHashMap<String, Long>();
+  /** How long we trust that a name has no ID (in ms), 0 to disable. */
+  private volatile int negative_cache_ttl;
 
   /** Number of times we avoided reading from HBase thanks to the cache. */
   private volatile int cacheHits;
   /** Number of times we had to read from HBase and populate the cache. */
   private volatile int cacheMisses;
+  /** Number of times we avoided reading from HBase for an unknown name. */
+  private volatile int negativeCacheHits;
 
   /**
    * Constructor.
@@ -115,9 +188,124 @@ public final class UniqueId implements UniqueIdInterface {
     return cacheMisses;
   }
 
-  /** Returns the number of elements stored in the internal cache. */
+  /**
+   * The number of times we knew a name had no ID without asking HBase.
+   * @since 1.2
+   */
+  public int negativeCacheHits() {
+    return negativeCacheHits;
+  }
+
+  /**
+   * Returns the number of elements stored in the internal cache.
+   * Each name/ID pair counts twice, once for each direction of the mapping.
+   */
   public int cacheSize() {
-    return nameCache.size() + idCache.size();
+    return 2 * cache.size();
+  }
+
+  /**
+   * Returns the approximate memory used by the internal cache, in bytes.
+   * @since 1.2
+   */
+  public long cacheMemory() {
+    return cache.memory();
+  }
+
+  /**
+   * Returns the number of name/ID pairs evicted from the internal cache.
+   * @since 1.2
+   */
+  public long cacheEvictions() {
+    return cache.evictions();
+  }
+
+  /**
+   * Bounds the number of name/ID pairs kept in memory.
+   * <p>
+   * By default the cache grows forever, which is fine as long as all the
+   * names fit in memory.  Once the cache is full, the pairs least recently
+   * used are evicted, and looking them up again requires a round trip to
+   * HBase.  Calling this method drops the current contents of the cache.
+   * @param max_entries The max number of name/ID pairs to keep in memory.
+   * @throws IllegalArgumentException if the max isn't strictly positive.
+   * @since 1.2
+   */
+  public void setMaxCacheSize(final int max_entries) {
+    cache = new UidCache(max_entries);
+  }
+
+  /**
+   * Remembers for a while which names don't have an ID.
+   * <p>
+   * By default, looking up a name that doesn't have an ID always reads
+   * from HBase, and some clients keep looking up the same unknown names
+   * over and over again (e.g. when they write to metrics that don't exist).
+   * Once this is enabled, such lookups fail without a round trip to HBase
+   * for the given amount of time, unless this instance assigns an ID to
+   * the name in the mean time.  IDs assigned by other TSDs are only seen
+   * once this expires.
+   * @param ttl How long to remember that a name has no ID (in ms), 0 to
+   * disable the negative cache.
+   * @throws IllegalArgumentException if the TTL is negative.
+   * @since 1.2
+   */
+  public void setNegativeCacheTtl(final int ttl) {
+    if (ttl < 0) {
+      throw new IllegalArgumentException("Negative TTL: " + ttl);
+    }
+    negative_cache_ttl = ttl;
+    negative_cache.clear();
+  }
+
+  /**
+   * Returns the number of names in the index used by {@link #suggest}.
+   * @since 1.2
+   */
+  public int suggestIndexSize() {
+    final ConcurrentSkipListSet<String> index = suggest_index;
+    return index == null ? 0 : index.size();
+  }
+
+  /**
+   * Returns the number of IDs leased but not assigned yet.
+   * These IDs are lost when this instance goes away.
+   * @since 1.2
+   */
+  public long leasedIds() {
+    synchronized (lease_lock) {
+      return leased_ids_end - next_leased_id;
+    }
+  }
+
+  /**
+   * Returns the number of blocks of IDs leased so far.
+   * @since 1.2
+   */
+  public int idLeases() {
+    return id_leases;
+  }
+
+  /**
+   * Sets how many IDs to allocate at once when we need to assign a new ID.
+   * <p>
+   * By default, every ID assignment starts with an atomic increment of the
+   * max ID in HBase.  When many new names show up at the same time, all
+   * those increments are serialized on the same cell.  With a lease size
+   * greater than 1, a single increment leases a whole block of IDs, which
+   * are then handed out locally.  The reverse and forward mappings are still
+   * CAS'ed into existence for each ID, so concurrent TSDs remain correct.
+   * The downside is that the IDs leased but not assigned yet are lost when
+   * this instance goes away.
+   * @param size The number of IDs to lease at once (1 = no leasing).
+   * @throws IllegalArgumentException if the size isn't strictly positive.
+   * @since 1.2
+   */
+  public void setIdLeaseSize(final int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid ID lease size: " + size);
+    }
+    id_lease_size = size;
   }
 
   public String kind() {
@@ -133,226 +321,615 @@ public final class UniqueId implements UniqueIdInterface {
    * @since 1.1
    */
   public void dropCaches() {
-    nameCache.clear();
-    idCache.clear();
+    cache.clear();
+    negative_cache.clear();
+    if (suggest_index != null) {
+      loadSuggestIndex();  // Errors are logged.
+    }
   }
 
   public String getName(final byte[] id) throws NoSuchUniqueId, HBaseException {
+    return join(getNameAsync(id));
+  }
+
+  public Deferred<String> getNameAsync(final byte[] id) {
     if (id.length != idWidth) {
       throw new IllegalArgumentException("Wrong id.length = " + id.length
                                          + " which is != " + idWidth
                                          + " required for '" + kind() + '\'');
     }
-    String name = getNameFromCache(id);
+    final String name = getNameFromCache(id);
     if (name != null) {
       cacheHits++;
-    } else {
-      cacheMisses++;
-      name = getNameFromHBase(id);
-      if (name == null) {
-        throw new NoSuchUniqueId(kind(), id);
+      return Deferred.fromResult(name);
+    }
+    cacheMisses++;
+    final class GetNameCB implements Callback<String, String> {
+      public String call(final String name) {
+        if (name == null) {
+          throw new NoSuchUniqueId(kind(), id);
+        }
+        addToCache(name, id);
+        return name;
+      }
+      public String toString() {
+        return "getName(" + Arrays.toString(id) + ") on " + UniqueId.this;
       }
-      addNameToCache(id, name);
-      addIdToCache(name, id);
     }
-    return name;
+    return getNameFromHBase(id).addCallback(new GetNameCB());
   }
 
-  private String getNameFromCache(final byte[] id) {
-    return idCache.get(fromBytes(id));
+  public Deferred<ArrayList<String>> getNamesAsync(final List<byte[]> ids) {
+    final ArrayList<String> names = new ArrayList<String>(ids.size());
+    // Lookups of the distinct IDs that aren't cached.
+    final ArrayList<Deferred<Object>> lookups =
+      new ArrayList<Deferred<Object>>();
+    // The name found by each lookup.
+    final ArrayList<String> found = new ArrayList<String>();
+    // For each ID, the index of its lookup, or -1 if it was cached.
+    final int[] lookup_of = new int[ids.size()];
+    final HashMap<Long, Integer> pending = new HashMap<Long, Integer>();
+    for (int i = 0; i < lookup_of.length; i++) {
+      final byte[] id = ids.get(i);
+      if (id.length != idWidth) {
+        throw new IllegalArgumentException("Wrong id.length = " + id.length
+                                           + " which is != " + idWidth
+                                           + " required for '" + kind() + '\'');
+      }
+      final String name = getNameFromCache(id);
+      names.add(name);
+      if (name != null) {
+        cacheHits++;
+        lookup_of[i] = -1;
+        continue;
+      }
+      final Long key = idToLong(id);
+      Integer lookup = pending.get(key);
+      if (lookup == null) {
+        lookup = lookups.size();
+        pending.put(key, lookup);
+        found.add(null);
+        // Deferred.group doesn't keep the results in order, so each lookup
+        // stores its own.
+        final int index = lookup;
+        final class StoreNameCB implements Callback<Object, String> {
+          public Object call(final String name) {
+            found.set(index, name);
+            return null;
+          }
+          public String toString() {
+            return "store name #" + index;
+          }
+        }
+        lookups.add(getNameAsync(id).addCallback(new StoreNameCB()));
+      }
+      lookup_of[i] = lookup;
+    }
+    if (lookups.isEmpty()) {
+      return Deferred.fromResult(names);
+    }
+    final class GetNamesCB implements Callback<ArrayList<String>,
+                                               ArrayList<Object>> {
+      public ArrayList<String> call(final ArrayList<Object> ignored) {
+        for (int i = 0; i < lookup_of.length; i++) {
+          if (lookup_of[i] >= 0) {
+            names.set(i, found.get(lookup_of[i]));
+          }
+        }
+        return names;
+      }
+      public String toString() {
+        return "getNames(" + lookup_of.length + " IDs) on " + UniqueId.this;
+      }
+    }
+    final class FirstErrorCB implements Callback<Exception, Exception> {
+      public Exception call(final Exception e) {
+        if (e instanceof DeferredGroupException && e.getCause() != null) {
+          return (Exception) e.getCause();  // e.g. a NoSuchUniqueId.
+        }
+        return e;
+      }
+      public String toString() {
+        return "getNames error on " + UniqueId.this;
+      }
+    }
+    return Deferred.group(lookups).addCallbacks(new GetNamesCB(),
+                                                new FirstErrorCB());
   }
 
-  private String getNameFromHBase(final byte[] id) throws HBaseException {
-    final byte[] name = hbaseGet(id, NAME_FAMILY);
-    return name == null ? null : fromBytes(name);
+  private String getNameFromCache(final byte[] id) {
+    return cache.getName(idToLong(id));
   }
 
-  private void addNameToCache(final byte[] id, final String name) {
-    final String key = fromBytes(id);
-    String found = idCache.get(key);
-    if (found == null) {
-      found = idCache.putIfAbsent(key, name);
-    }
-    if (found != null && !found.equals(name)) {
-      throw new IllegalStateException("id=" + Arrays.toString(id) + " => name="
-          + name + ", already mapped to " + found);
+  private Deferred<String> getNameFromHBase(final byte[] id)
+    throws HBaseException {
+    final class NameFromBytesCB implements Callback<String, byte[]> {
+      public String call(final byte[] name) {
+        return name == null ? null : fromBytes(name);
+      }
     }
+    return hbaseGet(id, NAME_FAMILY).addCallback(new NameFromBytesCB());
   }
 
   public byte[] getId(final String name) throws NoSuchUniqueName, HBaseException {
-    byte[] id = getIdFromCache(name);
+    return join(getIdAsync(name));
+  }
+
+  public Deferred<byte[]> getIdAsync(final String name) {
+    final byte[] id = getIdFromCache(name);
     if (id != null) {
       cacheHits++;
-    } else {
-      cacheMisses++;
-      id = getIdFromHBase(name);
-      if (id == null) {
-        throw new NoSuchUniqueName(kind(), name);
+      return Deferred.fromResult(id);
+    }
+    if (isKnownToHaveNoId(name)) {
+      negativeCacheHits++;
+      return Deferred.fromError(new NoSuchUniqueName(kind(), name));
+    }
+    cacheMisses++;
+    final class GetIdCB implements Callback<byte[], byte[]> {
+      public byte[] call(final byte[] id) {
+        if (id == null) {
+          addToNegativeCache(name);
+          throw new NoSuchUniqueName(kind(), name);
+        }
+        if (id.length != idWidth) {
+          throw new IllegalStateException("Found id.length = " + id.length
+                                          + " which is != " + idWidth
+                                          + " required for '" + kind() + '\'');
+        }
+        addToCache(name, id);
+        return id;
       }
-      if (id.length != idWidth) {
-        throw new IllegalStateException("Found id.length = " + id.length
-                                        + " which is != " + idWidth
-                                        + " required for '" + kind() + '\'');
+      public String toString() {
+        return "getId(" + name + ") on " + UniqueId.this;
       }
-      addIdToCache(name, id);
-      addNameToCache(id, name);
     }
-    return id;
+    return getIdFromHBase(name).addCallback(new GetIdCB());
   }
 
   private byte[] getIdFromCache(final String name) {
-    return nameCache.get(name);
+    final long id = cache.getId(name);
+    return id == UidCache.MISSING ? null : longToId(id);
   }
 
-  private byte[] getIdFromHBase(final String name) throws HBaseException {
+  /**
+   * Copies the ID of the given name in a buffer, if the ID is cached.
+   * <p>
+   * Unlike {@link #getIdAsync}, this never looks anything up in HBase and
+   * doesn't allocate anything, which makes it suitable for hot code paths
+   * that can fall back to {@link #getIdAsync} on a cache miss.
+   * @param name The name to look up.
+   * @param buf The buffer to copy the ID into.
+   * @param offset The offset in {@code buf} at which to copy the
+   * {@link #width} bytes of the ID.
+   * @return {@code false} if the ID isn't cached, in which case the buffer
+   * isn't modified.
+   * @since 1.2
+   */
+  public boolean copyCachedId(final String name, final byte[] buf,
+                              final int offset) {
+    final long id = cache.getId(name);
+    if (id == UidCache.MISSING) {
+      return false;
+    }
+    cacheHits++;
+    copyId(id, buf, offset);
+    return true;
+  }
+
+  private Deferred<byte[]> getIdFromHBase(final String name)
+    throws HBaseException {
     return hbaseGet(toBytes(name), ID_FAMILY);
   }
 
-  private void addIdToCache(final String name, final byte[] id) {
-    byte[] found = nameCache.get(name);
-    if (found == null) {
-      found = nameCache.putIfAbsent(name,
-                                    // Must make a defensive copy to be immune
-                                    // to any changes the caller may do on the
-                                    // array later on.
-                                    Arrays.copyOf(id, id.length));
+  /** Returns whether the negative cache says the name has no ID.  */
+  private boolean isKnownToHaveNoId(final String name) {
+    if (negative_cache_ttl == 0) {
+      return false;
     }
-    if (found != null && !Arrays.equals(found, id)) {
-      throw new IllegalStateException("name=" + name + " => id="
-          + Arrays.toString(id) + ", already mapped to "
-          + Arrays.toString(found));
+    final Long expiration = negative_cache.get(name);
+    if (expiration == null) {
+      return false;
+    } else if (expiration < System.currentTimeMillis()) {
+      negative_cache.remove(name, expiration);
+      return false;
     }
+    return true;
   }
 
-  public byte[] getOrCreateId(String name) throws HBaseException {
-    short attempt = MAX_ATTEMPTS_ASSIGN_ID;
-    HBaseException hbe = null;
+  private void addToNegativeCache(final String name) {
+    final int ttl = negative_cache_ttl;
+    if (ttl == 0) {
+      return;
+    }
+    // Don't let clients looking up random names fill up the memory.
+    if (negative_cache.size() >= MAX_NEGATIVE_CACHE_SIZE) {
+      negative_cache.clear();
+    }
+    negative_cache.put(name, System.currentTimeMillis() + ttl);
+  }
 
-    while (attempt-- > 0) {
-      try {
-        return getId(name);
-      } catch (NoSuchUniqueName e) {
-        LOG.info("Creating an ID for kind='" + kind()
-                 + "' name='" + name + '\'');
+  private void addToCache(final String name, final byte[] id) {
+    addToCache(name, id, false);
+  }
+
+  /**
+   * Adds a mapping to the cache.
+   * @param name The name.
+   * @param id The ID of the name.
+   * @param current Whether the mapping is known to be current (e.g. it was
+   * just scanned from HBase), in which case it replaces any mapping of the
+   * name or of the ID already in the cache, which could be stale.
+   * @throws IllegalStateException if {@code current} is false and the name
+   * or the ID is already mapped to something else.
+   */
+  private void addToCache(final String name, final byte[] id,
+                          final boolean current) {
+    negative_cache.remove(name);
+    if (current) {
+      cache.replace(name, idToLong(id));
+    } else {
+      cache.put(name, idToLong(id));
+    }
+    // Every name we find a forward mapping for can be suggested.  This is
+    // also how we learn about the names assigned by other TSDs.
+    final ConcurrentSkipListSet<String> index = suggest_index;
+    if (index != null) {
+      index.add(name);
+    }
+  }
+
+  public byte[] getOrCreateId(final String name)
+    throws HBaseException, IllegalStateException {
+    return join(getOrCreateIdAsync(name));
+  }
+
+  public Deferred<byte[]> getOrCreateIdAsync(final String name) {
+    final byte[] id = getIdFromCache(name);
+    if (id != null) {
+      cacheHits++;
+      return Deferred.fromResult(id);
+    }
+    Deferred<byte[]> assignment = assignments.get(name);
+    if (assignment == null) {
+      final Deferred<byte[]> mine = new Deferred<byte[]>();
+      assignment = assignments.putIfAbsent(name, mine);
+      if (assignment == null) {  // We won the race, start the assignment.
+        assignment = mine;
+        final class DoneCB implements Callback<Object, Object> {
+          public Object call(final Object arg) {
+            assignments.remove(name, mine);
+            return arg;
+          }
+          public String toString() {
+            return "forget assignment of " + name;
+          }
+        }
+        asObject(mine).addBoth(new DoneCB());
+        new IdAssignment(name).attempt().chain(mine);
+      }
+    }
+    // Give each caller its own Deferred (and its own copy of the ID), so
+    // they don't see the results of each other's callbacks.
+    final Deferred<byte[]> result = new Deferred<byte[]>();
+    final class ShareCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        result.callback(arg instanceof byte[] ? ((byte[]) arg).clone() : arg);
+        return arg;
+      }
+      public String toString() {
+        return "share assignment of " + name;
+      }
+    }
+    asObject(assignment).addBoth(new ShareCB());
+    return result;
+  }
+
+  /**
+   * Lets us add callbacks that also get the errors of a deferred ID.
+   */
+  @SuppressWarnings("unchecked")
+  private static Deferred<Object> asObject(final Deferred<byte[]> d) {
+    return (Deferred<Object>) (Deferred<?>) d;
+  }
+
+  // States of an IdAssignment, what the assignment is waiting on.
+  private static final byte LOOKUP = 0;
+  private static final byte ALLOCATE_ID = 1;
+  private static final byte CREATE_REVERSE_MAPPING = 2;
+  private static final byte CREATE_FORWARD_MAPPING = 3;
+
+  /**
+   * Looks up the ID of a name and assigns one if it doesn't have one yet.
+   * <p>
+   * Each attempt first looks up the name.  If it doesn't have an ID, we
+   * allocate a new ID and then CAS the reverse mapping and the forward
+   * mapping into existence, in this order.  Every step is asynchronous and
+   * its result (or its error) is given to {@link #call}, which starts the
+   * next step.  Nothing ever blocks.
+   */
+  private final class IdAssignment implements Callback<Object, Object> {
+
+    private final String name;
+    /** How many attempts we have left. */
+    private short attempts = MAX_ATTEMPTS_ASSIGN_ID;
+    /** The last HBase error we got, if any. */
+    private HBaseException hbe;
+    /** What we're currently waiting on. */
+    private byte state;
+    /** The ID we allocated. */
+    private long id;
+    /** The same ID, on {@code idWidth} bytes. */
+    private byte[] row;
+
+    IdAssignment(final String name) {
+      this.name = name;
+    }
+
+    /** Starts a new attempt.  */
+    Deferred<byte[]> attempt() {
+      if (attempts-- <= 0) {
+        if (hbe == null) {
+          return Deferred.fromError(
+            new IllegalStateException("Should never happen!"));
+        }
+        LOG.error("Failed to assign an ID for kind='" + kind()
+                  + "' name='" + name + "'", hbe);
+        return Deferred.fromError(hbe);
       }
+      state = LOOKUP;
+      return next(getIdAsync(name));
+    }
 
-      // Assign an ID.
-      final long id;     // The ID.
-      byte row[];  // The same ID, as a byte array.
+    /**
+     * Waits on the given step, whose result will be given to us.
+     * @return A deferred ID, called back once all the remaining steps are
+     * done.
+     */
+    @SuppressWarnings("unchecked")
+    private Deferred<byte[]> next(final Deferred<?> d) {
+      final Deferred<?> result = ((Deferred<Object>) d).addBoth(this);
+      return (Deferred<byte[]>) result;
+    }
+
+    public Object call(final Object arg) {
       try {
-        id = client.atomicIncrement(new AtomicIncrementRequest(table, MAXID_ROW,
-                                                               ID_FAMILY, kind))
-          .joinUninterruptibly();
-        row = Bytes.fromLong(id);
-        LOG.info("Got ID=" + id
-                 + " for kind='" + kind() + "' name='" + name + "'");
-        // row.length should actually be 8.
-        if (row.length < idWidth) {
-          throw new IllegalStateException("OMG, row.length = " + row.length
-                                          + " which is less than " + idWidth
-                                          + " for id=" + id
-                                          + " row=" + Arrays.toString(row));
+        if (arg instanceof Exception) {
+          return failed((Exception) arg);
         }
-        // Verify that we're going to drop bytes that are 0.
-        for (int i = 0; i < row.length - idWidth; i++) {
-          if (row[i] != 0) {
-            final String message = "All Unique IDs for " + kind()
-              + " on " + idWidth + " bytes are already assigned!";
-            LOG.error("OMG " + message);
-            throw new IllegalStateException(message);
-          }
+        switch (state) {
+          case LOOKUP:  // The name already has an ID.
+            return arg;
+          case ALLOCATE_ID:
+            return createReverseMapping((Long) arg);
+          case CREATE_REVERSE_MAPPING:
+            if (!(Boolean) arg) {
+              LOG.error("WTF!  Failed to CAS reverse mapping for ID " + id
+                        + " of kind " + kind()
+                        + " -- run an fsck against the UID table!");
+            }
+            return createForwardMapping();
+          case CREATE_FORWARD_MAPPING:
+            if (!(Boolean) arg) {
+              // If two TSDs attempted to allocate a UID for the same name at
+              // the same time, they would both have allocated a UID, and
+              // created a reverse mapping, and upon getting here, only one
+              // of them would manage to CAS this KV into existence.  The one
+              // that loses the race will retry and discover the UID assigned
+              // by the winner TSD, and a UID will have been wasted in the
+              // process.  No big deal.
+              LOG.warn("Race condition: tried to assign ID " + id + " to "
+                       + kind() + ":" + name + ", but CAS failed on the"
+                       + " forward mapping, which indicates this UID must"
+                       + " have been allocated concurrently by another TSD."
+                       + " So ID " + id + " was leaked.");
+              negative_cache.remove(name);  // Don't skip the next lookup.
+              return attempt();
+            }
+            addToCache(name, row);
+            return row;
+          default:
+            throw new AssertionError("Invalid state: " + state);
+        }
+      } catch (HBaseException e) {  // An RPC failed before being sent.
+        return failed(e);
+      }
+    }
+
+    /** Handles the failure of the current step.  */
+    private Object failed(final Exception e) {
+      if (state == LOOKUP) {
+        if (!(e instanceof NoSuchUniqueName)) {
+          return e;  // Let it bubble up, we only retry assignments.
         }
-        // Shrink the ID on the requested number of bytes.
-        row = Arrays.copyOfRange(row, row.length - idWidth, row.length);
-      } catch (HBaseException e) {
+        LOG.info("Creating an ID for kind='" + kind()
+                 + "' name='" + name + '\'');
+        return allocateId();
+      } else if (e instanceof IllegalStateException) {
+        return e;  // Not something we can fix by retrying.
+      }
+      if (state == ALLOCATE_ID) {
         LOG.error("Failed to assign an ID, atomic increment on row="
-                  + Arrays.toString(MAXID_ROW) + " column='" +
-                  fromBytes(ID_FAMILY) + ':' + kind() + '\'', e);
-        hbe = e;
-        continue;
-      } catch (IllegalStateException e) {
-        throw e;  // To avoid handling this exception in the next `catch'.
-      } catch (Exception e) {
-        LOG.error("WTF?  Unexpected exception type when assigning an ID,"
-                  + " ICV on row=" + Arrays.toString(MAXID_ROW) + " column='"
+                  + Arrays.toString(MAXID_ROW) + " column='"
                   + fromBytes(ID_FAMILY) + ':' + kind() + '\'', e);
-        continue;
+      } else {
+        // If we die before the forward mapping is created, we just have an
+        // "orphaned" reversed mapping, in other words a UID has been
+        // allocated but never used and is not reachable, so it's just a
+        // wasted UID.
+        LOG.error("Failed to create the mappings of ID " + id + " of kind "
+                  + kind() + " for name='" + name + "'!  ID leaked.", e);
+      }
+      if (e instanceof HBaseException) {
+        hbe = (HBaseException) e;
       }
+      return attempt();
+    }
+
+    private Deferred<byte[]> allocateId() {
+      state = ALLOCATE_ID;
+      row = null;
+      return next(UniqueId.this.allocateId());
+    }
+
+    private Deferred<byte[]> createReverseMapping(final long id) {
+      this.id = id;
+      byte[] row = Bytes.fromLong(id);
+      LOG.info("Got ID=" + id
+               + " for kind='" + kind() + "' name='" + name + "'");
+      // row.length should actually be 8.
+      if (row.length < idWidth) {
+        throw new IllegalStateException("OMG, row.length = " + row.length
+                                        + " which is less than " + idWidth
+                                        + " for id=" + id
+                                        + " row=" + Arrays.toString(row));
+      }
+      // Verify that we're going to drop bytes that are 0.
+      for (int i = 0; i < row.length - idWidth; i++) {
+        if (row[i] != 0) {
+          final String message = "All Unique IDs for " + kind()
+            + " on " + idWidth + " bytes are already assigned!";
+          LOG.error("OMG " + message);
+          throw new IllegalStateException(message);
+        }
+      }
+      // Shrink the ID on the requested number of bytes.
+      this.row = Arrays.copyOfRange(row, row.length - idWidth, row.length);
       // If we die before the next PutRequest succeeds, we just waste an ID.
 
       // Create the reverse mapping first, so that if we die before creating
       // the forward mapping we don't run the risk of "publishing" a
       // partially assigned ID.  The reverse mapping on its own is harmless
       // but the forward mapping without reverse mapping is bad.
-      try {
-        final PutRequest reverse_mapping = new PutRequest(
-          table, row, NAME_FAMILY, kind, toBytes(name));
-        // We are CAS'ing the KV into existence -- the second argument is how
-        // we tell HBase we want to atomically create the KV, so that if there
-        // is already a KV in this cell, we'll fail.  Technically we could do
-        // just a `put' here, as we have a freshly allocated UID, so there is
-        // not reason why a KV should already exist for this UID, but just to
-        // err on the safe side and catch really weird corruption cases, we do
-        // a CAS instead to create the KV.
-        if (!client.compareAndSet(reverse_mapping, HBaseClient.EMPTY_ARRAY)
-            .joinUninterruptibly()) {
-          LOG.error("WTF!  Failed to CAS reverse mapping: " + reverse_mapping
-                    + " -- run an fsck against the UID table!");
-        }
-      } catch (HBaseException e) {
-        LOG.error("Failed to CAS reverse mapping!  ID leaked: " + id
-                  + " of kind " + kind(), e);
-        hbe = e;
-        continue;
-      } catch (Exception e) {
-        LOG.error("WTF, should never be here!  ID leaked: " + id
-                  + " of kind " + kind(), e);
-        continue;
+      state = CREATE_REVERSE_MAPPING;
+      final PutRequest reverse_mapping = new PutRequest(
+        table, this.row, NAME_FAMILY, kind, toBytes(name));
+      // We are CAS'ing the KV into existence -- the second argument is how
+      // we tell HBase we want to atomically create the KV, so that if there
+      // is already a KV in this cell, we'll fail.  Technically we could do
+      // just a `put' here, as we have a freshly allocated UID, so there is
+      // not reason why a KV should already exist for this UID, but just to
+      // err on the safe side and catch really weird corruption cases, we do
+      // a CAS instead to create the KV.
+      return next(client.compareAndSet(reverse_mapping,
+                                       HBaseClient.EMPTY_ARRAY));
+    }
+
+    private Deferred<byte[]> createForwardMapping() {
+      state = CREATE_FORWARD_MAPPING;
+      final PutRequest forward_mapping = new PutRequest(
+        table, toBytes(name), ID_FAMILY, kind, row);
+      return next(client.compareAndSet(forward_mapping,
+                                       HBaseClient.EMPTY_ARRAY));
+    }
+
+    public String toString() {
+      return "getOrCreateId(" + name + ") on " + UniqueId.this;
+    }
+
+  }
+
+  /**
+   * Allocates a new ID, from the IDs we leased if we lease IDs.
+   * @return A deferred new ID.
+   * @see #setIdLeaseSize
+   */
+  private Deferred<Long> allocateId() {
+    if (id_lease_size == 1) {
+      return client.atomicIncrement(
+        new AtomicIncrementRequest(table, MAXID_ROW, ID_FAMILY, kind));
+    }
+    final Deferred<Long> id = new Deferred<Long>();
+    synchronized (lease_lock) {
+      if (next_leased_id < leased_ids_end) {
+        return Deferred.fromResult(next_leased_id++);
+      }
+      if (lease_waiters != null) {  // Wait for the lease in flight.
+        lease_waiters.add(id);
+        return id;
       }
-      // If die before the next PutRequest succeeds, we just have an
-      // "orphaned" reversed mapping, in other words a UID has been allocated
-      // but never used and is not reachable, so it's just a wasted UID.
+      lease_waiters = new ArrayList<Deferred<Long>>();
+      lease_waiters.add(id);
+    }
+    final int size = id_lease_size;
+    Deferred<Long> lease;
+    try {
+      lease = client.atomicIncrement(
+        new AtomicIncrementRequest(table, MAXID_ROW, ID_FAMILY, kind, size));
+    } catch (HBaseException e) {
+      lease = Deferred.fromError(e);
+    }
+    lease.addCallbacks(new LeaseCB(size), new LeaseErrCB());
+    return id;
+  }
 
-      // Now create the forward mapping.
-      try {
-        final PutRequest forward_mapping = new PutRequest(
-          table, toBytes(name), ID_FAMILY, kind, row);
-        // If two TSDs attempted to allocate a UID for the same name at the
-        // same time, they would both have allocated a UID, and created a
-        // reverse mapping, and upon getting here, only one of them would
-        // manage to CAS this KV into existence.  The one that loses the
-        // race will retry and discover the UID assigned by the winner TSD,
-        // and a UID will have been wasted in the process.  No big deal.
-        if (!client.compareAndSet(forward_mapping, HBaseClient.EMPTY_ARRAY)
-            .joinUninterruptibly()) {
-          LOG.warn("Race condition: tried to assign ID " + id + " to "
-                   + kind() + ":" + name + ", but CAS failed on "
-                   + forward_mapping + ", which indicates this UID must have"
-                   + " been allocated concurrently by another TSD. So ID "
-                   + id + " was leaked.");
-          continue;
+  /**
+   * Hands out the IDs of a new lease to the assignments waiting on it.
+   * The IDs we don't need right now are kept for the next assignments.
+   */
+  private final class LeaseCB implements Callback<Object, Long> {
+
+    /** The number of IDs leased. */
+    private final int size;
+
+    LeaseCB(final int size) {
+      this.size = size;
+    }
+
+    public Object call(final Long max_id) {
+      // The increment returned the last ID of the block we leased.
+      final long first_id = max_id - size + 1;
+      LOG.info("Leased IDs " + first_id + " to " + max_id
+               + " for kind='" + kind() + "'");
+      id_leases++;
+      final ArrayList<Deferred<Long>> waiters;
+      final long[] ids;
+      synchronized (lease_lock) {
+        waiters = lease_waiters;
+        lease_waiters = null;
+        next_leased_id = first_id;
+        leased_ids_end = max_id + 1;
+        ids = new long[waiters.size()];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = next_leased_id < leased_ids_end ? next_leased_id++ : -1;
         }
-      } catch (HBaseException e) {
-        LOG.error("Failed to Put reverse mapping!  ID leaked: " + id
-                  + " of kind " + kind(), e);
-        hbe = e;
-        continue;
-      } catch (Exception e) {
-        LOG.error("WTF, should never be here!  ID leaked: " + id
-                  + " of kind " + kind(), e);
-        continue;
       }
+      // Call back outside of the lock, assignments carry on from here.
+      for (int i = 0; i < ids.length; i++) {
+        if (ids[i] >= 0) {
+          waiters.get(i).callback(ids[i]);
+        } else {  // More assignments than IDs leased, need another lease.
+          allocateId().chain(waiters.get(i));
+        }
+      }
+      return null;
+    }
 
-      addIdToCache(name, row);
-      addNameToCache(row, name);
-      return row;
+    public String toString() {
+      return "lease of " + size + " IDs for " + UniqueId.this;
     }
-    if (hbe == null) {
-      throw new IllegalStateException("Should never happen!");
+
+  }
+
+  /** Fails the assignments waiting on a lease that failed.  */
+  private final class LeaseErrCB implements Callback<Object, Exception> {
+
+    public Object call(final Exception e) {
+      final ArrayList<Deferred<Long>> waiters;
+      synchronized (lease_lock) {
+        waiters = lease_waiters;
+        lease_waiters = null;
+      }
+      for (final Deferred<Long> waiter : waiters) {
+        waiter.callback(e);  // The assignment will retry.
+      }
+      return null;
     }
-    LOG.error("Failed to assign an ID for kind='" + kind()
-              + "' name='" + name + "'", hbe);
-    throw hbe;
+
+    public String toString() {
+      return "lease error for " + UniqueId.this;
+    }
+
   }
 
   /**
@@ -365,7 +942,10 @@ public final class UniqueId implements UniqueIdInterface {
    * HBase.
    */
   public List<String> suggest(final String search) throws HBaseException {
-    // TODO(tsuna): Add caching to try to avoid re-scanning the same thing.
+    final ConcurrentSkipListSet<String> index = suggest_index;
+    if (index != null && suggest_index_loaded) {
+      return suggestFromIndex(index, search);
+    }
     final Scanner scanner = getSuggestScanner(search);
     final LinkedList<String> suggestions = new LinkedList<String>();
     try {
@@ -383,10 +963,9 @@ public final class UniqueId implements UniqueIdInterface {
           final byte[] key = row.get(0).key();
           final String name = fromBytes(key);
           final byte[] id = row.get(0).value();
-          final byte[] cached_id = nameCache.get(name);
+          final byte[] cached_id = getIdFromCache(name);
           if (cached_id == null) {
-            addIdToCache(name, id);
-            addNameToCache(id, name);
+            addToCache(name, id);
           } else if (!Arrays.equals(id, cached_id)) {
             throw new IllegalStateException("WTF?  For kind=" + kind()
               + " name=" + name + ", we have id=" + Arrays.toString(cached_id)
@@ -405,6 +984,296 @@ public final class UniqueId implements UniqueIdInterface {
     return suggestions;
   }
 
+  /**
+   * Answers {@link #suggest} from memory.
+   * The names returned are the same as if we had scanned HBase.
+   */
+  private static List<String> suggestFromIndex(
+      final ConcurrentSkipListSet<String> index, final String search) {
+    final String start_row;
+    final String end_row;
+    if (search.isEmpty()) {
+      start_row = fromBytes(START_ROW);
+      end_row = fromBytes(END_ROW);
+    } else {
+      // Round-trip through bytes so characters we can't store in HBase get
+      // replaced the same way as when we scan HBase.
+      start_row = fromBytes(toBytes(search));
+      final int last = start_row.length() - 1;
+      end_row = start_row.substring(0, last)
+        + (char) (start_row.charAt(last) + 1);
+    }
+    final ArrayList<String> suggestions =
+      new ArrayList<String>(MAX_SUGGESTIONS);
+    for (final String name : index.subSet(start_row, end_row)) {
+      suggestions.add(name);
+      if (suggestions.size() == MAX_SUGGESTIONS) {
+        break;
+      }
+    }
+    return suggestions;
+  }
+
+  /**
+   * Loads all the names that have an ID in memory, so that {@link #suggest}
+   * no longer needs to scan HBase.
+   * <p>
+   * Until the names are loaded, {@link #suggest} keeps scanning HBase.  Once
+   * they are, the names are kept up to date as IDs are assigned or renamed
+   * by this instance, or looked up after being assigned by another TSD.
+   * Calling this method again reloads all the names.
+   * @return A deferred that will be called back once all the names have
+   * been loaded.
+   * @since 1.2
+   */
+  public Deferred<Object> loadSuggestIndex() {
+    final ConcurrentSkipListSet<String> index =
+      new ConcurrentSkipListSet<String>();
+    suggest_index_loaded = false;
+    // Start recording the names assigned from now on.
+    suggest_index = index;
+    final Scanner scanner = client.newScanner(table);
+    scanner.setStartKey(START_ROW);
+    scanner.setStopKey(END_ROW);
+    scanner.setFamily(ID_FAMILY);
+    scanner.setQualifier(kind);
+    final long start_time = System.currentTimeMillis();
+    final class LoadCB
+      implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          if (suggest_index == index) {  // Not superseded by another load.
+            suggest_index_loaded = true;
+          }
+          LOG.info("Loaded " + index.size() + " names of kind " + kind()
+                   + " in " + (System.currentTimeMillis() - start_time) + "ms");
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            index.add(fromBytes(kv.key()));
+          }
+        }
+        return scanner.nextRows().addCallback(this);
+      }
+      public String toString() {
+        return "load suggest index for " + UniqueId.this;
+      }
+    }
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        LOG.error("Failed to load the names of kind " + kind()
+                  + ", suggestions will be served from HBase", e);
+        scanner.close();
+        return e;
+      }
+      public String toString() {
+        return "suggest index loading error for " + UniqueId.this;
+      }
+    }
+    return scanner.nextRows().addCallback(new LoadCB())
+      .addErrback(new ErrorCB());
+  }
+
+  /**
+   * Preloads the cache with all the names that have an ID.
+   * <p>
+   * Rather than looking up names one at a time as they come in, which is
+   * what happens with a cold cache, this scans the forward mappings of the
+   * UID table in parallel: the range of names is split in {@code splits}
+   * sub-ranges based on their first character, each scanned by its own
+   * scanner.  Names that don't fit in the cache evict other names, and the
+   * mappings scanned replace the cached mappings they conflict with.
+   * @param splits The number of sub-ranges to scan in parallel.
+   * @return A deferred that will be called back once all the names have
+   * been loaded.
+   * @throws IllegalArgumentException if the number of splits isn't between
+   * 1 and the number of possible first characters.
+   * @since 1.2
+   */
+  public Deferred<Object> warmCache(final int splits) {
+    final int first = START_ROW[0];
+    final int range = END_ROW[0] - first;
+    if (splits < 1 || splits > range) {
+      throw new IllegalArgumentException("Invalid number of splits: "
+                                         + splits);
+    }
+    final AtomicInteger loaded = new AtomicInteger();
+    final long start_time = System.currentTimeMillis();
+    final class WarmCacheCB
+      implements Callback<Object, ArrayList<ArrayList<KeyValue>>> {
+      private final Scanner scanner;
+      WarmCacheCB(final Scanner scanner) {
+        this.scanner = scanner;
+      }
+      public Object call(final ArrayList<ArrayList<KeyValue>> rows) {
+        if (rows == null) {
+          return null;
+        }
+        for (final ArrayList<KeyValue> row : rows) {
+          for (final KeyValue kv : row) {
+            final String name = fromBytes(kv.key());
+            if (kv.value().length != idWidth) {
+              LOG.error("Ignoring the ID of name=" + name + ", it should be "
+                        + idWidth + " bytes long: " + kv);
+              continue;
+            }
+            // HBase is authoritative: this fixes up the stale mappings a
+            // snapshot may have loaded.
+            addToCache(name, kv.value(), true);
+            loaded.incrementAndGet();
+          }
+        }
+        return scanner.nextRows().addCallback(this);
+      }
+      public String toString() {
+        return "warm up cache of " + UniqueId.this;
+      }
+    }
+    final class ScanErrorCB implements Callback<Object, Exception> {
+      private final Scanner scanner;
+      ScanErrorCB(final Scanner scanner) {
+        this.scanner = scanner;
+      }
+      public Object call(final Exception e) {
+        scanner.close();
+        return e;
+      }
+      public String toString() {
+        return "cache warm-up scan error for " + UniqueId.this;
+      }
+    }
+    final ArrayList<Deferred<Object>> scans =
+      new ArrayList<Deferred<Object>>(splits);
+    for (int i = 0; i < splits; i++) {
+      final Scanner scanner = client.newScanner(table);
+      scanner.setStartKey(new byte[] { (byte) (first + range * i / splits) });
+      scanner.setStopKey(new byte[] {
+        (byte) (first + range * (i + 1) / splits) });
+      scanner.setFamily(ID_FAMILY);
+      scanner.setQualifier(kind);
+      scans.add(scanner.nextRows().addCallbacks(new WarmCacheCB(scanner),
+                                                new ScanErrorCB(scanner)));
+    }
+    final class DoneCB implements Callback<Object, ArrayList<Object>> {
+      public Object call(final ArrayList<Object> ignored) {
+        LOG.info("Warmed up the cache of " + UniqueId.this + " with "
+                 + loaded.get() + " names in "
+                 + (System.currentTimeMillis() - start_time) + "ms");
+        return null;
+      }
+      public String toString() {
+        return "cache warm-up done for " + UniqueId.this;
+      }
+    }
+    final class ErrorCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        LOG.error("Failed to warm up the cache of " + UniqueId.this
+                  + " after loading " + loaded.get() + " names", e);
+        return e;
+      }
+      public String toString() {
+        return "cache warm-up error for " + UniqueId.this;
+      }
+    }
+    return Deferred.group(scans).addCallbacks(new DoneCB(), new ErrorCB());
+  }
+
+  /** Magic number at the beginning of the cache snapshots.  */
+  private static final int SNAPSHOT_MAGIC = 0x55494443;  // "UIDC"
+
+  /**
+   * Saves the contents of the cache to a local file.
+   * <p>
+   * The file is a compact, sorted array of name/ID pairs which can be
+   * loaded back with {@link #loadCacheSnapshot} much faster than what it
+   * takes to {@link #warmCache warm up} the cache from HBase.  It's first
+   * written to a temporary file which is then renamed, so a crash never
+   * leaves a truncated snapshot behind.
+   * @param file The file to write.
+   * @return The number of name/ID pairs saved.
+   * @throws IOException if the file couldn't be written.
+   * @since 1.2
+   */
+  public int saveCacheSnapshot(final File file) throws IOException {
+    final UidCache.Entries entries = cache.sortedEntries();
+    final File tmp = new File(file.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeShort(kind.length);
+      out.write(kind);
+      out.writeByte(idWidth);
+      out.writeInt(entries.names.length);
+      for (int i = 0; i < entries.names.length; i++) {
+        final byte[] name = toBytes(entries.names[i]);
+        out.writeShort(name.length);
+        out.write(name);
+        out.write(longToId(entries.ids[i]));
+      }
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("Failed to rename " + tmp + " to " + file);
+    }
+    return entries.names.length;
+  }
+
+  /**
+   * Loads the cache with a snapshot written by {@link #saveCacheSnapshot}.
+   * <p>
+   * Since IDs are never reassigned, the snapshot remains valid over time,
+   * except for the names {@link #rename renamed} after it was written.  The
+   * pairs that conflict with what's already in the cache are skipped, and
+   * a {@link #warmCache warm-up} replaces the pairs that turn out to be
+   * stale, so callers should bound the age of the snapshots they load.
+   * @param file The file to read.
+   * @return The number of name/ID pairs loaded.
+   * @throws IOException if the file couldn't be read, is corrupted, or was
+   * written by an instance of a different kind or ID width.
+   * @since 1.2
+   */
+  public int loadCacheSnapshot(final File file) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      final ByteBuffer buf = raf.getChannel()
+        .map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (buf.getInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a UID cache snapshot: " + file);
+      }
+      final byte[] snapshot_kind = new byte[buf.getShort() & 0xFFFF];
+      buf.get(snapshot_kind);
+      final byte width = buf.get();
+      if (!Bytes.equals(kind, snapshot_kind) || width != idWidth) {
+        throw new IOException("Snapshot " + file + " is for kind="
+                              + fromBytes(snapshot_kind) + " and width="
+                              + width + ", not " + this);
+      }
+      final int count = buf.getInt();
+      final byte[] id = new byte[idWidth];
+      int loaded = 0;
+      for (int i = 0; i < count; i++) {
+        final byte[] name = new byte[buf.getShort() & 0xFFFF];
+        buf.get(name);
+        buf.get(id);
+        try {
+          addToCache(fromBytes(name), id);
+          loaded++;
+        } catch (IllegalStateException e) {
+          LOG.warn("Not loading a stale mapping from " + file, e);
+        }
+      }
+      return loaded;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated UID cache snapshot: " + file, e);
+    } finally {
+      raf.close();
+    }
+  }
+
   /**
    * Reassigns the UID to a different name (non-atomic).
    * <p>
@@ -447,8 +1316,8 @@ public final class UniqueId implements UniqueIdInterface {
     try {
       final PutRequest reverse_mapping = new PutRequest(
         table, row, NAME_FAMILY, kind, newnameb);
-      hbasePutWithRetry(reverse_mapping, MAX_ATTEMPTS_PUT,
-                        INITIAL_EXP_BACKOFF_DELAY);
+      join(hbasePutWithRetry(reverse_mapping, MAX_ATTEMPTS_PUT,
+                             INITIAL_EXP_BACKOFF_DELAY));
     } catch (HBaseException e) {
       LOG.error("When trying rename(\"" + oldname
         + "\", \"" + newname + "\") on " + this + ": Failed to update reverse"
@@ -460,8 +1329,8 @@ public final class UniqueId implements UniqueIdInterface {
     try {
       final PutRequest forward_mapping = new PutRequest(
         table, newnameb, ID_FAMILY, kind, row);
-      hbasePutWithRetry(forward_mapping, MAX_ATTEMPTS_PUT,
-                        INITIAL_EXP_BACKOFF_DELAY);
+      join(hbasePutWithRetry(forward_mapping, MAX_ATTEMPTS_PUT,
+                             INITIAL_EXP_BACKOFF_DELAY));
     } catch (HBaseException e) {
       LOG.error("When trying rename(\"" + oldname
         + "\", \"" + newname + "\") on " + this + ": Failed to create the"
@@ -470,9 +1339,12 @@ public final class UniqueId implements UniqueIdInterface {
     }
 
     // Update cache.
-    addIdToCache(newname, row);            // add     new name -> ID
-    idCache.put(fromBytes(row), newname);  // update  ID -> new name
-    nameCache.remove(oldname);             // remove  old name -> ID
+    negative_cache.remove(newname);
+    cache.rename(idToLong(row), newname);  // ID <-> new name, drop old name.
+    final ConcurrentSkipListSet<String> index = suggest_index;
+    if (index != null) {
+      index.remove(oldname);
+    }
 
     // Delete the old forward mapping.
     try {
@@ -524,60 +1396,102 @@ public final class UniqueId implements UniqueIdInterface {
   }
 
   /** Returns the cell of the specified row key, using family:kind. */
-  private byte[] hbaseGet(final byte[] key,
-                          final byte[] family) throws HBaseException {
+  private Deferred<byte[]> hbaseGet(final byte[] key,
+                                    final byte[] family) throws HBaseException {
     final GetRequest get = new GetRequest(table, key);
     get.family(family).qualifier(kind);
-    try {
-      final ArrayList<KeyValue> row = client.get(get).joinUninterruptibly();
-      if (row == null || row.isEmpty()) {
-        return null;
+    final class GetCB implements Callback<byte[], ArrayList<KeyValue>> {
+      public byte[] call(final ArrayList<KeyValue> row) {
+        if (row == null || row.isEmpty()) {
+          return null;
+        }
+        return row.get(0).value();
       }
-      return row.get(0).value();
-    } catch (HBaseException e) {
-      throw e;
-    } catch (Exception e) {
-      throw new RuntimeException("Should never be here", e);
     }
+    return client.get(get).addCallback(new GetCB());
   }
 
   /**
    * Attempts to run the PutRequest given in argument, retrying if needed.
-   *
-   * Puts are synchronized.
+   * <p>
+   * Failed attempts are retried after a delay, using the timer of the HBase
+   * client, so no thread is ever blocked while we wait.
    *
    * @param put The PutRequest to execute.
    * @param attempts The maximum number of attempts.
-   * @param wait The initial amount of time in ms to sleep for after a
+   * @param wait The initial amount of time in ms to wait for after a
    * failure.  This amount is doubled after each failed attempt.
-   * @throws HBaseException if all the attempts have failed.  This exception
-   * will be the exception of the last attempt.
+   * @return A deferred that will be called back once the put succeeded.
+   * @throws HBaseException (deferred) if all the attempts have failed.  This
+   * exception will be the exception of the last attempt.
    */
-  private void hbasePutWithRetry(final PutRequest put, short attempts, short wait)
-    throws HBaseException {
-    put.setBufferable(false);  // TODO(tsuna): Remove once this code is async.
-    while (attempts-- > 0) {
-      try {
-        client.put(put).joinUninterruptibly();
-        return;
-      } catch (HBaseException e) {
-        if (attempts > 0) {
-          LOG.error("Put failed, attempts left=" + attempts
-                    + " (retrying in " + wait + " ms), put=" + put, e);
-          try {
-            Thread.sleep(wait);
-          } catch (InterruptedException ie) {
-            throw new RuntimeException("interrupted", ie);
-          }
-          wait *= 2;
-        } else {
-          throw e;
+  private Deferred<Object> hbasePutWithRetry(final PutRequest put,
+                                             final short attempts,
+                                             final short wait) {
+    put.setBufferable(false);  // Edits to the UID table must not be delayed.
+    final class RetryCB implements Callback<Object, Exception> {
+      public Object call(final Exception e) {
+        if (!(e instanceof HBaseException)) {
+          LOG.error("WTF?  Unexpected exception type, put=" + put, e);
         }
-      } catch (Exception e) {
-        LOG.error("WTF?  Unexpected exception type, put=" + put, e);
+        if (attempts <= 1) {
+          return e;
+        }
+        LOG.error("Put failed, attempts left=" + (attempts - 1)
+                  + " (retrying in " + wait + " ms), put=" + put, e);
+        final Deferred<Object> retry = new Deferred<Object>();
+        client.getTimer().newTimeout(new TimerTask() {
+          public void run(final Timeout timeout) {
+            hbasePutWithRetry(put, (short) (attempts - 1), (short) (wait * 2))
+              .chain(retry);
+          }
+        }, wait, TimeUnit.MILLISECONDS);
+        return retry;
+      }
+      public String toString() {
+        return "retry " + put;
       }
     }
-    throw new IllegalStateException("This code should never be reached!");
+    return client.put(put).addErrback(new RetryCB());
+  }
+
+  /**
+   * Waits for the result of an asynchronous call.
+   * @return The result of the call.
+   * @throws RuntimeException The exception the call failed with, if any.
+   */
+  private static <T> T join(final Deferred<T> d) {
+    try {
+      return d.joinUninterruptibly();
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new RuntimeException("Should never be here", e);
+    }
+  }
+
+  /** Returns the given ID as a {@code long}.  */
+  private static long idToLong(final byte[] id) {
+    long value = 0;
+    for (final byte b : id) {
+      value = (value << 8) | (b & 0xFF);
+    }
+    return value;
+  }
+
+  /** Returns the given ID on {@code idWidth} bytes.  */
+  private byte[] longToId(final long value) {
+    final byte[] id = new byte[idWidth];
+    copyId(value, id, 0);
+    return id;
+  }
+
+  /** Writes the given ID on {@code idWidth} bytes at the given offset.  */
+  private void copyId(long value, final byte[] buf, final int offset) {
+    for (int i = offset + idWidth - 1; i >= offset; i--) {
+      buf[i] = (byte) value;
+      value >>>= 8;
+    }
   }
 
   private static byte[] toBytes(final String s) {
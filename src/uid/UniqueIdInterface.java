@@ -12,6 +12,11 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import com.stumbleupon.async.Deferred;
+
 import org.hbase.async.HBaseException;
 
 /**
@@ -31,6 +36,10 @@ import org.hbase.async.HBaseException;
  * IDs are looked up in HBase and cached forever in memory (since they're
  * immutable).  IDs are encoded on a fixed number of bytes, which is
  * implementation dependent.
+ * <p>
+ * Every lookup has an asynchronous variant, which should be preferred by
+ * code running on an I/O thread, as the synchronous variants block until
+ * HBase answers when the ID or name isn't in memory.
  */
 public interface UniqueIdInterface {
 
@@ -57,6 +66,40 @@ public interface UniqueIdInterface {
    */
   String getName(byte[] id) throws NoSuchUniqueId, HBaseException;
 
+  /**
+   * Asynchronously finds the name associated with a given ID.
+   *
+   * @param id The ID associated with that name.
+   * @return A deferred name.
+   * @see #getName(byte[])
+   * @throws NoSuchUniqueId (deferred) if the given ID is not assigned.
+   * @throws HBaseException (deferred) if there is a problem communicating
+   * with HBase.
+   * @throws IllegalArgumentException if the ID given in argument is encoded
+   * on the wrong number of bytes.
+   * @since 1.2
+   */
+  Deferred<String> getNameAsync(byte[] id);
+
+  /**
+   * Asynchronously finds the names associated with many IDs at once.
+   * <p>
+   * This is more efficient than calling {@link #getNameAsync} for each ID:
+   * IDs that appear multiple times are looked up only once, and all the
+   * IDs that aren't in memory are looked up in parallel.
+   *
+   * @param ids The IDs to look up, which may contain duplicates.
+   * @return A deferred list with the name of each ID, in the same order.
+   * @see #getNameAsync(byte[])
+   * @throws NoSuchUniqueId (deferred) if one of the IDs is not assigned.
+   * @throws HBaseException (deferred) if there is a problem communicating
+   * with HBase.
+   * @throws IllegalArgumentException if one of the IDs given in argument is
+   * encoded on the wrong number of bytes.
+   * @since 1.2
+   */
+  Deferred<ArrayList<String>> getNamesAsync(List<byte[]> ids);
+
   /**
    * Finds the ID associated with a given name.
    * <p>
@@ -72,6 +115,22 @@ public interface UniqueIdInterface {
    */
   byte[] getId(String name) throws NoSuchUniqueName, HBaseException;
 
+  /**
+   * Asynchronously finds the ID associated with a given name.
+   *
+   * @param name The name to lookup in the table.
+   * @return A deferred non-null, non-empty {@code byte[]} array.
+   * @see #getId(String)
+   * @throws NoSuchUniqueName (deferred) if the name requested doesn't have
+   * an ID assigned.
+   * @throws HBaseException (deferred) if there is a problem communicating
+   * with HBase.
+   * @throws IllegalStateException (deferred) if the ID found in HBase is
+   * encoded on the wrong number of bytes.
+   * @since 1.2
+   */
+  Deferred<byte[]> getIdAsync(String name);
+
   /**
    * Finds the ID associated with a given name or creates it.
    * <p>
@@ -85,4 +144,19 @@ public interface UniqueIdInterface {
    */
   byte[] getOrCreateId(String name) throws HBaseException, IllegalStateException;
 
+  /**
+   * Asynchronously finds the ID associated with a given name or creates it.
+   *
+   * @param name The name to lookup in the table or to assign an ID to.
+   * @return A deferred non-null, non-empty {@code byte[]} array.
+   * @see #getOrCreateId(String)
+   * @throws HBaseException (deferred) if there is a problem communicating
+   * with HBase.
+   * @throws IllegalStateException (deferred) if all possible IDs are already
+   * assigned, or if the ID found in HBase is encoded on the wrong number of
+   * bytes.
+   * @since 1.2
+   */
+  Deferred<byte[]> getOrCreateIdAsync(String name);
+
 }
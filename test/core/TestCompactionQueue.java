@@ -13,6 +13,7 @@
 package net.opentsdb.core;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.stumbleupon.async.Deferred;
 
@@ -25,6 +26,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.any;
@@ -77,7 +81,7 @@ final class TestCompactionQueue {
   @Test
   public void emptyRow() throws Exception {
     ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(0);
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had nothing to do so...
     // ... verify there were no put.
@@ -91,7 +95,7 @@ final class TestCompactionQueue {
     ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
     final byte[] qual = { 0x00, 0x03 };
     kvs.add(makekv(qual, Bytes.fromLong(42L)));
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had nothing to do so...
     // ... verify there were no put.
@@ -110,7 +114,7 @@ final class TestCompactionQueue {
     final byte[] val2 = Bytes.fromLong(5L);
     kvs.add(makekv(qual2, val2));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had one row to compact, so one put to do.
     verify(tsdb, times(1)).put(KEY, concat(qual1, qual2),
@@ -132,7 +136,7 @@ final class TestCompactionQueue {
     final byte[] val2 = Bytes.fromLong(5L);
     kvs.add(makekv(qual2, val2));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had one row to compact, so one put to do.
     verify(tsdb, times(1)).put(KEY, concat(cqual1, qual2),
@@ -156,7 +160,7 @@ final class TestCompactionQueue {
     final byte[] cval2 = Bytes.fromInt(Float.floatToRawIntBits(4.2F));
     kvs.add(makekv(qual2, val2));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had one row to compact, so one put to do.
     verify(tsdb, times(1)).put(KEY, concat(qual1, qual2),
@@ -176,7 +180,7 @@ final class TestCompactionQueue {
     final byte[] val2 = Bytes.fromInt(4);
     kvs.add(makekv(qual2, val2));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
   }
 
   @Test
@@ -195,7 +199,7 @@ final class TestCompactionQueue {
     final byte[] valcompact = concat(val1, val2, ZERO);
     kvs.add(makekv(qualcompact, valcompact));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We didn't have anything to write.
     verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
@@ -221,7 +225,7 @@ final class TestCompactionQueue {
     final byte[] val3 = Bytes.fromLong(6L);
     kvs.add(makekv(qual3, val3));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had one row to compact, so one put to do.
     verify(tsdb, times(1)).put(KEY, concat(qual1, qual3, qual2),
@@ -255,7 +259,7 @@ final class TestCompactionQueue {
     kvs.add(makekv(qual3, val3));
     kvs.add(makekv(qual2, val2));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We didn't have anything to write, the last cell is already the correct
     // compacted version of the row.
@@ -288,7 +292,7 @@ final class TestCompactionQueue {
     kvs.add(makekv(qual3, val3));
     kvs.add(makekv(qual2, val2));
 
-    compactionq.compact(kvs);
+    compactionq.repair(kvs);
 
     // We had one row to compact, so one put to do.
     verify(tsdb, times(1)).put(KEY, concat(qual1, qual3, qual2),
@@ -298,6 +302,39 @@ final class TestCompactionQueue {
     verify(tsdb, times(1)).delete(KEY, new byte[][] { qual1, qual12, qual13, qual3, qual2 });
   }
 
+  @Test
+  public void queryCompactionDoesntWrite() throws Exception {
+    // When a query reads an old uncompacted row, it gets the compacted form
+    // but the row is only scheduled for a repair in the background.
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+    final byte[] qual1 = { 0x00, 0x07 };
+    final byte[] val1 = Bytes.fromLong(4L);
+    kvs.add(makekv(qual1, val1));
+    final byte[] qual2 = { 0x00, 0x17 };
+    final byte[] val2 = Bytes.fromLong(5L);
+    kvs.add(makekv(qual2, val2));
+
+    final KeyValue compacted = compactionq.compact(kvs);
+
+    assertArrayEquals(concat(qual1, qual2), compacted.qualifier());
+    assertArrayEquals(concat(val1, val2, ZERO), compacted.value());
+    verify(tsdb, never()).put(anyBytes(), anyBytes(), anyBytes());
+    verify(tsdb, never()).delete(anyBytes(), any(byte[][].class));
+    assertEquals(1, repairQueueSize());
+  }
+
+  @Test
+  public void queryCompactionRepairsOnce() throws Exception {
+    // Reading the same uncompacted row again doesn't schedule it twice.
+    for (int i = 0; i < 3; i++) {
+      ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(2);
+      kvs.add(makekv(new byte[] { 0x00, 0x07 }, Bytes.fromLong(4L)));
+      kvs.add(makekv(new byte[] { 0x00, 0x17 }, Bytes.fromLong(5L)));
+      compactionq.compact(kvs);
+    }
+    assertEquals(1, repairQueueSize());
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
@@ -322,6 +359,12 @@ final class TestCompactionQueue {
     return result;
   }
 
+  /** Returns the number of rows waiting to be repaired.  */
+  private int repairQueueSize() {
+    return ((AtomicInteger) Whitebox.getInternalState(compactionq,
+                                                      "repair_size")).get();
+  }
+
   private static byte[] anyBytes() {
     return any(byte[].class);
   }
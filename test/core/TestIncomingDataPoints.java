@@ -0,0 +1,139 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.HashMap;
+
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
+public final class TestIncomingDataPoints {
+
+  private static final byte[] METRIC = { 0, 0, 1 };
+  // The tag names are in the reverse order of their IDs.
+  private static final byte[] DC = { 0, 0, 3 };
+  private static final byte[] HOST = { 0, 0, 2 };
+  private static final byte[] TYPE = { 0, 0, 1 };
+  private static final byte[] LGA = { 0, 0, 4 };
+  private static final byte[] WEB01 = { 0, 0, 5 };
+  private static final byte[] IDLE = { 0, 0, 6 };
+  /** The row key of the series, without its base timestamp. */
+  private static final byte[] ROW = { 0, 0, 1, 0, 0, 0, 0,
+                                      0, 0, 1, 0, 0, 6,    // type=idle
+                                      0, 0, 2, 0, 0, 5,    // host=web01
+                                      0, 0, 3, 0, 0, 4 };  // dc=lga
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final UniqueId metrics = mock(UniqueId.class);
+  private final UniqueId tag_names = mock(UniqueId.class);
+  private final UniqueId tag_values = mock(UniqueId.class);
+  private final HashMap<String, String> tags = new HashMap<String, String>();
+
+  @Before
+  public void before() {
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "tag_names", tag_names);
+    Whitebox.setInternalState(tsdb, "tag_values", tag_values);
+    when(metrics.width()).thenReturn((short) 3);
+    when(tag_names.width()).thenReturn((short) 3);
+    when(tag_values.width()).thenReturn((short) 3);
+    tags.put("dc", "lga");
+    tags.put("host", "web01");
+    tags.put("type", "idle");
+  }
+
+  @Test
+  public void rowKeyTemplateFromCache() throws Exception {
+    cached(metrics, "sys.cpu.user", METRIC);
+    cached(tag_names, "dc", DC);
+    cached(tag_names, "host", HOST);
+    cached(tag_names, "type", TYPE);
+    cached(tag_values, "lga", LGA);
+    cached(tag_values, "web01", WEB01);
+    cached(tag_values, "idle", IDLE);
+    assertArrayEquals(ROW, IncomingDataPoints.rowKeyTemplateAsync(
+      tsdb, "sys.cpu.user", tags).joinUninterruptibly());
+    verify(metrics, never()).getIdAsync(anyString());
+    verify(metrics, never()).getOrCreateIdAsync(anyString());
+    verify(tag_names, never()).getOrCreateIdAsync(anyString());
+    verify(tag_values, never()).getOrCreateIdAsync(anyString());
+  }
+
+  @Test  // Some IDs aren't cached, so we resolve them all the slow way.
+  public void rowKeyTemplateCacheMiss() throws Exception {
+    cached(metrics, "sys.cpu.user", METRIC);
+    cached(tag_names, "dc", DC);
+    cached(tag_values, "lga", LGA);
+    resolves(metrics, "sys.cpu.user", METRIC);
+    resolves(tag_names, "dc", DC);
+    resolves(tag_names, "host", HOST);
+    resolves(tag_names, "type", TYPE);
+    resolves(tag_values, "lga", LGA);
+    resolves(tag_values, "web01", WEB01);
+    resolves(tag_values, "idle", IDLE);
+    assertArrayEquals(ROW, IncomingDataPoints.rowKeyTemplateAsync(
+      tsdb, "sys.cpu.user", tags).joinUninterruptibly());
+  }
+
+  /** Makes the given UniqueId cache the ID of the given name.  */
+  private static void cached(final UniqueId uid, final String name,
+                             final byte[] id) {
+    when(uid.copyCachedId(eq(name), any(byte[].class), anyInt()))
+      .thenAnswer(new Answer<Boolean>() {
+        public Boolean answer(final InvocationOnMock invocation) {
+          final Object[] args = invocation.getArguments();
+          System.arraycopy(id, 0, (byte[]) args[1], (Integer) args[2],
+                           id.length);
+          return true;
+        }
+      });
+  }
+
+  /** Makes the given UniqueId resolve the given name.  */
+  private static void resolves(final UniqueId uid, final String name,
+                               final byte[] id) {
+    when(uid.getIdAsync(name)).thenReturn(Deferred.fromResult(id.clone()));
+    when(uid.getOrCreateIdAsync(name))
+      .thenReturn(Deferred.fromResult(id.clone()));
+  }
+
+}
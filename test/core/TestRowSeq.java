@@ -0,0 +1,252 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.Random;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.KeyValue;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public final class TestRowSeq {
+
+  /** The TSDB is only used to find the width of metric IDs.  */
+  private static final TSDB tsdb = new TSDB(null, "tsdb", "tsdb-uid");
+  private static final byte[] FAMILY = { 't' };
+  /** Metric 1, base time 1356998400, tag 1=2.  */
+  private static final byte[] KEY =
+    { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0x00, 0, 0, 1, 0, 0, 2 };
+  private static final long BASE_TIME = 1356998400L;
+
+  @Test
+  public void decodedMatchesRaw() {
+    final RowSeq raw = makeRowSeq(mixedRow());
+    final RowSeq decoded = makeRowSeq(mixedRow());
+    decoded.decode();
+    assertFalse(raw.isDecoded());
+    assertTrue(decoded.isDecoded());
+    assertSameDataPoints(raw, decoded);
+  }
+
+  @Test
+  public void decodedRandomAccess() {
+    final RowSeq seq = makeRowSeq(mixedRow());
+    seq.decode();
+    assertEquals(5, seq.size());
+    assertEquals(BASE_TIME, seq.timestamp(0));
+    assertEquals(4242L, seq.longValue(0));
+    assertEquals(42L, seq.longValue(1));
+    assertEquals(1.5, seq.doubleValue(2), 0.0);
+    assertEquals(Long.MAX_VALUE, seq.longValue(3));
+    assertEquals(Math.PI, seq.doubleValue(4), 0.0);
+    assertEquals(BASE_TIME + 3599, seq.timestamp(4));
+  }
+
+  @Test
+  public void decodedSeek() {
+    final RowSeq raw = makeRowSeq(mixedRow());
+    final RowSeq decoded = makeRowSeq(mixedRow());
+    decoded.decode();
+    final long[] targets = { BASE_TIME - 1, BASE_TIME, BASE_TIME + 1, BASE_TIME + 2,
+                             BASE_TIME + 10, BASE_TIME + 11, BASE_TIME + 3599,
+                             BASE_TIME + 3600 };
+    for (final long target : targets) {
+      // Walk the raw data points manually to find where we should land.
+      final RowSeq.Iterator r = raw.internalIterator();
+      while (r.hasNext() && r.peekNextTimestamp() < target) {
+        r.next();
+      }
+      final RowSeq.Iterator d = decoded.internalIterator();
+      d.seek(target);
+      assertEquals("seek to " + target, r.hasNext(), d.hasNext());
+      while (r.hasNext()) {
+        assertSameDataPoint(r.next(), d.next());
+      }
+      assertFalse(d.hasNext());
+    }
+  }
+
+  @Test
+  public void decodedSaveRestoreState() {
+    final RowSeq seq = makeRowSeq(mixedRow());
+    seq.decode();
+    final RowSeq.Iterator it = seq.internalIterator();
+    it.next();
+    it.next();
+    final int state = it.saveState();
+    assertEquals(BASE_TIME + 10, it.peekNextTimestamp());
+    it.next();
+    it.next();
+    it.restoreState(state);
+    assertEquals(BASE_TIME + 10, it.next().timestamp());
+  }
+
+  @Test
+  public void decodeAfterAddRow() {
+    final RowSeq seq = makeRowSeq(mixedRow());
+    seq.decode();
+    final byte[] key = KEY.clone();
+    Bytes.setInt(key, (int) (BASE_TIME + 3600), 3);
+    seq.addRow(new KeyValue(key, FAMILY, new byte[] { 0, 0x10 },
+                            new byte[] { 7 }));
+    assertFalse(seq.isDecoded());
+    seq.decode();
+    assertEquals(6, seq.size());
+    assertEquals(BASE_TIME + 3601, seq.timestamp(5));
+    assertEquals(7L, seq.longValue(5));
+  }
+
+  @Test
+  public void decodeOutOfOrder() {
+    final byte[] qualifiers = { 0, 0x10, 0, 0x10 };  // Same delta twice.
+    final RowSeq seq = makeRowSeq(new KeyValue(KEY, FAMILY, qualifiers,
+                                               new byte[] { 1, 2, 0 }));
+    try {
+      seq.decode();
+      fail("should have thrown an IllegalDataException");
+    } catch (IllegalDataException e) {
+      assertFalse(seq.isDecoded());
+    }
+  }
+
+  @Test
+  public void seekLargeRow() {
+    final RowSeq seq = makeRowSeq(randomRow(new Random(42)));
+    final long[] targets = { BASE_TIME, BASE_TIME + 1, BASE_TIME + 63,
+                             BASE_TIME + 64, BASE_TIME + 65, BASE_TIME + 1000,
+                             BASE_TIME + 3583, BASE_TIME + 3584,
+                             BASE_TIME + 3599, BASE_TIME + 3600 };
+    for (final long target : targets) {
+      final RowSeq.Iterator expected = seq.internalIterator();
+      while (expected.hasNext() && expected.peekNextTimestamp() < target) {
+        expected.next();
+      }
+      final RowSeq.Iterator it = seq.internalIterator();
+      it.next();  // Seeking must work from anywhere.
+      it.seek(target);
+      assertEquals("seek to " + target, expected.hasNext(), it.hasNext());
+      while (expected.hasNext()) {
+        assertSameDataPoint(expected.next(), it.next());
+      }
+      assertFalse(it.hasNext());
+    }
+  }
+
+  @Test
+  public void seekBackwards() {
+    final RowSeq seq = makeRowSeq(randomRow(new Random(42)));
+    final RowSeq.Iterator it = seq.internalIterator();
+    it.seek(BASE_TIME + 3000);
+    assertEquals(BASE_TIME + 3000, it.next().timestamp());
+    it.seek(BASE_TIME + 100);
+    assertEquals(BASE_TIME + 100, it.next().timestamp());
+  }
+
+  @Test
+  public void randomAccessLargeRow() {
+    final RowSeq seq = makeRowSeq(randomRow(new Random(42)));
+    final RowSeq.Iterator it = seq.internalIterator();
+    for (int i = 0; i < seq.size(); i++) {
+      final DataPoint dp = it.next();
+      assertEquals(dp.timestamp(), seq.timestamp(i));
+      if (dp.isInteger()) {
+        assertEquals(dp.longValue(), seq.longValue(i));
+      } else {
+        assertEquals(dp.doubleValue(), seq.doubleValue(i), 0.0);
+      }
+    }
+  }
+
+  /**
+   * Returns a compacted row with integers and floating point values of
+   * every size.
+   */
+  private static KeyValue mixedRow() {
+    final byte[] qualifiers = {
+      0, 0x01,                            // +0: 2-byte long
+      0, 0x20,                            // +2: 1-byte long
+      0, (byte) 0xAB,                     // +10: 4-byte float
+      0, (byte) 0xB7,                     // +11: 8-byte long
+      (byte) 0xE0, (byte) 0xFF,           // +3599: 8-byte double
+    };
+    final byte[] values = new byte[1 + 2 + 4 + 8 + 8 + 1];
+    Bytes.setShort(values, (short) 4242, 0);
+    values[2] = 42;
+    Bytes.setInt(values, Float.floatToRawIntBits(1.5f), 3);
+    Bytes.setLong(values, Long.MAX_VALUE, 7);
+    Bytes.setLong(values, Double.doubleToRawLongBits(Math.PI), 15);
+    return new KeyValue(KEY, FAMILY, qualifiers, values);
+  }
+
+  private static RowSeq makeRowSeq(final KeyValue row) {
+    final RowSeq seq = new RowSeq(tsdb);
+    seq.setRow(row);
+    return seq;
+  }
+
+  private static void assertSameDataPoints(final RowSeq expected,
+                                           final RowSeq actual) {
+    assertEquals(expected.size(), actual.size());
+    final RowSeq.Iterator e = expected.internalIterator();
+    final RowSeq.Iterator a = actual.internalIterator();
+    while (e.hasNext()) {
+      assertTrue(a.hasNext());
+      assertEquals(e.peekNextTimestamp(), a.peekNextTimestamp());
+      assertSameDataPoint(e.next(), a.next());
+    }
+    assertFalse(a.hasNext());
+  }
+
+  private static void assertSameDataPoint(final DataPoint expected,
+                                          final DataPoint actual) {
+    assertEquals(expected.timestamp(), actual.timestamp());
+    assertEquals(expected.isInteger(), actual.isInteger());
+    if (expected.isInteger()) {
+      assertEquals(expected.longValue(), actual.longValue());
+    } else {
+      assertEquals(expected.doubleValue(), actual.doubleValue(), 0.0);
+    }
+  }
+
+  /** Returns a compacted row with 3600 data points of random types.  */
+  private static KeyValue randomRow(final Random random) {
+    final byte[] qualifiers = new byte[3600 * 2];
+    final byte[] values = new byte[3600 * 8 + 1];
+    int value_idx = 0;
+    for (int i = 0; i < 3600; i++) {
+      final boolean is_float = random.nextInt(4) == 0;
+      final short flags;
+      if (is_float) {
+        flags = (short) (Const.FLAG_FLOAT | 0x3);
+        Bytes.setInt(values, Float.floatToRawIntBits(random.nextFloat()),
+                     value_idx);
+        value_idx += 4;
+      } else {
+        flags = 0x1;
+        Bytes.setShort(values, (short) random.nextInt(), value_idx);
+        value_idx += 2;
+      }
+      Bytes.setShort(qualifiers, (short) (i << Const.FLAG_BITS | flags),
+                     i * 2);
+    }
+    final byte[] trimmed = new byte[value_idx + 1];
+    System.arraycopy(values, 0, trimmed, 0, value_idx);
+    return new KeyValue(KEY, FAMILY, qualifiers, trimmed);
+  }
+
+}
@@ -0,0 +1,198 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class, HBaseClient.class })
+public final class TestTagIndex {
+
+  private static final byte[] TABLE = { 'i', 'd', 'x' };
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final byte[] HOST_WEB01 = { 0, 0, 1, 0, 0, 1 };
+  private static final byte[] HOST_WEB02 = { 0, 0, 1, 0, 0, 2 };
+  private static final byte[] TYPE_IDLE = { 0, 0, 2, 0, 0, 3 };
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HBaseClient client = mock(HBaseClient.class);
+
+  @Before
+  public void before() {
+    for (final String field : new String[] { "metrics", "tag_names",
+                                             "tag_values" }) {
+      final UniqueId uid = mock(UniqueId.class);
+      when(uid.width()).thenReturn((short) 3);
+      Whitebox.setInternalState(tsdb, field, uid);
+    }
+    Whitebox.setInternalState(tsdb, "client", client);
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+  }
+
+  @Test
+  public void indexSeriesOnce() throws Exception {
+    final TagIndex index = new TagIndex(tsdb, TABLE, 100);
+    index.indexSeries(row(1356998400, HOST_WEB01, TYPE_IDLE))
+      .joinUninterruptibly();
+    // Same series, different row: nothing to write or wait for.
+    assertNull(index.indexSeries(row(1357002000, HOST_WEB01, TYPE_IDLE)));
+
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(2)).put(puts.capture());
+    final byte[] suffix = concat(HOST_WEB01, TYPE_IDLE);
+    final List<PutRequest> written = puts.getAllValues();
+    assertArrayEquals(TABLE, written.get(0).table());
+    assertArrayEquals(concat(METRIC, HOST_WEB01), written.get(0).key());
+    assertArrayEquals(suffix, written.get(0).qualifier());
+    assertArrayEquals(concat(METRIC, TYPE_IDLE), written.get(1).key());
+    assertArrayEquals(suffix, written.get(1).qualifier());
+  }
+
+  @Test
+  public void indexSeriesAgainAfterError() throws Exception {
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.<Object>fromError(new RuntimeException("boom")))
+      .thenReturn(Deferred.fromResult(null));
+    final TagIndex index = new TagIndex(tsdb, TABLE, 100);
+    index.indexSeries(row(1356998400, HOST_WEB01));
+    index.indexSeries(row(1356998400, HOST_WEB01));
+    index.indexSeries(row(1356998400, HOST_WEB01));
+    verify(client, times(2)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void forgetSeriesWhenFull() throws Exception {
+    // With 4 slots, all the series go in the same set.
+    final TagIndex index = new TagIndex(tsdb, TABLE, 4);
+    final byte[] web01_idle = concat(HOST_WEB01, TYPE_IDLE);
+    final byte[] web02_idle = concat(HOST_WEB02, TYPE_IDLE);
+    index.indexSeries(row(1356998400, HOST_WEB01));
+    index.indexSeries(row(1356998400, HOST_WEB02));
+    index.indexSeries(row(1356998400, TYPE_IDLE));
+    index.indexSeries(row(1356998400, web01_idle));
+    assertNull(index.indexSeries(row(1357002000, HOST_WEB01)));  // Hit.
+    index.indexSeries(row(1356998400, web02_idle));  // Evicts web01.
+    assertNull(index.indexSeries(row(1357002000, HOST_WEB02)));  // Hit.
+    index.indexSeries(row(1357002000, HOST_WEB01));  // Indexed again.
+    // 1 put per tag: 1 + 1 + 1 + 2 + 2 + 1.
+    verify(client, times(8)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void findSeriesIntersects() throws Exception {
+    final byte[] web01_idle = concat(HOST_WEB01, TYPE_IDLE);
+    final byte[] web02_idle = concat(HOST_WEB02, TYPE_IDLE);
+    final byte[] web01_user = concat(HOST_WEB01, new byte[] { 0, 0, 2,
+                                                              0, 0, 4 });
+    when(client.get(any(GetRequest.class)))
+      .thenReturn(Deferred.fromResult(indexRow(HOST_WEB01,
+                                               web01_idle, web01_user)))
+      .thenReturn(Deferred.fromResult(indexRow(TYPE_IDLE,
+                                               web01_idle, web02_idle)));
+    final ArrayList<byte[]> tags = new ArrayList<byte[]>(2);
+    tags.add(HOST_WEB01);
+    tags.add(TYPE_IDLE);
+    final ArrayList<byte[]> series = new TagIndex(tsdb, TABLE, 100)
+      .findSeries(METRIC, tags).joinUninterruptibly();
+    assertEquals(1, series.size());
+    assertArrayEquals(web01_idle, series.get(0));
+    verify(client, times(2)).get(any(GetRequest.class));
+  }
+
+  @Test
+  public void findSeriesNoMatch() throws Exception {
+    when(client.get(any(GetRequest.class)))
+      .thenReturn(Deferred.fromResult(indexRow(HOST_WEB01,
+                                               concat(HOST_WEB01,
+                                                      TYPE_IDLE))))
+      .thenReturn(Deferred.fromResult(new ArrayList<KeyValue>(0)));
+    final ArrayList<byte[]> tags = new ArrayList<byte[]>(2);
+    tags.add(HOST_WEB01);
+    tags.add(TYPE_IDLE);
+    assertEquals(Collections.<byte[]>emptyList(),
+                 new TagIndex(tsdb, TABLE, 100).findSeries(METRIC, tags)
+                 .joinUninterruptibly());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void findSeriesWithoutTags() throws Exception {
+    new TagIndex(tsdb, TABLE, 100).findSeries(METRIC,
+                                              new ArrayList<byte[]>(0));
+  }
+
+  /** Returns a row key of the data table.  */
+  private static byte[] row(final int base_time, final byte[]... tags) {
+    byte[] row = concat(METRIC, Bytes.fromInt(base_time));
+    for (final byte[] tag : tags) {
+      row = concat(row, tag);
+    }
+    return row;
+  }
+
+  /** Returns a row of the index with the given series suffixes.  */
+  private static ArrayList<KeyValue> indexRow(final byte[] tag,
+                                              final byte[]... suffixes) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(suffixes.length);
+    for (final byte[] suffix : suffixes) {
+      row.add(new KeyValue(concat(METRIC, tag), TagIndex.FAMILY, suffix,
+                           new byte[0]));
+    }
+    return row;
+  }
+
+  private static byte[] concat(final byte[] a, final byte[] b) {
+    final byte[] c = new byte[a.length + b.length];
+    System.arraycopy(a, 0, c, 0, a.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+
+}
@@ -12,11 +12,35 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
+import com.stumbleupon.async.Deferred;
+
+import net.opentsdb.uid.UniqueId;
+
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class })
 public final class TestTags {
 
   @Test
@@ -146,4 +170,73 @@ public final class TestTags {
     Tags.parseLong("-9223372036854775809"); // MIN_VALUE - 1
   }
 
+  @Test  // Results are in the order of the lookups, not of completion.
+  public void groupKeepsTheOrder() throws Exception {
+    final ArrayList<Deferred<String>> lookups =
+      new ArrayList<Deferred<String>>(2);
+    lookups.add(new Deferred<String>());
+    lookups.add(new Deferred<String>());
+    final Deferred<ArrayList<Object>> group = Tags.group(lookups);
+    lookups.get(1).callback("second");
+    lookups.get(0).callback("first");
+    assertEquals(Arrays.asList("first", "second"),
+                 group.joinUninterruptibly());
+  }
+
+  @Test  // The tag name ID completes after the tag value ID.
+  public void resolveOrCreateAllAsyncOutOfOrder() throws Exception {
+    final TSDB tsdb = mockTSDB();
+    final Deferred<byte[]> name_id = new Deferred<byte[]>();
+    when(tsdb.tag_names.getOrCreateIdAsync("host")).thenReturn(name_id);
+    when(tsdb.tag_values.getOrCreateIdAsync("web01"))
+      .thenReturn(Deferred.fromResult(new byte[] { 0, 0, 2 }));
+    final HashMap<String, String> tags = new HashMap<String, String>(1);
+    tags.put("host", "web01");
+    final Deferred<ArrayList<byte[]>> d =
+      Tags.resolveOrCreateAllAsync(tsdb, tags);
+    name_id.callback(new byte[] { 0, 0, 1 });
+    final ArrayList<byte[]> tag_ids = d.joinUninterruptibly();
+    assertEquals(1, tag_ids.size());
+    assertArrayEquals(new byte[] { 0, 0, 1, 0, 0, 2 }, tag_ids.get(0));
+  }
+
+  @Test  // The tag names are resolved after the tag values.
+  public void getTagsAsyncOutOfOrder() throws Exception {
+    final TSDB tsdb = mockTSDB();
+    final Deferred<ArrayList<String>> names =
+      new Deferred<ArrayList<String>>();
+    when(tsdb.tag_names.getNamesAsync(anyListOf(byte[].class)))
+      .thenReturn(names);
+    when(tsdb.tag_values.getNamesAsync(anyListOf(byte[].class)))
+      .thenReturn(Deferred.fromResult(list("web01", "lga")));
+    final byte[] row = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0,
+                         0, 0, 1, 0, 0, 2,    // host=web01
+                         0, 0, 2, 0, 0, 3 };  // dc=lga
+    final ArrayList<byte[]> rows = new ArrayList<byte[]>(1);
+    rows.add(row);
+    final Deferred<ArrayList<HashMap<String, String>>> d =
+      Tags.getTagsAsync(tsdb, rows);
+    names.callback(list("host", "dc"));
+    final HashMap<String, String> tags = d.joinUninterruptibly().get(0);
+    assertEquals(2, tags.size());
+    assertEquals("web01", tags.get("host"));
+    assertEquals("lga", tags.get("dc"));
+  }
+
+  /** Returns a mock TSDB with mock UIDs 3 bytes wide.  */
+  private static TSDB mockTSDB() {
+    final TSDB tsdb = mock(TSDB.class);
+    for (final String field : new String[] { "metrics", "tag_names",
+                                             "tag_values" }) {
+      final UniqueId uid = mock(UniqueId.class);
+      when(uid.width()).thenReturn((short) 3);
+      Whitebox.setInternalState(tsdb, field, uid);
+    }
+    return tsdb;
+  }
+
+  private static ArrayList<String> list(final String... strings) {
+    return new ArrayList<String>(Arrays.asList(strings));
+  }
+
 }
@@ -0,0 +1,325 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.Scanner;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class, HBaseClient.class,
+                  Scanner.class })
+public final class TestTsdbQuery {
+
+  private static final byte[] METRIC = { 0, 0, 1 };
+  private static final byte[] HOST = { 0, 0, 1 };
+  private static final byte[] WEB01 = { 0, 0, 1 };
+  private static final byte[] DC = { 0, 0, 2 };
+  private static final byte[] LGA = { 0, 0, 2 };
+  private static final byte[] SJC = { 0, 0, 3 };
+  private static final byte[] AMS = { 0, 0, 4 };
+  /** 2013-01-01 00:00:00 UTC, aligned on a row boundary.  */
+  private static final int START = 1356998400;
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HBaseClient client = mock(HBaseClient.class);
+  private final UniqueId metrics = mock(UniqueId.class);
+  private final UniqueId tag_names = mock(UniqueId.class);
+  private final UniqueId tag_values = mock(UniqueId.class);
+  private final TsdbQuery query = new TsdbQuery(tsdb);
+
+  @Before
+  public void before() {
+    Whitebox.setInternalState(tsdb, "client", client);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    Whitebox.setInternalState(tsdb, "tag_names", tag_names);
+    Whitebox.setInternalState(tsdb, "tag_values", tag_values);
+    Whitebox.setInternalState(tsdb, "tagindex",
+                              new TagIndex(tsdb, new byte[] { 'i' }, 100));
+    when(metrics.width()).thenReturn((short) 3);
+    when(tag_names.width()).thenReturn((short) 3);
+    when(tag_values.width()).thenReturn((short) 3);
+    when(metrics.getId("sys.cpu.user")).thenReturn(METRIC);
+    when(tag_names.getId("host")).thenReturn(HOST);
+    when(tag_names.getId("dc")).thenReturn(DC);
+    when(tag_values.getId("web01")).thenReturn(WEB01);
+    when(tag_values.getId("lga")).thenReturn(LGA);
+    when(tag_values.getId("sjc")).thenReturn(SJC);
+    when(tag_values.getId("ams")).thenReturn(AMS);
+    // For toString(), which is used in log messages.
+    final ArrayList<String> names = new ArrayList<String>(1);
+    names.add("host");
+    final ArrayList<String> values = new ArrayList<String>(1);
+    values.add("web01");
+    when(tag_names.getNamesAsync(anyListOf(byte[].class)))
+      .thenReturn(Deferred.fromResult(names));
+    when(tag_values.getNamesAsync(anyListOf(byte[].class)))
+      .thenReturn(Deferred.fromResult(values));
+    query.setStartTime(START);
+    query.setEndTime(START + 3600);
+  }
+
+  @Test
+  public void findRowKeysWithIndex() throws Exception {
+    setTimeSeries("host", "web01");
+    final byte[] web01 = tag(HOST, WEB01);
+    indexReturns(web01);
+    final ArrayList<byte[]> keys = findRowKeys();
+    // From 2 rows before the start time to 2 rows after the end time.
+    assertEquals(5, keys.size());
+    for (int i = 0; i < 5; i++) {
+      assertArrayEquals(row(START + (i - 2) * 3600, web01), keys.get(i));
+    }
+  }
+
+  @Test
+  public void findRowKeysWithIndexGroupByAnyValue() throws Exception {
+    setTimeSeries("host", "web01", "dc", "*");
+    final byte[] web01 = tag(HOST, WEB01);
+    final byte[] web01_lga = concat(web01, tag(DC, LGA));
+    indexReturns(web01_lga, web01);  // web01 has no "dc" tag.
+    final ArrayList<byte[]> keys = findRowKeys();
+    assertEquals(5, keys.size());
+    for (final byte[] key : keys) {
+      assertArrayEquals(web01_lga, suffix(key));
+    }
+  }
+
+  @Test
+  public void findRowKeysWithIndexGroupBySomeValues() throws Exception {
+    setTimeSeries("host", "web01", "dc", "lga|sjc");
+    final byte[] web01 = tag(HOST, WEB01);
+    final byte[] web01_ams = concat(web01, tag(DC, AMS));
+    final byte[] web01_lga = concat(web01, tag(DC, LGA));
+    final byte[] web01_sjc = concat(web01, tag(DC, SJC));
+    indexReturns(web01_sjc, web01_ams, web01_lga);
+    final ArrayList<byte[]> keys = findRowKeys();
+    // Sorted by series, then by time.
+    assertEquals(10, keys.size());
+    for (int i = 0; i < 5; i++) {
+      assertArrayEquals(row(START + (i - 2) * 3600, web01_lga),
+                        keys.get(i));
+      assertArrayEquals(row(START + (i - 2) * 3600, web01_sjc),
+                        keys.get(5 + i));
+    }
+  }
+
+  @Test  // Too many Gets, we must fall back to a scan.
+  public void findRowKeysWithIndexTooManyRows() throws Exception {
+    query.setEndTime(START + 4096 * 3600);
+    setTimeSeries("host", "web01");
+    indexReturns(tag(HOST, WEB01));
+    assertNull(findRowKeys());
+  }
+
+  @Test  // The rows of a series are added in order, whatever comes first.
+  public void getSpansOutOfOrder() throws Exception {
+    setTimeSeries("host", "web01");
+    final byte[] web01 = tag(HOST, WEB01);
+    final ArrayList<byte[]> keys = new ArrayList<byte[]>(2);
+    keys.add(row(START, web01));
+    keys.add(row(START + 3600, web01));
+    final Deferred<ArrayList<KeyValue>> first =
+      new Deferred<ArrayList<KeyValue>>();
+    final Deferred<ArrayList<KeyValue>> second =
+      new Deferred<ArrayList<KeyValue>>();
+    when(tsdb.get(aryEq(keys.get(0)))).thenReturn(first);
+    when(tsdb.get(aryEq(keys.get(1)))).thenReturn(second);
+    final ArrayList<KeyValue> row1 = dataRow(keys.get(0), 42);
+    final ArrayList<KeyValue> row2 = dataRow(keys.get(1), 43);
+    when(tsdb.compact(row1)).thenReturn(row1.get(0));
+    when(tsdb.compact(row2)).thenReturn(row2.get(0));
+    second.callback(row2);
+    new Thread() {  // Completes the first Get once we're waiting on it.
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+        first.callback(row1);
+      }
+    }.start();
+
+    final TreeMap<byte[], Span> spans =
+      Whitebox.invokeMethod(query, "getSpans", keys);
+    assertEquals(1, spans.size());
+    final Span span = spans.firstEntry().getValue();
+    assertEquals(2, span.size());
+    assertEquals(START, span.timestamp(0));
+    assertEquals(42, span.longValue(0));
+    assertEquals(START + 3600, span.timestamp(1));
+    assertEquals(43, span.longValue(1));
+  }
+
+  @Test
+  public void scanBatchSize() {
+    // Unknown row size: as many rows as we can.
+    assertEquals(4096, TsdbQuery.scanBatchSize(0));
+    // Small rows: 4MB would be more than the max number of rows.
+    assertEquals(4096, TsdbQuery.scanBatchSize(23));
+    assertEquals(4096, TsdbQuery.scanBatchSize(1024));
+    assertEquals(4092, TsdbQuery.scanBatchSize(1025));
+    assertEquals(41, TsdbQuery.scanBatchSize(100000));
+    assertEquals(16, TsdbQuery.scanBatchSize(262144));
+    // Large rows: 4MB would be less than the min number of rows.
+    assertEquals(16, TsdbQuery.scanBatchSize(262145));
+    assertEquals(16, TsdbQuery.scanBatchSize(64 * 1024 * 1024));
+  }
+
+  @Test(timeout=10000)  // The last batch is fetched while we process rows.
+  public void findSpansEndsWhilePrefetching() throws Exception {
+    Whitebox.setInternalState(tsdb, "table", new byte[] { 't' });
+    setTimeSeries();  // No tags, so we scan.
+    final Scanner scanner = mock(Scanner.class);
+    when(client.newScanner(aryEq(new byte[] { 't' }))).thenReturn(scanner);
+    final byte[] key = row(START, new byte[0]);
+    final ArrayList<KeyValue> row = dataRow(key, 42);
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>(1);
+    rows.add(row);
+    final Deferred<ArrayList<ArrayList<KeyValue>>> end =
+      new Deferred<ArrayList<ArrayList<KeyValue>>>();
+    when(scanner.nextRows())
+      .thenReturn(Deferred.fromResult(rows))
+      .thenReturn(end);
+    // The end of the scan only comes once we're processing the first row.
+    final CountDownLatch processing = new CountDownLatch(1);
+    when(tsdb.compact(row)).thenAnswer(new Answer<KeyValue>() {
+      public KeyValue answer(final InvocationOnMock invocation) {
+        processing.countDown();
+        return row.get(0);
+      }
+    });
+    new Thread() {
+      public void run() {
+        try {
+          processing.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        end.callback(null);
+      }
+    }.start();
+
+    final TreeMap<byte[], Span> spans =
+      Whitebox.invokeMethod(query, "findSpans");
+    assertEquals(1, spans.size());
+    final Span span = spans.firstEntry().getValue();
+    assertEquals(1, span.size());
+    assertEquals(START, span.timestamp(0));
+    assertEquals(42, span.longValue(0));
+    // The batch size is adjusted before the prefetch, and once the scan is
+    // over we don't ask for more rows.
+    final InOrder order = inOrder(scanner);
+    order.verify(scanner).nextRows();
+    order.verify(scanner).setMaxNumRows(TsdbQuery.scanBatchSize(23));
+    order.verify(scanner).nextRows();
+    verify(scanner, times(2)).nextRows();
+  }
+
+  private void setTimeSeries(final String... tags) {
+    final HashMap<String, String> map = new HashMap<String, String>();
+    for (int i = 0; i < tags.length; i += 2) {
+      map.put(tags[i], tags[i + 1]);
+    }
+    query.setTimeSeries("sys.cpu.user", map, Aggregators.SUM, false);
+  }
+
+  /** Makes the tag index return the given series for any tag.  */
+  private void indexReturns(final byte[]... suffixes) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(suffixes.length);
+    for (final byte[] suffix : suffixes) {
+      row.add(new KeyValue(new byte[] { 0 }, TagIndex.FAMILY, suffix,
+                           new byte[0]));
+    }
+    when(client.get(any(GetRequest.class)))
+      .thenReturn(Deferred.fromResult(row));
+  }
+
+  private ArrayList<byte[]> findRowKeys() throws Exception {
+    return Whitebox.invokeMethod(query, "findRowKeysWithIndex");
+  }
+
+  private static byte[] tag(final byte[] name, final byte[] value) {
+    return concat(name, value);
+  }
+
+  private static byte[] row(final int base_time, final byte[] suffix) {
+    return concat(concat(METRIC, Bytes.fromInt(base_time)), suffix);
+  }
+
+  private static byte[] suffix(final byte[] row) {
+    final int offset = METRIC.length + Const.TIMESTAMP_BYTES;
+    final byte[] suffix = new byte[row.length - offset];
+    System.arraycopy(row, offset, suffix, 0, suffix.length);
+    return suffix;
+  }
+
+  /** Returns a row with a single 8-byte integer at its base time.  */
+  private static ArrayList<KeyValue> dataRow(final byte[] key,
+                                             final long value) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(key, TSDB.FAMILY, new byte[] { 0, 0x7 },
+                         Bytes.fromLong(value)));
+    return row;
+  }
+
+  private static byte[] concat(final byte[] a, final byte[] b) {
+    final byte[] c = new byte[a.length + b.length];
+    System.arraycopy(a, 0, c, 0, a.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+
+}
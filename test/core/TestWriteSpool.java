@@ -0,0 +1,323 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.NonRecoverableException;
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.PutRequest;
+
+import net.opentsdb.uid.UniqueId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class, UniqueId.class, HBaseClient.class,
+                  PleaseThrottleException.class })
+public final class TestWriteSpool {
+
+  private static final byte[] TABLE = { 't', 'a', 'b', 'l', 'e' };
+  private static final byte[] QUALIFIER = { 0, 0x17 };
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final HBaseClient client = mock(HBaseClient.class);
+  private File dir;
+  private WriteSpool spool;
+
+  @Before
+  public void before() throws IOException {
+    final UniqueId metrics = mock(UniqueId.class);
+    when(metrics.width()).thenReturn((short) 3);
+    Whitebox.setInternalState(tsdb, "client", client);
+    Whitebox.setInternalState(tsdb, "table", TABLE);
+    Whitebox.setInternalState(tsdb, "metrics", metrics);
+    dir = File.createTempFile("tsd-spool", "");
+    assertTrue(dir.delete());
+  }
+
+  @After
+  public void after() {
+    if (spool != null) {
+      spool.shutdown();
+    }
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void appendAndReplayInOrder() throws Exception {
+    // Small segments so the points span several of them.
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 50, 100);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(spool.append(point(i)));
+    }
+    assertEquals(10, spool.depth());
+    assertTrue(dir.listFiles().length > 1);
+
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+    assertTrue(spool.replay());
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(10)).put(puts.capture());
+    final List<PutRequest> replayed = puts.getAllValues();
+    for (int i = 0; i < 10; i++) {
+      assertPoint(i, replayed.get(i));
+    }
+    assertEquals(0, spool.depth());
+    assertEquals(0, dir.listFiles().length);
+  }
+
+  @Test
+  public void scheduleReplayedRowsForCompaction() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    spool.append(point(0));
+    spool.append(point(1));
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+    assertTrue(spool.replay());
+    for (int i = 0; i < 2; i++) {
+      verify(tsdb).scheduleForCompaction(aryEq(point(i).key()),
+                                         eq(0x50E22700));
+    }
+  }
+
+  @Test(timeout=10000)
+  public void shutdownWaitsForTheReplayer() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    spool.append(point(0));
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(new Deferred<Object>());  // HBase never answers.
+    spool.start();
+    final Thread replayer = Whitebox.getInternalState(spool, "replayer");
+    while (replayer.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(10);  // Wait for the replayer to wait on HBase.
+    }
+    spool.shutdown();
+    assertFalse(replayer.isAlive());
+    assertEquals(1, spool.depth());  // Still there for the next run.
+  }
+
+  @Test
+  public void replayAgainAfterFailure() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    spool.append(point(0));
+    spool.append(point(1));
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromError(hbaseError()))
+      .thenReturn(Deferred.fromResult(null));
+    assertFalse(spool.replay());
+    assertEquals(2, spool.depth());
+    assertEquals(1, dir.listFiles().length);
+
+    assertTrue(spool.replay());
+    assertEquals(0, spool.depth());
+    verify(client, times(4)).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void replayLeftoversOfPreviousRun() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 50, 100);
+    for (int i = 0; i < 5; i++) {
+      spool.append(point(i));
+    }
+    spool.shutdown();
+    assertFalse(spool.append(point(5)));
+
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 50, 100);
+    assertEquals(5, spool.depth());
+    spool.append(point(5));  // Goes into a new segment, replayed last.
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(Deferred.fromResult(null));
+    assertTrue(spool.replay());
+    final ArgumentCaptor<PutRequest> puts =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client, times(6)).put(puts.capture());
+    for (int i = 0; i < 6; i++) {
+      assertPoint(i, puts.getAllValues().get(i));
+    }
+  }
+
+  @Test
+  public void dropWhenFull() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 40, 1 << 20, 100);
+    assertTrue(spool.append(point(0)));  // 4 + 29 bytes.
+    assertFalse(spool.append(point(1)));
+    assertEquals(1, spool.depth());
+  }
+
+  @Test
+  public void spoolOnlyRecoverableErrors() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    assertNull(Deferred.fromError(hbaseError())
+               .addErrback(spool.spoolOnError(point(0)))
+               .joinUninterruptibly());
+    assertEquals(1, spool.depth());
+
+    final IllegalStateException e = new IllegalStateException("bug");
+    try {
+      Deferred.fromError(e)
+        .addErrback(spool.spoolOnError(point(1)))
+        .joinUninterruptibly();
+      fail("Should have thrown " + e);
+    } catch (IllegalStateException got) {
+      assertSame(e, got);
+    }
+    assertEquals(1, spool.depth());
+    verify(client, never()).put(any(PutRequest.class));
+  }
+
+  @Test
+  public void retryThrottledPutsBeforeSpooling() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    Whitebox.setInternalState(tsdb, "spool", spool);
+    when(tsdb.put(any(PutRequest.class))).thenCallRealMethod();
+    final Deferred<Object> throttled1 = Deferred.fromError(throttled());
+    final Deferred<Object> throttled2 = Deferred.fromError(throttled());
+    when(client.put(any(PutRequest.class)))
+      .thenReturn(throttled1)
+      .thenReturn(throttled2)
+      .thenReturn(Deferred.fromResult(null));
+    assertNull(tsdb.put(point(0)).joinUninterruptibly());
+    verify(client, times(3)).put(any(PutRequest.class));
+    assertEquals(0, spool.depth());
+  }
+
+  @Test
+  public void spoolWhenStillThrottledAfterRetries() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    Whitebox.setInternalState(tsdb, "spool", spool);
+    when(tsdb.put(any(PutRequest.class))).thenCallRealMethod();
+    when(client.put(any(PutRequest.class)))
+      .thenAnswer(new Answer<Deferred<Object>>() {
+        public Deferred<Object> answer(final InvocationOnMock invocation) {
+          return Deferred.fromError(throttled());
+        }
+      });
+    assertNull(tsdb.put(point(0)).joinUninterruptibly());
+    final int retries = (Integer)
+      Whitebox.getInternalState(TSDB.class, "MAX_THROTTLE_RETRIES");
+    verify(client, times(retries + 1)).put(any(PutRequest.class));
+    assertEquals(1, spool.depth());
+  }
+
+  @Test
+  public void appendOnTheWriterThread() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    final String[] thread = new String[1];
+    final class WhoCB implements Callback<Object, Object> {
+      public Object call(final Object arg) {
+        thread[0] = Thread.currentThread().getName();
+        return arg;
+      }
+    }
+    final Deferred<Object> d;
+    // Keep the writer from appending before our callback is in place.
+    synchronized (spool) {
+      d = Deferred.fromError(hbaseError())
+        .addErrback(spool.spoolOnError(point(0)))
+        .addBoth(new WhoCB());
+    }
+    assertNull(d.joinUninterruptibly());
+    assertEquals("SpoolWriter", thread[0]);
+    assertEquals(1, spool.depth());
+  }
+
+  @Test
+  public void failAfterShutdown() throws Exception {
+    spool = new WriteSpool(tsdb, dir, 1 << 20, 1 << 20, 100);
+    spool.shutdown();
+    final NonRecoverableException e = hbaseError();
+    try {
+      Deferred.fromError(e)
+        .addErrback(spool.spoolOnError(point(0)))
+        .joinUninterruptibly();
+      fail("Should have thrown " + e);
+    } catch (NonRecoverableException got) {
+      assertSame(e, got);
+    }
+    assertEquals(0, spool.depth());
+  }
+
+  /** Returns an error asking us to throttle until HBase has caught up.  */
+  private static PleaseThrottleException throttled() {
+    final PleaseThrottleException e = mock(PleaseThrottleException.class);
+    when(e.getDeferred()).thenReturn(Deferred.fromResult(null));
+    return e;
+  }
+
+  private static PutRequest point(final int i) {
+    final byte[] key = { 0, 0, 1, 0x50, (byte) 0xE2, 0x27, 0, 0, 0, 1, 0, 0,
+                         (byte) i };
+    return new PutRequest(TABLE, key, TSDB.FAMILY, QUALIFIER,
+                          Bytes.fromLong(i));
+  }
+
+  private static void assertPoint(final int i, final PutRequest put) {
+    final PutRequest expected = point(i);
+    assertArrayEquals(TABLE, put.table());
+    assertArrayEquals(expected.key(), put.key());
+    assertArrayEquals(expected.qualifier(), put.qualifier());
+    assertArrayEquals(expected.value(), put.value());
+  }
+
+  /** What the HBase client gives us when it gives up on an RPC.  */
+  private static NonRecoverableException hbaseError() throws Exception {
+    return Whitebox.invokeConstructor(NonRecoverableException.class,
+                                      new Class<?>[] { String.class },
+                                      new Object[] { "Too many attempts" });
+  }
+
+}
@@ -0,0 +1,184 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.util.NoSuchElementException;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class TestDecimators {
+
+  private static final long START_TIME = 1356998400L;
+  private static final int NPOINTS = 10000;
+
+  @Test
+  public void get() {
+    assertSame(Decimators.MINMAX, Decimators.get("minmax"));
+    assertSame(Decimators.LTTB, Decimators.get("lttb"));
+  }
+
+  @Test(expected=NoSuchElementException.class)
+  public void getUnknown() {
+    Decimators.get("nosuchdecimator");
+  }
+
+  @Test
+  public void minMaxKeepsEnvelope() {
+    final DataPoints result = decimate(Decimators.MINMAX, sawtooth(), 100);
+    assertTrue("size=" + result.size(), result.size() <= 200);
+    assertTimeOrdered(result);
+    boolean seen_min = false;
+    boolean seen_max = false;
+    for (final DataPoint dp : result) {
+      seen_min |= dp.longValue() == 0;
+      seen_max |= dp.longValue() == 99;
+    }
+    assertTrue(seen_min);
+    assertTrue(seen_max);
+  }
+
+  @Test
+  public void minMaxOnePointPerColumn() {
+    final ArrayDataPoints input = new ArrayDataPoints(null, 100);
+    for (int i = 0; i < 100; i++) {
+      input.add(point(START_TIME + i * 100, i));
+    }
+    final DataPoints result = decimate(Decimators.MINMAX, input, 100);
+    assertSameDataPoints(input, result);
+  }
+
+  @Test
+  public void minMaxKeepsFloats() {
+    final ArrayDataPoints input = new ArrayDataPoints(null, 2);
+    input.add(point(START_TIME, 42));
+    input.add(point(START_TIME + 1, 0.5));
+    final DataPoints result = decimate(Decimators.MINMAX, input, 100);
+    assertSameDataPoints(input, result);
+  }
+
+  @Test
+  public void lttbReducesToThreshold() {
+    final ArrayDataPoints input = sawtooth();
+    final DataPoints result = decimate(Decimators.LTTB, input, 100);
+    assertEquals(200, result.size());
+    assertTimeOrdered(result);
+    assertEquals(input.timestamp(0), result.timestamp(0));
+    assertEquals(input.timestamp(NPOINTS - 1), result.timestamp(199));
+  }
+
+  @Test
+  public void lttbSmallSeries() {
+    final ArrayDataPoints input = new ArrayDataPoints(null, 10);
+    for (int i = 0; i < 10; i++) {
+      input.add(point(START_TIME + i, i * 0.5));
+    }
+    final DataPoints result = decimate(Decimators.LTTB, input, 100);
+    assertSameDataPoints(input, result);
+  }
+
+  @Test
+  public void seek() {
+    final DataPoints result = decimate(Decimators.LTTB, sawtooth(), 100);
+    final SeekableView it = result.iterator();
+    it.seek(START_TIME + 5000);
+    assertTrue(it.hasNext());
+    assertTrue(it.next().timestamp() >= START_TIME + 5000);
+    it.seek(START_TIME + NPOINTS);
+    assertFalse(it.hasNext());
+  }
+
+  /** Returns integers going from 0 to 99 over and over again.  */
+  private static ArrayDataPoints sawtooth() {
+    final ArrayDataPoints dps = new ArrayDataPoints(null, NPOINTS);
+    for (int i = 0; i < NPOINTS; i++) {
+      dps.add(point(START_TIME + i, i % 100));
+    }
+    return dps;
+  }
+
+  private static DataPoints decimate(final Decimator decimator,
+                                     final DataPoints dps, final int width) {
+    return decimator.decimate(dps, START_TIME, START_TIME + NPOINTS, width);
+  }
+
+  private static void assertTimeOrdered(final DataPoints dps) {
+    for (int i = 1; i < dps.size(); i++) {
+      assertTrue("data point #" + i,
+                 dps.timestamp(i - 1) < dps.timestamp(i));
+    }
+  }
+
+  private static void assertSameDataPoints(final DataPoints expected,
+                                           final DataPoints actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.timestamp(i), actual.timestamp(i));
+      assertEquals(expected.isInteger(i), actual.isInteger(i));
+      if (expected.isInteger(i)) {
+        assertEquals(expected.longValue(i), actual.longValue(i));
+      } else {
+        assertEquals(expected.doubleValue(i), actual.doubleValue(i), 0.0);
+      }
+    }
+  }
+
+  private static DataPoint point(final long timestamp, final long value) {
+    return new Point(timestamp, value, true);
+  }
+
+  private static DataPoint point(final long timestamp, final double value) {
+    return new Point(timestamp, Double.doubleToRawLongBits(value), false);
+  }
+
+  /** A single data point.  */
+  private static final class Point implements DataPoint {
+    private final long timestamp;
+    private final long value;
+    private final boolean integer;
+
+    Point(final long timestamp, final long value, final boolean integer) {
+      this.timestamp = timestamp;
+      this.value = value;
+      this.integer = integer;
+    }
+
+    public long timestamp() {
+      return timestamp;
+    }
+
+    public boolean isInteger() {
+      return integer;
+    }
+
+    public long longValue() {
+      return value;
+    }
+
+    public double doubleValue() {
+      return Double.longBitsToDouble(value);
+    }
+
+    public double toDouble() {
+      return integer ? value : doubleValue();
+    }
+  }
+
+}
@@ -0,0 +1,196 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.graph;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class TestPngRenderer {
+
+  private static final long START_TIME = 1356998400L;
+
+  @Test
+  public void supportsDefaults() {
+    assertTrue(PngRenderer.supports(null, options("")));
+    assertTrue(PngRenderer.supports(params("key", null), options("")));
+    assertTrue(PngRenderer.supports(params("yrange", "[0:]"),
+                                    options("axis x1y2")));
+    assertTrue(PngRenderer.supports(params("key", "top left box"),
+                                    options("")));
+  }
+
+  @Test
+  public void supportsFallsBackToGnuplot() {
+    assertFalse(PngRenderer.supports(params("smooth", "csplines"),
+                                     options("")));
+    assertFalse(PngRenderer.supports(params("key", "out right"),
+                                     options("")));
+    assertFalse(PngRenderer.supports(params("yrange", "[0:foo]"),
+                                     options("")));
+    assertFalse(PngRenderer.supports(null, options("with points")));
+  }
+
+  @Test
+  public void parseRange() {
+    assertArrayEquals(new double[] { 0, 100 },
+                      PngRenderer.parseRange("[0:100]"), 0.0);
+    final double[] range = PngRenderer.parseRange("[:10]");
+    assertTrue(Double.isNaN(range[0]));
+    assertEquals(10, range[1], 0.0);
+    assertTrue(Double.isNaN(PngRenderer.parseRange("[-5:*]")[1]));
+    assertNull(PngRenderer.parseRange("0:100"));
+    assertNull(PngRenderer.parseRange("[NaN:1]"));
+  }
+
+  @Test
+  public void parseColor() {
+    assertEquals(new Color(0xFF0000), PngRenderer.parseColor("xFF0000"));
+    assertNull(PngRenderer.parseColor("red"));
+    assertNull(PngRenderer.parseColor("xGG0000"));
+  }
+
+  @Test
+  public void unquote() {
+    assertEquals("foo", PngRenderer.unquote("foo"));
+    assertEquals("a \"b\"\n", PngRenderer.unquote("\"a \\\"b\\\"\\n\""));
+    assertEquals("\u00e9", PngRenderer.unquote("\"\\u00e9\""));
+  }
+
+  @Test
+  public void render() throws Exception {
+    final ArrayDataPoints dps = new ArrayDataPoints(new Source(), 100);
+    for (int i = 0; i < 100; i++) {
+      dps.add(new Point(START_TIME + i * 36, i % 10));
+    }
+    final ArrayList<DataPoints> datapoints = new ArrayList<DataPoints>(1);
+    datapoints.add(dps);
+    final PngRenderer renderer =
+      new PngRenderer(START_TIME, START_TIME + 3600, (short) 0,
+                      (short) 400, (short) 300,
+                      params("title", "\"test\""), datapoints, options(""));
+    final ByteArrayOutputStream png = new ByteArrayOutputStream();
+    assertEquals(100, renderer.render(png));
+    final byte[] image = png.toByteArray();
+    assertTrue(image.length > 8);
+    assertEquals((byte) 0x89, image[0]);
+    assertEquals('P', image[1]);
+    assertEquals('N', image[2]);
+    assertEquals('G', image[3]);
+  }
+
+  private static Map<String, String> params(final String key,
+                                            final String value) {
+    final HashMap<String, String> params = new HashMap<String, String>(1);
+    params.put(key, value);
+    return params;
+  }
+
+  private static ArrayList<String> options(final String opts) {
+    final ArrayList<String> options = new ArrayList<String>(1);
+    options.add(opts);
+    return options;
+  }
+
+  /** A single integer data point.  */
+  private static final class Point implements DataPoint {
+    private final long timestamp;
+    private final long value;
+
+    Point(final long timestamp, final long value) {
+      this.timestamp = timestamp;
+      this.value = value;
+    }
+
+    public long timestamp() {
+      return timestamp;
+    }
+
+    public boolean isInteger() {
+      return true;
+    }
+
+    public long longValue() {
+      return value;
+    }
+
+    public double doubleValue() {
+      throw new ClassCastException("not a float");
+    }
+
+    public double toDouble() {
+      return value;
+    }
+  }
+
+  /** Provides the metric name and tags of the series under test.  */
+  private static final class Source implements DataPoints {
+
+    public String metricName() {
+      return "sys.cpu.user";
+    }
+
+    public Map<String, String> getTags() {
+      return Collections.singletonMap("host", "web01");
+    }
+
+    public List<String> getAggregatedTags() {
+      return Collections.emptyList();
+    }
+
+    public int size() {
+      return 0;
+    }
+
+    public int aggregatedSize() {
+      return 0;
+    }
+
+    public SeekableView iterator() {
+      throw new UnsupportedOperationException();
+    }
+
+    public long timestamp(final int i) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    public boolean isInteger(final int i) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    public long longValue(final int i) {
+      throw new IndexOutOfBoundsException();
+    }
+
+    public double doubleValue(final int i) {
+      throw new IndexOutOfBoundsException();
+    }
+
+  }
+
+}
@@ -0,0 +1,53 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.stats;
+
+import junit.framework.TestCase;
+
+public final class TestQueryProfile extends TestCase {
+
+  public void test_empty_profile() {
+    final QueryProfile profile = new QueryProfile();
+    assertEquals(0, profile.getTime("scan"));
+    assertEquals(0, profile.getCount("rows"));
+    final StringBuilder buf = new StringBuilder();
+    profile.toJson(buf);
+    assertTrue(buf.toString(),
+               buf.toString().startsWith("{\"stages\":{},\"counts\":{},"));
+  }
+
+  public void test_values_add_up() {
+    final QueryProfile profile = new QueryProfile();
+    profile.addTime("scan", 1500000);
+    profile.addTime("scan", 1000);
+    profile.incrementCount("rows", 3);
+    profile.incrementCount("rows", 4);
+    assertEquals(1501000, profile.getTime("scan"));
+    assertEquals(7, profile.getCount("rows"));
+  }
+
+  public void test_json_preserves_order() {
+    final QueryProfile profile = new QueryProfile();
+    profile.addTime("scan", 12345678);
+    profile.addTime("compact", 5000);
+    profile.incrementCount("rows", 42);
+    profile.incrementCount("kvs", 4242);
+    final StringBuilder buf = new StringBuilder();
+    profile.toJson(buf);
+    assertTrue(buf.toString(), buf.toString().startsWith(
+      "{\"stages\":{\"scan\":12.345,\"compact\":0.005},"
+      + "\"counts\":{\"rows\":42,\"kvs\":4242},\"total\":"));
+    assertTrue(buf.toString(), buf.toString().endsWith("}"));
+  }
+
+}
@@ -0,0 +1,332 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tools;
+
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.stumbleupon.async.Deferred;
+
+import org.hbase.async.AtomicIncrementRequest;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+import org.hbase.async.Scanner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HBaseClient.class, Scanner.class })
+public final class TestUidFsck {
+
+  private static final byte[] TABLE = { 'u', 'i', 'd' };
+  private static final String METRICS = "metrics";
+
+  private final HBaseClient client = mock(HBaseClient.class);
+
+  /** The contents of the fake UID table. */
+  private final TreeMap<byte[], ArrayList<KeyValue>> rows =
+    new TreeMap<byte[], ArrayList<KeyValue>>(Bytes.MEMCMP);
+  /** Total number of KVs in the fake UID table. */
+  private int nkvs;
+
+  @Before
+  public void before() {
+    when(client.get(any(GetRequest.class))).thenAnswer(
+      new Answer<Deferred<ArrayList<KeyValue>>>() {
+        public Deferred<ArrayList<KeyValue>> answer(final InvocationOnMock
+                                                    invocation) {
+          final ArrayList<KeyValue> row = rows.get(UidManager.MAXID_ROW);
+          return Deferred.fromResult(row == null
+                                     ? new ArrayList<KeyValue>(0) : row);
+        }
+      });
+    when(client.newScanner(any(byte[].class))).thenAnswer(
+      new Answer<Scanner>() {
+        public Scanner answer(final InvocationOnMock invocation) {
+          return newScanner();
+        }
+      });
+  }
+
+  @Test
+  public void splitKeySpace() throws Exception {
+    final ArrayList<byte[]> boundaries = splitKeySpace(fsck(3, 4, 0), 1000);
+    // IDs 1, 251, 501 and 751 first, then names.
+    assertEquals(9, boundaries.size());
+    assertArrayEquals(new byte[] { 0, 0, 1 }, boundaries.get(0));
+    assertArrayEquals(new byte[] { 0, 0, (byte) 0xFB }, boundaries.get(1));
+    assertArrayEquals(new byte[] { 0, 1, (byte) 0xF5 }, boundaries.get(2));
+    assertArrayEquals(new byte[] { 0, 2, (byte) 0xEF }, boundaries.get(3));
+    assertArrayEquals(new byte[] { '!' }, boundaries.get(4));
+    assertArrayEquals(new byte[] { '8' }, boundaries.get(5));
+    assertArrayEquals(new byte[] { 'P' }, boundaries.get(6));
+    assertArrayEquals(new byte[] { 'g' }, boundaries.get(7));
+    assertArrayEquals(new byte[] { '~' + 1 }, boundaries.get(8));
+  }
+
+  @Test  // Max IDs too large for the ID width can't be split by ID.
+  public void splitKeySpaceMaxIdTooLarge() throws Exception {
+    final ArrayList<byte[]> boundaries = splitKeySpace(fsck(1, 2, 0), 300);
+    assertEquals(3, boundaries.size());
+    assertArrayEquals(new byte[] { '!' }, boundaries.get(0));
+    assertArrayEquals(new byte[] { 'P' }, boundaries.get(1));
+    assertArrayEquals(new byte[] { '~' + 1 }, boundaries.get(2));
+  }
+
+  @Test
+  public void consistentTable() throws Exception {
+    maxId(METRICS, 3);
+    mapping(METRICS, "sys.cpu.user", 1);
+    mapping(METRICS, "sys.cpu.nice", 2);
+    mapping(METRICS, "app.requests", 3);
+    maxId("tagk", 1);
+    mapping("tagk", "host", 1);
+    final UidFsck fsck = fsck(3, 2, 0);
+    assertEquals(0, fsck.run());
+    assertScannedEverything(fsck, 6);
+  }
+
+  @Test  // Enough mappings for the arrays of IDs and of names to grow.
+  public void manyMappings() throws Exception {
+    maxId(METRICS, 3001);
+    for (int i = 1; i <= 3000; i++) {
+      mapping(METRICS, "some.rather.long.metric." + i, i);
+    }
+    forward(METRICS, "some.rather.long.metric.3001", 3001);
+    final UidFsck fsck = fsck(3, 2, 0);
+    assertEquals(1, fsck.run());  // Missing the last reverse mapping.
+    assertScannedEverything(fsck, 6);
+  }
+
+  @Test  // The mappings of an ID are found by different ranges.
+  public void mergeDetectsInconsistentMappings() throws Exception {
+    maxId(METRICS, 2);
+    forward(METRICS, "foo", 1);
+    reverse(METRICS, 1, "bar");
+    mapping(METRICS, "sys.cpu.user", 2);
+    final UidFsck fsck = fsck(3, 2, 0);
+    assertEquals(1, fsck.run());
+    assertScannedEverything(fsck, 6);
+  }
+
+  @Test  // The forward and reverse mappings are in different ranges.
+  public void mergeDetectsWidthMismatch() throws Exception {
+    maxId(METRICS, 1);
+    put(new byte[] { 'f', 'o', 'o' }, UidManager.ID_FAMILY, METRICS,
+        new byte[] { 0, 0, 0, 1 });
+    reverse(METRICS, 1, "foo");
+    assertEquals(1, fsck(3, 2, 0).run());
+  }
+
+  @Test  // With 3-byte IDs, IDs from 0x210000 start with a valid name char.
+  public void idsInsideNameRanges() throws Exception {
+    maxId(METRICS, 0x500000);
+    mapping(METRICS, "sys.cpu.user", 1);
+    mapping(METRICS, "A", 0x410000);
+    mapping(METRICS, "P", 0x500000);
+    final UidFsck fsck = fsck(3, 2, 0);
+    assertEquals(0, fsck.run());
+    assertScannedEverything(fsck, 6);
+  }
+
+  @Test
+  public void fix() throws Exception {
+    maxId(METRICS, 1);
+    mapping(METRICS, "sys.cpu.user", 1);
+    forward(METRICS, "sys.cpu.nice", 2);  // No reverse mapping.
+    when(client.compareAndSet(any(PutRequest.class), any(byte[].class)))
+      .thenReturn(Deferred.fromResult(true));
+    when(client.atomicIncrement(any(AtomicIncrementRequest.class)))
+      .thenReturn(Deferred.fromResult(2L));
+    assertEquals(0, fsck(3, 2, 1000).run());
+
+    final ArgumentCaptor<PutRequest> put =
+      ArgumentCaptor.forClass(PutRequest.class);
+    verify(client).compareAndSet(put.capture(),
+                                 aryEq(HBaseClient.EMPTY_ARRAY));
+    assertArrayEquals(TABLE, put.getValue().table());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, put.getValue().key());
+    assertArrayEquals(UidManager.NAME_FAMILY, put.getValue().family());
+    assertArrayEquals(UidManager.toBytes(METRICS),
+                      put.getValue().qualifier());
+    assertArrayEquals(UidManager.toBytes("sys.cpu.nice"),
+                      put.getValue().value());
+
+    final ArgumentCaptor<AtomicIncrementRequest> incr =
+      ArgumentCaptor.forClass(AtomicIncrementRequest.class);
+    verify(client).atomicIncrement(incr.capture());
+    assertArrayEquals(UidManager.MAXID_ROW, incr.getValue().key());
+    assertArrayEquals(UidManager.ID_FAMILY, incr.getValue().family());
+    assertArrayEquals(UidManager.toBytes(METRICS),
+                      incr.getValue().qualifier());
+    assertEquals(1, incr.getValue().getAmount());
+  }
+
+  @Test  // Someone else created the reverse mapping before us.
+  public void fixLosesRace() throws Exception {
+    maxId(METRICS, 1);
+    forward(METRICS, "sys.cpu.user", 1);
+    when(client.compareAndSet(any(PutRequest.class), any(byte[].class)))
+      .thenReturn(Deferred.fromResult(false));
+    assertEquals(1, fsck(3, 2, 1000).run());
+    verify(client, never()).atomicIncrement(any(AtomicIncrementRequest.class));
+  }
+
+  @Test
+  public void reportOnly() throws Exception {
+    maxId(METRICS, 1);
+    mapping(METRICS, "sys.cpu.user", 1);
+    forward(METRICS, "sys.cpu.nice", 2);
+    assertEquals(1, fsck(3, 2, 0).run());
+    verify(client, never()).compareAndSet(any(PutRequest.class),
+                                          any(byte[].class));
+    verify(client, never()).atomicIncrement(any(AtomicIncrementRequest.class));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void invalidSplits() throws Exception {
+    fsck(3, 0, 0);
+  }
+
+  private UidFsck fsck(final int idwidth, final int splits,
+                       final int fix_rate) {
+    return new UidFsck(client, TABLE, (short) idwidth, splits, fix_rate);
+  }
+
+  /** Helper to call private method.  */
+  private static ArrayList<byte[]> splitKeySpace(final UidFsck fsck,
+                                                 final long highest)
+    throws Exception {
+    return Whitebox.invokeMethod(fsck, "splitKeySpace", highest);
+  }
+
+  /**
+   * Makes sure every KV of the table was scanned exactly once, by the
+   * given number of ranges.
+   */
+  private void assertScannedEverything(final UidFsck fsck,
+                                       final int nranges) {
+    assertEquals(nkvs, ((AtomicLong) Whitebox.getInternalState(fsck,
+      "kvcount")).get());
+    assertEquals(nranges, ((AtomicInteger) Whitebox.getInternalState(fsck,
+      "ranges_done")).get());
+  }
+
+  private void maxId(final String kind, final long maxid) {
+    put(UidManager.MAXID_ROW, UidManager.ID_FAMILY, kind,
+        Bytes.fromLong(maxid));
+  }
+
+  /** Adds both the forward and the reverse mappings, with 3-byte IDs.  */
+  private void mapping(final String kind, final String name,
+                       final long id) {
+    forward(kind, name, id);
+    reverse(kind, id, name);
+  }
+
+  private void forward(final String kind, final String name,
+                       final long id) {
+    put(UidManager.toBytes(name), UidManager.ID_FAMILY, kind,
+        UidManager.idInBytes((short) 3, id));
+  }
+
+  private void reverse(final String kind, final long id,
+                       final String name) {
+    put(UidManager.idInBytes((short) 3, id), UidManager.NAME_FAMILY, kind,
+        UidManager.toBytes(name));
+  }
+
+  private void put(final byte[] key, final byte[] family, final String kind,
+                   final byte[] value) {
+    ArrayList<KeyValue> row = rows.get(key);
+    if (row == null) {
+      row = new ArrayList<KeyValue>();
+      rows.put(key, row);
+    }
+    row.add(new KeyValue(key, family, UidManager.toBytes(kind), value));
+    nkvs++;
+  }
+
+  /**
+   * Returns a scanner that returns all the rows of its range of the fake
+   * table at once.
+   */
+  private Scanner newScanner() {
+    final Scanner scanner = mock(Scanner.class);
+    final byte[][] range = new byte[2][];  // Start and stop keys.
+    doAnswer(new Answer<Object>() {
+      public Object answer(final InvocationOnMock invocation) {
+        range[0] = (byte[]) invocation.getArguments()[0];
+        return null;
+      }
+    }).when(scanner).setStartKey(any(byte[].class));
+    doAnswer(new Answer<Object>() {
+      public Object answer(final InvocationOnMock invocation) {
+        range[1] = (byte[]) invocation.getArguments()[0];
+        return null;
+      }
+    }).when(scanner).setStopKey(any(byte[].class));
+    when(scanner.nextRows()).thenAnswer(
+      new Answer<Deferred<ArrayList<ArrayList<KeyValue>>>>() {
+        private boolean done;
+        public Deferred<ArrayList<ArrayList<KeyValue>>>
+          answer(final InvocationOnMock invocation) {
+          final ArrayList<ArrayList<KeyValue>> result =
+            new ArrayList<ArrayList<KeyValue>>();
+          if (!done) {
+            for (final ArrayList<KeyValue> row : rows.values()) {
+              final byte[] key = row.get(0).key();
+              if ((range[0] == null || Bytes.memcmp(key, range[0]) >= 0)
+                  && (range[1] == null || Bytes.memcmp(key, range[1]) < 0)) {
+                result.add(row);
+              }
+            }
+            done = true;
+          }
+          return Deferred.fromResult(result.isEmpty() ? null : result);
+        }
+      });
+    return scanner;
+  }
+
+}
@@ -0,0 +1,427 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+import org.jboss.netty.util.CharsetUtil;
+
+import net.opentsdb.core.DataPoint;
+import net.opentsdb.core.DataPoints;
+import net.opentsdb.core.SeekableView;
+import net.opentsdb.stats.QueryProfile;
+import net.opentsdb.tools.DataPointsDecoder;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public final class TestDataPointsStream {
+
+  private static final long START_TIME = 1356998400L;
+
+  private final HttpQuery query =
+    new HttpQuery(new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                                         "/q?start=1h-ago&m=sum:foo&ascii"),
+                  mock(Channel.class));
+
+  private File dir;
+  private String basepath;
+
+  @Before
+  public void before() throws IOException {
+    dir = File.createTempFile("tsd-cache", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    basepath = dir.getPath() + "/foo";
+  }
+
+  @After
+  public void after() {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void ascii() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    foo.add(START_TIME, 42);
+    foo.add(START_TIME + 10, 0.5);
+    final Series bar = new Series("bar", "host", "web02");
+    bar.add(START_TIME, -1);
+    assertEquals("foo 1356998400 42 host=web01\n"
+                 + "foo 1356998410 0.5 host=web01\n"
+                 + "bar 1356998400 -1 host=web02\n",
+                 drain(new DataPointsStream.Ascii(query, list(foo, bar),
+                                                  new QueryProfile())));
+  }
+
+  @Test
+  public void json() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    foo.add(START_TIME, 42);
+    foo.add(START_TIME + 10, 0.5);
+    final Series bar = new Series("bar\"", "host", "web02");
+    assertEquals("[{\"metric\":\"foo\",\"tags\":{\"host\":\"web01\"},"
+                 + "\"aggregated_tags\":[],"
+                 + "\"dps\":[[1356998400,42],[1356998410,0.5]]},"
+                 + "{\"metric\":\"bar\\\"\",\"tags\":{\"host\":\"web02\"},"
+                 + "\"aggregated_tags\":[],\"dps\":[]}]",
+                 drain(new DataPointsStream.Json(query, list(foo, bar),
+                                                 new QueryProfile())));
+  }
+
+  @Test
+  public void jsonNoSeries() throws Exception {
+    assertEquals("[]",
+                 drain(new DataPointsStream.Json(query, list(),
+                                                 new QueryProfile())));
+  }
+
+  @Test
+  public void largeResultIsChunked() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    for (int i = 0; i < 10000; i++) {
+      foo.add(START_TIME + i, i);
+    }
+    final DataPointsStream stream =
+      new DataPointsStream.Ascii(query, list(foo), new QueryProfile());
+    int nchunks = 0;
+    int nlines = 0;
+    while (stream.hasNextChunk()) {
+      final String chunk = ((ChannelBuffer) stream.nextChunk())
+        .toString(CharsetUtil.UTF_8);
+      assertTrue(chunk.length() < 20000);
+      for (int i = 0; i < chunk.length(); i++) {
+        if (chunk.charAt(i) == '\n') {
+          nlines++;
+        }
+      }
+      nchunks++;
+    }
+    stream.close();
+    assertTrue(stream.isEndOfInput());
+    assertTrue("nchunks=" + nchunks, nchunks > 10);
+    assertEquals(10000, nlines);
+  }
+
+  @Test
+  public void binaryRoundTrip() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    final long[] longs = { 0, -1, 127, 128, -32768, 1 << 20, Long.MIN_VALUE };
+    for (int i = 0; i < longs.length; i++) {
+      foo.add(START_TIME + i, longs[i]);
+    }
+    foo.add(START_TIME + 4095 + longs.length, 0.5);  // New block.
+    foo.add(START_TIME + 8000, Math.PI);             // New block.
+    final Series bar = new Series("b\u00e4r", "host", "web02");
+    for (int i = 0; i < 10000; i++) {  // Spans several chunks.
+      bar.add(START_TIME + i * 10, i * 0.25);
+    }
+    final Series empty = new Series("empty", "host", "web03");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final DataPointsStream stream =
+      new DataPointsStream.Binary(query, list(foo, empty, bar),
+                                  new QueryProfile());
+    while (stream.hasNextChunk()) {
+      final ChannelBuffer chunk = (ChannelBuffer) stream.nextChunk();
+      chunk.readBytes(out, chunk.readableBytes());
+    }
+    stream.close();
+
+    final DataPointsDecoder decoder =
+      new DataPointsDecoder(new ByteArrayInputStream(out.toByteArray()));
+    for (final Series series : new Series[] { foo, empty, bar }) {
+      assertTrue(decoder.nextSeries());
+      assertEquals(series.metricName(), decoder.metricName());
+      assertEquals(series.getTags(), decoder.getTags());
+      assertTrue(decoder.getAggregatedTags().isEmpty());
+      for (int i = 0; i < series.size(); i++) {
+        assertTrue(decoder.nextDataPoint());
+        assertEquals(series.timestamp(i), decoder.timestamp());
+        assertEquals(series.isInteger(i), decoder.isInteger());
+        if (series.isInteger(i)) {
+          assertEquals(series.longValue(i), decoder.longValue());
+        } else {
+          assertEquals(series.doubleValue(i), decoder.doubleValue(), 0.0);
+        }
+      }
+      assertFalse(decoder.nextDataPoint());
+    }
+    assertFalse(decoder.nextSeries());
+    // 6 bytes per float data point, vs ~35 bytes per line in ASCII.
+    assertTrue("size=" + out.size(), out.size() < 61000);
+  }
+
+  @Test(expected=EOFException.class)
+  public void binaryTruncated() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    foo.add(START_TIME, 42);
+    final DataPointsStream stream =
+      new DataPointsStream.Binary(query, list(foo), new QueryProfile());
+    final ChannelBuffer chunk = (ChannelBuffer) stream.nextChunk();
+    stream.close();
+    final byte[] truncated = new byte[chunk.readableBytes() - 1];
+    chunk.readBytes(truncated);
+    final DataPointsDecoder decoder =
+      new DataPointsDecoder(new ByteArrayInputStream(truncated));
+    while (decoder.nextSeries()) {
+    }
+  }
+
+  @Test
+  public void notFiniteAscii() throws Exception {
+    assertEquals("foo 1356998400 NaN host=web01\n"
+                 + "foo 1356998401 Infinity host=web01\n"
+                 + "foo 1356998402 -Infinity host=web01\n",
+                 drain(new DataPointsStream.Ascii(query, list(notFinite()),
+                                                  new QueryProfile())));
+  }
+
+  @Test  // JSON has no NaN or Infinity.
+  public void notFiniteJson() throws Exception {
+    assertEquals("[{\"metric\":\"foo\",\"tags\":{\"host\":\"web01\"},"
+                 + "\"aggregated_tags\":[],"
+                 + "\"dps\":[[1356998400,null],[1356998401,null],"
+                 + "[1356998402,null]]}]",
+                 drain(new DataPointsStream.Json(query, list(notFinite()),
+                                                 new QueryProfile())));
+  }
+
+  @Test
+  public void notFiniteBinary() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final DataPointsStream stream =
+      new DataPointsStream.Binary(query, list(notFinite()),
+                                  new QueryProfile());
+    while (stream.hasNextChunk()) {
+      final ChannelBuffer chunk = (ChannelBuffer) stream.nextChunk();
+      chunk.readBytes(out, chunk.readableBytes());
+    }
+    stream.close();
+    final DataPointsDecoder decoder =
+      new DataPointsDecoder(new ByteArrayInputStream(out.toByteArray()));
+    assertTrue(decoder.nextSeries());
+    for (final double value : new double[] { Double.NaN,
+                                             Double.POSITIVE_INFINITY,
+                                             Double.NEGATIVE_INFINITY }) {
+      assertTrue(decoder.nextDataPoint());
+      assertFalse(decoder.isInteger());
+      assertEquals(value, decoder.doubleValue(), 0.0);
+    }
+    assertFalse(decoder.nextDataPoint());
+    assertFalse(decoder.nextSeries());
+  }
+
+  @Test
+  public void teeToDiskCache() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    for (int i = 0; i < 10000; i++) {  // Spans several chunks.
+      foo.add(START_TIME + i, i);
+    }
+    final DiskCache cache = new DiskCache(dir.getPath() + '/', 0, 0);
+    final DataPointsStream stream =
+      new DataPointsStream.Ascii(query, list(foo), new QueryProfile());
+    stream.teeTo(cache, basepath);
+    final String data = drain(stream);
+    assertEquals(data, readFile(basepath + ".txt"));
+    assertFalse(new File(basepath + ".txt.tmp").exists());
+    assertEquals("1 entries, 1 files, " + data.length() + " bytes",
+                 cache.size());
+  }
+
+  @Test
+  public void teeAbandonedWhenClosedEarly() throws Exception {
+    final Series foo = new Series("foo", "host", "web01");
+    for (int i = 0; i < 10000; i++) {
+      foo.add(START_TIME + i, i);
+    }
+    final DiskCache cache = new DiskCache(dir.getPath() + '/', 0, 0);
+    final DataPointsStream stream =
+      new DataPointsStream.Ascii(query, list(foo), new QueryProfile());
+    stream.teeTo(cache, basepath);
+    stream.nextChunk();
+    assertTrue(new File(basepath + ".txt.tmp").exists());
+    stream.close();  // E.g. the client went away.
+    assertFalse(new File(basepath + ".txt.tmp").exists());
+    assertFalse(new File(basepath + ".txt").exists());
+    assertEquals("0 entries, 0 files, 0 bytes", cache.size());
+  }
+
+  /** Reads everything from the given stream.  */
+  private static String drain(final DataPointsStream stream) {
+    final StringBuilder buf = new StringBuilder();
+    try {
+      while (stream.hasNextChunk()) {
+        buf.append(((ChannelBuffer) stream.nextChunk())
+                   .toString(CharsetUtil.UTF_8));
+      }
+    } finally {
+      stream.close();
+    }
+    assertFalse(stream.hasNextChunk());
+    return buf.toString();
+  }
+
+  /** Returns a series with values that aren't finite.  */
+  private static Series notFinite() {
+    final Series foo = new Series("foo", "host", "web01");
+    foo.add(START_TIME, Double.NaN);
+    foo.add(START_TIME + 1, Double.POSITIVE_INFINITY);
+    foo.add(START_TIME + 2, Double.NEGATIVE_INFINITY);
+    return foo;
+  }
+
+  private static String readFile(final String path) throws IOException {
+    final FileInputStream in = new FileInputStream(path);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static List<DataPoints> list(final DataPoints... series) {
+    final ArrayList<DataPoints> list = new ArrayList<DataPoints>();
+    Collections.addAll(list, series);
+    return list;
+  }
+
+  /** A series of data points held in memory.  */
+  private static final class Series implements DataPoints {
+
+    private final String metric;
+    private final HashMap<String, String> tags = new HashMap<String, String>();
+    private final ArrayList<Long> timestamps = new ArrayList<Long>();
+    private final ArrayList<Number> values = new ArrayList<Number>();
+
+    Series(final String metric, final String tagk, final String tagv) {
+      this.metric = metric;
+      tags.put(tagk, tagv);
+    }
+
+    void add(final long timestamp, final long value) {
+      timestamps.add(timestamp);
+      values.add(value);
+    }
+
+    void add(final long timestamp, final double value) {
+      timestamps.add(timestamp);
+      values.add(value);
+    }
+
+    public String metricName() {
+      return metric;
+    }
+
+    public Map<String, String> getTags() {
+      return tags;
+    }
+
+    public List<String> getAggregatedTags() {
+      return Collections.emptyList();
+    }
+
+    public int size() {
+      return timestamps.size();
+    }
+
+    public int aggregatedSize() {
+      return 1;
+    }
+
+    public SeekableView iterator() {
+      return new SeekableView() {
+        private int i = -1;
+
+        public boolean hasNext() {
+          return i + 1 < size();
+        }
+
+        public DataPoint next() {
+          final int index = ++i;
+          return new DataPoint() {
+            public long timestamp() {
+              return Series.this.timestamp(index);
+            }
+            public boolean isInteger() {
+              return Series.this.isInteger(index);
+            }
+            public long longValue() {
+              return Series.this.longValue(index);
+            }
+            public double doubleValue() {
+              return Series.this.doubleValue(index);
+            }
+            public double toDouble() {
+              return values.get(index).doubleValue();
+            }
+          };
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+
+        public void seek(final long timestamp) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    public long timestamp(final int i) {
+      return timestamps.get(i);
+    }
+
+    public boolean isInteger(final int i) {
+      return values.get(i) instanceof Long;
+    }
+
+    public long longValue(final int i) {
+      return (Long) values.get(i);
+    }
+
+    public double doubleValue(final int i) {
+      return (Double) values.get(i);
+    }
+
+  }
+
+}
@@ -0,0 +1,155 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class TestDiskCache {
+
+  private File dir;
+  private String cachedir;
+
+  @Before
+  public void before() throws IOException {
+    dir = File.createTempFile("tsd-cache", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    cachedir = dir.getPath() + '/';
+  }
+
+  @After
+  public void after() {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    final DiskCache cache = new DiskCache(cachedir, 250, 0);
+    cache.sweep();  // Initial scan of the empty directory.
+    for (final String name : new String[] { "a", "b", "c" }) {
+      writeFile(name + ".png", 100);
+      cache.added(cachedir + name);
+    }
+    cache.accessed(cachedir + "a");
+    cache.sweep();
+    assertTrue(exists("a.png"));
+    assertFalse(exists("b.png"));
+    assertTrue(exists("c.png"));
+    assertEquals("2 entries, 2 files, 200 bytes", cache.size());
+  }
+
+  @Test
+  public void evictAllTheFilesOfAnEntry() throws Exception {
+    final DiskCache cache = new DiskCache(cachedir, 0, 3);
+    cache.sweep();
+    writeFile("a.png", 10);
+    writeFile("a.json", 10);
+    cache.added(cachedir + "a");
+    writeFile("b.png", 10);
+    writeFile("b.json", 10);
+    writeFile("b.err", 10);
+    cache.added(cachedir + "b");
+    assertEquals("2 entries, 5 files, 50 bytes", cache.size());
+    cache.sweep();
+    assertFalse(exists("a.png"));
+    assertFalse(exists("a.json"));
+    assertTrue(exists("b.png"));
+    assertEquals("1 entries, 3 files, 30 bytes", cache.size());
+  }
+
+  @Test  // Files that were already there are evicted based on their mtime.
+  public void scanExistingFiles() throws Exception {
+    final long now = System.currentTimeMillis();
+    writeFile("old.png", 100).setLastModified(now - 7200000);
+    writeFile("new.png", 100).setLastModified(now - 3600000);
+    writeFile("README", 1000);  // Not ours, must be left alone.
+    final DiskCache cache = new DiskCache(cachedir, 150, 0);
+    cache.sweep();
+    assertFalse(exists("old.png"));
+    assertTrue(exists("new.png"));
+    assertTrue(exists("README"));
+    assertEquals("1 entries, 1 files, 100 bytes", cache.size());
+  }
+
+  @Test
+  public void deleteStaleTemporaryFiles() throws Exception {
+    final long now = System.currentTimeMillis();
+    writeFile("old.gnuplot", 10).setLastModified(now - 3600000);
+    writeFile("old_0.dat", 10).setLastModified(now - 3600000);
+    writeFile("new.gnuplot", 10);  // Gnuplot may be using it right now.
+    writeFile("new_0.dat", 10);
+    new DiskCache(cachedir, 0, 0).sweep();
+    assertFalse(exists("old.gnuplot"));
+    assertFalse(exists("old_0.dat"));
+    assertTrue(exists("new.gnuplot"));
+    assertTrue(exists("new_0.dat"));
+  }
+
+  @Test  // The entry may be re-rendered while it's being evicted.
+  public void evictionKeepsGnuplotInputs() throws Exception {
+    final DiskCache cache = new DiskCache(cachedir, 0, 1);
+    cache.sweep();
+    writeFile("a.png", 10);
+    writeFile("a.json", 10);
+    cache.added(cachedir + "a");
+    writeFile("a.gnuplot", 10);
+    writeFile("a_0.dat", 10);
+    cache.sweep();
+    assertFalse(exists("a.png"));
+    assertFalse(exists("a.json"));
+    assertTrue(exists("a.gnuplot"));
+    assertTrue(exists("a_0.dat"));
+  }
+
+  @Test
+  public void deleteGnuplotInputs() throws Exception {
+    writeFile("a.png", 10);
+    writeFile("a.gnuplot", 10);
+    writeFile("a_0.dat", 10);
+    writeFile("a_1.dat", 10);
+    DiskCache.deleteGnuplotInputs(cachedir + "a");
+    assertTrue(exists("a.png"));
+    assertFalse(exists("a.gnuplot"));
+    assertFalse(exists("a_0.dat"));
+    assertFalse(exists("a_1.dat"));
+  }
+
+  private File writeFile(final String name, final int size)
+    throws IOException {
+    final File file = new File(dir, name);
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private boolean exists(final String name) {
+    return new File(dir, name).exists();
+  }
+
+}
@@ -0,0 +1,172 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import net.opentsdb.stats.StatsCollector;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.powermock.reflect.Whitebox;
+
+public final class TestGnuplotPool {
+
+  /**
+   * Fake Gnuplot: answers {@code print} commands, fails on scripts with
+   * "fail" in their name (after a second if it's also "slow") and hangs on
+   * scripts with "hang" in their name.  After a script with "deaf" in its
+   * name, it stops answering (but stays alive).
+   */
+  private static final String[] FAKE_GNUPLOT = { "sh", "-c",
+    "while read line; do"
+    + "  case \"$line\" in"
+    + "    print*) [ \"$deaf\" = 1 ] || echo \"$line\" | cut -d '\"' -f 2;"
+    + "            [ -z \"$deaf\" ] || deaf=1;;"
+    + "    *deaf*) deaf=0;;"
+    + "    *slowfail*) sleep 1; echo \"error: $line\"; exit 1;;"
+    + "    *fail*) echo \"error: $line\"; exit 1;;"
+    + "    *hang*) exec sleep 30;;"
+    + "  esac;"
+    + "done"
+  };
+
+  private GnuplotPool pool;
+
+  @After
+  public void shutdown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void workersAreReused() throws Exception {
+    pool = new GnuplotPool(FAKE_GNUPLOT, 2, 10000);
+    for (int i = 0; i < 5; i++) {
+      pool.run("/tmp/graph.gnuplot");
+    }
+    final HashMap<String, Long> stats = collectStats(pool);
+    assertEquals(1, (long) stats.get("spawned"));
+    assertEquals(5, (long) stats.get("renders"));
+    assertEquals(1, (long) stats.get("workers type=idle"));
+  }
+
+  @Test
+  public void failedWorkerIsReplaced() throws Exception {
+    pool = new GnuplotPool(FAKE_GNUPLOT, 1, 10000);
+    pool.run("/tmp/graph.gnuplot");
+    try {
+      pool.run("/tmp/fail.gnuplot");
+      fail("Expected a GnuplotException");
+    } catch (GnuplotException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("error: load"));
+      assertFalse(e.timedOut());
+    }
+    pool.run("/tmp/graph.gnuplot");
+    final HashMap<String, Long> stats = collectStats(pool);
+    assertEquals(2, (long) stats.get("spawned"));
+    assertEquals(1, (long) stats.get("errors type=failed"));
+    assertEquals(1, (long) stats.get("workers type=live"));
+  }
+
+  @Test
+  public void runawayWorkerIsKilled() throws Exception {
+    pool = new GnuplotPool(FAKE_GNUPLOT, 1, 200);
+    final long start = System.nanoTime();
+    try {
+      pool.run("/tmp/hang.gnuplot");
+      fail("Expected a GnuplotException");
+    } catch (GnuplotException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Timed out"));
+      assertTrue(e.timedOut());
+    }
+    assertTrue(System.nanoTime() - start < 10000000000L);
+    pool.run("/tmp/graph.gnuplot");
+    final HashMap<String, Long> stats = collectStats(pool);
+    assertEquals(1, (long) stats.get("errors type=timeout"));
+    assertEquals(2, (long) stats.get("spawned"));
+  }
+
+  @Test(timeout=10000)  // A worker dies while another thread waits for it.
+  public void waiterIsWokenUpWhenWorkerDies() throws Exception {
+    pool = new GnuplotPool(FAKE_GNUPLOT, 1, 10000);
+    final Thread failing = new Thread() {
+      public void run() {
+        try {
+          pool.run("/tmp/slowfail.gnuplot");
+        } catch (Exception e) {
+          // Expected.
+        }
+      }
+    };
+    failing.start();
+    while (collectStats(pool).get("spawned") == 0) {
+      Thread.sleep(10);
+    }
+    pool.run("/tmp/graph.gnuplot");  // Waits for the only slot.
+    failing.join();
+    final HashMap<String, Long> stats = collectStats(pool);
+    assertEquals(2, (long) stats.get("spawned"));
+    assertEquals(1, (long) stats.get("errors type=failed"));
+    assertEquals(1, (long) stats.get("renders"));
+    assertEquals(1, (long) stats.get("workers type=live"));
+  }
+
+  @Test(timeout=20000)
+  public void unhealthyWorkerIsReplaced() throws Exception {
+    pool = new GnuplotPool(FAKE_GNUPLOT, 1, 10000);
+    pool.run("/tmp/deaf.gnuplot");
+    // Pretend the worker has been idle for a while, so it gets pinged.
+    final ArrayBlockingQueue<?> idle =
+      Whitebox.getInternalState(pool, "idle");
+    Whitebox.setInternalState(idle.peek(), "last_used", 0L);
+    pool.run("/tmp/graph.gnuplot");
+    final HashMap<String, Long> stats = collectStats(pool);
+    assertEquals(2, (long) stats.get("spawned"));
+    assertEquals(2, (long) stats.get("renders"));
+    assertEquals(1, (long) stats.get("errors type=healthcheck"));
+    assertEquals(0, (long) stats.get("errors type=timeout"));
+    assertEquals(0, (long) stats.get("errors type=failed"));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void invalidSize() {
+    new GnuplotPool(FAKE_GNUPLOT, 0, 10000);
+  }
+
+  /** Returns the stats of the pool, keyed by name and tags.  */
+  private static HashMap<String, Long> collectStats(final GnuplotPool pool) {
+    final HashMap<String, Long> stats = new HashMap<String, Long>();
+    pool.collectStats(new StatsCollector("tsd") {
+      public void emit(final String datapoint) {
+        // "tsd.http.graph.gnuplot.<name> <timestamp> <value>[ <tags>]"
+        final String[] words = datapoint.trim().split(" ", 4);
+        String name = words[0].substring("tsd.http.graph.gnuplot.".length());
+        if (words.length > 3) {
+          name += ' ' + words[3].replace(" host=", "").replace("host=", "")
+            .trim();
+        }
+        stats.put(name.trim(), Long.parseLong(words[2]));
+      }
+    });
+    return stats;
+  }
+
+}
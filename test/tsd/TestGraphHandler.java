@@ -13,13 +13,24 @@
 package net.opentsdb.tsd;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+
+import net.opentsdb.core.BinaryFormat;
+import net.opentsdb.graph.Plot;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -37,7 +48,7 @@ import static org.powermock.api.mockito.PowerMockito.mock;
 @PowerMockIgnore({"javax.management.*", "javax.xml.*",
                   "ch.qos.*", "org.slf4j.*",
                   "com.sum.*", "org.xml.*"})
-@PrepareForTest({ GraphHandler.class, HttpQuery.class })
+@PrepareForTest({ GraphHandler.class, HttpQuery.class, Plot.class })
 public final class TestGraphHandler {
 
   @Test  // If the file doesn't exist, we don't use it, obviously.
@@ -163,6 +174,68 @@ public final class TestGraphHandler {
     System.currentTimeMillis();  // ... this was called only once.
   }
 
+  @Test
+  public void wantsBinary() throws Exception {
+    assertTrue(wantsBinary(fakeHttpQuery("binary"), null));
+    assertTrue(wantsBinary(fakeHttpQuery(), BinaryFormat.MIME_TYPE));
+    assertTrue(wantsBinary(fakeHttpQuery("binary"), "text/plain"));
+    assertFalse(wantsBinary(fakeHttpQuery(), null));
+    assertFalse(wantsBinary(fakeHttpQuery(), "text/plain"));
+  }
+
+  @Test  // An explicit output parameter wins over the Accept header.
+  public void wantsBinaryIgnoresAcceptHeader() throws Exception {
+    for (final String param : new String[] { "png", "json", "ascii",
+                                             "jsondata" }) {
+      assertFalse(param, wantsBinary(fakeHttpQuery(param),
+                                     BinaryFormat.MIME_TYPE));
+    }
+  }
+
+  @Test
+  public void deleteGnuplotInputsWhenGnuplotFails() throws Exception {
+    final File dir = File.createTempFile("tsd-graph", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    final String basepath = dir.getPath() + "/a";
+    final Plot plot = mock(Plot.class);
+    when(plot.dumpToFiles(basepath)).thenAnswer(new Answer<Integer>() {
+      public Integer answer(final InvocationOnMock invocation)
+        throws IOException {
+        writeFile(basepath + ".gnuplot", "this is not a Gnuplot command\n");
+        writeFile(basepath + "_0.dat", "1356998400 42\n");
+        return 1;
+      }
+    });
+    try {
+      try {
+        GraphHandler.runGnuplot(null, basepath, plot, null);
+        fail("Expected Gnuplot to fail");
+      } catch (GnuplotException e) {
+        // Gnuplot rejected the script.
+      } catch (IOException e) {
+        // Gnuplot isn't installed.
+      }
+      assertFalse(new File(basepath + ".gnuplot").exists());
+      assertFalse(new File(basepath + "_0.dat").exists());
+    } finally {
+      for (final File file : dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  /** Helper to call private static method.  */
+  private static boolean wantsBinary(final HttpQuery query,
+                                     final String accept) throws Exception {
+    final HttpRequest request = mock(HttpRequest.class);
+    when(request.getHeader(HttpHeaders.Names.ACCEPT)).thenReturn(accept);
+    when(query.request()).thenReturn(request);
+    return Whitebox.<Boolean>invokeMethod(GraphHandler.class, "wantsBinary",
+                                          query);
+  }
+
   /**
    * Helper to call private static method.
    * There's one slight difference: the {@code end_time} parameter is in
@@ -177,10 +250,13 @@ public final class TestGraphHandler {
                                           cachedfile);
   }
 
-  private static HttpQuery fakeHttpQuery() {
+  private static HttpQuery fakeHttpQuery(final String... params) {
     final HttpQuery query = mock(HttpQuery.class);
     final Channel chan = fakeChannel();
     when(query.channel()).thenReturn(chan);
+    for (final String param : params) {
+      when(query.hasQueryStringParam(param)).thenReturn(true);
+    }
     return query;
   }
 
@@ -190,6 +266,16 @@ public final class TestGraphHandler {
     return chan;
   }
 
+  private static void writeFile(final String path,
+                                final String content) throws IOException {
+    final FileOutputStream out = new FileOutputStream(path);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
   private static File fakeFile(final String path) {
     final File file = mock(File.class);
     when(file.getPath()).thenReturn(path);
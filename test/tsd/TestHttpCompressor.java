@@ -0,0 +1,83 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.Arrays;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public final class TestHttpCompressor {
+
+  private final HttpCompressor compressor = new HttpCompressor();
+
+  @Test
+  public void compressLargeJson() throws Exception {
+    final DefaultHttpResponse response =
+      newResponse("application/json", HttpCompressor.MIN_SIZE);
+    assertNotNull(compressor.newContentEncoder(response, "gzip, deflate"));
+    assertEquals(HttpHeaders.Names.ACCEPT_ENCODING,
+                 response.getHeader(HttpHeaders.Names.VARY));
+  }
+
+  @Test
+  public void dontCompressSmallResponses() throws Exception {
+    final DefaultHttpResponse response =
+      newResponse("application/json", HttpCompressor.MIN_SIZE - 1);
+    assertNull(compressor.newContentEncoder(response, "gzip"));
+    assertNull(response.getHeader(HttpHeaders.Names.VARY));
+  }
+
+  @Test
+  public void dontCompressImages() throws Exception {
+    final DefaultHttpResponse response =
+      newResponse("image/png", HttpCompressor.MIN_SIZE * 10);
+    assertNull(compressor.newContentEncoder(response, "gzip"));
+  }
+
+  @Test  // Clients that don't accept gzip still need the Vary header.
+  public void clientDoesntAcceptCompression() throws Exception {
+    final DefaultHttpResponse response =
+      newResponse("text/plain", HttpCompressor.MIN_SIZE * 10);
+    assertNull(compressor.newContentEncoder(response, "identity"));
+    assertEquals(HttpHeaders.Names.ACCEPT_ENCODING,
+                 response.getHeader(HttpHeaders.Names.VARY));
+  }
+
+  @Test  // We don't know how large streamed replies are, compress them.
+  public void compressChunkedResponses() throws Exception {
+    final DefaultHttpResponse response = newResponse("text/plain", 0);
+    response.setChunked(true);
+    assertNotNull(compressor.newContentEncoder(response, "deflate"));
+  }
+
+  private static DefaultHttpResponse newResponse(final String type,
+                                                 final int size) {
+    final DefaultHttpResponse response =
+      new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.setHeader(HttpHeaders.Names.CONTENT_TYPE, type);
+    final byte[] content = new byte[size];
+    Arrays.fill(content, (byte) 'a');
+    response.setContent(ChannelBuffers.wrappedBuffer(content));
+    return response;
+  }
+
+}
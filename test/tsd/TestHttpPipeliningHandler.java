@@ -0,0 +1,165 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelSink;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.UpstreamMessageEvent;
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.reflect.Whitebox;
+
+public final class TestHttpPipeliningHandler {
+
+  private static final int MAX_QUEUED = (Integer)
+    Whitebox.getInternalState(HttpPipeliningHandler.class, "MAX_QUEUED");
+
+  private final Channel chan = mock(Channel.class);
+  private final ChannelSink sink = mock(ChannelSink.class);
+  private final ChannelPipeline pipeline = Channels.pipeline();
+  private final HttpPipeliningHandler pipelining =
+    new HttpPipeliningHandler();
+  /** The requests that went through the pipelining handler, in order.  */
+  private final ArrayList<HttpRequest> received = new ArrayList<HttpRequest>();
+
+  @Before
+  public void before() throws Exception {
+    when(chan.getPipeline()).thenReturn(pipeline);
+    when(chan.isConnected()).thenReturn(true);
+    // Run the tasks of the I/O thread right away.
+    when(sink.execute(any(ChannelPipeline.class), any(Runnable.class)))
+      .thenAnswer(new Answer<ChannelFuture>() {
+        public ChannelFuture answer(final InvocationOnMock invocation) {
+          ((Runnable) invocation.getArguments()[1]).run();
+          return null;
+        }
+      });
+    pipeline.addLast("pipelining", pipelining);
+    pipeline.attach(chan, sink);
+  }
+
+  @Test
+  public void oneRequestAtATime() throws Exception {
+    recordRequests();
+    final HttpRequest req1 = request("/q?1");
+    final HttpRequest req2 = request("/q?2");
+    final HttpRequest req3 = request("/q?3");
+    receive(req1);
+    receive(req2);
+    receive(req3);
+    assertEquals(1, received.size());
+    pipelining.requestDone(req1);
+    assertEquals(2, received.size());
+    pipelining.requestDone(req1);  // Already done, must not let req3 in.
+    assertEquals(2, received.size());
+    pipelining.requestDone(req2);
+    assertEquals(3, received.size());
+    assertTrue(received.get(0) == req1);
+    assertTrue(received.get(1) == req2);
+    assertTrue(received.get(2) == req3);
+    pipelining.requestDone(req3);
+    final HttpRequest req4 = request("/q?4");
+    receive(req4);  // Nothing in flight, goes through right away.
+    assertTrue(received.get(3) == req4);
+  }
+
+  @Test
+  public void stopReadingWhenTooManyRequestsAreQueued() throws Exception {
+    recordRequests();
+    final HttpRequest first = request("/q?first");
+    receive(first);
+    for (int i = 0; i < MAX_QUEUED - 1; i++) {
+      receive(request("/q?" + i));
+    }
+    verify(chan, never()).setReadable(false);
+    receive(request("/q?last"));
+    verify(chan).setReadable(false);
+    verify(chan, never()).setReadable(true);
+    pipelining.requestDone(first);  // Dequeues one request.
+    verify(chan).setReadable(true);
+    assertEquals(2, received.size());
+    for (int i = 1; i <= MAX_QUEUED; i++) {
+      pipelining.requestDone(received.get(i));
+    }
+    assertEquals(MAX_QUEUED + 1, received.size());
+    verify(chan, times(1)).setReadable(false);
+    verify(chan, times(1)).setReadable(true);
+  }
+
+  @Test
+  public void releasedWhenNoResponseCanBeSent() throws Exception {
+    // Skip the constructor, which needs the static and cache directories.
+    final RpcHandler rpchandler = Whitebox.newInstance(RpcHandler.class);
+    Whitebox.setInternalState(rpchandler, "http_commands",
+                              new HashMap<String, HttpRpc>());
+    pipeline.addLast("handler", rpchandler);
+    // Neither the response nor the error page can be sent.
+    when(chan.write(any())).thenThrow(new RuntimeException("boom"));
+    receive(request("/nope"));
+    receive(request("/nope"));
+    receive(request("/nope"));
+    // All the requests went through and nothing is pending.
+    assertNull(Whitebox.getInternalState(pipelining, "current"));
+    assertTrue(((ArrayDeque<?>) Whitebox.getInternalState(pipelining,
+                                                          "queue")).isEmpty());
+    verify(chan, never()).setReadable(false);
+  }
+
+  /** Adds a handler that records the requests that reach it.  */
+  private void recordRequests() {
+    pipeline.addLast("handler", new SimpleChannelUpstreamHandler() {
+      @Override
+      public void messageReceived(final ChannelHandlerContext ctx,
+                                  final MessageEvent e) {
+        received.add((HttpRequest) e.getMessage());
+      }
+    });
+  }
+
+  private void receive(final HttpRequest req) {
+    pipeline.sendUpstream(new UpstreamMessageEvent(chan, req, null));
+  }
+
+  private static HttpRequest request(final String uri) {
+    return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+  }
+
+}
@@ -0,0 +1,115 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.util.ArrayList;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public final class TestIngestThrottle {
+
+  @Test
+  public void pauseAboveHighWaterMarkResumeAtLowWaterMark() throws Exception {
+    final IngestThrottle throttle = new IngestThrottle(3, 1);
+    final Channel chan = channel();
+    final Channel other = channel();
+    final ArrayList<Deferred<Object>> puts = puts(5);
+    puts.get(0).addBoth(throttle.started(chan));
+    puts.get(1).addBoth(throttle.started(chan));
+    puts.get(2).addBoth(throttle.started(other));
+    verify(chan, never()).setReadable(false);
+    puts.get(3).addBoth(throttle.started(chan));  // Over the high-water mark.
+    puts.get(4).addBoth(throttle.started(other));
+    verify(chan).setReadable(false);
+    verify(other).setReadable(false);
+    assertEquals(5, throttle.outstanding());
+    assertEquals(2, throttle.pausedChannels());
+
+    puts.get(0).callback(null);
+    puts.get(1).callback(null);
+    puts.get(2).callback(new RuntimeException("failed puts complete too"));
+    verify(chan, never()).setReadable(true);
+    puts.get(3).callback(null);  // Down to the low-water mark.
+    verify(chan).setReadable(true);
+    verify(other).setReadable(true);
+    assertEquals(0, throttle.pausedChannels());
+    puts.get(4).callback(null);
+    assertEquals(0, throttle.outstanding());
+  }
+
+  @Test
+  public void dontResumeClosedChannels() throws Exception {
+    final IngestThrottle throttle = new IngestThrottle(1, 0);
+    final Channel chan = channel();
+    final ArrayList<Deferred<Object>> puts = puts(2);
+    puts.get(0).addBoth(throttle.started(chan));
+    puts.get(1).addBoth(throttle.started(chan));
+    verify(chan).setReadable(false);
+    when(chan.isOpen()).thenReturn(false);
+    puts.get(0).callback(null);
+    puts.get(1).callback(null);
+    verify(chan, never()).setReadable(true);
+    assertEquals(0, throttle.pausedChannels());
+  }
+
+  @Test
+  public void neverPauseWithoutHighWaterMark() throws Exception {
+    final IngestThrottle throttle = new IngestThrottle(0, 0);
+    final Channel chan = channel();
+    final ArrayList<Deferred<Object>> puts = puts(100);
+    for (final Deferred<Object> put : puts) {
+      put.addBoth(throttle.started(chan));
+    }
+    verify(chan, never()).setReadable(false);
+    assertEquals(100, throttle.outstanding());
+  }
+
+  @Test
+  public void doneCallbackPassesResultThrough() throws Exception {
+    final IngestThrottle throttle = new IngestThrottle(10, 5);
+    final Callback<Object, Object> cb = throttle.started(channel());
+    assertEquals("foo", Deferred.fromResult((Object) "foo")
+                 .addBoth(cb).joinUninterruptibly());
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void lowWaterMarkTooHigh() {
+    new IngestThrottle(10, 10);
+  }
+
+  private static Channel channel() {
+    final Channel chan = mock(Channel.class);
+    when(chan.isOpen()).thenReturn(true);
+    return chan;
+  }
+
+  private static ArrayList<Deferred<Object>> puts(final int n) {
+    final ArrayList<Deferred<Object>> puts =
+      new ArrayList<Deferred<Object>>(n);
+    for (int i = 0; i < n; i++) {
+      puts.add(new Deferred<Object>());
+    }
+    return puts;
+  }
+
+}
@@ -0,0 +1,69 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class TestMemoryCache {
+
+  @Test
+  public void evictLeastRecentlyUsed() {
+    final MemoryCache cache = new MemoryCache(4 * entry(0).size());
+    final MemoryCache.Entry a = entry(0);
+    cache.put("a", a);
+    cache.put("b", entry(0));
+    cache.put("c", entry(0));
+    cache.put("d", entry(0));
+    assertSame(a, cache.get("a"));  // "b" is now the LRU entry.
+    cache.put("e", entry(0));
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertNotNull(cache.get("e"));
+    assertEquals(4 * entry(0).size(), cache.size());
+  }
+
+  @Test
+  public void replaceEntry() {
+    final MemoryCache cache = new MemoryCache(2000);
+    cache.put("a", entry(100));
+    cache.put("a", entry(200));
+    assertEquals(200, cache.get("a").png.length);
+    assertEquals(entry(200).size(), cache.size());
+  }
+
+  @Test  // A single large entry shouldn't flush the whole cache.
+  public void dontCacheLargeEntries() {
+    final MemoryCache cache = new MemoryCache(1000);
+    cache.put("a", entry(10));
+    cache.put("b", entry(300));
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+
+  @Test
+  public void sizeAccountsForJson() {
+    final MemoryCache.Entry entry =
+      new MemoryCache.Entry(null, "{\"plotted\":0,\"timing\":", 42);
+    assertEquals(entry(0).size() + 2 * entry.json.length(), entry.size());
+  }
+
+  private static MemoryCache.Entry entry(final int png_size) {
+    return new MemoryCache.Entry(new byte[png_size], null, 42);
+  }
+
+}
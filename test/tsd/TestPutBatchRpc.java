@@ -0,0 +1,128 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import com.stumbleupon.async.Deferred;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+
+import net.opentsdb.core.TSDB;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ TSDB.class })
+public final class TestPutBatchRpc {
+
+  private final TSDB tsdb = mock(TSDB.class);
+  private final Channel chan = mock(Channel.class);
+  private final PutBatchRpc putbatch =
+    new PutBatchRpc(new PutDataPointRpc());
+  private final Deferred<Object> put1 = new Deferred<Object>();
+  private final Deferred<Object> put2 = new Deferred<Object>();
+
+  @Before
+  public void before() {
+    when(chan.isConnected()).thenReturn(true);
+    when(chan.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+    when(tsdb.addPoint(anyString(), anyLong(), anyLong(),
+                       anyMapOf(String.class, String.class)))
+      .thenReturn(put1).thenReturn(put2);
+  }
+
+  @Test
+  public void ackOnceAllThePointsAreStored() throws Exception {
+    execute("putbatch 2");
+    assertTrue(putbatch.inBatch(chan));
+    execute("put foo 1356998400 42 host=a");
+    execute("put foo 1356998401 43 host=a");
+    assertFalse(putbatch.inBatch(chan));
+    put1.callback(null);
+    verify(chan, never()).write("putbatch: ok 1\n");
+    put2.callback(null);
+    verify(chan).write("putbatch: ok 1\n");
+  }
+
+  @Test
+  public void nackIfAPointFails() throws Exception {
+    execute("putbatch 2 abc");
+    execute("put foo 1356998400 42 host=a");
+    execute("put foo 1356998401 43 host=a");
+    put1.callback(null);
+    put2.callback(new RuntimeException("boom"));
+    verify(chan).write("putbatch: error abc: 1 of 2 data points failed:"
+                       + " boom\n");
+  }
+
+  @Test
+  public void nackInvalidPoints() throws Exception {
+    execute("putbatch 3");
+    execute("put foo 1356998400 42 host=a");
+    execute("put foo notatimestamp 43 host=a");
+    execute("get foo");
+    put1.callback(null);
+    verify(chan).write(startsWith("putbatch: error 1: 2 of 3 data points"
+                                  + " failed: invalid value: "));
+  }
+
+  @Test
+  public void numberTheBatchesOfAChannel() throws Exception {
+    execute("putbatch 1");
+    execute("put foo 1356998400 42 host=a");
+    execute("putbatch 1");
+    execute("put foo 1356998401 43 host=a");
+    put2.callback(null);  // Acks can be sent out of order.
+    verify(chan).write("putbatch: ok 2\n");
+    put1.callback(null);
+    verify(chan).write("putbatch: ok 1\n");
+  }
+
+  @Test
+  public void invalidBatchSize() throws Exception {
+    execute("putbatch 0");
+    verify(chan).write("putbatch: invalid batch size: 0"
+                       + " (must be between 1 and 100000)\n");
+    assertFalse(putbatch.inBatch(chan));
+    execute("putbatch foo");
+    verify(chan).write("putbatch: invalid batch size: foo\n");
+    assertFalse(putbatch.inBatch(chan));
+  }
+
+  private void execute(final String line) {
+    putbatch.execute(tsdb, chan, line.split(" "));
+  }
+
+}
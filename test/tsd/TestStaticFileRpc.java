@@ -0,0 +1,248 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.tsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpMethod;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpVersion;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.powermock.reflect.Whitebox;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+@RunWith(PowerMockRunner.class)
+// "Classloader hell"...  It's real.  Tell PowerMock to ignore these classes
+// because they fiddle with the class loader.  We don't test them anyway.
+@PowerMockIgnore({"javax.management.*", "javax.xml.*",
+                  "ch.qos.*", "org.slf4j.*",
+                  "com.sum.*", "org.xml.*"})
+@PrepareForTest({ HttpQuery.class })
+public final class TestStaticFileRpc {
+
+  private File dir;
+  private String staticroot;
+
+  @Before
+  public void before() throws IOException {
+    dir = File.createTempFile("tsd-static", "");
+    assertTrue(dir.delete());
+    assertTrue(dir.mkdir());
+    staticroot = dir.getPath() + '/';
+  }
+
+  @After
+  public void after() {
+    for (final File file : dir.listFiles()) {
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  @Test
+  public void acceptsGzip() throws Exception {
+    assertFalse(acceptsGzip(null));
+    assertTrue(acceptsGzip("gzip"));
+    assertTrue(acceptsGzip("deflate, GZIP;q=1.0"));
+    assertTrue(acceptsGzip("gzip; q=0.5"));
+    assertTrue(acceptsGzip("*"));
+    assertFalse(acceptsGzip("gzip;q=0"));
+    assertFalse(acceptsGzip("gzip; q=0.000"));
+    assertFalse(acceptsGzip("*;q=0"));
+    assertFalse(acceptsGzip("deflate"));
+    assertFalse(acceptsGzip("identity, xgzip"));
+  }
+
+  @Test
+  public void sendGzipped() throws Exception {
+    writeFile("a.js", "var a = 1;");
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 1 << 20);
+    final HttpQuery query = query("/s/a.js", "gzip");
+    rpc.execute(null, query);
+    assertEquals("var a = 1;", gunzip(sentGzipped(query, "a.js")));
+    verify(query, never()).sendFile(anyString(), anyInt());
+  }
+
+  @Test
+  public void compressAgainWhenModified() throws Exception {
+    final File file = writeFile("a.js", "var a = 1;");
+    final long mtime = file.lastModified();
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 1 << 20);
+    HttpQuery query = query("/s/a.js", "gzip");
+    rpc.execute(null, query);
+    assertEquals("var a = 1;", gunzip(sentGzipped(query, "a.js")));
+
+    // Same length, different mtime.
+    writeFile("a.js", "var a = 2;");
+    assertTrue(file.setLastModified(mtime + 2000));
+    query = query("/s/a.js", "gzip");
+    rpc.execute(null, query);
+    assertEquals("var a = 2;", gunzip(sentGzipped(query, "a.js")));
+
+    // Same mtime, different length.
+    writeFile("a.js", "var a = 42;");
+    assertTrue(file.setLastModified(mtime + 2000));
+    query = query("/s/a.js", "gzip");
+    rpc.execute(null, query);
+    assertEquals("var a = 42;", gunzip(sentGzipped(query, "a.js")));
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception {
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 200);
+    for (char c = 'a'; c <= 'h'; c++) {
+      writeFile(c + ".js", "var " + c + " = 1;");
+      rpc.execute(null, query("/s/" + c + ".js", "gzip"));
+      if (c == 'e') {
+        rpc.execute(null, query("/s/a.js", "gzip"));  // Keep `a' around.
+      }
+    }
+    final Map<String, ?> gzipped = Whitebox.getInternalState(rpc, "gzipped");
+    assertTrue(gzipped.containsKey(staticroot + "a.js"));
+    assertFalse(gzipped.containsKey(staticroot + "b.js"));
+    assertTrue(gzipped.containsKey(staticroot + "h.js"));
+    long bytes = 0;
+    for (final Object gz : gzipped.values()) {
+      bytes += ((byte[]) Whitebox.getInternalState(gz, "content")).length;
+    }
+    final long cached = (Long) Whitebox.getInternalState(rpc, "gzipped_bytes");
+    assertEquals(bytes, cached);
+    assertTrue("bytes=" + bytes, bytes <= 200);
+  }
+
+  @Test
+  public void sendFileWhenGzipNotAccepted() throws Exception {
+    writeFile("a.js", "var a = 1;");
+    final HttpQuery query = query("/s/a.js", "gzip;q=0");
+    new StaticFileRpc(staticroot, 1 << 20).execute(null, query);
+    verify(query).sendFile(staticroot + "a.js", 31536000);
+    verify(query, never()).sendGzippedFile(anyString(), any(byte[].class),
+                                           anyLong(), anyInt());
+  }
+
+  @Test
+  public void sendFileWhenNotCompressible() throws Exception {
+    writeFile("a.png", "not really a PNG");
+    final HttpQuery query = query("/s/a.png?nocache", "gzip");
+    new StaticFileRpc(staticroot, 1 << 20).execute(null, query);
+    verify(query).sendFile(staticroot + "a.png", 0);
+  }
+
+  @Test
+  public void sendFileWhenMissing() throws Exception {
+    final HttpQuery query = query("/s/missing.js", "gzip");
+    new StaticFileRpc(staticroot, 1 << 20).execute(null, query);
+    verify(query).sendFile(staticroot + "missing.js", 31536000);
+  }
+
+  @Test
+  public void sendFileWhenTooLarge() throws Exception {
+    final FileOutputStream out =
+      new FileOutputStream(staticroot + "large.js");
+    try {
+      out.write(new byte[4 * 1024 * 1024 + 1]);
+    } finally {
+      out.close();
+    }
+    final HttpQuery query = query("/s/large.js", "gzip");
+    final StaticFileRpc rpc = new StaticFileRpc(staticroot, 1 << 20);
+    rpc.execute(null, query);
+    verify(query).sendFile(staticroot + "large.js", 31536000);
+    final long cached = (Long) Whitebox.getInternalState(rpc, "gzipped_bytes");
+    assertEquals(0, cached);
+  }
+
+  private static boolean acceptsGzip(final String accept_encoding) {
+    return StaticFileRpc.acceptsGzip(query("/s/a.js", accept_encoding));
+  }
+
+  /** Returns an HTTP query for the given URI.  */
+  private static HttpQuery query(final String uri,
+                                 final String accept_encoding) {
+    final HttpQuery query = mock(HttpQuery.class);
+    final HttpRequest req =
+      new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    if (accept_encoding != null) {
+      req.setHeader(HttpHeaders.Names.ACCEPT_ENCODING, accept_encoding);
+    }
+    when(query.request()).thenReturn(req);
+    return query;
+  }
+
+  /** Returns the compressed file sent in response to the given query.  */
+  private byte[] sentGzipped(final HttpQuery query, final String name) {
+    final ArgumentCaptor<byte[]> gzipped =
+      ArgumentCaptor.forClass(byte[].class);
+    verify(query).sendGzippedFile(eq(staticroot + name), gzipped.capture(),
+                                  anyLong(), eq(31536000));
+    return gzipped.getValue();
+  }
+
+  private File writeFile(final String name,
+                         final String content) throws IOException {
+    final File file = new File(dir, name);
+    final FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static String gunzip(final byte[] gzipped) throws IOException {
+    final GZIPInputStream in =
+      new GZIPInputStream(new ByteArrayInputStream(gzipped));
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buf = new byte[4096];
+      int n;
+      while ((n = in.read(buf)) > 0) {
+        out.write(buf, 0, n);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+}
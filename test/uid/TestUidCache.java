@@ -0,0 +1,160 @@
+// This file is part of OpenTSDB.
+// Copyright (C) 2013  The OpenTSDB Authors.
+//
+// This program is free software: you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 2.1 of the License, or (at your
+// option) any later version.  This program is distributed in the hope that it
+// will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+// of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU Lesser
+// General Public License for more details.  You should have received a copy
+// of the GNU Lesser General Public License along with this program.  If not,
+// see <http://www.gnu.org/licenses/>.
+package net.opentsdb.uid;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class TestUidCache {
+
+  @Test
+  public void lookupBothWays() {
+    final UidCache cache = new UidCache(10);
+    cache.put("foo", 42);
+    cache.put("bar", 1L << 40);
+    assertEquals("foo", cache.getName(42));
+    assertEquals(42, cache.getId("foo"));
+    assertEquals("bar", cache.getName(1L << 40));
+    assertEquals(1L << 40, cache.getId("bar"));
+    assertNull(cache.getName(43));
+    assertEquals(UidCache.MISSING, cache.getId("qux"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test  // 8-byte IDs with the high bit set are negative longs.
+  public void idsWithTheHighBitSet() {
+    final UidCache cache = new UidCache(10);
+    cache.put("all", -1L);
+    cache.put("min", Long.MIN_VALUE);
+    assertEquals(-1L, cache.getId("all"));
+    assertEquals(Long.MIN_VALUE, cache.getId("min"));
+    assertEquals("all", cache.getName(-1L));
+    assertEquals("min", cache.getName(Long.MIN_VALUE));
+    cache.put("zero", UidCache.MISSING);  // Not cached.
+    assertEquals(UidCache.MISSING, cache.getId("zero"));
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void growUpToTheMax() {
+    final UidCache cache = new UidCache(5000);
+    for (int i = 1; i <= 5000; i++) {
+      cache.put("name" + i, i);
+    }
+    for (int i = 1; i <= 5000; i++) {
+      assertEquals("name" + i, cache.getName(i));
+      assertEquals(i, cache.getId("name" + i));
+    }
+    assertEquals(5000, cache.size());
+    assertEquals(0, cache.evictions());
+  }
+
+  @Test  // Entries looked up since the last sweep get a second chance.
+  public void evictWithClock() {
+    final UidCache cache = new UidCache(3);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    cache.put("d", 4);  // Sweeps all the entries once, evicts "a".
+    assertNull(cache.getName(1));
+    cache.getId("b");   // "b" gets a second chance, "c" doesn't.
+    cache.put("e", 5);
+    assertEquals("b", cache.getName(2));
+    assertNull(cache.getName(3));
+    assertEquals(UidCache.MISSING, cache.getId("c"));
+    assertEquals(5, cache.getId("e"));
+    assertEquals(4, cache.getId("d"));
+    assertEquals(3, cache.size());
+    assertEquals(2, cache.evictions());
+  }
+
+  @Test  // Evictions must not break the probing sequences of the indexes.
+  public void manyEvictions() {
+    final UidCache cache = new UidCache(100);
+    for (int i = 1; i <= 10000; i++) {
+      cache.put("name" + i, i);
+      assertEquals(i, cache.getId("name" + i));
+    }
+    assertEquals(100, cache.size());
+    int found = 0;
+    for (int i = 1; i <= 10000; i++) {
+      final String name = cache.getName(i);
+      if (name != null) {
+        assertEquals("name" + i, name);
+        assertEquals(i, cache.getId(name));
+        found++;
+      }
+    }
+    assertEquals(100, found);
+    assertEquals(9900, cache.evictions());
+  }
+
+  @Test
+  public void rename() {
+    final UidCache cache = new UidCache(10);
+    cache.put("foo", 42);
+    cache.rename(42, "bar");
+    assertEquals("bar", cache.getName(42));
+    assertEquals(42, cache.getId("bar"));
+    assertEquals(UidCache.MISSING, cache.getId("foo"));
+    assertEquals(1, cache.size());
+  }
+
+  @Test
+  public void replace() {
+    final UidCache cache = new UidCache(10);
+    cache.put("foo", 42);
+    cache.put("bar", 43);
+    cache.put("qux", 44);
+    cache.replace("foo", 43);  // Both "foo" and 43 were mapped.
+    assertEquals(43, cache.getId("foo"));
+    assertEquals("foo", cache.getName(43));
+    assertNull(cache.getName(42));
+    assertEquals(UidCache.MISSING, cache.getId("bar"));
+    assertEquals(44, cache.getId("qux"));
+    assertEquals("qux", cache.getName(44));
+    assertEquals(2, cache.size());
+    cache.replace("baz", 45);  // Neither was mapped.
+    assertEquals(45, cache.getId("baz"));
+    assertEquals(3, cache.size());
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void nameAlreadyMapped() {
+    final UidCache cache = new UidCache(10);
+    cache.put("foo", 42);
+    cache.put("foo", 43);
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void idAlreadyMapped() {
+    final UidCache cache = new UidCache(10);
+    cache.put("foo", 42);
+    cache.put("bar", 42);
+  }
+
+  @Test
+  public void clear() {
+    final UidCache cache = new UidCache(10);
+    final long empty = cache.memory();
+    cache.put("foo", 42);
+    assertTrue(cache.memory() > empty);
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.getName(42));
+    assertEquals(empty, cache.memory());
+  }
+
+}
@@ -12,6 +12,8 @@
 // see <http://www.gnu.org/licenses/>.
 package net.opentsdb.uid;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -30,15 +32,15 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.mockito.ArgumentMatcher;
 import org.mockito.InOrder;
-import org.mockito.invocation.InvocationOnMock;
-import org.mockito.stubbing.Answer;
 import static org.mockito.Mockito.any;
-import static org.mockito.Mockito.anyInt;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.inOrder;
@@ -47,7 +49,6 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -198,6 +199,49 @@ public final class TestUniqueId {
     verify(client).get(anyGet());
   }
 
+  @Test  // On 8 bytes, IDs with the high bit set are cached too.
+  public void getIdWithTheHighBitSet() {
+    uid = new UniqueId(client, table, kind, 8);
+    final byte[] id = { (byte) 0x80, 0, 0, 0, 0, 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+
+    assertArrayEquals(id, uid.getId("foo"));
+    assertArrayEquals(id, uid.getId("foo"));
+    assertEquals("foo", uid.getName(id));
+    assertEquals(2, uid.cacheHits());
+    assertEquals(1, uid.cacheMisses());
+    verify(client).get(anyGet());
+  }
+
+  @Test
+  public void copyCachedId() {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+
+    final byte[] buf = { 1, 2, 3, 4, 5 };
+    // Not cached yet, and we don't go to HBase.
+    assertFalse(uid.copyCachedId("foo", buf, 1));
+    assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, buf);
+    verify(client, never()).get(anyGet());
+
+    uid.getId("foo");
+    assertTrue(uid.copyCachedId("foo", buf, 1));
+    assertArrayEquals(new byte[] { 1, 0, 'a', 0x42, 5 }, buf);
+    assertEquals(1, uid.cacheHits());
+    assertEquals(1, uid.cacheMisses());
+  }
+
   // The table contains IDs encoded on 2 bytes but the instance wants 3.
   @Test(expected=IllegalStateException.class)
   public void getIdMisconfiguredWidth() {
@@ -224,6 +268,123 @@ public final class TestUniqueId {
     uid.getId("foo");
   }
 
+  @Test  // The lookup completes when HBase answers, nothing blocks.
+  public void getIdAsync() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 'a', 0x42 };
+    final byte[] byte_name = { 'f', 'o', 'o' };
+
+    final Deferred<ArrayList<KeyValue>> foo =
+      new Deferred<ArrayList<KeyValue>>();
+    final Deferred<ArrayList<KeyValue>> bar =
+      new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet()))
+      .thenReturn(foo)
+      .thenReturn(bar);
+
+    final Deferred<byte[]> foo_id = uid.getIdAsync("foo");
+    final Deferred<byte[]> bar_id = uid.getIdAsync("bar");
+    assertEquals(0, uid.cacheSize());  // HBase hasn't answered yet.
+
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(byte_name, ID, kind_array, id));
+    foo.callback(kvs);
+    assertArrayEquals(id, foo_id.joinUninterruptibly());
+    assertEquals("foo", uid.getName(id));  // Cache hit.
+
+    bar.callback(null);  // null  =>  ID doesn't exist.
+    try {
+      bar_id.joinUninterruptibly();
+      fail("NoSuchUniqueName should have been thrown.");
+    } catch (NoSuchUniqueName e) {
+      // OK.
+    }
+    verify(client, times(2)).get(anyGet());
+  }
+
+  @Test  // Each distinct ID is looked up once, all in parallel.
+  public void getNamesAsync() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] foo_id = { 0, 0, 1 };
+    final byte[] bar_id = { 0, 0, 2 };
+
+    final Deferred<ArrayList<KeyValue>> foo =
+      new Deferred<ArrayList<KeyValue>>();
+    final Deferred<ArrayList<KeyValue>> bar =
+      new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet()))
+      .thenReturn(foo)
+      .thenReturn(bar);
+
+    final Deferred<ArrayList<String>> names =
+      uid.getNamesAsync(Arrays.asList(foo_id, bar_id, foo_id));
+    verify(client, times(2)).get(anyGet());  // Both sent already.
+
+    ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(bar_id, ID, kind_array, "bar".getBytes()));
+    bar.callback(kvs);
+    kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(foo_id, ID, kind_array, "foo".getBytes()));
+    foo.callback(kvs);
+    assertEquals(Arrays.asList("foo", "bar", "foo"),
+                 names.joinUninterruptibly());
+
+    // Now everything is cached.
+    assertEquals(Arrays.asList("bar", "foo"),
+                 uid.getNamesAsync(Arrays.asList(bar_id, foo_id))
+                 .joinUninterruptibly());
+    verify(client, times(2)).get(anyGet());
+  }
+
+  @Test
+  public void getIdWithNegativeCache() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setNegativeCacheTtl(60000);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(5L));
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))  // Reverse mapping.
+      .thenReturn(Deferred.fromResult(true)); // Forward mapping.
+
+    for (int i = 0; i < 3; i++) {
+      try {
+        uid.getId("foo");
+        fail("NoSuchUniqueName should have been thrown.");
+      } catch (NoSuchUniqueName e) {
+        // OK.
+      }
+    }
+    verify(client).get(anyGet());
+    assertEquals(2, uid.negativeCacheHits());
+
+    // Assigning an ID locally invalidates the negative cache.
+    final byte[] id = { 0, 0, 5 };
+    assertArrayEquals(id, uid.getOrCreateId("foo"));
+    assertArrayEquals(id, uid.getId("foo"));
+    verify(client).get(anyGet());  // The lookup was answered from memory.
+    assertEquals(3, uid.negativeCacheHits());
+
+    // Once the TTL expires, we ask HBase again.
+    uid.setNegativeCacheTtl(1);
+    try {
+      uid.getId("bar");
+    } catch (NoSuchUniqueName e) {
+      // OK.
+    }
+    Thread.sleep(5);
+    try {
+      uid.getId("bar");
+    } catch (NoSuchUniqueName e) {
+      // OK.
+    }
+    verify(client, times(3)).get(anyGet());
+    assertEquals(3, uid.negativeCacheHits());
+  }
+
   @Test
   public void getOrCreateIdWithExistingId() {
     uid = new UniqueId(client, table, kind, 3);
@@ -259,7 +420,8 @@ public final class TestUniqueId {
       .thenReturn(Deferred.fromResult(5L));
 
     when(client.compareAndSet(anyPut(), emptyArray()))
-      .thenReturn(Deferred.fromResult(true));
+      .thenReturn(Deferred.fromResult(true))  // Reverse mapping.
+      .thenReturn(Deferred.fromResult(true)); // Forward mapping.
 
     assertArrayEquals(id, uid.getOrCreateId("foo"));
     // Should be a cache hit since we created that entry.
@@ -273,21 +435,50 @@ public final class TestUniqueId {
     verify(client, times(2)).compareAndSet(anyPut(), emptyArray());
   }
 
-  @PrepareForTest({HBaseClient.class, UniqueId.class})
+  @Test  // Concurrent assignments of the same name share a single ID.
+  public void getOrCreateIdConcurrently() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final byte[] id = { 0, 0, 5 };
+
+    // The first Get won't complete until we call it back.
+    final Deferred<ArrayList<KeyValue>> d = new Deferred<ArrayList<KeyValue>>();
+    when(client.get(anyGet()))
+      .thenReturn(d);
+
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(5L));
+
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))  // Reverse mapping.
+      .thenReturn(Deferred.fromResult(true)); // Forward mapping.
+
+    final Deferred<byte[]> first = uid.getOrCreateIdAsync("foo");
+    final Deferred<byte[]> second = uid.getOrCreateIdAsync("foo");
+    d.callback(null);  // null  =>  ID doesn't exist.
+    final byte[] first_id = first.joinUninterruptibly();
+    final byte[] second_id = second.joinUninterruptibly();
+    assertArrayEquals(id, first_id);
+    assertArrayEquals(id, second_id);
+    assertNotSame(first_id, second_id);  // Each caller gets its own copy.
+
+    verify(client).get(anyGet());
+    verify(client).atomicIncrement(incrementForRow(MAXID));
+    verify(client, times(2)).compareAndSet(anyPut(), emptyArray());
+  }
+
   @Test  // Test the creation of an ID when unable to increment MAXID
   public void getOrCreateIdUnableToIncrementMaxId() throws Exception {
-    PowerMockito.mockStatic(Thread.class);
-
     uid = new UniqueId(client, table, kind, 3);
 
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
 
     HBaseException hbe = fakeHBaseException();
     when(client.atomicIncrement(incrementForRow(MAXID)))
       .thenThrow(hbe);
-    PowerMockito.doNothing().when(Thread.class); Thread.sleep(anyInt());
 
     try {
       uid.getOrCreateId("foo");
@@ -298,8 +489,7 @@ public final class TestUniqueId {
   }
 
   @Test  // Test the creation of an ID with a race condition.
-  @PrepareForTest({HBaseClient.class, Deferred.class})
-  public void getOrCreateIdAssignIdWithRaceCondition() {
+  public void getOrCreateIdAssignIdWithRaceCondition() throws Exception {
     // Simulate a race between client A and client B.
     // A does a Get and sees that there's no ID for this name.
     // B does a Get and sees that there's no ID too, and B actually goes
@@ -316,27 +506,12 @@ public final class TestUniqueId {
     final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
     kvs.add(new KeyValue(byte_name, ID, kind_array, id));
 
-    @SuppressWarnings("unchecked")
-    final Deferred<ArrayList<KeyValue>> d = mock(Deferred.class);
+    // A's first Get won't complete until we call it back.
+    final Deferred<ArrayList<KeyValue>> d = new Deferred<ArrayList<KeyValue>>();
     when(client.get(anyGet()))
       .thenReturn(d)
       .thenReturn(Deferred.fromResult(kvs));
 
-    final Answer<byte[]> the_race = new Answer<byte[]>() {
-      public byte[] answer(final InvocationOnMock unused_invocation) {
-        // While answering A's first Get, B doest a full getOrCreateId.
-        assertArrayEquals(id, uid_b.getOrCreateId("foo"));
-        return null;
-      }
-    };
-
-    try {
-      when(d.joinUninterruptibly())
-        .thenAnswer(the_race);  // Start the race when answering A's first Get.
-    } catch (Exception e) {
-      fail("Should never happen: " + e);
-    }
-
     when(client_b.get(anyGet()))      // null  =>  ID doesn't exist.
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
@@ -345,7 +520,8 @@ public final class TestUniqueId {
       .thenReturn(Deferred.fromResult(5L));
 
     when(client_b.compareAndSet(anyPut(), emptyArray()))
-      .thenReturn(Deferred.fromResult(true));
+      .thenReturn(Deferred.fromResult(true))  // Reverse mapping.
+      .thenReturn(Deferred.fromResult(true)); // Forward mapping.
 
     // Now that B is finished, A proceeds and allocates a UID that will be
     // wasted, and creates the reverse mapping, but fails at creating the
@@ -358,7 +534,11 @@ public final class TestUniqueId {
       .thenReturn(Deferred.fromResult(false));  // Already CAS'ed by A.
 
     // Start the execution.
-    assertArrayEquals(id, uid.getOrCreateId("foo"));
+    final Deferred<byte[]> assignment = uid.getOrCreateIdAsync("foo");
+    // While A waits on its first Get, B does a full getOrCreateId.
+    assertArrayEquals(id, uid_b.getOrCreateId("foo"));
+    d.callback(null);  // null  =>  ID doesn't exist.
+    assertArrayEquals(id, assignment.joinUninterruptibly());
 
     // Verify the order of execution too.
     final InOrder order = inOrder(client, client_b);
@@ -403,6 +583,7 @@ public final class TestUniqueId {
     uid = new UniqueId(client, table, kind, 3);
 
     when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
       .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
     // Watch this! ______,^   I'm writing C++ in Java!
 
@@ -413,7 +594,8 @@ public final class TestUniqueId {
       .thenReturn(Deferred.fromResult(5L));
 
     when(client.compareAndSet(anyPut(), emptyArray()))
-      .thenReturn(Deferred.fromResult(true));
+      .thenReturn(Deferred.fromResult(true))  // Reverse mapping.
+      .thenReturn(Deferred.fromResult(true)); // Forward mapping.
 
     final byte[] id = { 0, 0, 5 };
     assertArrayEquals(id, uid.getOrCreateId("foo"));
@@ -436,7 +618,8 @@ public final class TestUniqueId {
       .thenReturn(Deferred.fromResult(6L));
 
     when(client.compareAndSet(anyPut(), emptyArray()))
-      .thenReturn(Deferred.fromResult(true));
+      .thenReturn(Deferred.fromResult(true))  // Reverse mapping.
+      .thenReturn(Deferred.fromResult(true)); // Forward mapping.
 
     final byte[] id = { 0, 0, 6 };
     final byte[] row = { 'f', 'o', 'o' };
@@ -449,6 +632,93 @@ public final class TestUniqueId {
     order.verify(client).compareAndSet(putForRow(row), emptyArray());
   }
 
+  @Test  // A single increment leases IDs for several assignments.
+  public void getOrCreateIdWithLease() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setIdLeaseSize(10);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.fromResult(20L));  // Leased IDs 11 to 20.
+
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    assertArrayEquals(new byte[] { 0, 0, 11 }, uid.getOrCreateId("foo"));
+    assertArrayEquals(new byte[] { 0, 0, 12 }, uid.getOrCreateId("bar"));
+    assertEquals(1, uid.idLeases());
+    assertEquals(8, uid.leasedIds());
+
+    verify(client).atomicIncrement(incrementForRow(MAXID));
+    // Reverse + forward mappings, for each ID.
+    verify(client, times(4)).compareAndSet(anyPut(), emptyArray());
+  }
+
+  @Test  // Assignments waiting on the same lease don't lease more IDs.
+  public void getOrCreateIdWithConcurrentLease() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setIdLeaseSize(2);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    final Deferred<Long> lease = new Deferred<Long>();
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(lease)                      // Leased IDs 1 and 2.
+      .thenReturn(Deferred.fromResult(4L));   // Leased IDs 3 and 4.
+
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    final Deferred<byte[]> a = uid.getOrCreateIdAsync("a");
+    final Deferred<byte[]> b = uid.getOrCreateIdAsync("b");
+    final Deferred<byte[]> c = uid.getOrCreateIdAsync("c");
+    verify(client).atomicIncrement(incrementForRow(MAXID));
+    lease.callback(2L);
+    assertArrayEquals(new byte[] { 0, 0, 1 }, a.joinUninterruptibly());
+    assertArrayEquals(new byte[] { 0, 0, 2 }, b.joinUninterruptibly());
+    assertArrayEquals(new byte[] { 0, 0, 3 }, c.joinUninterruptibly());
+    assertEquals(2, uid.idLeases());
+    assertEquals(1, uid.leasedIds());
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+  }
+
+  @Test  // The assignments waiting on a lease retry if it fails.
+  public void getOrCreateIdWithLeaseFailure() {
+    uid = new UniqueId(client, table, kind, 3);
+    uid.setIdLeaseSize(10);
+
+    when(client.get(anyGet()))      // null  =>  ID doesn't exist.
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null))
+      .thenReturn(Deferred.<ArrayList<KeyValue>>fromResult(null));
+
+    HBaseException hbe = fakeHBaseException();
+    when(client.atomicIncrement(incrementForRow(MAXID)))
+      .thenReturn(Deferred.<Long>fromError(hbe))
+      .thenReturn(Deferred.fromResult(10L));
+
+    when(client.compareAndSet(anyPut(), emptyArray()))
+      .thenReturn(Deferred.fromResult(true))
+      .thenReturn(Deferred.fromResult(true));
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getOrCreateId("foo"));
+    verify(client, times(2)).atomicIncrement(incrementForRow(MAXID));
+    assertEquals(9, uid.leasedIds());
+  }
+
   @PrepareForTest({HBaseClient.class, Scanner.class})
   @Test
   public void suggestWithNoMatch() {
@@ -514,6 +784,142 @@ public final class TestUniqueId {
     verify(client, never()).get(anyGet());
   }
 
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void suggestFromIndex() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+
+    final Scanner fake_scanner = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(fake_scanner);
+
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>(3);
+    for (final String name : new String[] { "bar", "foo.bar", "foo.baz" }) {
+      final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+      row.add(new KeyValue(name.getBytes(), ID, kind_array,
+                           new byte[] { 0, 0, (byte) rows.size() }));
+      rows.add(row);
+    }
+    when(fake_scanner.nextRows())
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(rows))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    uid.loadSuggestIndex().joinUninterruptibly();
+    assertEquals(3, uid.suggestIndexSize());
+    verify(fake_scanner).setStartKey(new byte[] { '!' });
+    verify(fake_scanner).setStopKey(new byte[] { '~' });
+
+    assertEquals(Arrays.asList("foo.bar", "foo.baz"), uid.suggest("foo"));
+    assertEquals(Arrays.asList("bar", "foo.bar", "foo.baz"), uid.suggest(""));
+    assertEquals(0, uid.suggest("foo.bar.").size());
+    // No other scanner was opened after loading the names.
+    verify(client, times(1)).newScanner(table);
+
+    // Names found in HBase later on are added to the index.
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue("foo.qux".getBytes(), ID, kind_array,
+                         new byte[] { 0, 0, 4 }));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+    uid.getId("foo.qux");
+    assertEquals(Arrays.asList("foo.bar", "foo.baz", "foo.qux"),
+                 uid.suggest("foo"));
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test
+  public void warmCacheInParallel() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+
+    final Scanner scanner1 = mock(Scanner.class);
+    final Scanner scanner2 = mock(Scanner.class);
+    when(client.newScanner(table))
+      .thenReturn(scanner1)
+      .thenReturn(scanner2);
+    when(scanner1.nextRows())
+      .thenReturn(Deferred.fromResult(rows("bar", 1)))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    when(scanner2.nextRows())
+      .thenReturn(Deferred.fromResult(rows("foo", 2)))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+
+    uid.warmCache(2).joinUninterruptibly();
+    verify(scanner1).setStartKey(new byte[] { '!' });
+    verify(scanner1).setStopKey(new byte[] { 'O' });
+    verify(scanner2).setStartKey(new byte[] { 'O' });
+    verify(scanner2).setStopKey(new byte[] { '~' });
+
+    assertArrayEquals(new byte[] { 0, 0, 1 }, uid.getId("bar"));
+    assertEquals("foo", uid.getName(new byte[] { 0, 0, 2 }));
+    verify(client, never()).get(anyGet());
+    assertEquals(4, uid.cacheSize());
+  }
+
+  @Test
+  public void saveAndLoadCacheSnapshot() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final ArrayList<KeyValue> kvs = new ArrayList<KeyValue>(1);
+    kvs.add(new KeyValue(new byte[] { 0, 0, 1 }, ID, kind_array,
+                         "foo".getBytes()));
+    when(client.get(anyGet()))
+      .thenReturn(Deferred.fromResult(kvs));
+    uid.getName(new byte[] { 0, 0, 1 });
+
+    final File file = File.createTempFile("uidcache", "");
+    try {
+      assertEquals(1, uid.saveCacheSnapshot(file));
+      final UniqueId uid2 = new UniqueId(client, table, kind, 3);
+      assertEquals(1, uid2.loadCacheSnapshot(file));
+      assertArrayEquals(new byte[] { 0, 0, 1 }, uid2.getId("foo"));
+      assertEquals(1, uid2.cacheHits());
+      // A snapshot of different width can't be loaded.
+      try {
+        new UniqueId(client, table, kind, 2).loadCacheSnapshot(file);
+        fail("IOException not thrown");
+      } catch (IOException e) {
+        // Expected.
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  @PrepareForTest({HBaseClient.class, Scanner.class})
+  @Test  // HBase wins over a snapshot saved before a rename.
+  public void warmCacheReplacesStaleSnapshot() throws Exception {
+    uid = new UniqueId(client, table, kind, 3);
+    final Scanner scanner = mock(Scanner.class);
+    when(client.newScanner(table)).thenReturn(scanner);
+    when(scanner.nextRows())
+      .thenReturn(Deferred.fromResult(rows("bar", 2)))
+      .thenReturn(Deferred.fromResult(rows("foo", 1)))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null))
+      // Since then, "foo" was renamed to "qux" and assigned a new ID.
+      .thenReturn(Deferred.fromResult(rows("bar", 2)))
+      .thenReturn(Deferred.fromResult(rows("foo", 3)))
+      .thenReturn(Deferred.fromResult(rows("qux", 1)))
+      .thenReturn(Deferred.<ArrayList<ArrayList<KeyValue>>>fromResult(null));
+    uid.warmCache(1).joinUninterruptibly();
+
+    final File file = File.createTempFile("uidcache", "");
+    try {
+      assertEquals(2, uid.saveCacheSnapshot(file));
+      final UniqueId uid2 = new UniqueId(client, table, kind, 3);
+      assertEquals(2, uid2.loadCacheSnapshot(file));
+      assertArrayEquals(new byte[] { 0, 0, 1 }, uid2.getId("foo"));  // Stale.
+      uid2.warmCache(1).joinUninterruptibly();
+      assertArrayEquals(new byte[] { 0, 0, 3 }, uid2.getId("foo"));
+      assertArrayEquals(new byte[] { 0, 0, 1 }, uid2.getId("qux"));
+      assertArrayEquals(new byte[] { 0, 0, 2 }, uid2.getId("bar"));
+      assertEquals("foo", uid2.getName(new byte[] { 0, 0, 3 }));
+      assertEquals("qux", uid2.getName(new byte[] { 0, 0, 1 }));
+      verify(client, never()).get(anyGet());
+    } finally {
+      file.delete();
+    }
+  }
+
   // ----------------- //
   // Helper functions. //
   // ----------------- //
@@ -522,6 +928,18 @@ public final class TestUniqueId {
     return eq(HBaseClient.EMPTY_ARRAY);
   }
 
+  /** Returns what a scanner returns for the forward mapping of a name.  */
+  private static ArrayList<ArrayList<KeyValue>> rows(final String name,
+                                                     final int id) {
+    final ArrayList<KeyValue> row = new ArrayList<KeyValue>(1);
+    row.add(new KeyValue(name.getBytes(), ID, kind_array,
+                         new byte[] { 0, 0, (byte) id }));
+    final ArrayList<ArrayList<KeyValue>> rows =
+      new ArrayList<ArrayList<KeyValue>>(1);
+    rows.add(row);
+    return rows;
+  }
+
   private static GetRequest anyGet() {
     return any(GetRequest.class);
   }